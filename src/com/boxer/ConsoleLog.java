@@ -2,8 +2,17 @@ package com.boxer;
 
 import javafx.scene.control.TextArea;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  * The type Console log.
+ * <p>
+ * Goes to a text area of the window, or to a logger when there is no window. Lines for the text area logged by any
+ * thread wait in a queue, and one task on the UI thread appends everything logged until it runs.
  */
 public class ConsoleLog {
     /**
@@ -24,17 +33,17 @@ public class ConsoleLog {
     }
 
     /**
-     * The Log field.
+     * The Sink.
      */
-    private final TextArea logField;
+    private final Sink sink;
 
     /**
      * Instantiates a new Console log.
      *
-     * @param logField the log field
+     * @param sink the sink
      */
-    private ConsoleLog(TextArea logField) {
-        this.logField = logField;
+    private ConsoleLog(Sink sink) {
+        this.sink = sink;
     }
 
     /**
@@ -43,10 +52,28 @@ public class ConsoleLog {
      * @param logField the log field
      */
     public static void initialize(TextArea logField) {
+        initialize(new TextAreaSink(logField));
+    }
+
+    /**
+     * Initialize without a window, every line goes to the logger.
+     *
+     * @param logger the logger
+     */
+    public static void initialize(Logger logger) {
+        initialize(text -> logger.logp(Level.INFO, logger.getName(), null, text.trim()));
+    }
+
+    /**
+     * Initialize.
+     *
+     * @param sink the sink
+     */
+    private static void initialize(Sink sink) {
         if (INSTANCE != null) {
             throw new IllegalStateException("Already initialized");
         }
-        INSTANCE = new ConsoleLog(logField);
+        INSTANCE = new ConsoleLog(sink);
     }
 
     /**
@@ -55,6 +82,68 @@ public class ConsoleLog {
      * @param text the text
      */
     public void log(String text){
-        ThreadManager.runOnUiThread(() -> logField.appendText(text));
+        sink.log(text);
+    }
+
+    /**
+     * The interface Sink of the lines logged.
+     */
+    private interface Sink {
+        /**
+         * Log.
+         *
+         * @param text the text
+         */
+        void log(String text);
+    }
+
+    /**
+     * The type Text area sink, the only part touching JavaFX.
+     */
+    private static final class TextAreaSink implements Sink {
+        /**
+         * The Log field.
+         */
+        private final TextArea logField;
+        /**
+         * The Lines not shown yet.
+         */
+        private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+        /**
+         * The Flush scheduled flag.
+         */
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+        /**
+         * Instantiates a new Text area sink.
+         *
+         * @param logField the log field
+         */
+        TextAreaSink(TextArea logField) {
+            this.logField = logField;
+        }
+
+        @Override
+        public void log(String text) {
+            pending.offer(text);
+            if (flushScheduled.compareAndSet(false, true)) {
+                ThreadManager.runOnUiThread(this::flush);
+            }
+        }
+
+        /**
+         * Flush lines into the log field, on the UI thread.
+         */
+        private void flush() {
+            flushScheduled.set(false);
+            StringBuilder text = new StringBuilder();
+            String line;
+            while ((line = pending.poll()) != null) {
+                text.append(line);
+            }
+            if (text.length() > 0) {
+                logField.appendText(text.toString());
+            }
+        }
     }
 }
@@ -0,0 +1,159 @@
+package com.boxer;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The type File transfer.
+ * <p>
+ * Moves file bodies between disk and socket. Sockets with a channel get the bytes straight from the page cache
+ * ({@code sendfile} on Linux) and write received bytes without a heap copy, other sockets fall back to copying
+ * through a buffer.
+ */
+public class FileTransfer {
+    /**
+     * The constant BUFFER_SIZE.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Instantiates a new File transfer.
+     */
+    private FileTransfer() {
+    }
+
+    /**
+     * Send file body, anything written to the output stream before is flushed first.
+     *
+     * @param file   the file
+     * @param length the length announced to the receiver
+     * @param output the output stream of the socket
+     * @param socket the socket
+     * @throws IOException the io exception
+     */
+    public static void sendFile(File file, long length, OutputStream output, Socket socket) throws IOException {
+        // frame headers must be on the wire before the body
+        output.flush();
+
+        SocketChannel channel = socket.getChannel();
+        if (channel != null && channel.isBlocking()) {
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long position = 0;
+                while (position < length) {
+                    long count = source.transferTo(position, length - position, channel);
+                    if (count <= 0 && position >= source.size()) {
+                        throw new EOFException("file " + file.getName() + " shrunk while sending");
+                    }
+                    position += count;
+                }
+            }
+            return;
+        }
+
+        // plain sockets have no channel to transfer to
+        try (InputStream input = new FileInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0;
+            while (total < length) {
+                int count = input.read(buffer, 0, (int) Math.min(buffer.length, length - total));
+                if (count < 0) {
+                    throw new EOFException("file " + file.getName() + " shrunk while sending");
+                }
+                output.write(buffer, 0, count);
+                total += count;
+            }
+            output.flush();
+        }
+    }
+
+    /**
+     * Receive file body. The body is written next to the file, sized up front so large uploads are laid out in one
+     * go, and moved over it once complete, so a broken transfer leaves the file as it was.
+     * The input stream must not buffer ahead of the body, the bytes are taken from the channel directly.
+     *
+     * @param file   the target file
+     * @param length the announced length
+     * @param input  the input stream of the socket
+     * @param socket the socket
+     * @throws IOException the io exception
+     */
+    public static void receiveFile(File file, long length, InputStream input, Socket socket) throws IOException {
+        Path part = partOf(file);
+        try {
+            try (RandomAccessFile target = new RandomAccessFile(part.toFile(), "rw")) {
+                target.setLength(length);
+                receive(target, 0, length, input, socket);
+            }
+            install(part, file);
+        } finally {
+            Files.deleteIfExists(part);
+        }
+    }
+
+    /**
+     * Part file to write a body to, next to the file it replaces. Its name starts with a dot, so listings skip it.
+     *
+     * @param file the file
+     * @return the part file
+     * @throws IOException the io exception
+     */
+    public static Path partOf(File file) throws IOException {
+        return Files.createTempFile(file.getParentFile().toPath(), "." + file.getName() + ".", ".part");
+    }
+
+    /**
+     * Install complete part file, moved over the file at once so readers see the old content or the new one.
+     *
+     * @param part the part file
+     * @param file the file
+     * @throws IOException the io exception
+     */
+    public static void install(Path part, File file) throws IOException {
+        Files.move(part, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Receive the rest of a file body into an already sized target, for callers that got its first bytes already.
+     *
+     * @param target   the target file
+     * @param position the position in the target to continue at
+     * @param length   the number of bytes left
+     * @param input    the input stream of the socket
+     * @param socket   the socket
+     * @throws IOException the io exception
+     */
+    public static void receive(RandomAccessFile target, long position, long length, InputStream input, Socket socket) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel != null && channel.isBlocking()) {
+            FileChannel targetChannel = target.getChannel();
+            long end = position + length;
+            while (position < end) {
+                long count = targetChannel.transferFrom(channel, position, end - position);
+                if (count <= 0) {
+                    throw new EOFException("connection closed while receiving file body");
+                }
+                position += count;
+            }
+            return;
+        }
+
+        // plain sockets have no channel to transfer from
+        target.seek(position);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long total = 0;
+        while (total < length) {
+            int count = input.read(buffer, 0, (int) Math.min(buffer.length, length - total));
+            if (count < 0) {
+                throw new EOFException("connection closed while receiving file body");
+            }
+            target.write(buffer, 0, count);
+            total += count;
+        }
+    }
+}
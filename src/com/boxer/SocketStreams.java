@@ -0,0 +1,128 @@
+package com.boxer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The type Socket streams.
+ * <p>
+ * Streams handed out by a channel backed socket lock the whole channel while blocked in a read, so nothing could be
+ * written to the socket while waiting for the next message. These streams use the channel directly instead.
+ */
+public class SocketStreams {
+    /**
+     * Instantiates a new Socket streams.
+     */
+    private SocketStreams() {
+    }
+
+    /**
+     * Gets input stream.
+     *
+     * @param socket the socket
+     * @return the input stream
+     * @throws IOException the io exception
+     */
+    public static InputStream getInputStream(Socket socket) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null) {
+            return socket.getInputStream();
+        }
+        return new ChannelInputStream(channel);
+    }
+
+    /**
+     * Gets output stream.
+     *
+     * @param socket the socket
+     * @return the output stream
+     * @throws IOException the io exception
+     */
+    public static OutputStream getOutputStream(Socket socket) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null) {
+            return socket.getOutputStream();
+        }
+        return new ChannelOutputStream(channel);
+    }
+
+    /**
+     * The type Channel input stream.
+     */
+    private static final class ChannelInputStream extends InputStream {
+        /**
+         * The Channel.
+         */
+        private final SocketChannel channel;
+
+        /**
+         * Instantiates a new Channel input stream.
+         *
+         * @param channel the channel
+         */
+        ChannelInputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            int count = read(single, 0, 1);
+            return count < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * The type Channel output stream.
+     */
+    private static final class ChannelOutputStream extends OutputStream {
+        /**
+         * The Channel.
+         */
+        private final SocketChannel channel;
+
+        /**
+         * Instantiates a new Channel output stream.
+         *
+         * @param channel the channel
+         */
+        ChannelOutputStream(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -2,10 +2,31 @@ package com.boxer;
 
 import javafx.application.Platform;
 
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.logging.Logger;
+
 /**
  * The type Thread manager.
+ * <p>
+ * Makes the executors of the apps, on platform threads or, with {@code -Dboxer.threads=virtual}, on virtual threads.
+ * Code that may run on them guards shared state with a {@link java.util.concurrent.locks.ReentrantLock} instead of a
+ * monitor: a virtual thread blocked entering a {@code synchronized} block pins its carrier thread, one waiting for a
+ * lock lets the carrier run other virtual threads.
  */
 public class ThreadManager {
+    /**
+     * The constant LOGGER.
+     */
+    private static final Logger LOGGER = Logger.getLogger(ThreadManager.class.getName());
+    /**
+     * The constant VIRTUAL_THREADS, null when running on platform threads.
+     */
+    private static final ThreadFactory VIRTUAL_THREADS = ThreadModel.fromProperty(System.getProperty("boxer.threads")) == ThreadModel.VIRTUAL
+            ? virtualThreadFactory()
+            : null;
+
     /**
      * Run on ui thread.
      *
@@ -19,4 +40,99 @@ public class ThreadManager {
             Platform.runLater(runnable);
         }
     }
+
+    /**
+     * Gets thread model in use.
+     *
+     * @return the thread model
+     */
+    public static ThreadModel getThreadModel() {
+        return VIRTUAL_THREADS != null ? ThreadModel.VIRTUAL : ThreadModel.PLATFORM;
+    }
+
+    /**
+     * New session executor, runs a single long lived session loop.
+     *
+     * @return the executor service
+     */
+    public static ExecutorService newSessionExecutor() {
+        return newExecutor(1);
+    }
+
+    /**
+     * New executor.
+     *
+     * @param threads the number of platform threads, virtual threads get one per task
+     * @return the executor service
+     */
+    public static ExecutorService newExecutor(int threads) {
+        if (VIRTUAL_THREADS != null) {
+            // virtual threads are cheap, never keep idle ones around
+            return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0L, TimeUnit.SECONDS, new SynchronousQueue<>(), VIRTUAL_THREADS);
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * New scheduled executor.
+     *
+     * @param threads the threads
+     * @return the scheduled executor service
+     */
+    public static ScheduledExecutorService newScheduledExecutor(int threads) {
+        if (VIRTUAL_THREADS != null) {
+            return Executors.newScheduledThreadPool(threads, VIRTUAL_THREADS);
+        }
+        return Executors.newScheduledThreadPool(threads);
+    }
+
+    /**
+     * Virtual thread factory, looked up reflectively so the apps still run on older JDKs.
+     *
+     * @return the thread factory or null if virtual threads aren't supported
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "boxer-virtual-", 0L);
+            Method factory = builderType.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.warning("Virtual threads not supported by this JVM, falling back to platform threads.");
+            return null;
+        }
+    }
+
+    /**
+     * The enum Thread model.
+     */
+    public enum ThreadModel {
+        /**
+         * Platform thread pools.
+         */
+        PLATFORM,
+        /**
+         * Virtual thread per task.
+         */
+        VIRTUAL;
+
+        /**
+         * From property thread model.
+         *
+         * @param value the property value
+         * @return the thread model, platform when not set or unknown
+         */
+        static ThreadModel fromProperty(String value) {
+            if (value == null || value.isEmpty()) {
+                return PLATFORM;
+            }
+            try {
+                return valueOf(value.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                LOGGER.warning("Unknown thread model " + value + ", falling back to platform threads.");
+                return PLATFORM;
+            }
+        }
+    }
 }
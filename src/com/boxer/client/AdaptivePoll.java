@@ -0,0 +1,45 @@
+package com.boxer.client;
+
+/**
+ * The type Adaptive poll.
+ * <p>
+ * Paces a job ticking at a fixed rate when the server can't push events. It runs on every tick while something keeps
+ * changing and backs off up to {@link #MAX_TICKS} ticks while nothing does. Only used by the job it paces.
+ */
+class AdaptivePoll {
+    /**
+     * The constant MAX_TICKS between two polls.
+     */
+    static final int MAX_TICKS = 16;
+
+    /**
+     * The Ticks between two polls.
+     */
+    private int interval = 1;
+    /**
+     * The Ticks since the last poll.
+     */
+    private int elapsed;
+
+    /**
+     * Tick.
+     *
+     * @return true if the job should poll now
+     */
+    boolean tick() {
+        if (++elapsed < interval) {
+            return false;
+        }
+        elapsed = 0;
+        return true;
+    }
+
+    /**
+     * Polled.
+     *
+     * @param changed whether the poll brought anything new
+     */
+    void polled(boolean changed) {
+        interval = changed ? 1 : Math.min(interval * 2, MAX_TICKS);
+    }
+}
@@ -0,0 +1,1193 @@
+package com.boxer.client;
+
+import com.boxer.ThreadManager;
+import com.boxer.exceptions.BoxerException;
+import com.boxer.protocol.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * The type Boxer client.
+ * <p>
+ * One session of a user with the server, syncing one local directory, without any UI. What happens goes to a
+ * {@link ClientListener}; a window, a sync agent or a test drives it the same way, and any number of clients can
+ * run in one JVM as each keeps its own threads, jobs and state. Requests answered by one reply, like sharing or
+ * listing users, complete as the reply comes without holding a thread; the steps of a login or a sync run on the
+ * threads of the client. A client is good for one session: once disconnected, make another.
+ */
+public class BoxerClient {
+    /**
+     * The constant LOGGER.
+     */
+    private static final Logger LOGGER = Logger.getLogger(BoxerClient.class.getName());
+
+    /**
+     * The constant PORT_NUMBER, the default port of the server.
+     */
+    public static final int PORT_NUMBER = Integer.getInteger("boxer.client.port", 59090);
+    /**
+     * The constant FETCH_BATCH, files fetched per request after comparing manifests.
+     */
+    private static final int FETCH_BATCH = 1000;
+    /**
+     * The constant DELTA_MIN_SIZE, smaller changed files are sent whole.
+     */
+    private static final long DELTA_MIN_SIZE = 64 * 1024;
+
+    /**
+     * The Server address.
+     */
+    private final InetSocketAddress server;
+    /**
+     * The Username.
+     */
+    private final String username;
+    /**
+     * The Local dir.
+     */
+    private final Path localDir;
+    /**
+     * The State file.
+     */
+    private final File stateFile;
+    /**
+     * The Listener.
+     */
+    private final ClientListener listener;
+
+    /**
+     * The Executor.
+     */
+    private final ExecutorService executor = ThreadManager.newExecutor(2);
+    /**
+     * The User jobs.
+     */
+    private final ScheduledExecutorService userJobs = ThreadManager.newScheduledExecutor(3);
+    /**
+     * The Jobs running.
+     */
+    private final JobManager jobs = new JobManager();
+
+    /**
+     * The Connection, keeps requests of all jobs in flight at once.
+     */
+    private volatile ServerConnection connection;
+    /**
+     * The Data connection, carries syncs and uploads so they don't hold up other requests.
+     */
+    private volatile ServerConnection dataConnection;
+    /**
+     * The Negotiated capabilities.
+     */
+    private volatile int capabilities;
+    /**
+     * The Ended flag, set once the session is over.
+     */
+    private final AtomicBoolean ended = new AtomicBoolean();
+    /**
+     * The User list refresh queued flag, events arriving meanwhile ride along.
+     */
+    private final AtomicBoolean userListQueued = new AtomicBoolean();
+    /**
+     * The Shared files sync queued flag, events arriving meanwhile ride along.
+     */
+    private final AtomicBoolean sharedSyncQueued = new AtomicBoolean();
+    /**
+     * The Last user list.
+     */
+    private List<String> lastUserList;
+    /**
+     * The Presence lock, one presence request at a time so changes apply in order.
+     */
+    private final Lock presenceLock = new ReentrantLock();
+    /**
+     * The Known users, other than me.
+     */
+    private final Set<String> knownUsers = new LinkedHashSet<>();
+    /**
+     * The Presence version seen last, 0 if none.
+     */
+    private long presenceVersion;
+    /**
+     * The Local state, what the server holds of the local directory.
+     */
+    private volatile LocalState state;
+
+    /**
+     * Instantiates a new Boxer client.
+     *
+     * @param server    the server address
+     * @param username  the username
+     * @param localDir  the local dir
+     * @param stateFile the file keeping what was last synced, outside of the local dir
+     * @param listener  the listener
+     */
+    public BoxerClient(InetSocketAddress server, String username, Path localDir, File stateFile, ClientListener listener) {
+        this.server = server;
+        this.username = username;
+        this.localDir = localDir.toAbsolutePath().normalize();
+        this.stateFile = stateFile;
+        this.listener = listener;
+    }
+
+    /**
+     * Gets username.
+     *
+     * @return the username
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Gets local dir.
+     *
+     * @return the local dir
+     */
+    public Path getLocalDir() {
+        return localDir;
+    }
+
+    /**
+     * Connect to the server and log in. The session ends if it fails.
+     *
+     * @return completes once logged in with the user list known, fails with a {@link BoxerException}
+     */
+    public CompletableFuture<Void> connect() {
+        return submit(BoxerException.ExceptionType.INTRODUCE_ERROR, () -> {
+            try {
+                // show the files as last synced, the sync fixes up what changed meanwhile
+                state = LocalState.load(stateFile, username, localDir);
+                listener.onFilesListed(state.paths());
+
+                openConnection();
+                userIntroduce();
+
+                // logged in, a session that only waits for events still learns the server is gone
+                connection.setCloseListener(() -> end("connection with server lost"));
+
+                getUserList();
+                listener.onLog("Successfully obtained user list from server.");
+                return null;
+            } catch (BoxerException e) {
+                end(e.getMessage());
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Sync the local directory with the server, then take the files shared meanwhile. The session ends if it fails.
+     *
+     * @return completes once in sync, fails with a {@link BoxerException}
+     */
+    public CompletableFuture<Void> sync() {
+        return submit(BoxerException.ExceptionType.SYNC_FILES_ERROR, () -> {
+            try {
+                requireConnected(BoxerException.ExceptionType.SYNC_FILES_ERROR);
+                syncOwnFiles();
+                receiveFiles(Protocol.SYNC_SHARED);
+                listener.onLog("File sync with server completed successfully.");
+                return null;
+            } catch (BoxerException e) {
+                end(e.getMessage());
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Watch the local directory and keep it in sync until the session ends: local changes are sent as they settle,
+     * files shared by others and the users coming and going are taken as the server tells, or polled for from
+     * servers that don't.
+     */
+    public void watch() {
+        if (ended.get()) {
+            return;
+        }
+        try {
+            if (Protocol.has(capabilities, Protocol.CAP_PUSH)) {
+                // the server tells when to refresh, only pick up what was shared before it could
+                queue(sharedSyncQueued, this::syncSharedFiles);
+            } else {
+                runSyncFileJob();
+                runGetUsersJob();
+            }
+            runDirWatcherJob();
+        } catch (RejectedExecutionException e) {
+            // ended meanwhile
+            LOGGER.info("not watching, the session is over");
+        }
+    }
+
+    /**
+     * Share a file of the local directory with a user.
+     *
+     * @param file the path of the file with '/' separators
+     * @param user the user
+     * @return completes once the server stored the share, fails with a {@link BoxerException}
+     */
+    public CompletableFuture<Void> share(String file, String user) {
+        if (!isConnected()) {
+            return failed(BoxerException.ExceptionType.SHARE_FILE_ERROR, "not connected");
+        }
+        return failingWith(BoxerException.ExceptionType.SHARE_FILE_ERROR, connection.request(new Frame(FrameType.SHARE,
+                connection.nextRequestId(), new PayloadWriter()
+                .writeString(file)
+                .writeString(user)), FrameType.OK).thenApply(reply -> null));
+    }
+
+    /**
+     * Delete a file of the local directory, here and on the server.
+     *
+     * @param file the path of the file with '/' separators
+     * @return completes once the server deleted its copy, fails with a {@link BoxerException}
+     */
+    public CompletableFuture<Void> delete(String file) {
+        Path target = Protocol.resolveWirePath(localDir, file);
+        if (target == null || target.equals(localDir)) {
+            return failed(BoxerException.ExceptionType.SYNC_FILES_ERROR, "invalid path " + file);
+        }
+        if (!isConnected()) {
+            return failed(BoxerException.ExceptionType.SYNC_FILES_ERROR, "not connected");
+        }
+        try {
+            // the watcher may see it go and ask again, deleting twice is fine
+            Files.deleteIfExists(target);
+        } catch (IOException e) {
+            return failed(BoxerException.ExceptionType.SYNC_FILES_ERROR, e.getMessage());
+        }
+        CompletableFuture<Frame> deleted = connection.request(new Frame(FrameType.DELETE, connection.nextRequestId(),
+                new PayloadWriter().writeString(Protocol.toWirePath(localDir, target))), FrameType.OK);
+        // saved on the client threads, the reader thread only reads replies
+        return failingWith(BoxerException.ExceptionType.SYNC_FILES_ERROR, deleted.thenApplyAsync(reply -> {
+            state.removed(target);
+            saveState();
+            listener.onFileChanged(target);
+            return null;
+        }, executor));
+    }
+
+    /**
+     * List users logged in, asked from the server now.
+     *
+     * @return the users other than me, fails with a {@link BoxerException}
+     */
+    public CompletableFuture<List<String>> listUsers() {
+        if (!isConnected()) {
+            return failed(BoxerException.ExceptionType.GET_USER_LIST_ERROR, "not connected");
+        }
+        CompletableFuture<Frame> reply = connection.request(new Frame(FrameType.LIST_USERS, connection.nextRequestId()),
+                FrameType.USER_LIST);
+        return failingWith(BoxerException.ExceptionType.GET_USER_LIST_ERROR, reply.thenApply(frame -> {
+            try {
+                return Collections.unmodifiableList(othersOf(frame.payload()));
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }));
+    }
+
+    /**
+     * Is connected boolean.
+     *
+     * @return the boolean
+     */
+    public boolean isConnected() {
+        ServerConnection control = connection;
+        return !ended.get() && control != null && control.isOpen();
+    }
+
+    /**
+     * Close, ends the session and waits a while for the jobs to stop. Not to be called by the listener.
+     */
+    public void close() {
+        end(null);
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+            userJobs.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // cancel any unfinished tasks
+            executor.shutdownNow();
+            userJobs.shutdownNow();
+        }
+    }
+
+    /**
+     * End the session, once: stop the jobs, disconnect and tell the listener.
+     *
+     * @param reason why, null if on request
+     */
+    private void end(String reason) {
+        if (!ended.compareAndSet(false, true)) {
+            return;
+        }
+        jobs.cancelAllJobs();
+        executor.shutdown();
+        userJobs.shutdown();
+        try {
+            // disconnect client, requests still waiting fail
+            if (dataConnection != null) {
+                dataConnection.close();
+            }
+            if (connection != null) {
+                connection.close();
+                listener.onLog("Disconnecting...");
+                LOGGER.info("Disconnecting...");
+            }
+        } catch (IOException e) {
+            listener.onLog("Error, couldn't disconnect!");
+        }
+
+        LOGGER.info("User disconnected.");
+        listener.onLog("User disconnected.");
+        listener.onDisconnected(reason);
+    }
+
+    /**
+     * Submit task to the executor.
+     *
+     * @param <T>  the result type
+     * @param type the type of failure if the task fails otherwise
+     * @param task the task
+     * @return the result
+     */
+    private <T> CompletableFuture<T> submit(BoxerException.ExceptionType type, Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(task.call());
+                } catch (BoxerException e) {
+                    result.completeExceptionally(e);
+                } catch (Exception e) {
+                    result.completeExceptionally(new BoxerException(type, e.getMessage()));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new BoxerException(type, "not connected"));
+        }
+        return result;
+    }
+
+    /**
+     * Failed result.
+     *
+     * @param <T>     the result type
+     * @param type    the type
+     * @param message the message
+     * @return the result, failed already
+     */
+    private static <T> CompletableFuture<T> failed(BoxerException.ExceptionType type, String message) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(new BoxerException(type, message));
+        return result;
+    }
+
+    /**
+     * Result of a request failing with a {@link BoxerException} of the given type.
+     *
+     * @param <T>     the result type
+     * @param type    the type
+     * @param request the request
+     * @return the result
+     */
+    private static <T> CompletableFuture<T> failingWith(BoxerException.ExceptionType type, CompletableFuture<T> request) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        request.whenComplete((value, e) -> {
+            if (e == null) {
+                result.complete(value);
+                return;
+            }
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            result.completeExceptionally(new BoxerException(type, cause.getMessage()));
+        });
+        return result;
+    }
+
+    /**
+     * Require connected.
+     *
+     * @param type the type of failure
+     * @throws BoxerException if not connected
+     */
+    private void requireConnected(BoxerException.ExceptionType type) throws BoxerException {
+        if (!isConnected()) {
+            throw new BoxerException(type, "not connected");
+        }
+    }
+
+    /**
+     * On server event, called on the reader thread.
+     *
+     * @param kind     the event kind
+     * @param userName the user the event is about
+     */
+    private void onServerEvent(int kind, String userName) {
+        LOGGER.info("event " + kind + " about user " + userName);
+        switch (kind) {
+            case Protocol.EVENT_USER_JOINED:
+            case Protocol.EVENT_USER_LEFT:
+                queue(userListQueued, this::refreshUserList);
+                break;
+            case Protocol.EVENT_FILES_SHARED:
+                queue(sharedSyncQueued, this::syncSharedFiles);
+                break;
+            default:
+                // newer server, nothing to do about it
+                LOGGER.info("ignoring unknown event " + kind);
+        }
+    }
+
+    /**
+     * Queue job unless it's queued already.
+     *
+     * @param queued the queued flag of the job
+     * @param job    the job
+     */
+    private void queue(AtomicBoolean queued, Runnable job) {
+        if (!queued.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            userJobs.execute(() -> {
+                // events from now on need another run
+                queued.set(false);
+                job.run();
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            queued.set(false);
+        }
+    }
+
+    /**
+     * Refresh user list, ends the session if it fails.
+     *
+     * @return true if the list changed
+     */
+    private boolean refreshUserList() {
+        try {
+            return getUserList();
+        } catch (Exception e) {
+            listener.onLog("Error, couldn't receive list of users from server!");
+            jobs.cancelGetUsersJob();
+            end("couldn't get list of users");
+            return false;
+        }
+    }
+
+    /**
+     * Sync shared files.
+     *
+     * @return true if any file arrived
+     */
+    private boolean syncSharedFiles() {
+        try {
+            return receiveFiles(Protocol.SYNC_SHARED) > 0;
+        } catch (Exception e) {
+            listener.onLog("Error, couldn't establish a connection with the server!");
+            listener.onError("Couldn't establish a connection with server!");
+            jobs.cancelSyncFilesJob();
+            return false;
+        }
+    }
+
+    /**
+     * Run dir watcher job.
+     */
+    private void runDirWatcherJob() {
+        if (jobs.getDirWatcherJob() == null || jobs.getDirWatcherJob().isCancelled()) {
+            ScheduledFuture<?> dirWatcherJob = userJobs.scheduleWithFixedDelay(() -> {
+                try {
+                    LOGGER.info("dirWatcher service started");
+                    try (DirectoryWatcher watcher = new DirectoryWatcher(localDir)) {
+                        // changes from now on come as events
+                        listener.onWatching(localDir);
+                        ChangeBuffer changes = new ChangeBuffer();
+                        boolean valid = true;
+                        while (valid) {
+                            try {
+                                // wake up when a pending change may have settled
+                                valid = watcher.poll(changes.nextDue(), (file, kind) -> {
+                                    listener.onFileChanged(file);
+
+                                    LOGGER.info("event kind: " + kind + ", file affected: " + file);
+                                    changes.record(file, kind);
+                                });
+                            } catch (InterruptedException e) {
+                                LOGGER.info("dirWatcher service stopped");
+                                jobs.cancelDirWatcherJob();
+                                return;
+                            }
+
+                            // send what settled in one go
+                            ChangeBuffer.Batch batch = changes.drain();
+                            if (!batch.isEmpty()) {
+                                syncChanges(batch);
+                                listener.onLog("Successfully synced " + batch.size() + " local changes with your MyBoxer.");
+                            }
+                        }
+                    }
+
+                    // the whole local dir is gone, recreate it for the next run
+                    File dir = localDir.toFile();
+                    if (!dir.exists()) {
+                        dir.mkdir();
+                    }
+                } catch (Exception e) {
+                    LOGGER.warning("Error, DirWatcher service stopped unexpectedly. " + e.getMessage());
+                    end("the directory watcher stopped unexpectedly");
+                }
+            }, 3, 4, TimeUnit.SECONDS);
+            jobs.setDirWatcherJob(dirWatcherJob);
+        }
+    }
+
+    /**
+     * Sync changes of the local directory. Modified files go as deltas where they can, everything else to upload in one
+     * request, and all deletes at once.
+     *
+     * @param batch the changes
+     * @throws Exception the exception
+     */
+    private void syncChanges(ChangeBuffer.Batch batch) throws Exception {
+        syncChanges(batch.getModified(), batch.getCreated(), batch.getDeleted());
+    }
+
+    /**
+     * Sync changes of the local directory and record them in the local state.
+     *
+     * @param modified the files the server holds an older copy of
+     * @param created  the files and directories the server doesn't have
+     * @param deleted  the files and directories deleted
+     * @throws Exception the exception
+     */
+    private void syncChanges(List<Path> modified, List<Path> created, List<Path> deleted) throws Exception {
+        // a new directory and the files in it may both be in the batch
+        Set<File> files = new LinkedHashSet<>();
+        for (Path path : modified) {
+            if (sendDelta(path.toFile())) {
+                state.synced(path);
+            } else {
+                addFiles(path, files);
+            }
+        }
+        for (Path path : created) {
+            addFiles(path, files);
+        }
+        if (!files.isEmpty()) {
+            sendFileList(new ArrayList<>(files));
+            for (File file : files) {
+                state.synced(file.toPath());
+            }
+            LOGGER.info("successfully synced " + files.size() + " local files with MyBoxer");
+        }
+
+        // deletes don't wait for each other
+        List<CompletableFuture<Frame>> replies = new ArrayList<>();
+        for (Path path : deleted) {
+            replies.add(connection.request(new Frame(FrameType.DELETE, connection.nextRequestId(),
+                    new PayloadWriter().writeString(Protocol.toWirePath(localDir, path))), FrameType.OK));
+        }
+        for (int i = 0; i < replies.size(); i++) {
+            ServerConnection.await(replies.get(i));
+            state.removed(deleted.get(i));
+        }
+        if (!replies.isEmpty()) {
+            LOGGER.info("successfully removed " + replies.size() + " files from MyBoxer");
+        }
+        saveState();
+    }
+
+    /**
+     * Add files to send, everything below a directory.
+     *
+     * @param path  the file or directory
+     * @param files the files to send
+     * @throws IOException the io exception
+     */
+    private void addFiles(Path path, Set<File> files) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.filter(file -> !Files.isDirectory(file))
+                    .filter(file -> !state.isSynced(file))
+                    .forEach(file -> files.add(file.toFile()));
+        }
+    }
+
+    /**
+     * Send delta of a changed file against the server copy.
+     *
+     * @param file the file
+     * @return true if the server patched its copy, false if the file must be sent whole
+     * @throws IOException the io exception
+     */
+    private boolean sendDelta(File file) throws IOException {
+        File fileChanged = localDir.resolve(file.toPath()).toFile();
+        if (state.isSynced(fileChanged.toPath())) {
+            return true;
+        }
+        if (!Protocol.has(capabilities, Protocol.CAP_DELTA) || !fileChanged.isFile() || fileChanged.length() < DELTA_MIN_SIZE) {
+            return false;
+        }
+
+        String path = Protocol.toWirePath(localDir, fileChanged.toPath());
+        ServerConnection bulk = bulkConnection();
+        File delta = File.createTempFile("boxer-", ".delta");
+        try {
+            PayloadReader signature = ServerConnection.await(bulk.request(new Frame(FrameType.SIGNATURE,
+                    bulk.nextRequestId(), new PayloadWriter().writeString(path)), FrameType.BLOCK_SIGNATURES)).payload();
+            long baseModified = signature.readLong();
+            Delta.Signature basis = Delta.Signature.read(signature);
+
+            long modified = fileChanged.lastModified();
+            byte[] hash;
+            try (OutputStream out = new FileOutputStream(delta)) {
+                hash = Delta.diff(fileChanged, basis, out);
+            }
+            if (delta.length() >= fileChanged.length()) {
+                // nothing in common
+                return false;
+            }
+
+            int requestId = bulk.nextRequestId();
+            CompletableFuture<Frame> patched = bulk.expect(requestId, ServerConnection.reply(FrameType.OK));
+            try {
+                bulk.getWriter().writeBody(new Frame(FrameType.PATCH, Frame.FLAG_BODY, requestId, new PayloadWriter()
+                        .writeLong(delta.length())
+                        .writeString(path)
+                        .writeLong(modified)
+                        .writeLong(basis.getLength())
+                        .writeLong(baseModified)
+                        .writeInt(basis.getBlockSize())
+                        .writeBytes(hash)), delta);
+                bulk.getWriter().flush();
+            } catch (IOException e) {
+                bulk.fail(requestId, e);
+            }
+            ServerConnection.await(patched);
+            LOGGER.info("sent " + path + " as a delta of " + delta.length() + " bytes instead of " + fileChanged.length());
+            return true;
+        } catch (IOException e) {
+            // no copy on the server, changed meanwhile or not matching, send it whole
+            LOGGER.info("couldn't send " + path + " as a delta: " + e.getMessage());
+            return false;
+        } finally {
+            delta.delete();
+        }
+    }
+
+    /**
+     * Save local state, a failure only costs the next login a longer compare.
+     */
+    private void saveState() {
+        try {
+            state.save();
+        } catch (IOException e) {
+            LOGGER.warning("couldn't save local state: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Send file list.
+     *
+     * @param files the files
+     * @throws IOException the io exception
+     */
+    private void sendFileList(List<File> files) throws IOException {
+        // other requests may go out between the files, bodies go straight from disk
+        ServerConnection bulk = bulkConnection();
+        int requestId = bulk.nextRequestId();
+        CompletableFuture<Frame> uploaded = bulk.expect(requestId, ServerConnection.reply(FrameType.OK));
+        FrameWriter writer = bulk.getWriter();
+        try {
+            writer.write(new Frame(FrameType.FILES, requestId, new PayloadWriter().writeInt(files.size())));
+            for (File fileToSend : files) {
+                // get relative path to file
+                writer.writeFile(requestId, Protocol.toWirePath(localDir, fileToSend.toPath()), fileToSend);
+            }
+            writer.flush();
+        } catch (IOException e) {
+            bulk.fail(requestId, e);
+        }
+        ServerConnection.await(uploaded);
+    }
+
+    /**
+     * Run get users job, for servers that don't push events.
+     */
+    private void runGetUsersJob() {
+        if (jobs.getUsersJob() == null || jobs.getUsersJob().isCancelled()) {
+            AdaptivePoll poll = new AdaptivePoll();
+            ScheduledFuture<?> usersJob = userJobs.scheduleWithFixedDelay(() -> {
+                try {
+                    if (!poll.tick()) {
+                        return;
+                    }
+                    LOGGER.info("getUserJob started");
+
+                    // refresh list of users, poll less often while nobody comes or goes
+                    poll.polled(refreshUserList());
+                } catch (Exception e) {
+                    listener.onLog("Error, UserListMonitor Service stopped unexpectedly!");
+                    jobs.cancelGetUsersJob();
+                    end("there was a problem with UserListMonitor Service, data may not be synced correctly");
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+            jobs.setUsersJob(usersJob);
+        }
+    }
+
+    /**
+     * Run sync file job, for servers that don't push events.
+     */
+    private void runSyncFileJob() {
+        if (jobs.getSyncFilesJob() == null || jobs.getSyncFilesJob().isCancelled()) {
+            AdaptivePoll poll = new AdaptivePoll();
+            ScheduledFuture<?> syncFilesJob = userJobs.scheduleWithFixedDelay(() -> {
+                try {
+                    if (!poll.tick()) {
+                        return;
+                    }
+                    LOGGER.info("receiveFilesJob started");
+
+                    // ask server if new shared file available, less often while nothing gets shared
+                    poll.polled(syncSharedFiles());
+                    LOGGER.info("receiveFilesJob ended");
+                } catch (Exception e) {
+                    listener.onLog("Error, SharedFileMonitor Service stopped unexpectedly!");
+                    jobs.cancelSyncFilesJob();
+                    end("there was a problem with SharedFileMonitor Service, data may not be synced correctly");
+                }
+            }, 2, 1, TimeUnit.SECONDS);
+            jobs.setSyncFilesJob(syncFilesJob);
+        }
+    }
+
+    /**
+     * Open the control connection.
+     *
+     * @throws BoxerException the boxer exception
+     */
+    private void openConnection() throws BoxerException {
+        try {
+            // through a channel so files can be sent from disk directly
+            Socket socket = SocketChannel.open(server).socket();
+
+            // requests are small and each one is awaited, don't let them sit in the send buffer
+            socket.setTcpNoDelay(true);
+            ServerConnection control = new ServerConnection(socket);
+            control.setEventListener(this::onServerEvent);
+            connection = control;
+        } catch (IOException e) {
+            LOGGER.severe("Error, couldn't establish a stable connection with server: " + e.getMessage());
+            throw new BoxerException(BoxerException.ExceptionType.INTRODUCE_ERROR, "couldn't establish a connection with server");
+        }
+    }
+
+    /**
+     * User introduce.
+     *
+     * @throws BoxerException the boxer exception
+     */
+    private void userIntroduce() throws BoxerException {
+        try {
+            // open with the magic so the server knows we speak frames, then offer what we support
+            connection.getWriter().writeMagic();
+            Frame hello = new Frame(FrameType.HELLO, connection.nextRequestId(), new PayloadWriter()
+                    .writeShort(Protocol.VERSION)
+                    .writeInt(Protocol.CAPABILITIES)
+                    .writeString(username));
+
+            PayloadReader reply = ServerConnection.await(connection.request(hello, FrameType.HELLO_ACK)).payload();
+            reply.readShort();
+            capabilities = reply.readInt();
+            int status = reply.readByte();
+            if (status == Protocol.STATUS_USERNAME_IN_USE) {
+                throw new BoxerException(BoxerException.ExceptionType.INTRODUCE_ERROR, "username already in-use");
+            } else if (status == Protocol.STATUS_INVALID_USERNAME) {
+                throw new BoxerException(BoxerException.ExceptionType.INTRODUCE_ERROR, "invalid username");
+            } else if (status != Protocol.STATUS_OK) {
+                throw new BoxerException(BoxerException.ExceptionType.INTRODUCE_ERROR, "error in connection");
+            }
+
+            if (Protocol.has(capabilities, Protocol.CAP_DATA_CHANNEL)) {
+                openDataConnection(reply.readLong());
+            }
+        } catch (BoxerException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BoxerException(BoxerException.ExceptionType.INTRODUCE_ERROR, e.getMessage());
+        }
+    }
+
+    /**
+     * Open data connection attached to the session, files keep going over the control connection if it fails.
+     *
+     * @param token the token issued at login
+     */
+    private void openDataConnection(long token) {
+        Socket dataSocket = null;
+        try {
+            dataSocket = SocketChannel.open(server).socket();
+
+            // the end of a sync is a small frame, don't let it wait
+            dataSocket.setTcpNoDelay(true);
+            ServerConnection data = new ServerConnection(dataSocket);
+            data.getWriter().writeMagic();
+            ServerConnection.await(data.request(new Frame(FrameType.ATTACH, data.nextRequestId(),
+                    new PayloadWriter().writeLong(token)), FrameType.OK));
+            dataConnection = data;
+        } catch (IOException e) {
+            LOGGER.warning("Couldn't open data connection, files go over the control connection: " + e.getMessage());
+            if (dataSocket != null) {
+                try {
+                    dataSocket.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Connection for syncs and uploads.
+     *
+     * @return the data connection or the control connection if there is none
+     */
+    private ServerConnection bulkConnection() {
+        ServerConnection data = dataConnection;
+        return data != null && data.isOpen() ? data : connection;
+    }
+
+    /**
+     * Gets user list.
+     *
+     * @return true if the list changed since last time
+     * @throws BoxerException the boxer exception
+     */
+    private boolean getUserList() throws BoxerException {
+        if (Protocol.has(capabilities, Protocol.CAP_PRESENCE)) {
+            return syncPresence();
+        }
+        try {
+            // read userlist from the socket
+            PayloadReader users = ServerConnection.await(connection.request(
+                    new Frame(FrameType.LIST_USERS, connection.nextRequestId()), FrameType.USER_LIST)).payload();
+            List<String> userList = othersOf(users);
+
+            presenceLock.lock();
+            try {
+                if (userList.equals(lastUserList)) {
+                    return false;
+                }
+                lastUserList = userList;
+            } finally {
+                presenceLock.unlock();
+            }
+            listener.onUsers(Collections.unmodifiableList(userList));
+            return true;
+        } catch (Exception e) {
+            throw new BoxerException(BoxerException.ExceptionType.GET_USER_LIST_ERROR, e.getMessage());
+        }
+    }
+
+    /**
+     * Others of a user list.
+     *
+     * @param users the user list payload
+     * @return the users other than me
+     * @throws IOException the io exception
+     */
+    private List<String> othersOf(PayloadReader users) throws IOException {
+        int count = users.readInt();
+        List<String> userList = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String userName = users.readString();
+
+            // add to userlist if it's not me
+            if (!userName.equals(username)) {
+                userList.add(userName);
+            }
+        }
+        return userList;
+    }
+
+    /**
+     * Sync presence, fetches who joined and left since the version seen last.
+     *
+     * @return true if anybody joined or left
+     * @throws BoxerException the boxer exception
+     */
+    private boolean syncPresence() throws BoxerException {
+        presenceLock.lock();
+        try {
+            PresenceUpdate.Assembler assembler = new PresenceUpdate.Assembler();
+            PresenceUpdate update = ServerConnection.await(connection.request(new Frame(FrameType.PRESENCE,
+                    connection.nextRequestId(), new PayloadWriter().writeLong(presenceVersion)),
+                    (frame, reader) -> assembler.add(frame)));
+
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            if (update.isSnapshot()) {
+                // diff against what we know, the list on screen only changes where needed
+                Set<String> present = new LinkedHashSet<>(update.getJoined());
+                present.remove(username);
+                for (String userName : knownUsers) {
+                    if (!present.contains(userName)) {
+                        left.add(userName);
+                    }
+                }
+                for (String userName : present) {
+                    if (!knownUsers.contains(userName)) {
+                        joined.add(userName);
+                    }
+                }
+            } else {
+                for (String userName : update.getLeft()) {
+                    if (knownUsers.contains(userName)) {
+                        left.add(userName);
+                    }
+                }
+                for (String userName : update.getJoined()) {
+                    if (!userName.equals(username) && !knownUsers.contains(userName)) {
+                        joined.add(userName);
+                    }
+                }
+            }
+
+            boolean first = presenceVersion == 0;
+            presenceVersion = update.getVersion();
+            knownUsers.removeAll(left);
+            knownUsers.addAll(joined);
+            if (first) {
+                // fill the empty list
+                listener.onUsers(Collections.unmodifiableList(new ArrayList<>(knownUsers)));
+                return true;
+            }
+            if (joined.isEmpty() && left.isEmpty()) {
+                return false;
+            }
+            listener.onUserChanges(joined, left);
+            return true;
+        } catch (Exception e) {
+            throw new BoxerException(BoxerException.ExceptionType.GET_USER_LIST_ERROR, e.getMessage());
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    /**
+     * Receive files.
+     *
+     * @param scope the sync scope, own files or files shared meanwhile
+     * @return the number of files received
+     * @throws BoxerException the boxer exception
+     */
+    private int receiveFiles(int scope) throws BoxerException {
+        return receiveFiles(scope, new ArrayList<>());
+    }
+
+    /**
+     * Receive files.
+     *
+     * @param scope the sync scope
+     * @param paths the paths of the files for {@link Protocol#SYNC_PATHS}
+     * @return the number of files received
+     * @throws BoxerException the boxer exception
+     */
+    private int receiveFiles(int scope, List<String> paths) throws BoxerException {
+        try {
+            LOGGER.info("waiting for server...");
+            ServerConnection bulk = bulkConnection();
+            PayloadWriter payload = new PayloadWriter().writeByte(scope);
+            if (scope == Protocol.SYNC_PATHS) {
+                payload.writeInt(paths.size());
+                for (String path : paths) {
+                    payload.writeString(path);
+                }
+            }
+            Frame request = new Frame(FrameType.SYNC, bulk.nextRequestId(), payload);
+            FileReceiver receiver = new FileReceiver(localDir);
+            int filesCount;
+            try {
+                filesCount = ServerConnection.await(bulk.request(request, receiver));
+            } finally {
+                // hashed here rather than on the reader thread, also what came before a failure
+                for (Path target : receiver.getReceived()) {
+                    state.synced(target);
+                    listener.onFileChanged(target);
+                }
+            }
+            LOGGER.info("get reply from server: " + filesCount + " files");
+            saveState();
+            if (filesCount == 0) {
+                return 0;
+            }
+
+            LOGGER.info("synced files with server");
+            listener.onLog("Successfully synced files with server.");
+            return filesCount;
+        } catch (Exception e) {
+            throw new BoxerException(BoxerException.ExceptionType.SYNC_FILES_ERROR, e.getMessage());
+        }
+    }
+
+    /**
+     * Sync own files. With a manifest only what differs from the local directory moves, else the server sends
+     * everything.
+     *
+     * @throws BoxerException the boxer exception
+     */
+    private void syncOwnFiles() throws BoxerException {
+        if (!Protocol.has(capabilities, Protocol.CAP_MANIFEST)) {
+            receiveFiles(Protocol.SYNC_OWN);
+            return;
+        }
+
+        try {
+            ManifestSync sync = new ManifestSync(bulkConnection(), localDir, state);
+            sync.compare();
+            List<String> toFetch = sync.getToFetch();
+            LOGGER.info("manifest compared in " + sync.getListings() + " listings: " + toFetch.size()
+                    + " files to fetch, " + sync.getToRemove().size() + " to remove, " + sync.getToUpload().size()
+                    + " to upload, " + sync.getToModify().size() + " to modify, " + sync.getToDelete().size() + " to delete");
+
+            // fetch in batches, a request stays well below the frame limit
+            for (int from = 0; from < toFetch.size(); from += FETCH_BATCH) {
+                receiveFiles(Protocol.SYNC_PATHS, toFetch.subList(from, Math.min(from + FETCH_BATCH, toFetch.size())));
+            }
+
+            // files deleted on the server
+            for (String path : sync.getToRemove()) {
+                Path file = Protocol.resolveWirePath(localDir, path);
+                if (file == null) {
+                    // never delete outside of the local directory
+                    continue;
+                }
+                Files.deleteIfExists(file);
+                state.removed(file);
+                listener.onFileChanged(file);
+            }
+
+            // files changed while logged out
+            List<Path> modified = resolve(sync.getToModify());
+            List<Path> created = resolve(sync.getToUpload());
+            List<Path> deleted = resolve(sync.getToDelete());
+            syncChanges(modified, created, deleted);
+            if (!modified.isEmpty() || !created.isEmpty() || !deleted.isEmpty()) {
+                listener.onLog("Successfully synced local changes with your MyBoxer.");
+            }
+        } catch (BoxerException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new BoxerException(BoxerException.ExceptionType.SYNC_FILES_ERROR, e.getMessage());
+        }
+    }
+
+    /**
+     * Resolve paths in the local directory.
+     *
+     * @param paths the paths with '/' separators
+     * @return the absolute paths, without the paths outside of the local directory
+     */
+    private List<Path> resolve(List<String> paths) {
+        List<Path> resolved = new ArrayList<>();
+        for (String path : paths) {
+            Path file = Protocol.resolveWirePath(localDir, path);
+            if (file != null) {
+                resolved.add(file);
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * The type File receiver, stores the files of a sync as they arrive. Runs on the reader thread, so it only
+     * writes them and leaves hashing them to whoever waits for the sync.
+     */
+    private static final class FileReceiver implements ServerConnection.ReplyHandler<Integer> {
+        /**
+         * The Local dir.
+         */
+        private final Path localDir;
+        /**
+         * The Files count.
+         */
+        private int filesCount;
+        /**
+         * The Received files, to be synced in the local state so the watcher doesn't send them back.
+         */
+        private final List<Path> received = Collections.synchronizedList(new ArrayList<>());
+
+        /**
+         * Instantiates a new File receiver.
+         *
+         * @param localDir the local dir
+         */
+        FileReceiver(Path localDir) {
+            this.localDir = localDir;
+        }
+
+        /**
+         * Gets received files.
+         *
+         * @return the received files
+         */
+        List<Path> getReceived() {
+            synchronized (received) {
+                return new ArrayList<>(received);
+            }
+        }
+
+        @Override
+        public Integer onReply(Frame frame, FrameReader reader) throws IOException {
+            if (frame.getType() == FrameType.OK) {
+                return filesCount;
+            }
+            if (frame.getType() != FrameType.FILE) {
+                throw new ProtocolException("expected files, got " + frame);
+            }
+
+            PayloadReader payload = frame.payload();
+            long length = payload.readLong();
+            String fileFullName = payload.readString();
+            Path target = Protocol.resolveWirePath(localDir, fileFullName);
+            if (target == null) {
+                // never write outside of the local directory
+                reader.skipBody(length);
+                return null;
+            }
+            File file = target.toFile();
+            file.getParentFile().mkdirs();
+            reader.readBody(file, length);
+
+            // same modification time as on the server, so the next login finds it unchanged
+            if (payload.hasRemaining()) {
+                file.setLastModified(payload.readLong());
+            }
+            received.add(target);
+            filesCount++;
+            return null;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package com.boxer.client;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The type Change buffer.
+ * <p>
+ * Holds local changes back until they settle, between the directory watcher and the server. Events merge per path: a
+ * file created and then modified is still new, one created and deleted again never reaches the server, one modified
+ * and deleted is just deleted. A path is ready once no event came for {@link #QUIET_MILLIS} and its size and
+ * modification time held still that long as well, so files still being copied or saved go out once, complete. Nothing
+ * leaves while events keep coming, unless that goes on for {@link #MAX_WAIT_WINDOWS} windows, then all paths ready
+ * leave together as one {@link Batch}. A path that can't be read is held back as long, then left out until its next
+ * event. Only used by the watcher job.
+ */
+class ChangeBuffer {
+    /**
+     * The constant LOGGER.
+     */
+    private static final Logger LOGGER = Logger.getLogger(ChangeBuffer.class.getName());
+    /**
+     * The constant QUIET_MILLIS a path must see no events and no writes before it's sent.
+     */
+    static final long QUIET_MILLIS = Long.getLong("boxer.client.quietMillis", 500);
+    /**
+     * The constant MAX_WAIT_WINDOWS a change is held back at most while other events keep coming.
+     */
+    static final int MAX_WAIT_WINDOWS = 20;
+
+    /**
+     * The Quiet window in nanoseconds.
+     */
+    private final long quietNanos;
+    /**
+     * The Pending changes by path, oldest first.
+     */
+    private final Map<Path, Pending> pending = new LinkedHashMap<>();
+    /**
+     * The Time of the last event, in nanoseconds.
+     */
+    private long lastEvent;
+
+    /**
+     * Instantiates a new Change buffer.
+     */
+    ChangeBuffer() {
+        this(QUIET_MILLIS);
+    }
+
+    /**
+     * Instantiates a new Change buffer.
+     *
+     * @param quietMillis the quiet window in milliseconds
+     */
+    ChangeBuffer(long quietMillis) {
+        this.quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+    }
+
+    /**
+     * Record change.
+     *
+     * @param path the absolute path
+     * @param kind the kind
+     */
+    void record(Path path, Kind kind) {
+        long now = System.nanoTime();
+        lastEvent = now;
+        Pending change = pending.get(path);
+        if (change == null) {
+            pending.put(path, new Pending(kind, now, stateOf(path)));
+            return;
+        }
+
+        Kind merged = merge(change.kind, kind);
+        if (merged == null) {
+            // created and gone again, the server never knew it
+            pending.remove(path);
+            return;
+        }
+        change.kind = merged;
+        change.changed = now;
+        change.state = stateOf(path);
+    }
+
+    /**
+     * Time until the next path may be ready.
+     *
+     * @return the milliseconds to wait, -1 if nothing is pending
+     */
+    long nextDue() {
+        if (pending.isEmpty()) {
+            return -1;
+        }
+        long now = System.nanoTime();
+        long due = Long.MAX_VALUE;
+        for (Pending change : pending.values()) {
+            due = Math.min(due, change.changed + quietNanos - now);
+        }
+        due = Math.max(due, quietFrom() - now);
+        return due <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(due) + 1;
+    }
+
+    /**
+     * Drain paths ready to be sent.
+     *
+     * @return the batch, empty if nothing is ready
+     */
+    Batch drain() {
+        Batch batch = new Batch();
+        long now = System.nanoTime();
+        if (pending.isEmpty() || now < quietFrom()) {
+            // events still coming
+            return batch;
+        }
+        Iterator<Map.Entry<Path, Pending>> changes = pending.entrySet().iterator();
+        while (changes.hasNext()) {
+            Map.Entry<Path, Pending> entry = changes.next();
+            Pending change = entry.getValue();
+            if (now - change.changed < quietNanos) {
+                continue;
+            }
+
+            if (change.kind != Kind.DELETED) {
+                State state = stateOf(entry.getKey());
+                if (state == null) {
+                    // gone without an event yet, the server only needs to hear if it had a copy
+                    if (change.kind == Kind.CREATED) {
+                        changes.remove();
+                        continue;
+                    }
+                    change.kind = Kind.DELETED;
+                } else if (state == State.UNREADABLE) {
+                    if (now - change.since >= quietNanos * MAX_WAIT_WINDOWS) {
+                        LOGGER.warning("couldn't read " + entry.getKey() + ", not sent until it changes again");
+                        changes.remove();
+                    } else {
+                        // maybe locked for now, try again after another quiet window
+                        change.state = state;
+                        change.changed = now;
+                    }
+                    continue;
+                } else if (!state.equals(change.state)) {
+                    // still being written, wait for another quiet window
+                    change.state = state;
+                    change.changed = now;
+                    continue;
+                }
+            }
+            batch.add(entry.getKey(), change.kind);
+            changes.remove();
+        }
+        return batch;
+    }
+
+    /**
+     * Time from which changes may leave, once events stopped coming or the oldest change waited long enough.
+     *
+     * @return the time in nanoseconds
+     */
+    private long quietFrom() {
+        long oldest = pending.values().iterator().next().since;
+        return Math.min(lastEvent + quietNanos, oldest + quietNanos * MAX_WAIT_WINDOWS);
+    }
+
+    /**
+     * Merge two changes of the same path.
+     *
+     * @param first the change pending
+     * @param then  the change after it
+     * @return the merged change, null if they cancel out
+     */
+    static Kind merge(Kind first, Kind then) {
+        switch (first) {
+            case CREATED:
+                return then == Kind.DELETED ? null : Kind.CREATED;
+            case MODIFIED:
+                return then == Kind.DELETED ? Kind.DELETED : Kind.MODIFIED;
+            case DELETED:
+                // replaced, the server still holds the old copy
+                return then == Kind.DELETED ? Kind.DELETED : Kind.MODIFIED;
+            default:
+                throw new IllegalArgumentException("unknown change " + first);
+        }
+    }
+
+    /**
+     * State of a file or a directory with everything in it.
+     *
+     * @param path the path
+     * @return the state, null if the path doesn't exist
+     */
+    private static State stateOf(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            if (!attrs.isDirectory()) {
+                return new State(attrs.size(), attrs.lastModifiedTime().toMillis());
+            }
+
+            // a directory copied in settles once everything below it does
+            final long[] sum = {0, 0};
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    sum[0] += attrs.size() + 1;
+                    sum[1] = Math.max(sum[1], attrs.lastModifiedTime().toMillis());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return new State(sum[0], sum[1]);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            // unreadable for now, maybe locked by the program writing it
+            return State.UNREADABLE;
+        }
+    }
+
+    /**
+     * The enum Kind of change.
+     */
+    enum Kind {
+        /**
+         * Created, not on the server yet.
+         */
+        CREATED,
+        /**
+         * Modified, the server holds an older copy.
+         */
+        MODIFIED,
+        /**
+         * Deleted.
+         */
+        DELETED
+    }
+
+    /**
+     * The type Batch of changes ready to be sent together.
+     */
+    static final class Batch {
+        /**
+         * The Created paths.
+         */
+        private final List<Path> created = new ArrayList<>();
+        /**
+         * The Modified paths.
+         */
+        private final List<Path> modified = new ArrayList<>();
+        /**
+         * The Deleted paths.
+         */
+        private final List<Path> deleted = new ArrayList<>();
+
+        /**
+         * Add change.
+         *
+         * @param path the path
+         * @param kind the kind
+         */
+        private void add(Path path, Kind kind) {
+            switch (kind) {
+                case CREATED:
+                    created.add(path);
+                    break;
+                case MODIFIED:
+                    modified.add(path);
+                    break;
+                default:
+                    deleted.add(path);
+            }
+        }
+
+        /**
+         * Gets created.
+         *
+         * @return the created paths
+         */
+        List<Path> getCreated() {
+            return created;
+        }
+
+        /**
+         * Gets modified.
+         *
+         * @return the modified paths
+         */
+        List<Path> getModified() {
+            return modified;
+        }
+
+        /**
+         * Gets deleted.
+         *
+         * @return the deleted paths
+         */
+        List<Path> getDeleted() {
+            return deleted;
+        }
+
+        /**
+         * Size.
+         *
+         * @return the number of changes
+         */
+        int size() {
+            return created.size() + modified.size() + deleted.size();
+        }
+
+        /**
+         * Is empty.
+         *
+         * @return the boolean
+         */
+        boolean isEmpty() {
+            return size() == 0;
+        }
+    }
+
+    /**
+     * The type Pending change.
+     */
+    private static final class Pending {
+        /**
+         * The Kind.
+         */
+        private Kind kind;
+        /**
+         * The Time of the first event, in nanoseconds.
+         */
+        private final long since;
+        /**
+         * The Time of the last event or write seen, in nanoseconds.
+         */
+        private long changed;
+        /**
+         * The State seen last, null if the path didn't exist.
+         */
+        private State state;
+
+        /**
+         * Instantiates a new Pending change.
+         *
+         * @param kind    the kind
+         * @param changed the changed
+         * @param state   the state
+         */
+        Pending(Kind kind, long changed, State state) {
+            this.kind = kind;
+            this.since = changed;
+            this.changed = changed;
+            this.state = state;
+        }
+    }
+
+    /**
+     * The type State of a path, its size and modification time.
+     */
+    private static final class State {
+        /**
+         * The constant UNREADABLE, the state of a path that couldn't be read.
+         */
+        private static final State UNREADABLE = new State(-1, -1);
+        /**
+         * The Size.
+         */
+        private final long size;
+        /**
+         * The Modification time.
+         */
+        private final long modified;
+
+        /**
+         * Instantiates a new State.
+         *
+         * @param size     the size
+         * @param modified the modified
+         */
+        State(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof State)) {
+                return false;
+            }
+            State state = (State) o;
+            return size == state.size && modified == state.modified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(modified);
+        }
+    }
+}
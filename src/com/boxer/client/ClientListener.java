@@ -0,0 +1,77 @@
+package com.boxer.client;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * The interface Client listener, what a {@link BoxerClient} tells whoever drives it.
+ * <p>
+ * Called on the threads of the client, never on a UI thread, so a window hands the calls over to its own. Calls
+ * must not wait for the server. Everything is optional, a client without a window only cares about a few.
+ */
+public interface ClientListener {
+    /**
+     * On log, a line about what the client did.
+     *
+     * @param line the line, without line break
+     */
+    default void onLog(String line) {
+    }
+
+    /**
+     * On users, the full list of users logged in.
+     *
+     * @param users the users other than me
+     */
+    default void onUsers(List<String> users) {
+    }
+
+    /**
+     * On user changes since the last list.
+     *
+     * @param joined the users who joined
+     * @param left   the users who left
+     */
+    default void onUserChanges(List<String> joined, List<String> left) {
+    }
+
+    /**
+     * On files listed, the files as last synced, before the local directory is read.
+     *
+     * @param paths the paths of the files with '/' separators
+     */
+    default void onFilesListed(List<String> paths) {
+    }
+
+    /**
+     * On watching, the local directory is watched from now on and changes come one by one.
+     *
+     * @param localDir the local dir
+     */
+    default void onWatching(Path localDir) {
+    }
+
+    /**
+     * On file changed, a file or directory of the local directory was created, modified or deleted.
+     *
+     * @param file the file or directory
+     */
+    default void onFileChanged(Path file) {
+    }
+
+    /**
+     * On error that doesn't end the session.
+     *
+     * @param message the message
+     */
+    default void onError(String message) {
+    }
+
+    /**
+     * On disconnected, the session is over and the client can't be used anymore.
+     *
+     * @param reason why, null if it was closed on request
+     */
+    default void onDisconnected(String reason) {
+    }
+}
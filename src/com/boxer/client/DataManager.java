@@ -20,6 +20,10 @@ public class DataManager {
      * The constant preferences_FileName.
      */
     private final static String preferences_FileName = "boxer.properties";
+    /**
+     * The constant state_FileName.
+     */
+    private final static String state_FileName = "boxer.state";
     /**
      * The Settings dir.
      */
@@ -117,6 +121,15 @@ public class DataManager {
         }
     }
 
+    /**
+     * Gets state file, what was last synced with the server.
+     *
+     * @return the state file
+     */
+    public File getStateFile() {
+        return new File(settingsDir.getName() + File.separator + state_FileName);
+    }
+
     /**
      * Gets username.
      *
@@ -0,0 +1,365 @@
+package com.boxer.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * The type Directory watcher.
+ * <p>
+ * Watches the local directory with everything below it. Every directory is registered when it appears and dropped
+ * when it's deleted, and a snapshot of each directory's entries is kept up to date by the events. When events were
+ * lost to an overflow, only the directory that lost them is listed again and compared with its snapshot, so what
+ * comes out is the real changes and not the whole tree. Only used by the watcher job.
+ */
+class DirectoryWatcher implements Closeable {
+    /**
+     * The constant LOGGER.
+     */
+    private static final Logger LOGGER = Logger.getLogger(DirectoryWatcher.class.getName());
+    /**
+     * The constant DIRECTORY, the stamp of a directory in a snapshot.
+     */
+    private static final long DIRECTORY = Long.MIN_VALUE;
+
+    /**
+     * The Root directory.
+     */
+    private final Path root;
+    /**
+     * The Watch service.
+     */
+    private final WatchService service;
+    /**
+     * The Directories by key.
+     */
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    /**
+     * The Keys by directory.
+     */
+    private final Map<Path, WatchKey> keys = new HashMap<>();
+    /**
+     * The Snapshot, stamps of the entries of each directory by name.
+     */
+    private final Map<Path, Map<String, Long>> snapshot = new HashMap<>();
+    /**
+     * The Limit reached flag, set once the system refused to watch another directory.
+     */
+    private boolean limitReached;
+
+    /**
+     * Instantiates a new Directory watcher and registers the whole tree.
+     *
+     * @param root the root directory
+     * @throws IOException the io exception
+     */
+    DirectoryWatcher(Path root) throws IOException {
+        this.root = root;
+        this.service = FileSystems.getDefault().newWatchService();
+        try {
+            registerTree(root);
+        } catch (IOException e) {
+            service.close();
+            throw e;
+        }
+        LOGGER.info("watching " + keys.size() + " directories below " + root);
+    }
+
+    /**
+     * Wait for changes.
+     *
+     * @param timeout the milliseconds to wait, -1 to wait until something happens
+     * @param changes the consumer of the changes found, absolute paths
+     * @return false if the root directory can't be watched anymore
+     * @throws InterruptedException the interrupted exception
+     * @throws IOException          the io exception
+     */
+    boolean poll(long timeout, BiConsumer<Path, ChangeBuffer.Kind> changes) throws InterruptedException, IOException {
+        WatchKey key = timeout < 0 ? service.take() : service.poll(timeout, TimeUnit.MILLISECONDS);
+        while (key != null) {
+            Path dir = directories.get(key);
+            if (dir != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        // events lost, see for ourselves
+                        rescan(dir, changes);
+                    } else {
+                        onEvent(dir, event.kind(), (Path) event.context(), changes);
+                    }
+                }
+            }
+            if (!key.reset()) {
+                // directory gone
+                forget(dir);
+                if (root.equals(dir)) {
+                    return false;
+                }
+            }
+
+            // take everything waiting at once
+            key = service.poll();
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of directories watched.
+     *
+     * @return the number of directories
+     */
+    int size() {
+        return keys.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        service.close();
+    }
+
+    /**
+     * On event.
+     *
+     * @param dir     the directory of the event
+     * @param kind    the kind
+     * @param name    the name of the entry
+     * @param changes the consumer of the changes
+     * @throws IOException the io exception
+     */
+    private void onEvent(Path dir, WatchEvent.Kind<?> kind, Path name, BiConsumer<Path, ChangeBuffer.Kind> changes)
+            throws IOException {
+        Path path = dir.resolve(name);
+        Map<String, Long> entries = snapshot.computeIfAbsent(dir, d -> new HashMap<>());
+        if (kind == ENTRY_DELETE) {
+            Long stamp = entries.remove(name.toString());
+            if (stamp != null && stamp == DIRECTORY) {
+                forget(path);
+            }
+            changes.accept(path, ChangeBuffer.Kind.DELETED);
+            return;
+        }
+
+        BasicFileAttributes attrs = attributesOf(path);
+        if (attrs == null) {
+            // deleted already, its own event follows
+            return;
+        }
+        if (attrs.isDirectory()) {
+            if (kind == ENTRY_CREATE && !isKnown(path)) {
+                // moved or copied in with whatever it holds already
+                entries.put(name.toString(), DIRECTORY);
+                registerTree(path);
+                changes.accept(path, ChangeBuffer.Kind.CREATED);
+            }
+            // a modified directory only had its entries change, they come with their own events
+            return;
+        }
+        Long old = entries.put(name.toString(), stampOf(attrs));
+        changes.accept(path, old == null ? ChangeBuffer.Kind.CREATED : ChangeBuffer.Kind.MODIFIED);
+    }
+
+    /**
+     * Rescan directory after its events were lost, comparing it with its snapshot.
+     *
+     * @param dir     the directory
+     * @param changes the consumer of the changes
+     * @throws IOException the io exception
+     */
+    private void rescan(Path dir, BiConsumer<Path, ChangeBuffer.Kind> changes) throws IOException {
+        Map<String, Long> old = snapshot.getOrDefault(dir, new HashMap<>());
+        Map<String, Long> now = list(dir);
+        snapshot.put(dir, now);
+        int found = 0;
+        for (Map.Entry<String, Long> entry : old.entrySet()) {
+            Long stamp = now.get(entry.getKey());
+            if (stamp == null || (stamp == DIRECTORY) != (entry.getValue() == DIRECTORY)) {
+                // gone, or a directory replaced by a file or the other way round
+                Path path = dir.resolve(entry.getKey());
+                if (entry.getValue() == DIRECTORY) {
+                    forget(path);
+                }
+                changes.accept(path, ChangeBuffer.Kind.DELETED);
+                found++;
+            }
+        }
+        for (Map.Entry<String, Long> entry : now.entrySet()) {
+            Path path = dir.resolve(entry.getKey());
+            Long stamp = old.get(entry.getKey());
+            if (entry.getValue() == DIRECTORY) {
+                if (!isKnown(path)) {
+                    registerTree(path);
+                    changes.accept(path, ChangeBuffer.Kind.CREATED);
+                    found++;
+                }
+            } else if (stamp == null || stamp == DIRECTORY) {
+                changes.accept(path, ChangeBuffer.Kind.CREATED);
+                found++;
+            } else if (!stamp.equals(entry.getValue())) {
+                changes.accept(path, ChangeBuffer.Kind.MODIFIED);
+                found++;
+            }
+        }
+        LOGGER.info("rescanned " + dir + " after an overflow, " + found + " changes");
+    }
+
+    /**
+     * Is directory known, in the snapshot and still watched if it was watched.
+     *
+     * @param dir the directory
+     * @return the boolean
+     */
+    private boolean isKnown(Path dir) {
+        WatchKey key = keys.get(dir);
+        return snapshot.containsKey(dir) && (key == null || key.isValid());
+    }
+
+    /**
+     * Register directory with every directory below it, taking their snapshots.
+     *
+     * @param dir the directory
+     * @throws IOException the io exception
+     */
+    private void registerTree(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) throws IOException {
+                register(path);
+                snapshot.put(path, new HashMap<>());
+                if (!path.equals(dir)) {
+                    snapshot.computeIfAbsent(path.getParent(), p -> new HashMap<>()).put(path.getFileName().toString(), DIRECTORY);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                snapshot.computeIfAbsent(path.getParent(), p -> new HashMap<>()).put(path.getFileName().toString(), stampOf(attrs));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException e) {
+                // deleted meanwhile or unreadable, events or a rescan tell the rest
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Register directory.
+     *
+     * @param dir the directory
+     * @throws IOException the io exception
+     */
+    private void register(Path dir) throws IOException {
+        WatchKey old = keys.get(dir);
+        if (old != null && old.isValid() || limitReached) {
+            return;
+        }
+        if (old != null) {
+            // deleted and created again before its events came
+            directories.remove(old);
+        }
+        try {
+            WatchKey key = dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            directories.put(key, dir);
+            keys.put(dir, key);
+        } catch (NoSuchFileException e) {
+            // deleted meanwhile
+        } catch (IOException e) {
+            if (dir.equals(root)) {
+                throw e;
+            }
+            // most likely the system limit of watches, changes below stay unseen until the next login
+            limitReached = true;
+            LOGGER.warning("couldn't watch " + dir + " and what comes after it, " + keys.size() + " directories watched: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Forget directory with every directory below it.
+     *
+     * @param dir the directory, may be null
+     */
+    private void forget(Path dir) {
+        if (dir == null) {
+            return;
+        }
+        WatchKey key = keys.remove(dir);
+        if (key != null) {
+            key.cancel();
+            directories.remove(key);
+        }
+        Map<String, Long> entries = snapshot.remove(dir);
+        if (entries != null) {
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                if (entry.getValue() == DIRECTORY) {
+                    forget(dir.resolve(entry.getKey()));
+                }
+            }
+        }
+    }
+
+    /**
+     * List directory.
+     *
+     * @param dir the directory
+     * @return the stamps of its entries by name
+     * @throws IOException the io exception
+     */
+    private static Map<String, Long> list(Path dir) throws IOException {
+        Map<String, Long> entries = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                BasicFileAttributes attrs = attributesOf(path);
+                if (attrs != null) {
+                    entries.put(path.getFileName().toString(), stampOf(attrs));
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // gone, everything in it is
+        }
+        return entries;
+    }
+
+    /**
+     * Attributes of a path.
+     *
+     * @param path the path
+     * @return the attributes, null if it doesn't exist
+     */
+    private static BasicFileAttributes attributesOf(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stamp of an entry, changing whenever its size or modification time does.
+     *
+     * @param attrs the attributes
+     * @return the stamp
+     */
+    private static long stampOf(BasicFileAttributes attrs) {
+        return attrs.isDirectory() ? DIRECTORY : attrs.lastModifiedTime().toMillis() * 31 + attrs.size();
+    }
+}
@@ -0,0 +1,329 @@
+package com.boxer.client;
+
+import com.boxer.ThreadManager;
+import javafx.animation.AnimationTimer;
+import javafx.collections.ObservableList;
+import javafx.scene.control.TreeItem;
+import javafx.scene.control.TreeView;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The type File tree model.
+ * <p>
+ * The client file tree, kept up to date by changes instead of being rebuilt from disk. Watcher and sync threads read
+ * the disk and {@link #post(String, Kind)} what they found. The UI thread applies the changes waiting once per frame,
+ * at most {@link #MAX_CHANGES} of them, to the existing nodes found by path. A whole tree is posted between
+ * {@link Kind#REFRESH} and {@link Kind#REFRESHED}, which keeps the nodes posted again and drops the rest, so the tree
+ * shown from the last sync turns into the one on disk without ever being emptied.
+ */
+class FileTreeModel {
+    /**
+     * The constant MAX_CHANGES applied per frame, a bulk copy fills the tree over a few frames instead of freezing it.
+     */
+    private static final int MAX_CHANGES = 500;
+
+    /**
+     * The Tree view.
+     */
+    private final TreeView<String> treeView;
+    /**
+     * The Root.
+     */
+    private final TreeItem<String> root;
+    /**
+     * The Dir icon.
+     */
+    private final Image dirIcon;
+    /**
+     * The Changes waiting for the UI thread.
+     */
+    private final Queue<Change> changes = new ConcurrentLinkedQueue<>();
+    /**
+     * The Scheduled flag, set while the frame timer runs.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    /**
+     * The Nodes by path with '/' separators, UI thread only.
+     */
+    private final Map<String, TreeItem<String>> nodes = new HashMap<>();
+    /**
+     * The Directory paths, UI thread only.
+     */
+    private final Set<String> directories = new HashSet<>();
+    /**
+     * The Paths posted since a refresh began, null if none runs, UI thread only.
+     */
+    private Set<String> refreshed;
+    /**
+     * The Frame timer applying changes.
+     */
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            applyChanges(MAX_CHANGES);
+            if (changes.isEmpty()) {
+                stop();
+                scheduled.set(false);
+
+                // posted after the last poll
+                if (!changes.isEmpty() && scheduled.compareAndSet(false, true)) {
+                    start();
+                }
+            }
+        }
+    };
+
+    /**
+     * Instantiates a new File tree model.
+     *
+     * @param treeView the tree view
+     * @param root     the root
+     * @param dirIcon  the dir icon
+     */
+    FileTreeModel(TreeView<String> treeView, TreeItem<String> root, Image dirIcon) {
+        this.treeView = treeView;
+        this.root = root;
+        this.dirIcon = dirIcon;
+        root.setExpanded(true);
+    }
+
+    /**
+     * Post change, from any thread.
+     *
+     * @param path the path with '/' separators
+     * @param kind the kind
+     */
+    void post(String path, Kind kind) {
+        if (kind != Kind.REFRESH && kind != Kind.REFRESHED && isHidden(path)) {
+            return;
+        }
+        changes.add(new Change(path, kind));
+        if (scheduled.compareAndSet(false, true)) {
+            ThreadManager.runOnUiThread(timer::start);
+        }
+    }
+
+    /**
+     * Apply changes waiting, on the UI thread.
+     *
+     * @param max the max number of changes
+     * @return the number of changes applied
+     */
+    int applyChanges(int max) {
+        int applied = 0;
+        Change change;
+        while (applied < max && (change = changes.poll()) != null) {
+            apply(change);
+            applied++;
+        }
+        return applied;
+    }
+
+    /**
+     * Apply change.
+     *
+     * @param change the change
+     */
+    private void apply(Change change) {
+        switch (change.kind) {
+            case REFRESH:
+                refreshed = new HashSet<>();
+                treeView.setRoot(root);
+                break;
+            case REFRESHED:
+                if (refreshed != null) {
+                    sweep(refreshed);
+                    refreshed = null;
+                }
+                break;
+            case FILE:
+            case DIRECTORY:
+                add(change.path, change.kind == Kind.DIRECTORY);
+                if (refreshed != null) {
+                    refreshed.add(change.path);
+                }
+                break;
+            case DELETED:
+                remove(change.path);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown change " + change.kind);
+        }
+    }
+
+    /**
+     * Add node unless it's there already, with any missing parent directory.
+     *
+     * @param path      the path
+     * @param directory the directory
+     * @return the node
+     */
+    private TreeItem<String> add(String path, boolean directory) {
+        TreeItem<String> node = nodes.get(path);
+        if (node != null) {
+            if (directories.contains(path) == directory) {
+                // modified, nothing shown changes
+                return node;
+            }
+            // replaced by a directory or a file of the same name
+            remove(path);
+        }
+
+        int slash = path.lastIndexOf('/');
+        TreeItem<String> parent = slash < 0 ? root : add(path.substring(0, slash), true);
+        String name = path.substring(slash + 1);
+        node = directory ? new TreeItem<>(name, new ImageView(dirIcon)) : new TreeItem<>(name);
+
+        // keep children sorted by name
+        ObservableList<TreeItem<String>> children = parent.getChildren();
+        int low = 0;
+        int high = children.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (children.get(middle).getValue().compareTo(name) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        children.add(low, node);
+        nodes.put(path, node);
+        if (directory) {
+            directories.add(path);
+        }
+        return node;
+    }
+
+    /**
+     * Remove node with everything below it.
+     *
+     * @param path the path
+     */
+    private void remove(String path) {
+        TreeItem<String> node = nodes.remove(path);
+        if (node == null) {
+            return;
+        }
+        node.getParent().getChildren().remove(node);
+        directories.remove(path);
+
+        // forget the paths below
+        List<String> below = new ArrayList<>();
+        collect(node, path, below);
+        for (String gone : below) {
+            nodes.remove(gone);
+            directories.remove(gone);
+        }
+    }
+
+    /**
+     * Remove every node not posted during a refresh, or above one that was.
+     *
+     * @param posted the paths posted
+     */
+    private void sweep(Set<String> posted) {
+        Set<String> kept = new HashSet<>();
+        for (String path : posted) {
+            // parent directories stay with their children
+            while (kept.add(path)) {
+                int slash = path.lastIndexOf('/');
+                if (slash < 0) {
+                    break;
+                }
+                path = path.substring(0, slash);
+            }
+        }
+        for (String path : new ArrayList<>(nodes.keySet())) {
+            if (!kept.contains(path)) {
+                remove(path);
+            }
+        }
+    }
+
+    /**
+     * Collect paths below a node.
+     *
+     * @param node  the node
+     * @param path  the path of the node
+     * @param paths the paths found
+     */
+    private static void collect(TreeItem<String> node, String path, List<String> paths) {
+        for (TreeItem<String> child : node.getChildren()) {
+            String childPath = path + "/" + child.getValue();
+            paths.add(childPath);
+            collect(child, childPath, paths);
+        }
+    }
+
+    /**
+     * Is hidden, any part of the path starting with a dot.
+     *
+     * @param path the path
+     * @return the boolean
+     */
+    private static boolean isHidden(String path) {
+        return path.startsWith(".") || path.contains("/.");
+    }
+
+    /**
+     * The enum Kind of change.
+     */
+    enum Kind {
+        /**
+         * Refresh begins, the whole tree is posted again.
+         */
+        REFRESH,
+        /**
+         * Refresh ends, nodes not posted since it began are removed.
+         */
+        REFRESHED,
+        /**
+         * File created or modified.
+         */
+        FILE,
+        /**
+         * Directory created.
+         */
+        DIRECTORY,
+        /**
+         * File or directory deleted.
+         */
+        DELETED
+    }
+
+    /**
+     * The type Change.
+     */
+    private static final class Change {
+        /**
+         * The Path.
+         */
+        private final String path;
+        /**
+         * The Kind.
+         */
+        private final Kind kind;
+
+        /**
+         * Instantiates a new Change.
+         *
+         * @param path the path
+         * @param kind the kind
+         */
+        Change(String path, Kind kind) {
+            this.path = path;
+            this.kind = kind;
+        }
+    }
+}
@@ -3,14 +3,9 @@ package com.boxer.client;
 import java.util.concurrent.ScheduledFuture;
 
 /**
- * The type Job manager.
+ * The type Job manager, the jobs of one client.
  */
 public class JobManager {
-    /**
-     * The constant INSTANCE.
-     */
-    private static final JobManager INSTANCE = new JobManager();
-
     /**
      * The Sync files job.
      */
@@ -27,16 +22,7 @@ public class JobManager {
     /**
      * Instantiates a new Job manager.
      */
-    private JobManager() {
-    }
-
-    /**
-     * Gets instance.
-     *
-     * @return the instance
-     */
-    public static JobManager getInstance() {
-        return INSTANCE;
+    JobManager() {
     }
 
     /**
@@ -0,0 +1,331 @@
+package com.boxer.client;
+
+import com.boxer.protocol.Manifest;
+import com.boxer.protocol.Protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * The type Local state.
+ * <p>
+ * What the client last synced with the server, per file of the local directory: its size, modification time and
+ * content hash, and the version the server holds. Kept in the settings directory between runs, so a login tells files
+ * changed or deleted while logged out from files changed on the server, and the file tree shows before the sync ends.
+ * A file matching its entry is on the server already, so the watcher never sends back what just arrived.
+ */
+class LocalState {
+    /**
+     * The constant LOGGER.
+     */
+    private static final Logger LOGGER = Logger.getLogger(LocalState.class.getName());
+    /**
+     * The constant MAGIC starting the state file.
+     */
+    private static final int MAGIC = 0x42585354;
+    /**
+     * The constant FORMAT of the state file.
+     */
+    private static final int FORMAT = 1;
+
+    /**
+     * The State file.
+     */
+    private final File file;
+    /**
+     * The Username.
+     */
+    private final String username;
+    /**
+     * The Local dir.
+     */
+    private final Path localDir;
+    /**
+     * The Entries by path with '/' separators.
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    /**
+     * The Save lock, one save at a time.
+     */
+    private final Lock saveLock = new ReentrantLock();
+    /**
+     * The Dirty flag, set by every change not saved yet.
+     */
+    private volatile boolean dirty;
+
+    /**
+     * Instantiates a new empty Local state.
+     *
+     * @param file     the state file
+     * @param username the username
+     * @param localDir the local dir
+     */
+    LocalState(File file, String username, Path localDir) {
+        this.file = file;
+        this.username = username;
+        this.localDir = localDir.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Load state of a user and a local directory, empty if it was saved for another one or not at all.
+     *
+     * @param file     the state file
+     * @param username the username
+     * @param localDir the local dir
+     * @return the local state
+     */
+    static LocalState load(File file, String username, Path localDir) {
+        LocalState state = new LocalState(file, username, localDir);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                LOGGER.warning("ignoring " + file + ", not a state file of this version");
+                return state;
+            }
+            if (!in.readUTF().equals(username) || !in.readUTF().equals(state.localDir.toString())) {
+                // another user or directory, nothing known about this one
+                return state;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                long version = in.readLong();
+                byte[] hash = new byte[in.readUnsignedByte()];
+                in.readFully(hash);
+                state.entries.put(path, new Entry(size, modified, version, hash.length > 0 ? hash : null));
+            }
+            LOGGER.info("loaded state of " + count + " files from " + file);
+        } catch (FileNotFoundException e) {
+            // first login
+        } catch (IOException e) {
+            // broken, the manifest compare sorts things out without it
+            LOGGER.warning("couldn't load " + file + ": " + e.getMessage());
+            state.entries.clear();
+        }
+        return state;
+    }
+
+    /**
+     * Save state if it changed, replacing the file at once so a crash leaves the old one.
+     *
+     * @throws IOException the io exception
+     */
+    void save() throws IOException {
+        saveLock.lock();
+        try {
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            File temp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                List<Map.Entry<String, Entry>> snapshot = new ArrayList<>(entries.entrySet());
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT);
+                out.writeUTF(username);
+                out.writeUTF(localDir.toString());
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry> item : snapshot) {
+                    Entry entry = item.getValue();
+                    out.writeUTF(item.getKey());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.modified);
+                    out.writeLong(entry.version);
+                    out.writeByte(entry.hash != null ? entry.hash.length : 0);
+                    if (entry.hash != null) {
+                        out.write(entry.hash);
+                    }
+                }
+            } catch (IOException e) {
+                dirty = true;
+                throw e;
+            }
+            try {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    /**
+     * Record file as synced, the server holds it as it is on disk now.
+     *
+     * @param path the absolute path
+     */
+    void synced(Path path) {
+        File synced = path.toFile();
+        if (!synced.isFile()) {
+            return;
+        }
+        long modified = synced.lastModified();
+        entries.put(Protocol.toWirePath(localDir, path),
+                new Entry(synced.length(), modified, Manifest.toSeconds(modified), hashOf(synced)));
+        dirty = true;
+    }
+
+    /**
+     * Forget file or directory with everything below it, the server doesn't hold it anymore.
+     *
+     * @param path the absolute path
+     */
+    void removed(Path path) {
+        String removed = Protocol.toWirePath(localDir, path);
+        String below = removed + "/";
+        if (entries.keySet().removeIf(key -> key.equals(removed) || key.startsWith(below))) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Is synced, unchanged on disk since the server got it.
+     *
+     * @param path the absolute path
+     * @return the boolean
+     */
+    boolean isSynced(Path path) {
+        Entry entry = entries.get(Protocol.toWirePath(localDir, path));
+        File file = path.toFile();
+        return entry != null && entry.size == file.length() && entry.modified == file.lastModified() && file.isFile();
+    }
+
+    /**
+     * Get entry.
+     *
+     * @param path the path with '/' separators
+     * @return the entry, null if the file was never synced
+     */
+    Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Gets paths of every file synced.
+     *
+     * @return the paths with '/' separators
+     */
+    List<String> paths() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /**
+     * Size.
+     *
+     * @return the number of files
+     */
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Hash contents of a file.
+     *
+     * @param file the file
+     * @return the SHA-256 hash, null if the file can't be read
+     */
+    static byte[] hashOf(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+            return digest.digest();
+        } catch (IOException e) {
+            return null;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The type Entry, a file as last synced.
+     */
+    static final class Entry {
+        /**
+         * The Size.
+         */
+        private final long size;
+        /**
+         * The Modification time in milliseconds.
+         */
+        private final long modified;
+        /**
+         * The Version on the server, its modification time in seconds as in its manifest.
+         */
+        private final long version;
+        /**
+         * The Content hash, null if unknown.
+         */
+        private final byte[] hash;
+
+        /**
+         * Instantiates a new Entry.
+         *
+         * @param size     the size
+         * @param modified the modified
+         * @param version  the version
+         * @param hash     the hash
+         */
+        Entry(long size, long modified, long version, byte[] hash) {
+            this.size = size;
+            this.modified = modified;
+            this.version = version;
+            this.hash = hash;
+        }
+
+        /**
+         * Same as a file of a manifest.
+         *
+         * @param node the file node, local or from the server
+         * @return the boolean
+         */
+        boolean sameAs(Manifest.Node node) {
+            return node != null && !node.isDirectory() && node.getSize() == size && node.getModified() == version;
+        }
+
+        /**
+         * Same content as a file.
+         *
+         * @param file the file
+         * @return the boolean
+         */
+        boolean sameContent(File file) {
+            return hash != null && file.length() == size && MessageDigest.isEqual(hash, hashOf(file));
+        }
+
+        /**
+         * Gets modified.
+         *
+         * @return the modification time in milliseconds
+         */
+        long getModified() {
+            return modified;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.boxer.client;
 
 import com.boxer.ConsoleLog;
+import com.boxer.ThreadManager;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
@@ -91,6 +92,10 @@ public class MainController implements Initializable {
      * The Local dir.
      */
     private File localDir;
+    /**
+     * The File tree.
+     */
+    private FileTreeModel fileTree;
     /**
      * The Share file path.
      */
@@ -158,14 +163,24 @@ public class MainController implements Initializable {
         chooseUserCB.setItems(userShareList);
         userListView.setItems(userList);
         ConsoleLog.initialize(logTA);
+        fileTree = new FileTreeModel(fileTreeView, new TreeItem<>("MyBoxer: /", new ImageView(userIcon)), dirIcon);
         UserInterfaceManager.getInstance().register(this);
     }
 
+    /**
+     * Gets file tree.
+     *
+     * @return the file tree
+     */
+    FileTreeModel getFileTree() {
+        return fileTree;
+    }
+
     /**
      * Shutdown.
      */
     public void shutdown() {
-        communicationManager.shutdown(true, clearEnvTask(true));
+        communicationManager.shutdown();
     }
 
     /**
@@ -201,19 +216,12 @@ public class MainController implements Initializable {
         // save user local directory choice to the data manager
         dataManager.setLocalDir(localDir.getAbsolutePath());
 
-        // connect to the server, in separate thread
-        communicationManager.connectToServer();
-        if (communicationManager.isConnected()) {
+        // connect to the server, in separate thread, failures are shown by the communication manager
+        File userDir = new File(dataManager.getLocalDir());
+        communicationManager.connectToServer().thenRun(() -> ThreadManager.runOnUiThread(() -> {
             // set initial file chooser dir to user dir
-            fileChooser.setInitialDirectory(new File(dataManager.getLocalDir()));
-
-            communicationManager.syncFilesAndRunJobs();
-        } else {
-            logTA.appendText("Error, cannot establish a connection with server.\n");
-
-            // show alert
-            UserInterfaceManager.getInstance().addAlert(Alert.AlertType.ERROR, "Couldn't establish a connection with server!");
-        }
+            fileChooser.setInitialDirectory(userDir);
+        }));
     }
 
     /**
@@ -355,65 +363,6 @@ public class MainController implements Initializable {
         desktop.open(new File(dataManager.getLocalDir()));
     }
 
-    /**
-     * Display file tree.
-     */
-// use recursive method to build and display file tree
-    protected void displayFileTree() {
-        // set up file tree
-        TreeItem<String> rootItem = new TreeItem<>("MyBoxer: /", new ImageView(userIcon));
-        rootItem.setExpanded(true);
-
-        // set the tree root
-        fileTreeView.setRoot(rootItem);
-
-        // start building the file tree
-        buildFileTree(localDir, rootItem);
-    }
-
-    /**
-     * Build file tree.
-     *
-     * @param dir      the dir
-     * @param treeNode the tree node
-     */
-// builds the tree view of the files
-    private void buildFileTree(File dir, TreeItem<String> treeNode) {
-        // display the files
-        File[] files = dir.listFiles();
-        for (File file : files) {
-            if (!file.isHidden()) {
-                TreeItem<String> node;
-                // if a directory, build a subtree node
-                if (file.isDirectory()) {
-                    node = new TreeItem<>(file.getName(), new ImageView(dirIcon));
-                    buildFileTree(file, node);
-                } else {
-                    node = new TreeItem<>(file.getName());
-                }
-
-                // add file to file tree
-                treeNode.getChildren().add(node);
-            }
-        }
-    }
-
-    /**
-     * Clear dir.
-     *
-     * @param dir the dir
-     */
-// use recursive method to clear dir content with its subdirectories
-    private void clearDir(File dir) {
-        File[] files = dir.listFiles();
-        for (File file : files) {
-            if (file.isDirectory()) {
-                clearDir(file);
-            }
-            file.delete();
-        }
-    }
-
     /**
      * On success share file.
      */
@@ -437,11 +386,7 @@ public class MainController implements Initializable {
             if (clearLocalDirPath) {
                 localDirLB.setText("Select a local directory...");
 
-                // clear user directory content
-                if (localDirSelected) {
-                    clearDir(localDir);
-                }
-
+                // local files are kept, the next login only fetches what changed meanwhile
                 localDir = null;
                 localDirSelected = false;
                 fileChooser.setInitialDirectory(null);
@@ -482,4 +427,20 @@ public class MainController implements Initializable {
             userShareList.addAll(newUsersList.subList(1, newUsersList.size()));
         }
     }
+
+    /**
+     * Apply user changes to the user lists, leaving the other users in place.
+     *
+     * @param joined the users who joined
+     * @param left   the users who left
+     */
+    public void applyUserChanges(List<String> joined, List<String> left) {
+        if (!left.isEmpty()) {
+            Set<String> gone = new HashSet<>(left);
+            userList.removeAll(gone);
+            userShareList.removeAll(gone);
+        }
+        userList.addAll(joined);
+        userShareList.addAll(joined);
+    }
 }
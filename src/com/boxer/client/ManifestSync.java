@@ -0,0 +1,279 @@
+package com.boxer.client;
+
+import com.boxer.protocol.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The type Manifest sync.
+ * <p>
+ * Compares the local directory with the manifest of the server one level at a time. Only directories whose hashes
+ * differ are listed, all of a level at once, so an unchanged tree costs a single round trip whatever its size.
+ * Where the two differ the {@link LocalState} tells which side changed since the last sync: files changed or deleted
+ * while logged out go to the server, files changed or deleted on the server come to the client. A file changed on
+ * both sides, or one never synced, goes whichever way its newer copy does.
+ */
+class ManifestSync {
+    /**
+     * The Connection.
+     */
+    private final ServerConnection connection;
+    /**
+     * The Local dir.
+     */
+    private final Path localDir;
+    /**
+     * The Local state.
+     */
+    private final LocalState state;
+    /**
+     * The Files to fetch.
+     */
+    private final List<String> toFetch = new ArrayList<>();
+    /**
+     * The Files to upload.
+     */
+    private final List<String> toUpload = new ArrayList<>();
+    /**
+     * The Files changed while logged out, the server holds an older copy.
+     */
+    private final List<String> toModify = new ArrayList<>();
+    /**
+     * The Files deleted while logged out.
+     */
+    private final List<String> toDelete = new ArrayList<>();
+    /**
+     * The Files deleted on the server, to remove from the local directory.
+     */
+    private final List<String> toRemove = new ArrayList<>();
+    /**
+     * The Listings requested.
+     */
+    private int listings;
+
+    /**
+     * Instantiates a new Manifest sync.
+     *
+     * @param connection the connection
+     * @param localDir   the local dir
+     */
+    ManifestSync(ServerConnection connection, Path localDir) {
+        this(connection, localDir, new LocalState(null, "", localDir));
+    }
+
+    /**
+     * Instantiates a new Manifest sync.
+     *
+     * @param connection the connection
+     * @param localDir   the local dir
+     * @param state      the state of the last sync
+     */
+    ManifestSync(ServerConnection connection, Path localDir, LocalState state) {
+        this.connection = connection;
+        this.localDir = localDir;
+        this.state = state;
+    }
+
+    /**
+     * Compare local directory with the server.
+     *
+     * @throws IOException the io exception
+     */
+    void compare() throws IOException {
+        // local directories by path, null where the server has a directory the client lacks
+        Map<String, Manifest.Node> level = new LinkedHashMap<>();
+        level.put("", Manifest.scan(localDir));
+
+        while (!level.isEmpty()) {
+            // ask for every directory of the level at once
+            Map<String, CompletableFuture<Manifest.Node>> requested = new LinkedHashMap<>();
+            for (String path : level.keySet()) {
+                requested.put(path, list(path));
+            }
+
+            Map<String, Manifest.Node> next = new LinkedHashMap<>();
+            for (Map.Entry<String, CompletableFuture<Manifest.Node>> entry : requested.entrySet()) {
+                String path = entry.getKey();
+                Manifest.Node remote = ServerConnection.await(entry.getValue());
+                Manifest.Node local = level.get(path);
+                if (remote.sameAs(local)) {
+                    continue;
+                }
+
+                for (Manifest.Node child : remote.getChildren()) {
+                    String childPath = join(path, child.getName());
+                    Manifest.Node localChild = local != null ? local.getChild(child.getName()) : null;
+                    if (child.sameAs(localChild)) {
+                        continue;
+                    }
+                    if (child.isDirectory()) {
+                        next.put(childPath, localChild != null && localChild.isDirectory() ? localChild : null);
+                    } else {
+                        compareFile(childPath, child, localChild);
+                    }
+                }
+                if (local != null) {
+                    // an empty server lost its files rather than deleted them, never empty the client for it
+                    boolean serverLost = path.isEmpty() && remote.getChildren().isEmpty();
+                    for (Manifest.Node localChild : local.getChildren()) {
+                        if (remote.getChild(localChild.getName()) == null) {
+                            localOnly(join(path, localChild.getName()), localChild, serverLost);
+                        }
+                    }
+                }
+            }
+            level = next;
+        }
+    }
+
+    /**
+     * Compare file the server has with the local one.
+     *
+     * @param path   the path
+     * @param remote the file on the server
+     * @param local  the local file or directory, null if there is none
+     */
+    private void compareFile(String path, Manifest.Node remote, Manifest.Node local) {
+        LocalState.Entry entry = state.get(path);
+        if (local == null || local.isDirectory()) {
+            if (local == null && entry != null && entry.sameAs(remote)) {
+                // deleted while logged out
+                toDelete.add(path);
+            } else {
+                toFetch.add(path);
+            }
+            return;
+        }
+
+        boolean changedHere = entry == null || !entry.sameAs(local);
+        boolean changedThere = entry == null || !entry.sameAs(remote);
+        if (!changedHere) {
+            toFetch.add(path);
+        } else if (!changedThere) {
+            File file = Protocol.resolveWirePath(localDir, path).toFile();
+            if (entry.sameContent(file)) {
+                // only touched, put its time back instead of sending it
+                file.setLastModified(entry.getModified());
+            } else {
+                toModify.add(path);
+            }
+        } else if (local.getModified() > remote.getModified()) {
+            toModify.add(path);
+        } else {
+            toFetch.add(path);
+        }
+    }
+
+    /**
+     * Sort out files the server doesn't have.
+     *
+     * @param path       the path
+     * @param local      the local file or directory
+     * @param serverLost the server lost everything, upload it all
+     */
+    private void localOnly(String path, Manifest.Node local, boolean serverLost) {
+        if (local.isDirectory()) {
+            for (Manifest.Node child : local.getChildren()) {
+                localOnly(join(path, child.getName()), child, serverLost);
+            }
+            return;
+        }
+        LocalState.Entry entry = state.get(path);
+        if (!serverLost && entry != null && entry.sameAs(local)) {
+            // synced before and untouched since, deleted on the server
+            toRemove.add(path);
+        } else {
+            toUpload.add(path);
+        }
+    }
+
+    /**
+     * Gets files to fetch.
+     *
+     * @return the paths of the files to fetch
+     */
+    List<String> getToFetch() {
+        return toFetch;
+    }
+
+    /**
+     * Gets files to upload.
+     *
+     * @return the paths of the files to upload
+     */
+    List<String> getToUpload() {
+        return toUpload;
+    }
+
+    /**
+     * Gets files to modify.
+     *
+     * @return the paths of the files changed while logged out
+     */
+    List<String> getToModify() {
+        return toModify;
+    }
+
+    /**
+     * Gets files to delete.
+     *
+     * @return the paths of the files deleted while logged out
+     */
+    List<String> getToDelete() {
+        return toDelete;
+    }
+
+    /**
+     * Gets files to remove.
+     *
+     * @return the paths of the files deleted on the server
+     */
+    List<String> getToRemove() {
+        return toRemove;
+    }
+
+    /**
+     * Gets listings.
+     *
+     * @return the number of directory listings requested
+     */
+    int getListings() {
+        return listings;
+    }
+
+    /**
+     * List directory on the server.
+     *
+     * @param path the path
+     * @return the listing
+     */
+    private CompletableFuture<Manifest.Node> list(String path) {
+        listings++;
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        return connection.request(new Frame(FrameType.MANIFEST, connection.nextRequestId(),
+                new PayloadWriter().writeString(path)), (frame, reader) -> {
+            if (frame.getType() != FrameType.MANIFEST_LISTING) {
+                throw new ProtocolException("expected " + FrameType.MANIFEST_LISTING + ", got " + frame);
+            }
+            return Manifest.readListing(frame.payload(), name);
+        });
+    }
+
+    /**
+     * Join paths.
+     *
+     * @param parent the parent path, "" for the root
+     * @param name   the name
+     * @return the path
+     */
+    private static String join(String parent, String name) {
+        return parent.isEmpty() ? name : parent + "/" + name;
+    }
+}
@@ -0,0 +1,380 @@
+package com.boxer.client;
+
+import com.boxer.SocketStreams;
+import com.boxer.protocol.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * The type Server connection.
+ * <p>
+ * Keeps any number of requests in flight on one socket. Every request gets its own id, a single reader thread
+ * hands each reply to the request with the same id, whatever order the server answers in. Events the server sends
+ * on its own go to the event listener.
+ */
+public class ServerConnection {
+    /**
+     * The constant LOGGER.
+     */
+    private static final Logger LOGGER = Logger.getLogger(ServerConnection.class.getName());
+
+    /**
+     * The Socket.
+     */
+    private final Socket socket;
+    /**
+     * The Reader.
+     */
+    private final FrameReader reader;
+    /**
+     * The Writer.
+     */
+    private final FrameWriter writer;
+    /**
+     * The Pending requests by id.
+     */
+    private final Map<Integer, Exchange<?>> pending = new ConcurrentHashMap<>();
+    /**
+     * The Next request id.
+     */
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    /**
+     * The Event listener.
+     */
+    private volatile EventListener eventListener;
+    /**
+     * The Close listener.
+     */
+    private volatile Runnable closeListener;
+    /**
+     * The Failure, set once the connection is gone.
+     */
+    private volatile IOException failure;
+    /**
+     * The Closed flag, set once the close listener was called.
+     */
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Instantiates a new Server connection and starts reading replies.
+     *
+     * @param socket the connected socket
+     * @throws IOException the io exception
+     */
+    public ServerConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        reader = new FrameReader(SocketStreams.getInputStream(socket), socket);
+        writer = new FrameWriter(SocketStreams.getOutputStream(socket), socket);
+        Thread readerThread = new Thread(this::readReplies, "boxer-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Gets writer, for requests made of several frames.
+     *
+     * @return the writer
+     */
+    public FrameWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * Sets event listener.
+     *
+     * @param eventListener the event listener
+     */
+    public void setEventListener(EventListener eventListener) {
+        this.eventListener = eventListener;
+    }
+
+    /**
+     * Sets close listener, called on the reader thread once the connection is gone, right away if it is already.
+     *
+     * @param closeListener the close listener
+     */
+    public void setCloseListener(Runnable closeListener) {
+        this.closeListener = closeListener;
+        if (failure != null && closed.compareAndSet(false, true)) {
+            closeListener.run();
+        }
+    }
+
+    /**
+     * Next request id.
+     *
+     * @return the request id
+     */
+    public int nextRequestId() {
+        return nextRequestId.incrementAndGet();
+    }
+
+    /**
+     * Send request answered by a single frame.
+     *
+     * @param request   the request
+     * @param replyType the reply type
+     * @return the reply, failed with the message of the server if it answered with an error
+     */
+    public CompletableFuture<Frame> request(Frame request, FrameType replyType) {
+        return request(request, reply(replyType));
+    }
+
+    /**
+     * Reply handler taking a single frame.
+     *
+     * @param replyType the reply type
+     * @return the reply handler
+     */
+    public static ReplyHandler<Frame> reply(FrameType replyType) {
+        return (frame, frameReader) -> {
+            if (frame.getType() != replyType) {
+                throw new ProtocolException("expected " + replyType + ", got " + frame);
+            }
+            return frame;
+        };
+    }
+
+    /**
+     * Await result of a request.
+     *
+     * @param <T>    the result type
+     * @param result the result
+     * @return the value
+     * @throws IOException the io exception the request failed with
+     */
+    public static <T> T await(CompletableFuture<T> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for the server");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Send request.
+     *
+     * @param <T>     the result type
+     * @param request the request
+     * @param handler the handler of its reply frames
+     * @return the result
+     */
+    public <T> CompletableFuture<T> request(Frame request, ReplyHandler<T> handler) {
+        CompletableFuture<T> result = expect(request.getRequestId(), handler);
+        try {
+            writer.send(request);
+        } catch (IOException e) {
+            fail(request.getRequestId(), e);
+        }
+        return result;
+    }
+
+    /**
+     * Expect reply to a request the caller writes itself.
+     *
+     * @param <T>       the result type
+     * @param requestId the request id
+     * @param handler   the handler of its reply frames
+     * @return the result
+     */
+    public <T> CompletableFuture<T> expect(int requestId, ReplyHandler<T> handler) {
+        Exchange<T> exchange = new Exchange<>(handler);
+        pending.put(requestId, exchange);
+
+        // the reader may have stopped before the request was registered
+        IOException gone = failure;
+        if (gone != null) {
+            fail(requestId, gone);
+        }
+        return exchange.result;
+    }
+
+    /**
+     * Fail request.
+     *
+     * @param requestId the request id
+     * @param e         the cause
+     */
+    public void fail(int requestId, IOException e) {
+        Exchange<?> exchange = pending.remove(requestId);
+        if (exchange != null) {
+            exchange.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Is open boolean.
+     *
+     * @return the boolean
+     */
+    public boolean isOpen() {
+        return failure == null && !socket.isClosed();
+    }
+
+    /**
+     * Close.
+     *
+     * @throws IOException the io exception
+     */
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Read replies until the connection goes away, then fail whatever is still waiting.
+     */
+    private void readReplies() {
+        try {
+            while (true) {
+                dispatch(reader.readFrame());
+            }
+        } catch (IOException e) {
+            failure = socket.isClosed() ? new SocketException("connection closed") : e;
+            LOGGER.info("reader stopped: " + e.getMessage());
+        } catch (RuntimeException e) {
+            failure = new IOException(e);
+            LOGGER.severe("reader failed: " + e);
+        }
+        for (Integer requestId : pending.keySet()) {
+            fail(requestId, failure);
+        }
+        Runnable listener = closeListener;
+        if (listener != null && closed.compareAndSet(false, true)) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Dispatch reply to its request.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    private void dispatch(Frame frame) throws IOException {
+        if (frame.getRequestId() == Protocol.PUSH_REQUEST_ID && frame.getType() == FrameType.EVENT) {
+            EventListener listener = eventListener;
+            if (listener != null) {
+                PayloadReader event = frame.payload();
+                int kind = event.readByte();
+                try {
+                    listener.onEvent(kind, event.readString());
+                } catch (RuntimeException e) {
+                    LOGGER.warning("event listener failed: " + e);
+                }
+            }
+            return;
+        }
+
+        Exchange<?> exchange = pending.get(frame.getRequestId());
+        if (exchange == null) {
+            // nobody waits for it anymore
+            LOGGER.info("dropping reply " + frame);
+            reader.skipBody(frame.getBodyLength());
+            return;
+        }
+        if (frame.getType() == FrameType.ERROR) {
+            reader.skipBody(frame.getBodyLength());
+            fail(frame.getRequestId(), new IOException(frame.payload().readString()));
+            return;
+        }
+        try {
+            if (exchange.accept(frame, reader)) {
+                pending.remove(frame.getRequestId());
+            }
+        } catch (IOException | RuntimeException e) {
+            // only this request is lost, the others go on after its frame
+            LOGGER.info("request " + frame.getRequestId() + " failed on " + frame + ": " + e);
+            fail(frame.getRequestId(), e instanceof IOException ? (IOException) e : new IOException(e));
+            reader.skipRestOfBody();
+        }
+    }
+
+    /**
+     * The interface Reply handler, called on the reader thread for every reply frame of a request.
+     * Frames with body must have their body consumed from the reader.
+     *
+     * @param <T> the result type
+     */
+    public interface ReplyHandler<T> {
+        /**
+         * On reply.
+         *
+         * @param frame  the frame
+         * @param reader the reader
+         * @return the result once the reply is complete, null while more frames are expected
+         * @throws IOException the io exception
+         */
+        T onReply(Frame frame, FrameReader reader) throws IOException;
+    }
+
+    /**
+     * The interface Event listener, called on the reader thread so it must not wait for the server.
+     */
+    public interface EventListener {
+        /**
+         * On event.
+         *
+         * @param kind     the event kind
+         * @param userName the user the event is about
+         */
+        void onEvent(int kind, String userName);
+    }
+
+    /**
+     * The type Exchange, a request waiting for its reply.
+     *
+     * @param <T> the result type
+     */
+    private static final class Exchange<T> {
+        /**
+         * The Handler.
+         */
+        private final ReplyHandler<T> handler;
+        /**
+         * The Result.
+         */
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        /**
+         * Instantiates a new Exchange.
+         *
+         * @param handler the handler
+         */
+        Exchange(ReplyHandler<T> handler) {
+            this.handler = handler;
+        }
+
+        /**
+         * Accept reply frame.
+         *
+         * @param frame  the frame
+         * @param reader the reader
+         * @return true once the reply is complete
+         * @throws IOException the io exception
+         */
+        boolean accept(Frame frame, FrameReader reader) throws IOException {
+            T value = handler.onReply(frame, reader);
+            if (value == null) {
+                return false;
+            }
+            result.complete(value);
+            return true;
+        }
+    }
+}
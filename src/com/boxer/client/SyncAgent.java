@@ -0,0 +1,314 @@
+package com.boxer.client;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The type Sync agent.
+ * <p>
+ * Keeps a directory in sync without a window, for hosts with no display or syncing unattended. Logs in, syncs,
+ * then watches the directory until stopped; a lost session is logged in again, waiting longer after every failure
+ * in a row. With --once it syncs and exits instead, the exit status telling whether it worked.
+ */
+public final class SyncAgent {
+    /**
+     * The constant LOGGER.
+     */
+    private static final Logger LOGGER = Logger.getLogger(SyncAgent.class.getName());
+    /**
+     * The constant USAGE.
+     */
+    private static final String USAGE = "usage: java -cp <classpath> com.boxer.client.SyncAgent --user <name> --dir <dir> [options]\n"
+            + "  --user <name>    username to log in with\n"
+            + "  --dir <dir>      local directory to keep in sync\n"
+            + "  --host <host>    server host, this machine by default\n"
+            + "  --port <port>    server port, 59090 by default\n"
+            + "  --state <file>   what was last synced, boxer-<name>.state in the working directory by default\n"
+            + "  --once           sync once and exit\n"
+            + "  --help           show this help";
+    /**
+     * The constant MAX_RETRY_DELAY in seconds.
+     */
+    private static final long MAX_RETRY_DELAY = 60;
+
+    /**
+     * The Server address.
+     */
+    private final InetSocketAddress server;
+    /**
+     * The Username.
+     */
+    private final String username;
+    /**
+     * The Local dir.
+     */
+    private final Path localDir;
+    /**
+     * The State file.
+     */
+    private final File stateFile;
+    /**
+     * The Stopping flag.
+     */
+    private volatile boolean stopping;
+    /**
+     * The Client of the session, null between sessions.
+     */
+    private volatile BoxerClient client;
+
+    /**
+     * Instantiates a new Sync agent.
+     *
+     * @param server    the server address
+     * @param username  the username
+     * @param localDir  the local dir
+     * @param stateFile the state file
+     */
+    private SyncAgent(InetSocketAddress server, String username, Path localDir, File stateFile) {
+        this.server = server;
+        this.username = username;
+        this.localDir = localDir;
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * The entry point of the agent.
+     *
+     * @param args the input arguments
+     */
+    public static void main(String[] args) {
+        String username = null;
+        String dir = null;
+        String host = null;
+        int port = BoxerClient.PORT_NUMBER;
+        String state = null;
+        boolean once = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--help") || arg.equals("-h")) {
+                    System.out.println(USAGE);
+                    return;
+                }
+                if (arg.equals("--once")) {
+                    once = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value of " + arg);
+                }
+                String value = args[++i];
+                switch (arg) {
+                    case "--user":
+                        username = value;
+                        break;
+                    case "--dir":
+                        dir = value;
+                        break;
+                    case "--host":
+                        host = value;
+                        break;
+                    case "--port":
+                        port = portOf(value);
+                        break;
+                    case "--state":
+                        state = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option " + arg);
+                }
+            }
+            if (username == null || username.trim().isEmpty() || dir == null) {
+                throw new IllegalArgumentException("--user and --dir are required");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error, " + e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        Path localDir = Paths.get(dir).toAbsolutePath().normalize();
+        if (!Files.isDirectory(localDir) && !localDir.toFile().mkdirs()) {
+            System.err.println("Error, couldn't create " + localDir);
+            System.exit(2);
+            return;
+        }
+        InetSocketAddress server = host != null ? new InetSocketAddress(host, port) : localServer(port);
+        File stateFile = new File(state != null ? state : "boxer-" + username + ".state");
+        SyncAgent agent = new SyncAgent(server, username, localDir, stateFile);
+
+        if (once) {
+            System.exit(agent.syncOnce() ? 0 : 1);
+            return;
+        }
+
+        // stopped properly on SIGTERM as well
+        Thread main = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            agent.stop();
+
+            // wakes it up if it waits to log in again
+            main.interrupt();
+            try {
+                main.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException ignored) {}
+        }, "boxer-agent-shutdown"));
+        agent.run();
+    }
+
+    /**
+     * Local server, the server on this machine.
+     *
+     * @param port the port
+     * @return the address
+     */
+    private static InetSocketAddress localServer(int port) {
+        try {
+            return new InetSocketAddress(InetAddress.getLocalHost(), port);
+        } catch (UnknownHostException e) {
+            return new InetSocketAddress("localhost", port);
+        }
+    }
+
+    /**
+     * Sync once.
+     *
+     * @return true if synced
+     */
+    private boolean syncOnce() {
+        BoxerClient session = new BoxerClient(server, username, localDir, stateFile, new AgentListener(null));
+        try {
+            session.connect().thenCompose(ignored -> session.sync()).get();
+            LOGGER.info("synced " + localDir + " as " + username);
+            return true;
+        } catch (ExecutionException e) {
+            LOGGER.severe("couldn't sync: " + e.getCause().getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Run sessions until stopped.
+     */
+    private void run() {
+        long delay = 1;
+        while (!stopping) {
+            CountDownLatch ended = new CountDownLatch(1);
+            BoxerClient session = new BoxerClient(server, username, localDir, stateFile, new AgentListener(ended));
+            client = session;
+            try {
+                session.connect().thenCompose(ignored -> session.sync()).get();
+                session.watch();
+                LOGGER.info("syncing " + localDir + " as " + username);
+                delay = 1;
+
+                // until the session ends, on its own or by stop
+                ended.await();
+            } catch (ExecutionException e) {
+                LOGGER.warning("couldn't log in: " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopping = true;
+            } finally {
+                client = null;
+                session.close();
+            }
+            if (stopping) {
+                break;
+            }
+
+            // the server may be restarting, don't hammer it
+            LOGGER.info("logging in again in " + delay + " s");
+            try {
+                TimeUnit.SECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                break;
+            }
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+        }
+        LOGGER.info("stopped");
+    }
+
+    /**
+     * Stop, ends the session running.
+     */
+    private void stop() {
+        stopping = true;
+        BoxerClient session = client;
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * Port of a value.
+     *
+     * @param value the value
+     * @return the port
+     */
+    private static int portOf(String value) {
+        try {
+            int port = Integer.parseInt(value.trim());
+            if (port > 0 && port < 65536) {
+                return port;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("not a port: " + value);
+    }
+
+    /**
+     * The type Agent listener, logs what the client tells.
+     */
+    private static final class AgentListener implements ClientListener {
+        /**
+         * The Ended latch, counted down once the session is over, null if nobody waits for it.
+         */
+        private final CountDownLatch ended;
+
+        /**
+         * Instantiates a new Agent listener.
+         *
+         * @param ended the ended latch
+         */
+        AgentListener(CountDownLatch ended) {
+            this.ended = ended;
+        }
+
+        @Override
+        public void onLog(String line) {
+            LOGGER.info(line);
+        }
+
+        @Override
+        public void onError(String message) {
+            LOGGER.warning(message);
+        }
+
+        @Override
+        public void onDisconnected(String reason) {
+            if (reason != null) {
+                LOGGER.warning("disconnected, " + reason);
+            }
+            if (ended != null) {
+                ended.countDown();
+            }
+        }
+    }
+}
@@ -1,14 +1,27 @@
 package com.boxer.client;
 
 import com.boxer.ThreadManager;
+import com.boxer.protocol.Protocol;
 import javafx.scene.control.Alert;
 
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.List;
+import java.util.logging.Logger;
 
 /**
  * The type User interface manager.
  */
 public class UserInterfaceManager {
+    /**
+     * The constant LOGGER.
+     */
+    private static final Logger LOGGER = Logger.getLogger(UserInterfaceManager.class.getName());
     /**
      * The constant INSTANCE.
      */
@@ -75,10 +88,94 @@ public class UserInterfaceManager {
     }
 
     /**
-     * Display file tree.
+     * Apply user changes.
+     *
+     * @param joined the users who joined
+     * @param left   the users who left
+     */
+    public void applyUserChanges(final List<String> joined, final List<String> left) {
+        ThreadManager.runOnUiThread(() -> mainController.applyUserChanges(joined, left));
+    }
+
+    /**
+     * Display file tree of the whole local directory. Reads the disk, so never called on the UI thread.
      */
     public void displayFileTree() {
-        ThreadManager.runOnUiThread(() -> mainController.displayFileTree());
+        Path localDir = Paths.get(DataManager.getInstance().getLocalDir());
+        FileTreeModel fileTree = mainController.getFileTree();
+        fileTree.post("", FileTreeModel.Kind.REFRESH);
+        postTree(fileTree, localDir, localDir);
+        fileTree.post("", FileTreeModel.Kind.REFRESHED);
+    }
+
+    /**
+     * Display file tree as last synced, before the disk was read.
+     *
+     * @param paths the paths of the files synced
+     */
+    public void displayFileTree(List<String> paths) {
+        FileTreeModel fileTree = mainController.getFileTree();
+        fileTree.post("", FileTreeModel.Kind.REFRESH);
+        for (String path : paths) {
+            fileTree.post(path, FileTreeModel.Kind.FILE);
+        }
+        fileTree.post("", FileTreeModel.Kind.REFRESHED);
+    }
+
+    /**
+     * File tree changed, a file or directory was created, modified or deleted. Reads the disk, so never called on the
+     * UI thread.
+     *
+     * @param file the file or directory
+     */
+    public void fileTreeChanged(Path file) {
+        Path localDir = Paths.get(DataManager.getInstance().getLocalDir());
+        if (!file.startsWith(localDir) || file.equals(localDir)) {
+            return;
+        }
+        FileTreeModel fileTree = mainController.getFileTree();
+        if (Files.isDirectory(file)) {
+            // created with its contents, by a move or a copy
+            postTree(fileTree, localDir, file);
+        } else if (Files.exists(file)) {
+            fileTree.post(Protocol.toWirePath(localDir, file), FileTreeModel.Kind.FILE);
+        } else {
+            fileTree.post(Protocol.toWirePath(localDir, file), FileTreeModel.Kind.DELETED);
+        }
+    }
+
+    /**
+     * Post directory with everything below it.
+     *
+     * @param fileTree the file tree
+     * @param localDir the local dir
+     * @param dir      the directory
+     */
+    private static void postTree(FileTreeModel fileTree, Path localDir, Path dir) {
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) {
+                    if (!path.equals(localDir)) {
+                        fileTree.post(Protocol.toWirePath(localDir, path), FileTreeModel.Kind.DIRECTORY);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    fileTree.post(Protocol.toWirePath(localDir, path), FileTreeModel.Kind.FILE);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.info("couldn't list " + dir + ": " + e.getMessage());
+        }
     }
 
     /**
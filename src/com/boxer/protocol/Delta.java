@@ -0,0 +1,578 @@
+package com.boxer.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The type Delta.
+ * <p>
+ * Rsync style delta of a file against an older copy the peer holds. The peer describes its copy by a
+ * {@link Signature}, a weak rolling checksum and a strong hash of every block. The sender slides a window over its
+ * file one byte at a time, rolling the weak checksum along, and sends references to the blocks it finds and the bytes
+ * in between as literals. The result is checked against a SHA-256 hash of the whole file, so a mismatch of the
+ * truncated block hashes only costs a full upload.
+ */
+public final class Delta {
+    /**
+     * The constant MAX_BLOCKS, so a signature fits a frame.
+     */
+    public static final int MAX_BLOCKS = (Protocol.MAX_PAYLOAD - 64) / 12;
+
+    /**
+     * The constant MIN_BLOCK.
+     */
+    private static final int MIN_BLOCK = 2048;
+    /**
+     * The constant CHUNK, bytes read or written at once.
+     */
+    private static final int CHUNK = 64 * 1024;
+    /**
+     * The constant OP_END.
+     */
+    private static final int OP_END = 0;
+    /**
+     * The constant OP_COPY, followed by the first block and the number of blocks.
+     */
+    private static final int OP_COPY = 1;
+    /**
+     * The constant OP_LITERAL, followed by the length and the bytes.
+     */
+    private static final int OP_LITERAL = 2;
+
+    /**
+     * Instantiates a new Delta.
+     */
+    private Delta() {
+    }
+
+    /**
+     * Block size for a file, about the square root of its length like rsync picks.
+     *
+     * @param length the file length
+     * @return the block size
+     */
+    public static int blockSize(long length) {
+        long size = Math.max(MIN_BLOCK, ((long) Math.sqrt(length) + 1023) / 1024 * 1024);
+        while (length / size >= MAX_BLOCKS) {
+            size *= 2;
+        }
+        return (int) size;
+    }
+
+    /**
+     * Diff a file against the signature of the peer copy.
+     *
+     * @param source the file
+     * @param basis  the signature of the peer copy
+     * @param out    the stream the delta goes to
+     * @return the SHA-256 hash of the file
+     * @throws IOException the io exception
+     */
+    public static byte[] diff(File source, Signature basis, OutputStream out) throws IOException {
+        int blockSize = basis.blockSize;
+        MessageDigest whole = digest("SHA-256");
+        MessageDigest strong = digest("MD5");
+        Encoder encoder = new Encoder(new DataOutputStream(new BufferedOutputStream(out, CHUNK)));
+        try (InputStream in = new FileInputStream(source)) {
+            byte[] buffer = new byte[2 * blockSize + CHUNK];
+            // window at pos, bytes from literal up to it didn't match any block
+            int pos = 0;
+            int end = 0;
+            int literal = 0;
+            boolean eof = false;
+            boolean rolled = false;
+            int a = 0;
+            int b = 0;
+            while (true) {
+                if (end - pos <= blockSize && !eof) {
+                    // keep the window, the literal bytes before it go out now
+                    encoder.literal(buffer, literal, pos - literal);
+                    System.arraycopy(buffer, pos, buffer, 0, end - pos);
+                    end -= pos;
+                    pos = 0;
+                    literal = 0;
+                    while (end < buffer.length) {
+                        int read = in.read(buffer, end, buffer.length - end);
+                        if (read < 0) {
+                            eof = true;
+                            break;
+                        }
+                        whole.update(buffer, end, read);
+                        end += read;
+                    }
+                    continue;
+                }
+                if (end - pos < blockSize) {
+                    break;
+                }
+
+                if (!rolled) {
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < blockSize; i++) {
+                        int value = buffer[pos + i] & 0xFF;
+                        a += value;
+                        b += (blockSize - i) * value;
+                    }
+                    rolled = true;
+                }
+                int block = basis.match(checksum(a, b), buffer, pos, strong, encoder.expected());
+                if (block >= 0) {
+                    encoder.literal(buffer, literal, pos - literal);
+                    encoder.copy(block);
+                    pos += blockSize;
+                    literal = pos;
+                    rolled = false;
+                } else if (pos + blockSize < end) {
+                    // slide the window by one byte
+                    int leaving = buffer[pos] & 0xFF;
+                    int entering = buffer[pos + blockSize] & 0xFF;
+                    a += entering - leaving;
+                    b += a - blockSize * leaving;
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            encoder.literal(buffer, literal, end - literal);
+        }
+        encoder.finish();
+        return whole.digest();
+    }
+
+    /**
+     * Patch the peer copy with a delta.
+     *
+     * @param basis     the copy the delta was made against
+     * @param blockSize the block size of its signature
+     * @param delta     the delta
+     * @param target    the stream the patched file goes to
+     * @return the SHA-256 hash of the patched file
+     * @throws IOException the io exception
+     */
+    public static byte[] patch(File basis, int blockSize, InputStream delta, OutputStream target) throws IOException {
+        MessageDigest whole = digest("SHA-256");
+        DataInputStream ops = new DataInputStream(new BufferedInputStream(delta, CHUNK));
+        byte[] buffer = new byte[CHUNK];
+        try (RandomAccessFile base = new RandomAccessFile(basis, "r")) {
+            long baseLength = base.length();
+            while (true) {
+                int op = ops.readByte();
+                if (op == OP_END) {
+                    return whole.digest();
+                }
+                if (op == OP_COPY) {
+                    long offset = (long) ops.readInt() * blockSize;
+                    int count = ops.readInt();
+                    if (offset < 0 || count <= 0 || offset >= baseLength) {
+                        throw new ProtocolException("delta refers to blocks outside of " + basis.getName());
+                    }
+                    long left = Math.min((long) count * blockSize, baseLength - offset);
+                    base.seek(offset);
+                    while (left > 0) {
+                        int read = base.read(buffer, 0, (int) Math.min(buffer.length, left));
+                        if (read < 0) {
+                            throw new EOFException(basis.getName() + " shrank while patching");
+                        }
+                        target.write(buffer, 0, read);
+                        whole.update(buffer, 0, read);
+                        left -= read;
+                    }
+                } else if (op == OP_LITERAL) {
+                    int left = ops.readInt();
+                    if (left < 0) {
+                        throw new ProtocolException("invalid literal length " + left);
+                    }
+                    while (left > 0) {
+                        int read = ops.read(buffer, 0, Math.min(buffer.length, left));
+                        if (read < 0) {
+                            throw new EOFException("delta ended inside a literal");
+                        }
+                        target.write(buffer, 0, read);
+                        whole.update(buffer, 0, read);
+                        left -= read;
+                    }
+                } else {
+                    throw new ProtocolException("unknown delta op " + op);
+                }
+            }
+        }
+    }
+
+    /**
+     * Weak checksum from its two halves.
+     *
+     * @param a the sum of the bytes
+     * @param b the sum of the bytes weighted by their distance to the window end
+     * @return the checksum
+     */
+    private static int checksum(int a, int b) {
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * Strong hash of a block, the first 8 bytes of its MD5.
+     *
+     * @param digest the digest
+     * @param buffer the buffer
+     * @param offset the block offset
+     * @param length the block length
+     * @return the hash
+     */
+    private static long strong(MessageDigest digest, byte[] buffer, int offset, int length) {
+        digest.update(buffer, offset, length);
+        byte[] hash = digest.digest();
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | (hash[i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Digest.
+     *
+     * @param algorithm the algorithm
+     * @return the message digest
+     */
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The type Signature, checksums of the blocks of a file.
+     */
+    public static final class Signature {
+        /**
+         * The File length.
+         */
+        private final long length;
+        /**
+         * The Block size.
+         */
+        private final int blockSize;
+        /**
+         * The Weak checksums.
+         */
+        private final int[] weak;
+        /**
+         * The Strong hashes.
+         */
+        private final long[] strong;
+        /**
+         * The Index heads by weak checksum, block + 1 or 0, built on first match.
+         */
+        private int[] heads;
+        /**
+         * The Next block of the same index slot, block + 1 or 0.
+         */
+        private int[] next;
+
+        /**
+         * Instantiates a new Signature.
+         *
+         * @param length    the length
+         * @param blockSize the block size
+         * @param weak      the weak checksums
+         * @param strong    the strong hashes
+         */
+        private Signature(long length, int blockSize, int[] weak, long[] strong) {
+            this.length = length;
+            this.blockSize = blockSize;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        /**
+         * Compute signature of a file.
+         *
+         * @param file the file
+         * @return the signature
+         * @throws IOException the io exception
+         */
+        public static Signature compute(File file) throws IOException {
+            int blockSize = blockSize(file.length());
+            int count = (int) ((file.length() + blockSize - 1) / blockSize);
+            int[] weak = new int[count];
+            long[] strong = new long[count];
+            MessageDigest digest = digest("MD5");
+            byte[] block = new byte[blockSize];
+            long length = 0;
+            int blocks = 0;
+            try (InputStream in = new FileInputStream(file)) {
+                while (blocks < count) {
+                    int filled = 0;
+                    int read;
+                    while (filled < blockSize && (read = in.read(block, filled, blockSize - filled)) > 0) {
+                        filled += read;
+                    }
+                    if (filled == 0) {
+                        break;
+                    }
+                    int a = 0;
+                    int b = 0;
+                    for (int i = 0; i < filled; i++) {
+                        int value = block[i] & 0xFF;
+                        a += value;
+                        b += (filled - i) * value;
+                    }
+                    weak[blocks] = checksum(a, b);
+                    strong[blocks] = strong(digest, block, 0, filled);
+                    length += filled;
+                    blocks++;
+                    if (filled < blockSize) {
+                        break;
+                    }
+                }
+            }
+            if (blocks < count) {
+                // shrank while reading
+                weak = Arrays.copyOf(weak, blocks);
+                strong = Arrays.copyOf(strong, blocks);
+            }
+            return new Signature(length, blockSize, weak, strong);
+        }
+
+        /**
+         * Read signature.
+         *
+         * @param payload the payload
+         * @return the signature
+         * @throws ProtocolException the protocol exception
+         */
+        public static Signature read(PayloadReader payload) throws ProtocolException {
+            long length = payload.readLong();
+            int blockSize = payload.readInt();
+            int count = payload.readInt();
+            if (length < 0 || blockSize <= 0 || count < 0 || count > MAX_BLOCKS
+                    || count != (length + blockSize - 1) / blockSize) {
+                throw new ProtocolException("invalid signature of " + count + " blocks of " + blockSize + " bytes");
+            }
+            int[] weak = new int[count];
+            long[] strong = new long[count];
+            for (int i = 0; i < count; i++) {
+                weak[i] = payload.readInt();
+                strong[i] = payload.readLong();
+            }
+            return new Signature(length, blockSize, weak, strong);
+        }
+
+        /**
+         * Write signature.
+         *
+         * @param payload the payload
+         * @return the payload
+         */
+        public PayloadWriter write(PayloadWriter payload) {
+            payload.writeLong(length).writeInt(blockSize).writeInt(weak.length);
+            for (int i = 0; i < weak.length; i++) {
+                payload.writeInt(weak[i]).writeLong(strong[i]);
+            }
+            return payload;
+        }
+
+        /**
+         * Gets length.
+         *
+         * @return the length of the file
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Gets block size.
+         *
+         * @return the block size
+         */
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        /**
+         * Match window against the blocks.
+         *
+         * @param checksum the weak checksum of the window
+         * @param buffer   the buffer
+         * @param offset   the window offset
+         * @param digest   the strong digest
+         * @param expected the block following the last match, tried first, or -1
+         * @return the matching block or -1 if there is none
+         */
+        private int match(int checksum, byte[] buffer, int offset, MessageDigest digest, int expected) {
+            if (heads == null) {
+                index();
+            }
+            boolean hashed = false;
+            long hash = 0;
+            if (expected >= 0 && expected < weak.length && weak[expected] == checksum && isFull(expected)) {
+                hash = strong(digest, buffer, offset, blockSize);
+                hashed = true;
+                if (hash == strong[expected]) {
+                    return expected;
+                }
+            }
+            for (int block = heads[slot(checksum)] - 1; block >= 0; block = next[block] - 1) {
+                if (weak[block] != checksum) {
+                    continue;
+                }
+                if (!hashed) {
+                    hash = strong(digest, buffer, offset, blockSize);
+                    hashed = true;
+                }
+                if (hash == strong[block]) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Index full blocks by weak checksum, a short last block never matches a window.
+         */
+        private void index() {
+            int size = Integer.highestOneBit(Math.max(16, weak.length * 2 - 1)) << 1;
+            heads = new int[size];
+            next = new int[weak.length];
+            for (int block = weak.length - 1; block >= 0; block--) {
+                if (isFull(block)) {
+                    int slot = slot(weak[block]);
+                    next[block] = heads[slot];
+                    heads[slot] = block + 1;
+                }
+            }
+        }
+
+        /**
+         * Is full block.
+         *
+         * @param block the block
+         * @return the boolean
+         */
+        private boolean isFull(int block) {
+            return (long) (block + 1) * blockSize <= length;
+        }
+
+        /**
+         * Index slot of a checksum.
+         *
+         * @param checksum the checksum
+         * @return the slot
+         */
+        private int slot(int checksum) {
+            return (checksum ^ checksum >>> 16) & (heads.length - 1);
+        }
+    }
+
+    /**
+     * The type Encoder, merging references to consecutive blocks.
+     */
+    private static final class Encoder {
+        /**
+         * The Ops.
+         */
+        private final DataOutputStream ops;
+        /**
+         * The First block of the pending run or -1.
+         */
+        private int runStart = -1;
+        /**
+         * The Blocks of the pending run.
+         */
+        private int runCount;
+
+        /**
+         * Instantiates a new Encoder.
+         *
+         * @param ops the ops
+         */
+        Encoder(DataOutputStream ops) {
+            this.ops = ops;
+        }
+
+        /**
+         * Expected block, the one continuing the pending run.
+         *
+         * @return the block or -1
+         */
+        int expected() {
+            return runStart >= 0 ? runStart + runCount : -1;
+        }
+
+        /**
+         * Copy block.
+         *
+         * @param block the block
+         * @throws IOException the io exception
+         */
+        void copy(int block) throws IOException {
+            if (runStart >= 0 && block == runStart + runCount) {
+                runCount++;
+                return;
+            }
+            flushRun();
+            runStart = block;
+            runCount = 1;
+        }
+
+        /**
+         * Literal bytes.
+         *
+         * @param buffer the buffer
+         * @param offset the offset
+         * @param length the length
+         * @throws IOException the io exception
+         */
+        void literal(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            flushRun();
+            ops.writeByte(OP_LITERAL);
+            ops.writeInt(length);
+            ops.write(buffer, offset, length);
+        }
+
+        /**
+         * Finish delta.
+         *
+         * @throws IOException the io exception
+         */
+        void finish() throws IOException {
+            flushRun();
+            ops.writeByte(OP_END);
+            ops.flush();
+        }
+
+        /**
+         * Flush pending run.
+         *
+         * @throws IOException the io exception
+         */
+        private void flushRun() throws IOException {
+            if (runStart < 0) {
+                return;
+            }
+            ops.writeByte(OP_COPY);
+            ops.writeInt(runStart);
+            ops.writeInt(runCount);
+            runStart = -1;
+        }
+    }
+}
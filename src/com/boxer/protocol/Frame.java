@@ -0,0 +1,260 @@
+package com.boxer.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The type Frame.
+ * <p>
+ * On the wire: type (byte), flags (byte), request id (int), payload length (int), payload. Frames flagged with
+ * {@link #FLAG_BODY} start their payload with the body length and are followed by that many raw body bytes.
+ */
+public class Frame {
+    /**
+     * The constant FLAG_BODY.
+     */
+    public static final int FLAG_BODY = 1;
+
+    /**
+     * The constant EMPTY.
+     */
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * The Type code.
+     */
+    private final int typeCode;
+    /**
+     * The Flags.
+     */
+    private final int flags;
+    /**
+     * The Request id.
+     */
+    private final int requestId;
+    /**
+     * The Payload.
+     */
+    private final byte[] payload;
+
+    /**
+     * Instantiates a new Frame.
+     *
+     * @param type      the type
+     * @param requestId the request id
+     */
+    public Frame(FrameType type, int requestId) {
+        this(type.getCode(), 0, requestId, EMPTY);
+    }
+
+    /**
+     * Instantiates a new Frame.
+     *
+     * @param type      the type
+     * @param requestId the request id
+     * @param payload   the payload
+     */
+    public Frame(FrameType type, int requestId, PayloadWriter payload) {
+        this(type.getCode(), 0, requestId, payload.toByteArray());
+    }
+
+    /**
+     * Instantiates a new Frame.
+     *
+     * @param type      the type
+     * @param flags     the flags
+     * @param requestId the request id
+     * @param payload   the payload
+     */
+    public Frame(FrameType type, int flags, int requestId, PayloadWriter payload) {
+        this(type.getCode(), flags, requestId, payload.toByteArray());
+    }
+
+    /**
+     * Instantiates a new Frame.
+     *
+     * @param typeCode  the type code
+     * @param flags     the flags
+     * @param requestId the request id
+     * @param payload   the payload
+     */
+    Frame(int typeCode, int flags, int requestId, byte[] payload) {
+        this.typeCode = typeCode;
+        this.flags = flags;
+        this.requestId = requestId;
+        this.payload = payload;
+    }
+
+    /**
+     * Gets type.
+     *
+     * @return the type or null if unknown to this build
+     */
+    public FrameType getType() {
+        return FrameType.fromCode(typeCode);
+    }
+
+    /**
+     * Gets type code.
+     *
+     * @return the type code
+     */
+    public int getTypeCode() {
+        return typeCode;
+    }
+
+    /**
+     * Gets flags.
+     *
+     * @return the flags
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * Gets request id.
+     *
+     * @return the request id
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Has body boolean.
+     *
+     * @return the boolean
+     */
+    public boolean hasBody() {
+        return (flags & FLAG_BODY) != 0;
+    }
+
+    /**
+     * Gets body length.
+     *
+     * @return the body length, 0 for frames without body
+     * @throws ProtocolException the protocol exception
+     */
+    public long getBodyLength() throws ProtocolException {
+        if (!hasBody()) {
+            return 0;
+        }
+        long length = payload.length >= 8 ? ByteBuffer.wrap(payload).getLong() : -1;
+        if (length < 0) {
+            throw new ProtocolException("invalid body length of " + this);
+        }
+        return length;
+    }
+
+    /**
+     * Gets payload length.
+     *
+     * @return the payload length
+     */
+    public int getPayloadLength() {
+        return payload.length;
+    }
+
+    /**
+     * Payload reader.
+     *
+     * @return the payload reader
+     */
+    public PayloadReader payload() {
+        return new PayloadReader(payload);
+    }
+
+    /**
+     * Encode frame header and payload.
+     *
+     * @return the buffer ready to be written
+     */
+    public ByteBuffer encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(Protocol.HEADER_SIZE + payload.length);
+        writeHeader(buffer);
+        buffer.put(payload);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Write header.
+     *
+     * @param buffer the buffer
+     */
+    void writeHeader(ByteBuffer buffer) {
+        buffer.put((byte) typeCode);
+        buffer.put((byte) flags);
+        buffer.putInt(requestId);
+        buffer.putInt(payload.length);
+    }
+
+    /**
+     * Gets payload bytes.
+     *
+     * @return the payload bytes
+     */
+    byte[] getPayloadBytes() {
+        return payload;
+    }
+
+    /**
+     * File frame announcing a body.
+     *
+     * @param requestId the request id
+     * @param path      the path announced to the peer
+     * @param length    the body length
+     * @param modified  the modification time in milliseconds, kept by the peer so manifests match
+     * @return the frame
+     */
+    public static Frame file(int requestId, String path, long length, long modified) {
+        return new Frame(FrameType.FILE, FLAG_BODY, requestId, new PayloadWriter()
+                .writeLong(length)
+                .writeString(path)
+                .writeLong(modified));
+    }
+
+    /**
+     * Decode frame from a buffer holding at least its header.
+     *
+     * @param buffer the buffer positioned at the frame start
+     * @return the frame or null if the buffer doesn't hold the whole frame yet, the position is left untouched then
+     * @throws ProtocolException the protocol exception
+     */
+    public static Frame decode(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < Protocol.HEADER_SIZE) {
+            return null;
+        }
+        int start = buffer.position();
+        int length = buffer.getInt(start + 6);
+        if (length < 0 || length > Protocol.MAX_PAYLOAD) {
+            throw new ProtocolException("invalid payload length " + length);
+        }
+        if (buffer.remaining() < Protocol.HEADER_SIZE + length) {
+            return null;
+        }
+        int typeCode = buffer.get() & 0xFF;
+        int flags = buffer.get() & 0xFF;
+        int requestId = buffer.getInt();
+        buffer.getInt();
+        byte[] payload = new byte[length];
+        buffer.get(payload);
+        return new Frame(typeCode, flags, requestId, payload);
+    }
+
+    /**
+     * Frame size needed to decode the frame starting at the buffer position.
+     *
+     * @param buffer the buffer holding at least the header
+     * @return the frame size
+     */
+    public static int frameSize(ByteBuffer buffer) {
+        return Protocol.HEADER_SIZE + buffer.getInt(buffer.position() + 6);
+    }
+
+    @Override
+    public String toString() {
+        FrameType type = getType();
+        return (type != null ? type.name() : "UNKNOWN(" + typeCode + ")") + "#" + requestId;
+    }
+}
@@ -0,0 +1,191 @@
+package com.boxer.protocol;
+
+import com.boxer.FileTransfer;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The type Frame reader.
+ * <p>
+ * Reads ahead into its own buffer, so small frames cost one read call for several of them. File bodies are taken
+ * from the buffer first and the rest straight from the socket channel.
+ */
+public class FrameReader {
+    /**
+     * The constant BUFFER_SIZE.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The Buffer.
+     */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    /**
+     * The Input.
+     */
+    private final InputStream input;
+    /**
+     * The Socket.
+     */
+    private final Socket socket;
+    /**
+     * The Position of the next unread byte.
+     */
+    private int position;
+    /**
+     * The Limit of the read bytes.
+     */
+    private int limit;
+    /**
+     * The Body bytes of the last frame not consumed yet, -1 if a body read failed halfway and it's unknown.
+     */
+    private long bodyLeft;
+
+    /**
+     * Instantiates a new Frame reader.
+     *
+     * @param input  the unbuffered input stream of the socket
+     * @param socket the socket
+     */
+    public FrameReader(InputStream input, Socket socket) {
+        this.input = input;
+        this.socket = socket;
+    }
+
+    /**
+     * Read frame, blocks until a whole frame arrived. A frame with body must have its body consumed with
+     * {@link #readBody(File, long)} or {@link #skipBody(long)} before the next frame is read.
+     *
+     * @return the frame
+     * @throws IOException the io exception
+     */
+    public Frame readFrame() throws IOException {
+        fill(Protocol.HEADER_SIZE);
+        ByteBuffer header = ByteBuffer.wrap(buffer, position, Protocol.HEADER_SIZE);
+        int typeCode = header.get() & 0xFF;
+        int flags = header.get() & 0xFF;
+        int requestId = header.getInt();
+        int length = header.getInt();
+        if (length < 0 || length > Protocol.MAX_PAYLOAD) {
+            throw new ProtocolException("invalid payload length " + length);
+        }
+        position += Protocol.HEADER_SIZE;
+
+        byte[] payload = new byte[length];
+        int buffered = Math.min(length, limit - position);
+        System.arraycopy(buffer, position, payload, 0, buffered);
+        position += buffered;
+        // large payloads are read straight into place
+        readFully(payload, buffered, length - buffered);
+        Frame frame = new Frame(typeCode, flags, requestId, payload);
+        bodyLeft = frame.getBodyLength();
+        return frame;
+    }
+
+    /**
+     * Read body into a file. The body is written next to it, sized up front, and replaces the file once complete.
+     *
+     * @param file   the file
+     * @param length the body length
+     * @throws IOException the io exception
+     */
+    public void readBody(File file, long length) throws IOException {
+        Path part = FileTransfer.partOf(file);
+        try {
+            try (RandomAccessFile target = new RandomAccessFile(part.toFile(), "rw")) {
+                target.setLength(length);
+
+                // from here on a failure leaves the stream somewhere in the body
+                bodyLeft = -1;
+                int buffered = (int) Math.min(length, limit - position);
+                target.write(buffer, position, buffered);
+                position += buffered;
+                FileTransfer.receive(target, buffered, length - buffered, input, socket);
+                bodyLeft = 0;
+            }
+            FileTransfer.install(part, file);
+        } finally {
+            Files.deleteIfExists(part);
+        }
+    }
+
+    /**
+     * Skip body that has nowhere to go.
+     *
+     * @param length the body length
+     * @throws IOException the io exception
+     */
+    public void skipBody(long length) throws IOException {
+        while (length > 0) {
+            if (position == limit) {
+                fill(1);
+            }
+            int count = (int) Math.min(length, limit - position);
+            position += count;
+            length -= count;
+            if (bodyLeft > 0) {
+                bodyLeft = Math.max(0, bodyLeft - count);
+            }
+        }
+    }
+
+    /**
+     * Skip what is left of the body of the last frame, after whoever read it gave up on it.
+     *
+     * @throws IOException if the body was read partly and the next frame can't be found anymore
+     */
+    public void skipRestOfBody() throws IOException {
+        if (bodyLeft < 0) {
+            throw new ProtocolException("lost track of the stream in a failed body");
+        }
+        skipBody(bodyLeft);
+    }
+
+    /**
+     * Fill buffer until it holds the given number of unread bytes.
+     *
+     * @param count the count
+     * @throws IOException the io exception
+     */
+    private void fill(int count) throws IOException {
+        if (buffer.length - position < count) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        while (limit - position < count) {
+            int read = input.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                throw new EOFException("connection closed");
+            }
+            limit += read;
+        }
+    }
+
+    /**
+     * Read fully past the buffer.
+     *
+     * @param target the target
+     * @param offset the offset
+     * @param length the length
+     * @throws IOException the io exception
+     */
+    private void readFully(byte[] target, int offset, int length) throws IOException {
+        while (length > 0) {
+            int read = input.read(target, offset, length);
+            if (read < 0) {
+                throw new EOFException("connection closed");
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.boxer.protocol;
+
+/**
+ * The enum Frame type.
+ */
+public enum FrameType {
+    /**
+     * Login request: version, capabilities, username.
+     */
+    HELLO(1),
+    /**
+     * Login reply: version, capabilities, status, followed by the data channel token when negotiated.
+     */
+    HELLO_ACK(2),
+    /**
+     * Successful reply without content.
+     */
+    OK(3),
+    /**
+     * Failed reply: message.
+     */
+    ERROR(4),
+    /**
+     * Data channel request, first frame of a connection carrying file bodies for a session: token.
+     */
+    ATTACH(5),
+    /**
+     * User list request.
+     */
+    LIST_USERS(10),
+    /**
+     * User list reply: count, usernames.
+     */
+    USER_LIST(11),
+    /**
+     * Presence request: last version seen, 0 if none.
+     */
+    PRESENCE(12),
+    /**
+     * Presence reply: version, snapshot flag, more flag, joined users, left users. See {@link PresenceUpdate}.
+     */
+    PRESENCE_UPDATE(13),
+    /**
+     * File sync request: scope, followed by count and paths for {@link Protocol#SYNC_PATHS}. Replied with a FILE frame
+     * per file and an OK frame at the end.
+     */
+    SYNC(20),
+    /**
+     * Upload request: count, followed by a FILE frame per file. Replied with OK once all of them arrived.
+     */
+    FILES(21),
+    /**
+     * Single file of a batch: length, path, modification time in milliseconds, followed by its body.
+     */
+    FILE(22),
+    /**
+     * Manifest request: path of a directory, "" for the user directory.
+     */
+    MANIFEST(23),
+    /**
+     * Manifest reply: listing of the directory, see {@link Manifest#writeListing(PayloadWriter, Manifest.Node)}.
+     */
+    MANIFEST_LISTING(24),
+    /**
+     * Signature request: path of a file the client changed.
+     */
+    SIGNATURE(25),
+    /**
+     * Signature reply: modification time in milliseconds, then the {@link Delta.Signature} of the server copy.
+     */
+    BLOCK_SIGNATURES(26),
+    /**
+     * Patch request: delta length, path, modification time, length and modification time of the copy the delta was
+     * made against, its block size and the SHA-256 hash of the patched file, followed by the {@link Delta} as body.
+     * Replied with OK once the file was replaced.
+     */
+    PATCH(27),
+    /**
+     * Share request: file name, username.
+     */
+    SHARE(30),
+    /**
+     * Delete request: path.
+     */
+    DELETE(40),
+    /**
+     * Notification the server sends on its own with the push request id: kind, username.
+     */
+    EVENT(50);
+
+    /**
+     * The constant TYPES.
+     */
+    private static final FrameType[] TYPES = new FrameType[256];
+
+    static {
+        for (FrameType type : values()) {
+            TYPES[type.code] = type;
+        }
+    }
+
+    /**
+     * The Code.
+     */
+    private final int code;
+
+    /**
+     * Instantiates a new Frame type.
+     *
+     * @param code the code
+     */
+    FrameType(int code) {
+        this.code = code;
+    }
+
+    /**
+     * Gets code.
+     *
+     * @return the code
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * From code frame type.
+     *
+     * @param code the code
+     * @return the frame type or null if unknown to this build
+     */
+    public static FrameType fromCode(int code) {
+        return TYPES[code & 0xFF];
+    }
+}
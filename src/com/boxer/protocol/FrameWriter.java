@@ -0,0 +1,167 @@
+package com.boxer.protocol;
+
+import com.boxer.FileTransfer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The type Frame writer.
+ * <p>
+ * Frames are coalesced in a buffer and only go out on {@link #flush()} or when a file body follows, so a reply made
+ * of several frames leaves in as few packets as possible. Writes are guarded by a lock, callers writing a batch that
+ * must not be interleaved with other frames hold it with {@link #lock()} for the whole batch.
+ */
+public class FrameWriter {
+    /**
+     * The constant BUFFER_SIZE.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The Lock.
+     */
+    private final Lock lock = new ReentrantLock();
+    /**
+     * The Header.
+     */
+    private final ByteBuffer header = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+    /**
+     * The Output.
+     */
+    private final OutputStream output;
+    /**
+     * The Socket.
+     */
+    private final Socket socket;
+
+    /**
+     * Instantiates a new Frame writer.
+     *
+     * @param output the unbuffered output stream of the socket
+     * @param socket the socket
+     */
+    public FrameWriter(OutputStream output, Socket socket) {
+        this.output = new BufferedOutputStream(output, BUFFER_SIZE);
+        this.socket = socket;
+    }
+
+    /**
+     * Lock the writer for a batch of frames.
+     */
+    public void lock() {
+        lock.lock();
+    }
+
+    /**
+     * Unlock the writer.
+     */
+    public void unlock() {
+        lock.unlock();
+    }
+
+    /**
+     * Write magic that opens a framed connection.
+     *
+     * @throws IOException the io exception
+     */
+    public void writeMagic() throws IOException {
+        lock.lock();
+        try {
+            output.write(Protocol.MAGIC >>> 8);
+            output.write(Protocol.MAGIC & 0xFF);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write frame, it's buffered until the next flush.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    public void write(Frame frame) throws IOException {
+        lock.lock();
+        try {
+            header.clear();
+            frame.writeHeader(header);
+            output.write(header.array(), 0, Protocol.HEADER_SIZE);
+            output.write(frame.getPayloadBytes());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write file frame followed by the file body.
+     *
+     * @param requestId the request id
+     * @param path      the path announced to the peer
+     * @param file      the file
+     * @throws IOException the io exception
+     */
+    public void writeFile(int requestId, String path, File file) throws IOException {
+        lock.lock();
+        try {
+            long length = file.length();
+            write(Frame.file(requestId, path, length, file.lastModified()));
+            FileTransfer.sendFile(file, length, output, socket);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write frame with body followed by the body.
+     *
+     * @param frame the frame announcing the body length
+     * @param body  the file holding the body
+     * @throws IOException the io exception
+     */
+    public void writeBody(Frame frame, File body) throws IOException {
+        lock.lock();
+        try {
+            write(frame);
+            FileTransfer.sendFile(body, frame.getBodyLength(), output, socket);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write frame and flush.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    public void send(Frame frame) throws IOException {
+        lock.lock();
+        try {
+            write(frame);
+            output.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flush buffered frames.
+     *
+     * @throws IOException the io exception
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            output.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package com.boxer.protocol;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The type Manifest.
+ * <p>
+ * Hash tree of a directory. Files are compared by size and modification time in seconds, the way rsync does by
+ * default, so building it only reads directory entries, never file contents. A directory hash covers everything below
+ * it, so two trees whose roots match are equal and a sync only descends into subtrees whose hashes differ.
+ * <p>
+ * Only files are synced, so directories without any are left out, as are the part and link files of writes in
+ * progress. A tree built from an index of the files instead of the disk hashes alike.
+ */
+public final class Manifest {
+    /**
+     * The constant EMPTY, hash of an empty directory.
+     */
+    private static final byte[] EMPTY = new Node("", new TreeMap<>()).getHash();
+
+    /**
+     * Instantiates a new Manifest.
+     */
+    private Manifest() {
+    }
+
+    /**
+     * Scan directory.
+     *
+     * @param dir the directory
+     * @return the root node, named ""
+     * @throws IOException the io exception
+     */
+    public static Node scan(Path dir) throws IOException {
+        final Deque<Map<String, Node>> open = new ArrayDeque<>();
+        final Node[] root = new Node[1];
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs) {
+                open.push(new TreeMap<>());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                String name = path.getFileName().toString();
+                if (attrs.isRegularFile() && !isTemporary(name)) {
+                    open.peek().put(name, new Node(name, attrs.size(), toSeconds(attrs.lastModifiedTime().toMillis())));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path path, IOException e) {
+                // unreadable entries are left out, the peer keeps its copy
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path path, IOException e) {
+                Node node = new Node(path.equals(dir) ? "" : path.getFileName().toString(), open.pop());
+                if (open.isEmpty()) {
+                    root[0] = node;
+                } else if (!node.children.isEmpty()) {
+                    open.peek().put(node.getName(), node);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return root[0] != null ? root[0] : new Node("", new TreeMap<>());
+    }
+
+    /**
+     * Is temporary, the name of a part file of a body being written or of a link about to replace a file.
+     *
+     * @param name the file name
+     * @return the boolean
+     */
+    public static boolean isTemporary(String name) {
+        if (!name.startsWith(".")) {
+            return false;
+        }
+        // ".name.link", or ".name.random.part"
+        if (name.endsWith(".link")) {
+            return name.length() > ".link".length() + 1;
+        }
+        return name.endsWith(".part") && name.indexOf('.', 1) < name.length() - ".part".length();
+    }
+
+    /**
+     * To seconds, the precision compared on every file system.
+     *
+     * @param millis the modification time in milliseconds
+     * @return the modification time in seconds
+     */
+    public static long toSeconds(long millis) {
+        return Math.floorDiv(millis, 1000);
+    }
+
+    /**
+     * Write listing of a directory, its hash and its children.
+     *
+     * @param payload the payload
+     * @param dir     the directory or null if there is none
+     * @return the payload
+     */
+    public static PayloadWriter writeListing(PayloadWriter payload, Node dir) {
+        if (dir == null || !dir.isDirectory()) {
+            return payload.writeBytes(EMPTY).writeInt(0);
+        }
+        payload.writeBytes(dir.getHash()).writeInt(dir.getChildren().size());
+        for (Node child : dir.getChildren()) {
+            payload.writeByte(child.isDirectory() ? 1 : 0).writeString(child.getName());
+            if (child.isDirectory()) {
+                payload.writeBytes(child.getHash());
+            } else {
+                payload.writeLong(child.getSize()).writeLong(child.getModified());
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * Read listing of a directory.
+     *
+     * @param payload the payload
+     * @param name    the name of the directory
+     * @return the directory, its child directories come with their hash but without children
+     * @throws ProtocolException the protocol exception
+     */
+    public static Node readListing(PayloadReader payload, String name) throws ProtocolException {
+        byte[] hash = payload.readBytes();
+        int count = payload.readInt();
+        Map<String, Node> children = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            boolean directory = payload.readByte() == 1;
+            String childName = payload.readString();
+            Node child = directory
+                    ? new Node(childName, payload.readBytes())
+                    : new Node(childName, payload.readLong(), payload.readLong());
+            children.put(childName, child);
+        }
+        return new Node(name, hash, children);
+    }
+
+    /**
+     * The type Builder, a tree made from files listed one at a time.
+     */
+    public static final class Builder {
+        /**
+         * The Name.
+         */
+        private final String name;
+        /**
+         * The Files by name.
+         */
+        private final Map<String, Node> files = new TreeMap<>();
+        /**
+         * The Directories by name.
+         */
+        private final Map<String, Builder> dirs = new TreeMap<>();
+
+        /**
+         * Instantiates a new Builder of the root.
+         */
+        public Builder() {
+            this("");
+        }
+
+        /**
+         * Instantiates a new Builder of a directory.
+         *
+         * @param name the name
+         */
+        private Builder(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Add file, temporary ones are left out.
+         *
+         * @param path     the path with '/' separators
+         * @param size     the size
+         * @param modified the modification time in milliseconds
+         * @return the builder
+         */
+        public Builder add(String path, long size, long modified) {
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (!isTemporary(path)) {
+                    files.put(path, new Node(path, size, toSeconds(modified)));
+                }
+            } else {
+                String dir = path.substring(0, slash);
+                dirs.computeIfAbsent(dir, Builder::new).add(path.substring(slash + 1), size, modified);
+            }
+            return this;
+        }
+
+        /**
+         * Build tree.
+         *
+         * @return the node of this directory, named "" for the root
+         */
+        public Node build() {
+            Map<String, Node> children = new TreeMap<>(files);
+            for (Builder dir : dirs.values()) {
+                Node node = dir.build();
+                if (!node.children.isEmpty()) {
+                    children.put(dir.name, node);
+                }
+            }
+            return new Node(name, children);
+        }
+    }
+
+    /**
+     * The type Node, a file or a directory of the tree.
+     */
+    public static final class Node {
+        /**
+         * The Name.
+         */
+        private final String name;
+        /**
+         * The Directory flag.
+         */
+        private final boolean directory;
+        /**
+         * The Size of a file.
+         */
+        private final long size;
+        /**
+         * The Modification time of a file in seconds.
+         */
+        private final long modified;
+        /**
+         * The Hash of a directory.
+         */
+        private final byte[] hash;
+        /**
+         * The Children of a directory by name.
+         */
+        private final Map<String, Node> children;
+
+        /**
+         * Instantiates a new file Node.
+         *
+         * @param name     the name
+         * @param size     the size
+         * @param modified the modification time in seconds
+         */
+        Node(String name, long size, long modified) {
+            this.name = name;
+            this.directory = false;
+            this.size = size;
+            this.modified = modified;
+            this.hash = null;
+            this.children = null;
+        }
+
+        /**
+         * Instantiates a new directory Node, hashing its children.
+         *
+         * @param name     the name
+         * @param children the children by name, sorted
+         */
+        Node(String name, Map<String, Node> children) {
+            this(name, hash(children.values()), children);
+        }
+
+        /**
+         * Instantiates a new directory Node known by its hash only.
+         *
+         * @param name the name
+         * @param hash the hash
+         */
+        Node(String name, byte[] hash) {
+            this(name, hash, null);
+        }
+
+        /**
+         * Instantiates a new directory Node.
+         *
+         * @param name     the name
+         * @param hash     the hash
+         * @param children the children by name or null if unknown
+         */
+        private Node(String name, byte[] hash, Map<String, Node> children) {
+            this.name = name;
+            this.directory = true;
+            this.size = 0;
+            this.modified = 0;
+            this.hash = hash;
+            this.children = children;
+        }
+
+        /**
+         * Gets name.
+         *
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Is directory boolean.
+         *
+         * @return the boolean
+         */
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        /**
+         * Gets size.
+         *
+         * @return the size of a file
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Gets modified.
+         *
+         * @return the modification time of a file in seconds
+         */
+        public long getModified() {
+            return modified;
+        }
+
+        /**
+         * Gets hash.
+         *
+         * @return the hash of a directory
+         */
+        public byte[] getHash() {
+            return hash;
+        }
+
+        /**
+         * Gets children.
+         *
+         * @return the children sorted by name, empty if unknown
+         */
+        public Collection<Node> getChildren() {
+            return children != null ? children.values() : new ArrayList<>();
+        }
+
+        /**
+         * Gets child.
+         *
+         * @param childName the child name
+         * @return the child or null if there is none
+         */
+        public Node getChild(String childName) {
+            return children != null ? children.get(childName) : null;
+        }
+
+        /**
+         * Find node below this directory.
+         *
+         * @param path the path with '/' separators, "" for this directory
+         * @return the node or null if there is none
+         */
+        public Node find(String path) {
+            Node node = this;
+            for (String part : path.split("/")) {
+                if (part.isEmpty()) {
+                    continue;
+                }
+                node = node.getChild(part);
+                if (node == null) {
+                    return null;
+                }
+            }
+            return node;
+        }
+
+        /**
+         * Same as another node, files by size and modification time, directories by hash.
+         *
+         * @param other the other node
+         * @return the boolean
+         */
+        public boolean sameAs(Node other) {
+            if (other == null || directory != other.directory) {
+                return false;
+            }
+            return directory
+                    ? MessageDigest.isEqual(hash, other.hash)
+                    : size == other.size && modified == other.modified;
+        }
+
+        /**
+         * Files below this node.
+         *
+         * @param path the path of this node with '/' separators
+         * @return the paths of every file below, this one if it's a file
+         */
+        public List<String> files(String path) {
+            List<String> files = new ArrayList<>();
+            collect(path, files);
+            return files;
+        }
+
+        /**
+         * Collect files.
+         *
+         * @param path  the path of this node
+         * @param files the list to add them to
+         */
+        private void collect(String path, List<String> files) {
+            if (!directory) {
+                files.add(path);
+                return;
+            }
+            for (Node child : getChildren()) {
+                child.collect(path.isEmpty() ? child.name : path + "/" + child.name, files);
+            }
+        }
+
+        /**
+         * Hash children of a directory.
+         *
+         * @param children the children sorted by name
+         * @return the hash
+         */
+        private static byte[] hash(Collection<Node> children) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            PayloadWriter entry = new PayloadWriter();
+            for (Node child : children) {
+                entry.writeByte(child.directory ? 1 : 0).writeString(child.name);
+                if (child.directory) {
+                    entry.writeBytes(child.hash);
+                } else {
+                    entry.writeLong(child.size).writeLong(child.modified);
+                }
+            }
+            digest.update(entry.toByteArray());
+            return digest.digest();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.boxer.protocol;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The type Payload reader, counterpart of {@link PayloadWriter}.
+ */
+public class PayloadReader {
+    /**
+     * The Buffer.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Instantiates a new Payload reader.
+     *
+     * @param payload the payload
+     */
+    PayloadReader(byte[] payload) {
+        this.buffer = ByteBuffer.wrap(payload);
+    }
+
+    /**
+     * Read byte int.
+     *
+     * @return the int
+     * @throws ProtocolException the protocol exception
+     */
+    public int readByte() throws ProtocolException {
+        try {
+            return buffer.get() & 0xFF;
+        } catch (BufferUnderflowException e) {
+            throw truncated();
+        }
+    }
+
+    /**
+     * Read short int.
+     *
+     * @return the int
+     * @throws ProtocolException the protocol exception
+     */
+    public int readShort() throws ProtocolException {
+        try {
+            return buffer.getShort() & 0xFFFF;
+        } catch (BufferUnderflowException e) {
+            throw truncated();
+        }
+    }
+
+    /**
+     * Read int.
+     *
+     * @return the int
+     * @throws ProtocolException the protocol exception
+     */
+    public int readInt() throws ProtocolException {
+        try {
+            return buffer.getInt();
+        } catch (BufferUnderflowException e) {
+            throw truncated();
+        }
+    }
+
+    /**
+     * Read long.
+     *
+     * @return the long
+     * @throws ProtocolException the protocol exception
+     */
+    public long readLong() throws ProtocolException {
+        try {
+            return buffer.getLong();
+        } catch (BufferUnderflowException e) {
+            throw truncated();
+        }
+    }
+
+    /**
+     * Read bytes prefixed with their count.
+     *
+     * @return the byte [ ]
+     * @throws ProtocolException the protocol exception
+     */
+    public byte[] readBytes() throws ProtocolException {
+        int length = readInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw truncated();
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return value;
+    }
+
+    /**
+     * Read string.
+     *
+     * @return the string
+     * @throws ProtocolException the protocol exception
+     */
+    public String readString() throws ProtocolException {
+        return new String(readBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Has remaining boolean, newer peers may append fields older ones don't know.
+     *
+     * @return the boolean
+     */
+    public boolean hasRemaining() {
+        return buffer.hasRemaining();
+    }
+
+    /**
+     * Truncated protocol exception.
+     *
+     * @return the protocol exception
+     */
+    private static ProtocolException truncated() {
+        return new ProtocolException("truncated payload");
+    }
+}
@@ -0,0 +1,126 @@
+package com.boxer.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The type Payload writer. Strings are written as an int length followed by UTF-8 bytes, so unlike
+ * {@code writeUTF} they aren't limited to 64 KB.
+ */
+public class PayloadWriter {
+    /**
+     * The Bytes.
+     */
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    /**
+     * The Output.
+     */
+    private final DataOutputStream output = new DataOutputStream(bytes);
+
+    /**
+     * Write byte payload writer.
+     *
+     * @param value the value
+     * @return the payload writer
+     */
+    public PayloadWriter writeByte(int value) {
+        try {
+            output.writeByte(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Write short payload writer.
+     *
+     * @param value the value
+     * @return the payload writer
+     */
+    public PayloadWriter writeShort(int value) {
+        try {
+            output.writeShort(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Write int payload writer.
+     *
+     * @param value the value
+     * @return the payload writer
+     */
+    public PayloadWriter writeInt(int value) {
+        try {
+            output.writeInt(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Write long payload writer.
+     *
+     * @param value the value
+     * @return the payload writer
+     */
+    public PayloadWriter writeLong(long value) {
+        try {
+            output.writeLong(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Write bytes payload writer, prefixed with their count.
+     *
+     * @param value the value
+     * @return the payload writer
+     */
+    public PayloadWriter writeBytes(byte[] value) {
+        try {
+            output.writeInt(value.length);
+            output.write(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    /**
+     * Write string payload writer.
+     *
+     * @param value the value
+     * @return the payload writer
+     */
+    public PayloadWriter writeString(String value) {
+        return writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Size of the payload so far.
+     *
+     * @return the size
+     */
+    public int size() {
+        return bytes.size();
+    }
+
+    /**
+     * To byte array.
+     *
+     * @return the byte [ ]
+     */
+    byte[] toByteArray() {
+        return bytes.toByteArray();
+    }
+}
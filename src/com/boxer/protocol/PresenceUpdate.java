@@ -0,0 +1,170 @@
+package com.boxer.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The type Presence update.
+ * <p>
+ * Users who joined and left since the version a client last saw, or every connected user if the client is too far
+ * behind. Snapshots go out in chunks of {@link #CHUNK_SIZE} users, the last one marked as such.
+ */
+public class PresenceUpdate {
+    /**
+     * The constant CHUNK_SIZE, users per frame of a snapshot.
+     */
+    public static final int CHUNK_SIZE = 512;
+
+    /**
+     * The Version.
+     */
+    private final long version;
+    /**
+     * The Snapshot flag.
+     */
+    private final boolean snapshot;
+    /**
+     * The Joined users, every connected user in a snapshot.
+     */
+    private final List<String> joined;
+    /**
+     * The Left users.
+     */
+    private final List<String> left;
+
+    /**
+     * Instantiates a new Presence update.
+     *
+     * @param version  the version
+     * @param snapshot the snapshot flag
+     * @param joined   the joined users
+     * @param left     the left users
+     */
+    public PresenceUpdate(long version, boolean snapshot, List<String> joined, List<String> left) {
+        this.version = version;
+        this.snapshot = snapshot;
+        this.joined = joined;
+        this.left = left;
+    }
+
+    /**
+     * Gets version.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Is snapshot boolean.
+     *
+     * @return true if joined holds every connected user
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Gets joined.
+     *
+     * @return the joined users
+     */
+    public List<String> getJoined() {
+        return joined;
+    }
+
+    /**
+     * Gets left.
+     *
+     * @return the left users
+     */
+    public List<String> getLeft() {
+        return left;
+    }
+
+    /**
+     * To frames.
+     *
+     * @param requestId the request id
+     * @return the frames, a single one unless a large snapshot
+     */
+    public List<Frame> toFrames(int requestId) {
+        List<Frame> frames = new ArrayList<>();
+        int from = 0;
+        do {
+            int to = Math.min(from + CHUNK_SIZE, joined.size());
+            boolean last = to == joined.size();
+            frames.add(new Frame(FrameType.PRESENCE_UPDATE, requestId, writeNames(writeNames(new PayloadWriter()
+                    .writeLong(version)
+                    .writeByte(snapshot ? 1 : 0)
+                    .writeByte(last ? 0 : 1), joined.subList(from, to)), last ? left : Collections.emptyList())));
+            from = to;
+        } while (from < joined.size());
+        return frames;
+    }
+
+    /**
+     * Write names.
+     *
+     * @param payload the payload
+     * @param names   the names
+     * @return the payload
+     */
+    private static PayloadWriter writeNames(PayloadWriter payload, List<String> names) {
+        payload.writeInt(names.size());
+        for (String name : names) {
+            payload.writeString(name);
+        }
+        return payload;
+    }
+
+    /**
+     * The type Assembler, puts an update back together from its frames.
+     */
+    public static class Assembler {
+        /**
+         * The Joined users so far.
+         */
+        private final List<String> joined = new ArrayList<>();
+        /**
+         * The Left users so far.
+         */
+        private final List<String> left = new ArrayList<>();
+
+        /**
+         * Add frame.
+         *
+         * @param frame the frame
+         * @return the update once its last frame arrived, null before
+         * @throws ProtocolException the protocol exception
+         */
+        public PresenceUpdate add(Frame frame) throws ProtocolException {
+            if (frame.getType() != FrameType.PRESENCE_UPDATE) {
+                throw new ProtocolException("expected " + FrameType.PRESENCE_UPDATE + ", got " + frame);
+            }
+            PayloadReader payload = frame.payload();
+            long version = payload.readLong();
+            boolean snapshot = payload.readByte() == 1;
+            boolean more = payload.readByte() == 1;
+            readNames(payload, joined);
+            readNames(payload, left);
+            return more ? null : new PresenceUpdate(version, snapshot, joined, left);
+        }
+
+        /**
+         * Read names.
+         *
+         * @param payload the payload
+         * @param names   the list to add them to
+         * @throws ProtocolException the protocol exception
+         */
+        private static void readNames(PayloadReader payload, List<String> names) throws ProtocolException {
+            int count = payload.readInt();
+            for (int i = 0; i < count; i++) {
+                names.add(payload.readString());
+            }
+        }
+    }
+}
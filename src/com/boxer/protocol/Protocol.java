@@ -0,0 +1,167 @@
+package com.boxer.protocol;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The type Protocol.
+ * <p>
+ * Framed connections start with {@link #MAGIC} followed by a {@link FrameType#HELLO} frame. Old clients start with
+ * the length of their username instead, which never matches the magic, so the server can tell them apart and keep
+ * serving them the old way.
+ * <p>
+ * With {@link #CAP_DATA_CHANNEL} the login reply carries a token. Further connections opening with an
+ * {@link FrameType#ATTACH} frame holding it join the session, so syncs and uploads don't queue behind each other and
+ * the control connection stays free for short requests.
+ */
+public final class Protocol {
+    /**
+     * The constant MAGIC.
+     */
+    public static final int MAGIC = 0xB0E5;
+    /**
+     * The constant VERSION.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The constant CAP_DATA_CHANNEL, file bodies may go over connections attached with the token of the login.
+     */
+    public static final int CAP_DATA_CHANNEL = 1;
+    /**
+     * The constant CAP_PUSH, the server sends {@link FrameType#EVENT} frames instead of being polled.
+     */
+    public static final int CAP_PUSH = 2;
+    /**
+     * The constant CAP_PRESENCE, user lists are kept up to date with {@link FrameType#PRESENCE} deltas.
+     */
+    public static final int CAP_PRESENCE = 4;
+    /**
+     * The constant CAP_MANIFEST, logins compare {@link Manifest} trees and only fetch files that differ.
+     */
+    public static final int CAP_MANIFEST = 8;
+    /**
+     * The constant CAP_DELTA, changed files are sent as a {@link Delta} against the server copy.
+     */
+    public static final int CAP_DELTA = 16;
+    /**
+     * The constant CAPABILITIES supported by this build.
+     */
+    public static final int CAPABILITIES = CAP_DATA_CHANNEL | CAP_PUSH | CAP_PRESENCE | CAP_MANIFEST
+            | CAP_DELTA;
+    /**
+     * The constant HEADER_SIZE (type, flags, request id, payload length).
+     */
+    public static final int HEADER_SIZE = 1 + 1 + 4 + 4;
+    /**
+     * The constant MAX_PAYLOAD.
+     */
+    public static final int MAX_PAYLOAD = 16 * 1024 * 1024;
+
+    /**
+     * The constant STATUS_OK.
+     */
+    public static final int STATUS_OK = 0;
+    /**
+     * The constant STATUS_USERNAME_IN_USE.
+     */
+    public static final int STATUS_USERNAME_IN_USE = 1;
+    /**
+     * The constant STATUS_UNSUPPORTED_VERSION.
+     */
+    public static final int STATUS_UNSUPPORTED_VERSION = 2;
+    /**
+     * The constant STATUS_INVALID_USERNAME, a name that can't be a directory of the server.
+     */
+    public static final int STATUS_INVALID_USERNAME = 3;
+
+    /**
+     * The constant SYNC_OWN, every file of the user.
+     */
+    public static final int SYNC_OWN = 1;
+    /**
+     * The constant SYNC_SHARED, files other users shared meanwhile.
+     */
+    public static final int SYNC_SHARED = 2;
+    /**
+     * The constant SYNC_PATHS, the files listed in the request.
+     */
+    public static final int SYNC_PATHS = 3;
+
+    /**
+     * The constant PUSH_REQUEST_ID, request id of frames the server sends on its own. Clients number their requests
+     * from 1.
+     */
+    public static final int PUSH_REQUEST_ID = 0;
+    /**
+     * The constant EVENT_USER_JOINED.
+     */
+    public static final int EVENT_USER_JOINED = 1;
+    /**
+     * The constant EVENT_USER_LEFT.
+     */
+    public static final int EVENT_USER_LEFT = 2;
+    /**
+     * The constant EVENT_FILES_SHARED, files are waiting for a {@link #SYNC_SHARED} sync.
+     */
+    public static final int EVENT_FILES_SHARED = 3;
+
+    /**
+     * Instantiates a new Protocol.
+     */
+    private Protocol() {
+    }
+
+    /**
+     * Negotiate capabilities.
+     *
+     * @param offered the capabilities offered by the peer
+     * @return the capabilities both sides support
+     */
+    public static int negotiate(int offered) {
+        return offered & CAPABILITIES;
+    }
+
+    /**
+     * Has capability.
+     *
+     * @param capabilities the negotiated capabilities
+     * @param capability   the capability
+     * @return the boolean
+     */
+    public static boolean has(int capabilities, int capability) {
+        return (capabilities & capability) != 0;
+    }
+
+    /**
+     * To wire path, relative to a base directory with '/' separators on every platform.
+     *
+     * @param base the base directory
+     * @param file the file
+     * @return the path
+     */
+    public static String toWirePath(Path base, Path file) {
+        Path relative = base.toAbsolutePath().normalize().relativize(file.toAbsolutePath().normalize());
+        List<String> parts = new ArrayList<>();
+        for (Path part : relative) {
+            parts.add(part.toString());
+        }
+        return String.join("/", parts);
+    }
+
+    /**
+     * Resolve wire path inside a base directory.
+     *
+     * @param base the base directory
+     * @param path the path with '/' separators
+     * @return the resolved path or null if it leads outside of the base directory
+     */
+    public static Path resolveWirePath(Path base, String path) {
+        Path root = base.toAbsolutePath().normalize();
+        Path target = root.resolve(path.startsWith("/") ? path.substring(1) : path).normalize();
+        if (!target.startsWith(root) || target.equals(root)) {
+            return null;
+        }
+        return target;
+    }
+}
@@ -0,0 +1,22 @@
+package com.boxer.protocol;
+
+import java.io.IOException;
+
+/**
+ * The type Protocol exception, thrown when the peer sends something that isn't a valid frame.
+ */
+public class ProtocolException extends IOException {
+    /**
+     * The constant serialVersionUID.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Instantiates a new Protocol exception.
+     *
+     * @param message the message
+     */
+    public ProtocolException(String message) {
+        super(message);
+    }
+}
@@ -4,7 +4,13 @@ import java.io.File;
 import java.net.Socket;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
  * The type Client.
@@ -18,31 +24,49 @@ public class Client {
      * The User dir.
      */
     private final File userDir;
-    /**
-     * The Shared files.
-     */
-    private final List<File> sharedFiles;
     /**
      * The Socket.
      */
     private final Socket socket;
+    /**
+     * The Data channels attached to the session.
+     */
+    private final List<SessionTransport> dataChannels = new CopyOnWriteArrayList<>();
     /**
      * The User job.
      */
     private ExecutorService userJob;
+    /**
+     * The Push channel, null if the user polls.
+     */
+    private volatile SessionTransport pushChannel;
+    /**
+     * The Events waiting to be pushed.
+     */
+    private final EventQueue events = new EventQueue();
+    /**
+     * The Data channel token, 0 if none was issued.
+     */
+    private volatile long dataToken;
+    /**
+     * The Share sync queued last, guarded by the share lock.
+     */
+    private CompletableFuture<Void> shareSync = CompletableFuture.completedFuture(null);
+    /**
+     * The Share lock.
+     */
+    private final Lock shareLock = new ReentrantLock();
 
     /**
      * Instantiates a new Client.
      *
-     * @param username    the username
-     * @param userDir     the user dir
-     * @param sharedFiles the shared files
-     * @param socket      the socket
+     * @param username the username
+     * @param userDir  the user dir
+     * @param socket   the socket
      */
-    public Client(String username, File userDir, List<File> sharedFiles, Socket socket) {
+    public Client(String username, File userDir, Socket socket) {
         this.username = username;
         this.userDir = userDir;
-        this.sharedFiles = sharedFiles;
         this.socket = socket;
     }
 
@@ -59,6 +83,22 @@ public class Client {
         return Objects.hash(username);
     }
 
+    /**
+     * Queue share sync, started once those queued before are done so only one takes from the inbox at a time.
+     *
+     * @param sync     the share sync, done once what it took is committed or released
+     * @param executor the executor to start it on
+     */
+    void queueShareSync(Supplier<CompletableFuture<Void>> sync, Executor executor) {
+        shareLock.lock();
+        try {
+            // a failed one doesn't hold up the next
+            shareSync = shareSync.handle((ignored, e) -> (Void) null).thenComposeAsync(ignored -> sync.get(), executor);
+        } finally {
+            shareLock.unlock();
+        }
+    }
+
     /**
      * Gets username.
      *
@@ -77,15 +117,6 @@ public class Client {
         return userDir;
     }
 
-    /**
-     * Gets shared files.
-     *
-     * @return the shared files
-     */
-    public List<File> getSharedFiles() {
-        return sharedFiles;
-    }
-
     /**
      * Gets socket.
      *
@@ -112,4 +143,77 @@ public class Client {
     public ExecutorService getUserJob() {
         return userJob;
     }
+
+    /**
+     * Gets data token.
+     *
+     * @return the data channel token, 0 if none was issued
+     */
+    public long getDataToken() {
+        return dataToken;
+    }
+
+    /**
+     * Sets data token.
+     *
+     * @param dataToken the data channel token
+     */
+    void setDataToken(long dataToken) {
+        this.dataToken = dataToken;
+    }
+
+    /**
+     * Gets push channel.
+     *
+     * @return the push channel or null if the user polls
+     */
+    SessionTransport getPushChannel() {
+        return pushChannel;
+    }
+
+    /**
+     * Sets push channel.
+     *
+     * @param pushChannel the push channel
+     */
+    void setPushChannel(SessionTransport pushChannel) {
+        this.pushChannel = pushChannel;
+    }
+
+    /**
+     * Gets events.
+     *
+     * @return the events waiting to be pushed
+     */
+    EventQueue getEvents() {
+        return events;
+    }
+
+    /**
+     * Add data channel.
+     *
+     * @param channel the channel
+     */
+    void addDataChannel(SessionTransport channel) {
+        dataChannels.add(channel);
+    }
+
+    /**
+     * Remove data channel.
+     *
+     * @param channel the channel
+     */
+    void removeDataChannel(SessionTransport channel) {
+        dataChannels.remove(channel);
+    }
+
+    /**
+     * Close data channels.
+     */
+    void closeDataChannels() {
+        for (SessionTransport channel : dataChannels) {
+            channel.close();
+        }
+        dataChannels.clear();
+    }
 }
@@ -0,0 +1,154 @@
+package com.boxer.server;
+
+import com.boxer.protocol.Frame;
+import com.boxer.protocol.FrameType;
+import com.boxer.protocol.PayloadWriter;
+import com.boxer.protocol.Protocol;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The type Event queue.
+ * <p>
+ * The events waiting for one user, sent by the writer of its session whenever it gets to them. Offering never blocks,
+ * so a user who doesn't read holds up nobody but itself. An event already waiting isn't queued twice, and a full queue
+ * keeps at least one event of each kind: users react to the kind of an event and ask for the rest themselves.
+ */
+final class EventQueue {
+    /**
+     * The constant CAPACITY, events a user may have waiting.
+     */
+    private static final int CAPACITY = Math.max(4, Integer.getInteger("boxer.server.eventQueue", 64));
+
+    /**
+     * The Events waiting by kind and user, in the order they were offered.
+     */
+    private final Map<String, Frame> events = new LinkedHashMap<>();
+    /**
+     * The Lock.
+     */
+    private final Lock lock = new ReentrantLock();
+    /**
+     * The Capacity.
+     */
+    private final int capacity;
+    /**
+     * The Armed flag, set while the writer knows there are events to send.
+     */
+    private boolean armed;
+
+    /**
+     * Instantiates a new Event queue.
+     */
+    EventQueue() {
+        this(CAPACITY);
+    }
+
+    /**
+     * Instantiates a new Event queue.
+     *
+     * @param capacity the capacity
+     */
+    EventQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Offer event.
+     *
+     * @param kind     the event kind
+     * @param userName the user the event is about
+     * @return true if the writer has to be told, false if it knows already
+     */
+    boolean offer(int kind, String userName) {
+        String key = kind + ":" + userName;
+        lock.lock();
+        try {
+            if (!events.containsKey(key) && (events.size() < capacity || makeRoom(kind))) {
+                events.put(key, new Frame(FrameType.EVENT, Protocol.PUSH_REQUEST_ID, new PayloadWriter()
+                        .writeByte(kind)
+                        .writeString(userName)));
+            }
+            boolean wake = !armed;
+            armed = true;
+            return wake;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Poll the next event. Once there is none the writer has to be told about the next one again.
+     *
+     * @return the event frame or null if none is waiting
+     */
+    Frame poll() {
+        lock.lock();
+        try {
+            Iterator<Frame> waiting = events.values().iterator();
+            if (!waiting.hasNext()) {
+                armed = false;
+                return null;
+            }
+            Frame event = waiting.next();
+            waiting.remove();
+            return event;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Has pending events.
+     *
+     * @return the boolean
+     */
+    boolean hasPending() {
+        lock.lock();
+        try {
+            return !events.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Make room in a full queue for an event of a kind.
+     *
+     * @param kind the kind
+     * @return true if an event was dropped for it, false if one of its kind is waiting already
+     */
+    private boolean makeRoom(int kind) {
+        Map<Integer, Integer> kinds = new LinkedHashMap<>();
+        for (String key : events.keySet()) {
+            kinds.merge(kindOf(key), 1, Integer::sum);
+        }
+        if (kinds.containsKey(kind)) {
+            return false;
+        }
+
+        // the oldest of a kind waiting more than once goes
+        Iterator<String> keys = events.keySet().iterator();
+        while (keys.hasNext()) {
+            if (kinds.get(kindOf(keys.next())) > 1) {
+                keys.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Kind of a key.
+     *
+     * @param key the key
+     * @return the kind
+     */
+    private static int kindOf(String key) {
+        return Integer.parseInt(key.substring(0, key.indexOf(':')));
+    }
+}
@@ -0,0 +1,467 @@
+package com.boxer.server;
+
+import com.boxer.protocol.Manifest;
+import com.boxer.protocol.Protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * The type File index.
+ * <p>
+ * Paths of the files of one user, sorted for listings, plus the paths of every file name. Their size, modification
+ * time, content hash and version are kept in the {@link MetadataCatalog}. Writers report what they changed with
+ * {@link #update(File, String)}, so lookups and listings never walk the directory, and a listener hears which directory
+ * listings changed. The paths come from the catalog when loaded; the directory is only walked when the catalog may
+ * have missed changes, and then entries whose size and time still match keep their hash.
+ */
+class FileIndex {
+    /**
+     * The constant LOGGER.
+     */
+    private static final Logger LOGGER = Logger.getLogger(FileIndex.class.getName());
+    /**
+     * The constant SHALLOW_FIRST, paths closer to the user directory first, then by path.
+     */
+    private static final Comparator<String> SHALLOW_FIRST = Comparator
+            .comparingLong((String path) -> path.chars().filter(c -> c == '/').count())
+            .thenComparing(Comparator.naturalOrder());
+
+    /**
+     * The Lock.
+     */
+    private final Lock lock = new ReentrantLock();
+    /**
+     * The User dir.
+     */
+    private final Path userDir;
+    /**
+     * The Catalog holding the entries.
+     */
+    private final MetadataCatalog catalog;
+    /**
+     * The User id in the catalog.
+     */
+    private final int user;
+    /**
+     * The Paths with '/' separators, sorted.
+     */
+    private final TreeSet<String> entries = new TreeSet<>();
+    /**
+     * The Paths by file name.
+     */
+    private final Map<String, TreeSet<String>> byName = new HashMap<>();
+    /**
+     * The Listener told the directory whose listing changed, called with the lock held.
+     */
+    private volatile Consumer<String> listener;
+
+    /**
+     * Instantiates a new File index.
+     *
+     * @param userDir the user dir
+     * @param catalog the catalog
+     * @param user    the user id in the catalog
+     */
+    private FileIndex(Path userDir, MetadataCatalog catalog, int user) {
+        this.userDir = userDir.toAbsolutePath().normalize();
+        this.catalog = catalog;
+        this.user = user;
+    }
+
+    /**
+     * Load index from the catalog.
+     *
+     * @param userDir   the user dir
+     * @param catalog   the catalog
+     * @param user      the user id in the catalog
+     * @param known     the paths the catalog holds for the user
+     * @param reconcile walk the directory and bring the catalog up to date with it
+     * @return the index
+     * @throws IOException the io exception
+     */
+    static FileIndex load(Path userDir, MetadataCatalog catalog, int user, Collection<String> known, boolean reconcile)
+            throws IOException {
+        final FileIndex index = new FileIndex(userDir, catalog, user);
+        if (!reconcile) {
+            for (String path : known) {
+                index.put(path);
+            }
+            return index;
+        }
+
+        if (Files.isDirectory(index.userDir)) {
+            Files.walkFileTree(index.userDir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isRegularFile()) {
+                        String relative = Protocol.toWirePath(index.userDir, path);
+                        long modified = attrs.lastModifiedTime().toMillis();
+                        Entry old = catalog.get(user, relative);
+                        if (old == null || old.size != attrs.size() || old.modified != modified) {
+                            catalog.put(user, relative, attrs.size(), modified, null);
+                        }
+                        index.put(relative);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        // gone while the catalog wasn't looking
+        for (String path : known) {
+            if (!index.entries.contains(path)) {
+                catalog.remove(user, path);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Update entry of a file after it was written or deleted.
+     *
+     * @param file the file
+     */
+    void update(File file) {
+        update(file, null);
+    }
+
+    /**
+     * Update entry of a file after it was written or deleted.
+     *
+     * @param file the file
+     * @param hash the content hash if known, null otherwise
+     */
+    void update(File file, String hash) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        if (!path.startsWith(userDir) || path.equals(userDir)) {
+            return;
+        }
+        String relative = Protocol.toWirePath(userDir, path);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            attrs = null;
+        }
+
+        lock.lock();
+        try {
+            if (attrs == null) {
+                // gone, with everything below if it was a directory
+                removeTree(relative);
+            } else if (attrs.isRegularFile()) {
+                catalog.put(user, relative, attrs.size(), attrs.lastModifiedTime().toMillis(), hash);
+                put(relative);
+            }
+        } catch (IOException e) {
+            // the catalog is out of space, the next reconcile catches up
+            LOGGER.warning("couldn't catalog " + relative + ": " + e.getMessage());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Find file by path, or by name for clients sending just that. A path the index doesn't know is looked up on disk,
+     * so files put there behind the index's back are found still.
+     *
+     * @param name the path with '/' separators or the file name
+     * @return the file or null if there is none, of several with that name the one closest to the user directory
+     */
+    File find(String name) {
+        String path = name.startsWith("/") ? name.substring(1) : name;
+        lock.lock();
+        try {
+            if (entries.contains(path)) {
+                return userDir.resolve(path).toFile();
+            }
+            TreeSet<String> paths = byName.get(path);
+            if (paths != null) {
+                return userDir.resolve(paths.first()).toFile();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        Path file = userDir.resolve(path).normalize();
+        if (!path.isEmpty() && file.startsWith(userDir) && Files.isRegularFile(file)) {
+            update(file.toFile());
+            return file.toFile();
+        }
+        return null;
+    }
+
+    /**
+     * List directory.
+     *
+     * @param dir the directory path with '/' separators, empty for the user directory
+     * @return the names in the directory, sorted, mapped to true for directories
+     */
+    Map<String, Boolean> list(String dir) {
+        String prefix = dir.isEmpty() ? "" : dir + "/";
+        Map<String, Boolean> names = new TreeMap<>();
+        lock.lock();
+        try {
+            String path = entries.ceiling(prefix);
+            while (path != null && path.startsWith(prefix)) {
+                int slash = path.indexOf('/', prefix.length());
+                if (slash < 0) {
+                    names.put(path.substring(prefix.length()), false);
+                    path = entries.higher(path);
+                } else {
+                    // skip everything below the directory, '0' sorts right after '/'
+                    names.put(path.substring(prefix.length(), slash), true);
+                    path = entries.ceiling(path.substring(0, slash) + '0');
+                }
+            }
+            return names;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets listener.
+     *
+     * @param listener the listener told the path of every directory whose listing changed, empty for the user
+     *                 directory
+     */
+    void setListener(Consumer<String> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Gets entry.
+     *
+     * @param path the path with '/' separators
+     * @return the entry or null if there is none
+     */
+    Entry get(String path) {
+        lock.lock();
+        try {
+            return entries.contains(path) ? catalog.get(user, path) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Manifest of the user directory, from the catalog instead of the disk.
+     *
+     * @return the root node
+     */
+    Manifest.Node manifest() {
+        Manifest.Builder builder = new Manifest.Builder();
+        lock.lock();
+        try {
+            for (String path : entries) {
+                Entry entry = catalog.get(user, path);
+                if (entry != null) {
+                    builder.add(path, entry.size, entry.modified);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return builder.build();
+    }
+
+    /**
+     * Files of the user.
+     *
+     * @return the files sorted by path
+     */
+    List<File> files() {
+        lock.lock();
+        try {
+            List<File> files = new ArrayList<>(entries.size());
+            for (String path : entries) {
+                files.add(userDir.resolve(path).toFile());
+            }
+            return files;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Put path, called with the lock held or before the index is shared.
+     *
+     * @param path the path
+     */
+    private void put(String path) {
+        Consumer<String> listener = this.listener;
+        String changed = listener != null && !entries.contains(path) ? changedDir(path) : null;
+        if (entries.add(path)) {
+            byName.computeIfAbsent(nameOf(path), name -> new TreeSet<>(SHALLOW_FIRST)).add(path);
+        }
+        if (changed != null) {
+            listener.accept(changed);
+        }
+    }
+
+    /**
+     * Remove entry and everything below it, called with the lock held.
+     *
+     * @param path the path
+     */
+    private void removeTree(String path) {
+        List<String> removed = new ArrayList<>();
+        if (entries.contains(path)) {
+            removed.add(path);
+        }
+        String prefix = path + "/";
+        for (String below : entries.tailSet(prefix)) {
+            if (!below.startsWith(prefix)) {
+                break;
+            }
+            removed.add(below);
+        }
+        for (String gone : removed) {
+            entries.remove(gone);
+            catalog.remove(user, gone);
+            TreeSet<String> paths = byName.get(nameOf(gone));
+            if (paths != null && paths.remove(gone) && paths.isEmpty()) {
+                byName.remove(nameOf(gone));
+            }
+        }
+        Consumer<String> listener = this.listener;
+        if (listener != null && !removed.isEmpty()) {
+            listener.accept(changedDir(path));
+        }
+    }
+
+    /**
+     * Directory whose listing changes when a path is added, before adding it, or removed, after removing it. That's the
+     * parent of the shallowest directory appearing or disappearing with the path, or else the parent of the path.
+     *
+     * @param path the path
+     * @return the directory path, empty for the user directory
+     */
+    private String changedDir(String path) {
+        int slash = path.indexOf('/');
+        while (slash >= 0 && hasFilesBelow(path.substring(0, slash))) {
+            slash = path.indexOf('/', slash + 1);
+        }
+        String changed = slash >= 0 ? path.substring(0, slash) : path;
+        int parent = changed.lastIndexOf('/');
+        return parent >= 0 ? changed.substring(0, parent) : "";
+    }
+
+    /**
+     * Has files below a directory.
+     *
+     * @param dir the directory path
+     * @return the boolean
+     */
+    private boolean hasFilesBelow(String dir) {
+        String below = entries.ceiling(dir + "/");
+        return below != null && below.startsWith(dir + "/");
+    }
+
+    /**
+     * Name of a path.
+     *
+     * @param path the path with '/' separators
+     * @return the file name
+     */
+    private static String nameOf(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * The type Entry, a file as the catalog holds it.
+     */
+    static final class Entry {
+        /**
+         * The Size.
+         */
+        private final long size;
+        /**
+         * The Modification time in milliseconds.
+         */
+        private final long modified;
+        /**
+         * The Content hash, null if not known.
+         */
+        private final String hash;
+        /**
+         * The Version, counted up by every change.
+         */
+        private final long version;
+
+        /**
+         * Instantiates a new Entry.
+         *
+         * @param size     the size
+         * @param modified the modified
+         * @param hash     the hash
+         * @param version  the version
+         */
+        Entry(long size, long modified, String hash, long version) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+            this.version = version;
+        }
+
+        /**
+         * Gets size.
+         *
+         * @return the size
+         */
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * Gets modified.
+         *
+         * @return the modification time in milliseconds
+         */
+        long getModified() {
+            return modified;
+        }
+
+        /**
+         * Gets hash.
+         *
+         * @return the content hash or null if not known
+         */
+        String getHash() {
+            return hash;
+        }
+
+        /**
+         * Gets version.
+         *
+         * @return the version, 1 when first cataloged
+         */
+        long getVersion() {
+            return version;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.boxer.server;
+
+import javafx.collections.ObservableList;
+import javafx.scene.control.TreeItem;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The type File tree item.
+ * <p>
+ * A node of the server file tree read from the file index of its user. Children are listed when the node is first
+ * expanded and listed again when the index reports a change to the directory, keeping the nodes of names still there
+ * so expanded subtrees stay as they are. Nothing below a collapsed directory is ever built.
+ */
+class FileTreeItem extends TreeItem<String> {
+    /**
+     * The Index.
+     */
+    private final FileIndex index;
+    /**
+     * The Path with '/' separators, empty for the user directory.
+     */
+    private final String path;
+    /**
+     * The Directory flag.
+     */
+    private final boolean directory;
+    /**
+     * The Dir icon.
+     */
+    private final Image dirIcon;
+    /**
+     * The Loaded flag, set once the children were listed.
+     */
+    private boolean loaded;
+
+    /**
+     * Instantiates a new File tree item.
+     *
+     * @param index     the index
+     * @param path      the path
+     * @param directory the directory
+     * @param label     the label
+     * @param icon      the icon or null
+     * @param dirIcon   the dir icon
+     */
+    FileTreeItem(FileIndex index, String path, boolean directory, String label, Image icon, Image dirIcon) {
+        super(label, icon != null ? new ImageView(icon) : null);
+        this.index = index;
+        this.path = path;
+        this.directory = directory;
+        this.dirIcon = dirIcon;
+    }
+
+    /**
+     * Gets index.
+     *
+     * @return the index
+     */
+    FileIndex getIndex() {
+        return index;
+    }
+
+    @Override
+    public boolean isLeaf() {
+        return !directory;
+    }
+
+    @Override
+    public ObservableList<TreeItem<String>> getChildren() {
+        if (!loaded) {
+            // list on first expansion only
+            loaded = true;
+            super.getChildren().setAll(list(new HashMap<>()));
+        }
+        return super.getChildren();
+    }
+
+    /**
+     * Refresh the listing of a directory if it's shown, or of its closest shown parent.
+     *
+     * @param dir the directory path relative to this node, empty for this node
+     */
+    void refresh(String dir) {
+        FileTreeItem node = this;
+        for (String name : dir.isEmpty() ? new String[0] : dir.split("/")) {
+            if (!node.loaded) {
+                // listed from the index once expanded
+                return;
+            }
+            FileTreeItem child = node.childNamed(name);
+            if (child == null) {
+                // the parent missed the new directory, list it again
+                break;
+            }
+            node = child;
+        }
+        if (node.loaded) {
+            Map<String, FileTreeItem> shown = new HashMap<>();
+            for (TreeItem<String> child : node.getChildren()) {
+                shown.put(child.getValue(), (FileTreeItem) child);
+            }
+            node.getChildren().setAll(node.list(shown));
+        }
+    }
+
+    /**
+     * List children from the index.
+     *
+     * @param shown the children shown already by name, reused when still there
+     * @return the children
+     */
+    private List<TreeItem<String>> list(Map<String, FileTreeItem> shown) {
+        List<TreeItem<String>> children = new ArrayList<>();
+        for (Map.Entry<String, Boolean> entry : index.list(path).entrySet()) {
+            String name = entry.getKey();
+            if (name.startsWith(".")) {
+                // hidden
+                continue;
+            }
+            FileTreeItem child = shown.get(name);
+            if (child == null || child.directory != entry.getValue()) {
+                child = new FileTreeItem(index, path.isEmpty() ? name : path + "/" + name, entry.getValue(), name,
+                        entry.getValue() ? dirIcon : null, dirIcon);
+            }
+            children.add(child);
+        }
+        return children;
+    }
+
+    /**
+     * Child named.
+     *
+     * @param name the name
+     * @return the child or null if there is none
+     */
+    private FileTreeItem childNamed(String name) {
+        for (TreeItem<String> child : super.getChildren()) {
+            if (child.getValue().equals(name)) {
+                return (FileTreeItem) child;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,194 @@
+package com.boxer.server;
+
+import com.boxer.ConsoleLog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The type Headless server.
+ * <p>
+ * Runs the server without a window and without loading JavaFX at all, for hosts with no display. Settings are the
+ * usual boxer.server.* system properties, read from a properties file given with --config, overridden by -D options,
+ * which are overridden in turn by the options below. The console log goes to a logger, and the events meant for the
+ * window are dropped as they come. Stops cleanly on SIGTERM or Ctrl+C, so the next start trusts the catalog.
+ */
+public final class HeadlessServer {
+    /**
+     * The constant LOGGER.
+     */
+    private static final Logger LOGGER = Logger.getLogger(HeadlessServer.class.getName());
+    /**
+     * The constant USAGE.
+     */
+    private static final String USAGE = "usage: java -cp <classpath> com.boxer.server.HeadlessServer [options]\n"
+            + "  --config <file>               properties file of boxer.server.* settings\n"
+            + "  --port <port>                 port to listen on, 59090 by default\n"
+            + "  --root <dir>                  storage directory, the working directory by default\n"
+            + "  --store <dir>                 directory of server data, <root>.boxer by default\n"
+            + "  --engine <blocking|nio>       connection engine, blocking by default\n"
+            + "  --threads <platform|virtual>  thread model, platform by default\n"
+            + "  --help                        show this help";
+
+    /**
+     * Instantiates a new Headless server.
+     */
+    private HeadlessServer() {
+    }
+
+    /**
+     * The entry point of the server without a window.
+     *
+     * @param args the input arguments
+     */
+    public static void main(String[] args) {
+        long started = System.nanoTime();
+        try {
+            configure(args);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Error, " + e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        // settings are in place, the manager reads them once it's loaded
+        ConsoleLog.initialize(Logger.getLogger("com.boxer.server.console"));
+        ServerCommunicationManager manager = ServerCommunicationManager.getInstance();
+        try {
+            manager.startServerSocket();
+        } catch (IOException e) {
+            LOGGER.severe("couldn't listen on port " + ServerCommunicationManager.PORT_NUMBER + ": " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        // closed properly on SIGTERM as well
+        CountDownLatch stopped = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            manager.shutdown();
+            stopped.countDown();
+        }, "boxer-shutdown"));
+        manager.handleClientConnections();
+        LOGGER.info("listening on port " + ServerCommunicationManager.PORT_NUMBER + ", storing in "
+                + ServerCommunicationManager.ROOT + ", " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)
+                + " ms after start");
+
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Configure system properties from the arguments and the config file.
+     *
+     * @param args the arguments
+     * @throws IOException the io exception
+     */
+    static void configure(String[] args) throws IOException {
+        Map<String, String> options = new LinkedHashMap<>();
+        String config = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--help") || arg.equals("-h")) {
+                System.out.println(USAGE);
+                System.exit(0);
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("missing value of " + arg);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--config":
+                    config = value;
+                    break;
+                case "--port":
+                    options.put("boxer.server.port", String.valueOf(portOf(value)));
+                    break;
+                case "--root":
+                    options.put("boxer.server.root", value);
+                    break;
+                case "--store":
+                    options.put("boxer.server.store", value);
+                    break;
+                case "--engine":
+                    options.put("boxer.server.engine", oneOf(value, "blocking", "nio"));
+                    break;
+                case "--threads":
+                    options.put("boxer.threads", oneOf(value, "platform", "virtual"));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+
+        if (config != null) {
+            Properties settings = new Properties();
+            try (InputStream in = Files.newInputStream(Paths.get(config))) {
+                settings.load(in);
+            }
+            for (String key : settings.stringPropertyNames()) {
+                // -D options win over the file
+                if (System.getProperty(key) == null) {
+                    System.setProperty(key, settings.getProperty(key).trim());
+                }
+            }
+        }
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            System.setProperty(option.getKey(), option.getValue());
+        }
+
+        // checked here, the file may have set them
+        portOf(System.getProperty("boxer.server.port", "59090"));
+        String root = System.getProperty("boxer.server.root");
+        if (root != null) {
+            Path dir = Paths.get(root);
+            Files.createDirectories(dir);
+        }
+    }
+
+    /**
+     * Port of a value.
+     *
+     * @param value the value
+     * @return the port
+     */
+    private static int portOf(String value) {
+        try {
+            int port = Integer.parseInt(value.trim());
+            if (port > 0 && port < 65536) {
+                return port;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("not a port: " + value);
+    }
+
+    /**
+     * One of the values allowed.
+     *
+     * @param value   the value
+     * @param allowed the values allowed
+     * @return the value in lower case
+     */
+    private static String oneOf(String value, String... allowed) {
+        for (String option : allowed) {
+            if (option.equalsIgnoreCase(value.trim())) {
+                return option;
+            }
+        }
+        throw new IllegalArgumentException("not one of " + String.join("|", allowed) + ": " + value);
+    }
+}
@@ -0,0 +1,129 @@
+package com.boxer.server;
+
+import com.boxer.ConsoleLog;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * The type Login metrics.
+ * <p>
+ * Counts accepted connections and keeps the latest handshake latencies, measured from accept until the user got
+ * its login reply, so that the accept rate and p50/p99 handshake latency can be reported.
+ */
+class LoginMetrics {
+    /**
+     * The constant LOGGER.
+     */
+    private static final Logger LOGGER = Logger.getLogger(LoginMetrics.class.getName());
+    /**
+     * The constant SAMPLE_SIZE.
+     */
+    private static final int SAMPLE_SIZE = 1024;
+
+    /**
+     * The Lock.
+     */
+    private final Lock lock = new ReentrantLock();
+    /**
+     * The Accepts.
+     */
+    private final AtomicLong accepts = new AtomicLong();
+    /**
+     * The Latencies in nanoseconds, used as a ring buffer.
+     */
+    private final long[] latencies = new long[SAMPLE_SIZE];
+    /**
+     * The Sample count.
+     */
+    private int sampleCount;
+    /**
+     * The Next sample.
+     */
+    private int nextSample;
+    /**
+     * The Accepts at last report.
+     */
+    private long lastAccepts;
+    /**
+     * The Last report time.
+     */
+    private long lastReport = System.nanoTime();
+
+    /**
+     * Accepted connection.
+     *
+     * @return the accept timestamp to pass to {@link #handshakeCompleted(long)}
+     */
+    long accepted() {
+        accepts.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Handshake completed.
+     *
+     * @param acceptedAt the accept timestamp
+     */
+    void handshakeCompleted(long acceptedAt) {
+        long latency = System.nanoTime() - acceptedAt;
+        lock.lock();
+        try {
+            latencies[nextSample] = latency;
+            nextSample = (nextSample + 1) % SAMPLE_SIZE;
+            if (sampleCount < SAMPLE_SIZE) {
+                sampleCount++;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Report login rate since the last report, nothing is logged if nobody connected meanwhile.
+     */
+    void report() {
+        long now = System.nanoTime();
+        long total = accepts.get();
+        long newAccepts = total - lastAccepts;
+        double seconds = (now - lastReport) / (double) TimeUnit.SECONDS.toNanos(1);
+        lastAccepts = total;
+        lastReport = now;
+        if (newAccepts == 0) {
+            return;
+        }
+
+        long[] sorted;
+        lock.lock();
+        try {
+            sorted = Arrays.copyOf(latencies, sampleCount);
+        } finally {
+            lock.unlock();
+        }
+        Arrays.sort(sorted);
+
+        String summary = String.format("Logins: %.1f accepts/s, handshake p50 %.1f ms, p99 %.1f ms (%d accepted in total)",
+                newAccepts / seconds, percentile(sorted, 50), percentile(sorted, 99), total);
+        LOGGER.info(summary);
+        ConsoleLog.getInstance().log(summary + "\n");
+    }
+
+    /**
+     * Percentile in milliseconds.
+     *
+     * @param sorted     the sorted latencies
+     * @param percentile the percentile
+     * @return the latency in milliseconds
+     */
+    private static double percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1_000_000.0;
+    }
+}
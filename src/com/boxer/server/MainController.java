@@ -10,11 +10,13 @@ import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 
-import java.io.File;
 import java.io.IOException;
 import java.net.SocketException;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.ResourceBundle;
 
@@ -52,6 +54,11 @@ public class MainController implements Initializable {
      */
     private final Image userIcon = new Image(getClass().getResourceAsStream("resources/icons/user_icon.png"));
 
+    /**
+     * The User nodes of the file tree by user name.
+     */
+    private final Map<String, FileTreeItem> userNodes = new HashMap<>();
+
     /**
      * The Communication manager.
      */
@@ -124,54 +131,58 @@ public class MainController implements Initializable {
     /**
      * Display file tree.
      *
-     * @param users the users
-     * @param files the files
+     * @param users   the users
+     * @param indexes the file indexes of the users
      */
-// use recursive method to build and display file tree
-    protected void displayFileTree(List<String> users, List<File> files) {
+// keeps the nodes of users still connected, their directories are listed when expanded
+    protected void displayFileTree(List<String> users, List<FileIndex> indexes) {
         // set up file tree
-        TreeItem<String> rootItem = new TreeItem<>();
-        rootItem.setExpanded(true);
+        TreeItem<String> rootItem = fileTreeView.getRoot();
+        if (rootItem == null) {
+            rootItem = new TreeItem<>();
+            rootItem.setExpanded(true);
+
+            // set the dummy tree root and hide it afterwards
+            fileTreeView.setRoot(rootItem);
+            fileTreeView.setShowRoot(false);
+        }
 
-        // build file tree for each user
-        for (int i = 0; i < files.size(); i++) {
-            File userDir = files.get(i);
+        // node for each user
+        Map<String, FileTreeItem> nodes = new LinkedHashMap<>();
+        for (int i = 0; i < users.size(); i++) {
             String userName = users.get(i);
-            TreeItem<String> userNode = new TreeItem<>(userName + ": /", new ImageView(userIcon));
-            buildUserFileTree(userDir, userNode);
-            rootItem.getChildren().add(userNode);
+            FileTreeItem userNode = userNodes.get(userName);
+            if (userNode == null || userNode.getIndex() != indexes.get(i)) {
+                userNode = new FileTreeItem(indexes.get(i), "", true, userName + ": /", userIcon, dirIcon);
+            }
+            nodes.put(userName, userNode);
         }
-
-        // set the dummy tree root and hide it afterwards
-        fileTreeView.setRoot(rootItem);
-        fileTreeView.setShowRoot(false);
+        userNodes.clear();
+        userNodes.putAll(nodes);
+        rootItem.getChildren().setAll(nodes.values());
     }
 
     /**
-     * Build user file tree.
+     * Rebuild file tree, every user node made again.
      *
-     * @param dir      the dir
-     * @param userNode the user node
+     * @param users   the users
+     * @param indexes the file indexes of the users
      */
-// builds the tree view of particular user
-    private void buildUserFileTree(File dir, TreeItem<String> userNode) {
-        // display the files
-        File[] files = dir.listFiles();
-        for (File file : files) {
-            if (!file.isHidden()) {
-                TreeItem<String> node;
-
-                // if a directory, build a subtree node
-                if (file.isDirectory()) {
-                    node = new TreeItem<>(file.getName(), new ImageView(dirIcon));
-                    buildUserFileTree(file, node);
-                } else {
-                    node = new TreeItem<>(file.getName());
-                }
+    protected void rebuildFileTree(List<String> users, List<FileIndex> indexes) {
+        userNodes.clear();
+        displayFileTree(users, indexes);
+    }
 
-                // add file to file tree
-                userNode.getChildren().add(node);
-            }
+    /**
+     * Refresh file tree of a directory.
+     *
+     * @param user the user
+     * @param dir  the directory path with '/' separators, empty for the user directory
+     */
+    protected void refreshFileTree(String user, String dir) {
+        FileTreeItem userNode = userNodes.get(user);
+        if (userNode != null) {
+            userNode.refresh(dir);
         }
     }
 
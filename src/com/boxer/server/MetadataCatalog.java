@@ -0,0 +1,895 @@
+package com.boxer.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * The type Metadata catalog.
+ * <p>
+ * Size, modification time, content hash and version of every file of every user, kept in memory mapped files instead
+ * of the heap. Files sit in an open addressing table of fixed size slots keyed by a 64 bit hash of user and path, with
+ * linear probing and deletes that shift the following slots back, so there are no tombstones. Paths live in an append
+ * only heap the slots point into, which is written anew with just the paths in use whenever the table is rebuilt. The
+ * table is rebuilt as it grows, or once more bytes of the heap are dead than alive. Nothing is read at start but the user names: the table is used in place, and a
+ * catalog closed cleanly is trusted without looking at the disk. One left open by a crash has its table rebuilt from
+ * the slots that still make sense, and the indexes check it against the disk.
+ */
+class MetadataCatalog implements Closeable {
+    /**
+     * The constant LOGGER.
+     */
+    private static final Logger LOGGER = Logger.getLogger(MetadataCatalog.class.getName());
+    /**
+     * The constant INITIAL_SLOTS of a new table, rounded up to a power of two.
+     */
+    private static final int INITIAL_SLOTS = Integer.getInteger("boxer.server.catalogSlots", 1 << 16);
+    /**
+     * The constant MIN_DEAD_BYTES of the path heap before it's worth compacting.
+     */
+    private static final long MIN_DEAD_BYTES = Long.getLong("boxer.server.catalogDeadBytes", 1 << 20);
+    /**
+     * The constant MAGIC starting the header.
+     */
+    private static final int MAGIC = 0x42584d43;
+    /**
+     * The constant FORMAT of the files.
+     */
+    private static final int FORMAT = 1;
+    /**
+     * The constant HEADER_SIZE.
+     */
+    private static final int HEADER_SIZE = 4096;
+    /**
+     * The constant SLOT size: key, size, modified, version, path offset, user, path length and hash.
+     */
+    private static final int SLOT = 80;
+    /**
+     * The constant CHUNK_SLOTS, slots per mapping of the table.
+     */
+    private static final int CHUNK_SLOTS = 1 << 20;
+    /**
+     * The constant HEAP_CHUNK, bytes per mapping of the path heap. Paths never cross one.
+     */
+    private static final int HEAP_CHUNK = 1 << 26;
+    /**
+     * The constant HASH_SIZE of a SHA-256 hash.
+     */
+    private static final int HASH_SIZE = 32;
+
+    /**
+     * The constant KEY offset in a slot, 0 in an empty one.
+     */
+    private static final int KEY = 0;
+    /**
+     * The constant SIZE offset in a slot.
+     */
+    private static final int SIZE = 8;
+    /**
+     * The constant MODIFIED offset in a slot.
+     */
+    private static final int MODIFIED = 16;
+    /**
+     * The constant VERSION offset in a slot.
+     */
+    private static final int VERSION = 24;
+    /**
+     * The constant PATH offset in a slot, where the path starts in the heap.
+     */
+    private static final int PATH = 32;
+    /**
+     * The constant USER offset in a slot.
+     */
+    private static final int USER = 40;
+    /**
+     * The constant LENGTH offset in a slot, of the path in bytes.
+     */
+    private static final int LENGTH = 44;
+    /**
+     * The constant HASH offset in a slot.
+     */
+    private static final int HASH = 48;
+    /**
+     * The constant HEAD_MAGIC offset in the header.
+     */
+    private static final int HEAD_MAGIC = 0;
+    /**
+     * The constant HEAD_FORMAT offset in the header.
+     */
+    private static final int HEAD_FORMAT = 4;
+    /**
+     * The constant HEAD_COUNT offset in the header.
+     */
+    private static final int HEAD_COUNT = 8;
+    /**
+     * The constant HEAD_HEAP_END offset in the header.
+     */
+    private static final int HEAD_HEAP_END = 16;
+    /**
+     * The constant HEAD_CLEAN offset in the header, 1 once closed properly.
+     */
+    private static final int HEAD_CLEAN = 24;
+    /**
+     * The constant HEAD_LIVE offset in the header, bytes of the heap holding paths in use.
+     */
+    private static final int HEAD_LIVE = 32;
+
+    /**
+     * The Lock.
+     */
+    private final Lock lock = new ReentrantLock();
+    /**
+     * The Directory of the catalog files.
+     */
+    private final Path dir;
+    /**
+     * The Header.
+     */
+    private final MappedByteBuffer head;
+    /**
+     * The Usernames by id.
+     */
+    private final List<String> users = new ArrayList<>();
+    /**
+     * The User ids by username.
+     */
+    private final Map<String, Integer> userIds = new HashMap<>();
+    /**
+     * The Users file, appended a name at a time.
+     */
+    private final DataOutputStream usersOut;
+    /**
+     * The Clean flag, the catalog was closed properly last time.
+     */
+    private final boolean clean;
+    /**
+     * The Table mappings by chunk.
+     */
+    private MappedByteBuffer[] table;
+    /**
+     * The Capacity of the table, a power of two.
+     */
+    private long capacity;
+    /**
+     * The Slots per table mapping, a power of two.
+     */
+    private int chunkSlots;
+    /**
+     * The Number of files.
+     */
+    private long count;
+    /**
+     * The Path heap.
+     */
+    private Heap heap;
+    /**
+     * The Live bytes of the path heap.
+     */
+    private long live;
+
+    /**
+     * Instantiates a new Metadata catalog.
+     *
+     * @param dir the directory of the catalog files
+     * @throws IOException the io exception
+     */
+    private MetadataCatalog(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        try (FileChannel channel = FileChannel.open(dir.resolve("catalog.head"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            boolean fresh = channel.size() < HEADER_SIZE;
+            head = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (fresh || head.getInt(HEAD_MAGIC) != MAGIC || head.getInt(HEAD_FORMAT) != FORMAT) {
+                // new or of another format, start empty
+                head.putInt(HEAD_MAGIC, MAGIC).putInt(HEAD_FORMAT, FORMAT).putLong(HEAD_COUNT, 0).putLong(HEAD_HEAP_END, 0);
+                Files.deleteIfExists(dir.resolve("catalog.table"));
+                Files.deleteIfExists(dir.resolve("catalog.paths"));
+                Files.deleteIfExists(dir.resolve("catalog.users"));
+                clean = false;
+            } else {
+                clean = head.getInt(HEAD_CLEAN) == 1;
+            }
+        }
+        count = head.getLong(HEAD_COUNT);
+        live = head.getLong(HEAD_LIVE);
+
+        // from now on a crash leaves it unclean
+        head.putInt(HEAD_CLEAN, 0);
+        head.force();
+
+        heap = new Heap(dir.resolve("catalog.paths"), head.getLong(HEAD_HEAP_END));
+        readUsers(dir.resolve("catalog.users"));
+        usersOut = new DataOutputStream(new FileOutputStream(dir.resolve("catalog.users").toFile(), true));
+
+        Path tablePath = dir.resolve("catalog.table");
+        long size = Files.exists(tablePath) ? Files.size(tablePath) : 0;
+        if (size < SLOT || Long.bitCount(size / SLOT) != 1 || size % SLOT != 0) {
+            rehash(Math.max(Long.highestOneBit(Math.max(INITIAL_SLOTS, 2) - 1) << 1, 2), false);
+        } else {
+            map(tablePath, size / SLOT);
+            if (!clean) {
+                // slots may be half written, keep those that make sense
+                rehash(capacity, true);
+            }
+        }
+    }
+
+    /**
+     * Open catalog, in the directory set by {@code boxer.server.catalog} or {@code catalog} of the server store.
+     *
+     * @return the catalog
+     * @throws IOException the io exception
+     */
+    static MetadataCatalog open() throws IOException {
+        String dir = System.getProperty("boxer.server.catalog");
+        return open(dir != null ? Paths.get(dir) : ServerCommunicationManager.storeDir("catalog"));
+    }
+
+    /**
+     * Open catalog.
+     *
+     * @param dir the directory of the catalog files
+     * @return the catalog
+     * @throws IOException the io exception
+     */
+    static MetadataCatalog open(Path dir) throws IOException {
+        MetadataCatalog catalog = new MetadataCatalog(dir);
+        LOGGER.info("opened catalog of " + catalog.count + " files in " + catalog.capacity + " slots"
+                + (catalog.clean ? "" : ", not closed properly"));
+        return catalog;
+    }
+
+    /**
+     * Was clean, closed properly the last time. Otherwise changes may be missing and the disk tells the truth.
+     *
+     * @return the boolean
+     */
+    boolean wasClean() {
+        return clean;
+    }
+
+    /**
+     * Id of a user, given one the first time.
+     *
+     * @param username the username
+     * @return the user id
+     * @throws IOException the io exception
+     */
+    int userId(String username) throws IOException {
+        lock.lock();
+        try {
+            Integer id = userIds.get(username);
+            if (id == null) {
+                usersOut.writeUTF(username);
+                usersOut.flush();
+                id = users.size();
+                users.add(username);
+                userIds.put(username, id);
+            }
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get file.
+     *
+     * @param user the user id
+     * @param path the path with '/' separators
+     * @return the entry or null if there is none
+     */
+    FileIndex.Entry get(int user, String path) {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            long slot = find(user, bytes, keyOf(user, bytes));
+            if (slot < 0) {
+                return null;
+            }
+            MappedByteBuffer chunk = chunkOf(slot);
+            int at = offsetOf(slot);
+            return new FileIndex.Entry(chunk.getLong(at + SIZE), chunk.getLong(at + MODIFIED), hashOf(chunk, at),
+                    chunk.getLong(at + VERSION));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Put file, counting up its version when anything changed.
+     *
+     * @param user     the user id
+     * @param path     the path with '/' separators
+     * @param size     the size
+     * @param modified the modification time in milliseconds
+     * @param hash     the SHA-256 hash in hex, null if not known
+     * @return the version
+     * @throws IOException the io exception
+     */
+    long put(int user, String path, long size, long modified, String hash) throws IOException {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        long key = keyOf(user, bytes);
+        lock.lock();
+        try {
+            long slot = find(user, bytes, key);
+            if (slot < 0) {
+                if ((count + 1) * 5 > capacity * 3) {
+                    // more than 60% full, probes get long
+                    rehash(capacity * 2, false);
+                    slot = find(user, bytes, key);
+                } else if (heap.end - live > Math.max(live, MIN_DEAD_BYTES)) {
+                    // mostly paths of removed files, only the others are kept
+                    rehash(capacity, false);
+                    slot = find(user, bytes, key);
+                }
+                MappedByteBuffer chunk = chunkOf(-slot - 1);
+                int at = offsetOf(-slot - 1);
+                chunk.putLong(at + PATH, heap.append(bytes)).putInt(at + USER, user).putInt(at + LENGTH, bytes.length);
+                write(chunk, at, size, modified, hash, 1);
+                // the key last, a slot is taken once everything is in
+                chunk.putLong(at + KEY, key);
+                live += bytes.length;
+                head.putLong(HEAD_COUNT, ++count).putLong(HEAD_HEAP_END, heap.end).putLong(HEAD_LIVE, live);
+                return 1;
+            }
+
+            MappedByteBuffer chunk = chunkOf(slot);
+            int at = offsetOf(slot);
+            long version = chunk.getLong(at + VERSION);
+            String old = hashOf(chunk, at);
+            boolean same = chunk.getLong(at + SIZE) == size && chunk.getLong(at + MODIFIED) == modified;
+            if (!same || (hash != null && !hash.equals(old))) {
+                version++;
+            }
+            // without a new hash, the old one holds only if size and time do
+            write(chunk, at, size, modified, hash != null ? hash : same ? old : null, version);
+            return version;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Remove file.
+     *
+     * @param user the user id
+     * @param path the path with '/' separators
+     * @return true if there was one
+     */
+    boolean remove(int user, String path) {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            long slot = find(user, bytes, keyOf(user, bytes));
+            if (slot < 0) {
+                return false;
+            }
+
+            // its path is dead from now on
+            live -= chunkOf(slot).getInt(offsetOf(slot) + LENGTH);
+            head.putLong(HEAD_LIVE, live);
+
+            // shift back the slots after it that probed past it
+            long mask = capacity - 1;
+            long hole = slot;
+            long next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                long key = chunkOf(next).getLong(offsetOf(next) + KEY);
+                if (key == 0) {
+                    break;
+                }
+                long home = key & mask;
+                boolean stays = hole <= next ? hole < home && home <= next : hole < home || home <= next;
+                if (!stays) {
+                    copy(next, hole);
+                    hole = next;
+                }
+            }
+            chunkOf(hole).putLong(offsetOf(hole) + KEY, 0);
+            head.putLong(HEAD_COUNT, --count);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Paths of the files of every user, in one pass over the table.
+     *
+     * @return the paths by user id
+     */
+    Map<Integer, List<String>> paths() {
+        return paths(-1);
+    }
+
+    /**
+     * Paths of the files of a user.
+     *
+     * @param user the user id, -1 for every user
+     * @return the paths by user id
+     */
+    Map<Integer, List<String>> paths(int user) {
+        Map<Integer, List<String>> paths = new HashMap<>();
+        lock.lock();
+        try {
+            for (long slot = 0; slot < capacity; slot++) {
+                MappedByteBuffer chunk = chunkOf(slot);
+                int at = offsetOf(slot);
+                if (chunk.getLong(at + KEY) == 0 || (user >= 0 && chunk.getInt(at + USER) != user)) {
+                    continue;
+                }
+                byte[] bytes = pathOf(chunk, at);
+                paths.computeIfAbsent(chunk.getInt(at + USER), id -> new ArrayList<>())
+                        .add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return paths;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * References to the contents of the object store, in one pass over the table.
+     *
+     * @return the number of files by object name, files without a known hash left out
+     */
+    Map<String, Integer> references() {
+        Map<String, Integer> references = new HashMap<>();
+        lock.lock();
+        try {
+            for (long slot = 0; slot < capacity; slot++) {
+                MappedByteBuffer chunk = chunkOf(slot);
+                int at = offsetOf(slot);
+                String hash = chunk.getLong(at + KEY) != 0 ? hashOf(chunk, at) : null;
+                if (hash != null) {
+                    references.merge(ObjectStore.nameOf(hash, chunk.getLong(at + MODIFIED)), 1, Integer::sum);
+                }
+            }
+            return references;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Size.
+     *
+     * @return the number of files
+     */
+    long size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flush changes to disk, so a system crash loses little.
+     */
+    void flush() {
+        lock.lock();
+        try {
+            for (MappedByteBuffer chunk : table) {
+                chunk.force();
+            }
+            heap.force();
+            head.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            flush();
+            head.putInt(HEAD_CLEAN, 1);
+            head.force();
+            usersOut.close();
+            heap.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Find slot of a file.
+     *
+     * @param user  the user id
+     * @param bytes the path
+     * @param key   the key
+     * @return the slot, or -1 minus the empty slot it would go to
+     */
+    private long find(int user, byte[] bytes, long key) {
+        long mask = capacity - 1;
+        long slot = key & mask;
+        while (true) {
+            MappedByteBuffer chunk = chunkOf(slot);
+            int at = offsetOf(slot);
+            long found = chunk.getLong(at + KEY);
+            if (found == 0) {
+                return -slot - 1;
+            }
+            if (found == key && chunk.getInt(at + USER) == user && samePath(chunk, at, bytes)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Write the fields of a slot but its key and path.
+     *
+     * @param chunk    the chunk
+     * @param at       the offset of the slot
+     * @param size     the size
+     * @param modified the modified
+     * @param hash     the hash in hex or null
+     * @param version  the version
+     */
+    private static void write(MappedByteBuffer chunk, int at, long size, long modified, String hash, long version) {
+        chunk.putLong(at + SIZE, size).putLong(at + MODIFIED, modified).putLong(at + VERSION, version);
+        for (int i = 0; i < HASH_SIZE; i++) {
+            // all zeros for unknown, no content hashes to that
+            chunk.put(at + HASH + i, hash != null && hash.length() == HASH_SIZE * 2
+                    ? (byte) Integer.parseInt(hash.substring(i * 2, i * 2 + 2), 16) : 0);
+        }
+    }
+
+    /**
+     * Copy slot.
+     *
+     * @param from the slot to copy
+     * @param to   the slot to copy to
+     */
+    private void copy(long from, long to) {
+        MappedByteBuffer source = chunkOf(from);
+        MappedByteBuffer target = chunkOf(to);
+        int fromAt = offsetOf(from);
+        int toAt = offsetOf(to);
+        for (int i = 0; i < SLOT; i += 8) {
+            target.putLong(toAt + i, source.getLong(fromAt + i));
+        }
+    }
+
+    /**
+     * Rebuild table and path heap into new files with a capacity, then put them in place of the old ones.
+     *
+     * @param newCapacity the capacity, a power of two
+     * @param validate    drop slots pointing outside the path heap
+     * @throws IOException the io exception
+     */
+    private void rehash(long newCapacity, boolean validate) throws IOException {
+        Path tablePath = dir.resolve("catalog.table");
+        Path part = dir.resolve("catalog.table.part");
+        Path heapPath = dir.resolve("catalog.paths");
+        Path heapPart = dir.resolve("catalog.paths.part");
+        MappedByteBuffer[] old = table;
+        long oldCapacity = capacity;
+        int oldChunkSlots = chunkSlots;
+        long heapSize = heap.size();
+
+        Files.deleteIfExists(part);
+        Files.deleteIfExists(heapPart);
+        map(part, newCapacity);
+        Heap paths = new Heap(heapPart, 0);
+        long kept = 0;
+        long bytes = 0;
+        long mask = newCapacity - 1;
+        for (long slot = 0; old != null && slot < oldCapacity; slot++) {
+            MappedByteBuffer source = old[(int) (slot / oldChunkSlots)];
+            int at = (int) (slot % oldChunkSlots) * SLOT;
+            long key = source.getLong(at + KEY);
+            if (key == 0) {
+                continue;
+            }
+            long path = source.getLong(at + PATH);
+            int length = source.getInt(at + LENGTH);
+            if (validate && (path < 0 || length < 0 || path + length > heapSize
+                    || length > 0 && path / HEAP_CHUNK != (path + length - 1) / HEAP_CHUNK
+                    || keyOf(source.getInt(at + USER), pathOf(source, at)) != key)) {
+                continue;
+            }
+            long target = key & mask;
+            while (chunkOf(target).getLong(offsetOf(target) + KEY) != 0) {
+                target = (target + 1) & mask;
+            }
+            MappedByteBuffer chunk = chunkOf(target);
+            int to = offsetOf(target);
+            for (int i = 0; i < SLOT; i += 8) {
+                chunk.putLong(to + i, source.getLong(at + i));
+            }
+            // paths of removed files are left behind
+            chunk.putLong(to + PATH, paths.append(pathOf(source, at)));
+            kept++;
+            bytes += length;
+        }
+        for (MappedByteBuffer chunk : table) {
+            chunk.force();
+        }
+        paths.force();
+        // a crash between the two leaves slots whose paths don't match their keys, dropped on the next start
+        Files.move(heapPart, heapPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(part, tablePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        heap.close();
+        heap = paths;
+
+        if (validate) {
+            LOGGER.warning("rebuilt catalog table, " + kept + " files kept of " + count);
+        }
+        count = kept;
+        live = bytes;
+        head.putLong(HEAD_COUNT, count).putLong(HEAD_HEAP_END, heap.end).putLong(HEAD_LIVE, live);
+    }
+
+    /**
+     * Map table file.
+     *
+     * @param path        the table file
+     * @param newCapacity the capacity
+     * @throws IOException the io exception
+     */
+    private void map(Path path, long newCapacity) throws IOException {
+        int slots = (int) Math.min(newCapacity, CHUNK_SLOTS);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(int) (newCapacity / slots)];
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < chunks.length; i++) {
+                // the mapping stays valid once the channel is closed
+                chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i * slots * SLOT, (long) slots * SLOT);
+            }
+        }
+        table = chunks;
+        capacity = newCapacity;
+        chunkSlots = slots;
+    }
+
+    /**
+     * Same path as the one of a slot.
+     *
+     * @param chunk the chunk
+     * @param at    the offset of the slot
+     * @param bytes the path
+     * @return the boolean
+     */
+    private boolean samePath(MappedByteBuffer chunk, int at, byte[] bytes) {
+        return chunk.getInt(at + LENGTH) == bytes.length && Arrays.equals(pathOf(chunk, at), bytes);
+    }
+
+    /**
+     * Path of a slot.
+     *
+     * @param chunk the chunk
+     * @param at    the offset of the slot
+     * @return the path
+     */
+    private byte[] pathOf(MappedByteBuffer chunk, int at) {
+        try {
+            return heap.read(chunk.getLong(at + PATH), chunk.getInt(at + LENGTH));
+        } catch (IOException e) {
+            throw new IllegalStateException("path heap unreadable", e);
+        }
+    }
+
+    /**
+     * Hash of a slot.
+     *
+     * @param chunk the chunk
+     * @param at    the offset of the slot
+     * @return the hash in hex, null if not known
+     */
+    private static String hashOf(MappedByteBuffer chunk, int at) {
+        StringBuilder hex = new StringBuilder(HASH_SIZE * 2);
+        boolean known = false;
+        for (int i = 0; i < HASH_SIZE; i++) {
+            int b = chunk.get(at + HASH + i) & 0xff;
+            known |= b != 0;
+            hex.append(Character.forDigit(b >> 4, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return known ? hex.toString() : null;
+    }
+
+    /**
+     * Chunk of the table holding a slot.
+     *
+     * @param slot the slot
+     * @return the chunk
+     */
+    private MappedByteBuffer chunkOf(long slot) {
+        return table[(int) (slot / chunkSlots)];
+    }
+
+    /**
+     * Offset of a slot in its chunk.
+     *
+     * @param slot the slot
+     * @return the offset
+     */
+    private int offsetOf(long slot) {
+        return (int) (slot % chunkSlots) * SLOT;
+    }
+
+    /**
+     * Read usernames, in the order they got their ids.
+     *
+     * @param file the users file
+     * @throws IOException the io exception
+     */
+    private void readUsers(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        ByteArrayInputStream buffer = new ByteArrayInputStream(bytes);
+        DataInputStream in = new DataInputStream(buffer);
+        int read = 0;
+        try {
+            while (buffer.available() > 0) {
+                String username = in.readUTF();
+                userIds.put(username, users.size());
+                users.add(username);
+                read = bytes.length - buffer.available();
+            }
+        } catch (EOFException e) {
+            // a name cut short by a crash, it's given again
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(read);
+            }
+        }
+    }
+
+    /**
+     * Key of a file, never 0.
+     *
+     * @param user  the user id
+     * @param bytes the path
+     * @return the key
+     */
+    private static long keyOf(int user, byte[] bytes) {
+        // FNV-1a, then mixed so the low bits picking the slot depend on all of them
+        long hash = 0xcbf29ce484222325L ^ user;
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash != 0 ? hash : 1;
+    }
+
+    /**
+     * The type Heap of paths, mapped a chunk at a time as it grows.
+     */
+    private static final class Heap implements Closeable {
+        /**
+         * The Channel.
+         */
+        private final FileChannel channel;
+        /**
+         * The Mappings by chunk.
+         */
+        private final List<MappedByteBuffer> chunks = new ArrayList<>();
+        /**
+         * The End of the paths.
+         */
+        private long end;
+
+        /**
+         * Instantiates a new Heap.
+         *
+         * @param file the heap file
+         * @param end  the end of the paths
+         * @throws IOException the io exception
+         */
+        private Heap(Path file, long end) throws IOException {
+            this.channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.end = end;
+        }
+
+        /**
+         * Append path.
+         *
+         * @param bytes the path
+         * @return the offset of the path
+         * @throws IOException the io exception
+         */
+        private long append(byte[] bytes) throws IOException {
+            if (end % HEAP_CHUNK + bytes.length > HEAP_CHUNK) {
+                // never across two mappings
+                end = (end / HEAP_CHUNK + 1) * HEAP_CHUNK;
+            }
+            long offset = end;
+            ByteBuffer chunk = chunk(offset).duplicate();
+            chunk.position((int) (offset % HEAP_CHUNK));
+            chunk.put(bytes);
+            end += bytes.length;
+            return offset;
+        }
+
+        /**
+         * Read path.
+         *
+         * @param offset the offset
+         * @param length the length
+         * @return the path
+         * @throws IOException the io exception
+         */
+        private byte[] read(long offset, int length) throws IOException {
+            byte[] bytes = new byte[length];
+            ByteBuffer chunk = chunk(offset).duplicate();
+            chunk.position((int) (offset % HEAP_CHUNK));
+            chunk.get(bytes);
+            return bytes;
+        }
+
+        /**
+         * Size of the file.
+         *
+         * @return the size
+         * @throws IOException the io exception
+         */
+        private long size() throws IOException {
+            return channel.size();
+        }
+
+        /**
+         * Force mapped chunks to disk.
+         */
+        private void force() {
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+        }
+
+        /**
+         * Chunk holding an offset, mapped when first needed.
+         *
+         * @param offset the offset
+         * @return the chunk
+         * @throws IOException the io exception
+         */
+        private MappedByteBuffer chunk(long offset) throws IOException {
+            int index = (int) (offset / HEAP_CHUNK);
+            while (chunks.size() <= index) {
+                chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) chunks.size() * HEAP_CHUNK, HEAP_CHUNK));
+            }
+            return chunks.get(index);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
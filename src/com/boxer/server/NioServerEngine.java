@@ -0,0 +1,1799 @@
+package com.boxer.server;
+
+import com.boxer.ConsoleLog;
+import com.boxer.FileTransfer;
+import com.boxer.protocol.Frame;
+import com.boxer.protocol.FrameType;
+import com.boxer.protocol.PayloadWriter;
+import com.boxer.protocol.Protocol;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * The type Nio server engine.
+ * <p>
+ * Serves every user from a small fixed set of selector threads (one per core). Each connection keeps its place
+ * in the 10/20/30/40/50 opcode exchange as a {@link State}, so an idle user costs a few hundred bytes of heap
+ * instead of a parked thread. Anything touching the disk runs on a separate file worker pool and reading from
+ * the connection is paused until it completes, except for file bodies which the kernel sends from the page cache.
+ * Framed connections are decoded here as well, their requests go to a {@link SessionHandler} on the file workers.
+ */
+class NioServerEngine {
+    /**
+     * The constant LOGGER.
+     */
+    private static final Logger LOGGER = Logger.getLogger(NioServerEngine.class.getName());
+
+    /**
+     * The constant INITIAL_BUFFER_SIZE.
+     */
+// variables
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    /**
+     * The constant MAX_MESSAGE_SIZE (int opcode + longest modified UTF-8 string).
+     */
+    private static final int MAX_MESSAGE_SIZE = 4 + 2 + 65535;
+    /**
+     * The constant MAX_FRAME_SIZE.
+     */
+    private static final int MAX_FRAME_SIZE = Protocol.HEADER_SIZE + Protocol.MAX_PAYLOAD;
+    /**
+     * The constant MAX_GATHER, buffers written with a single call.
+     */
+    private static final int MAX_GATHER = 64;
+    /**
+     * The constant STATS_INTERVAL in milliseconds.
+     */
+    private static final long STATS_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * The Manager.
+     */
+    private final ServerCommunicationManager manager;
+    /**
+     * The Server channel.
+     */
+    private final ServerSocketChannel serverChannel;
+    /**
+     * The Loops.
+     */
+    private final EventLoop[] loops;
+    /**
+     * The File workers.
+     */
+    private final ExecutorService fileWorkers;
+    /**
+     * The Session count.
+     */
+    private final AtomicInteger sessionCount = new AtomicInteger();
+    /**
+     * The Next loop.
+     */
+    private int nextLoop;
+
+    /**
+     * Instantiates a new Nio server engine.
+     *
+     * @param manager the manager
+     * @param port    the port
+     * @param backlog the backlog
+     * @throws IOException the io exception
+     */
+    NioServerEngine(ServerCommunicationManager manager, int port, int backlog) throws IOException {
+        this.manager = manager;
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.bind(new InetSocketAddress(port), backlog);
+            serverChannel.configureBlocking(false);
+
+            int loopCount = Runtime.getRuntime().availableProcessors();
+            loops = new EventLoop[loopCount];
+            for (int i = 0; i < loopCount; i++) {
+                loops[i] = new EventLoop(i);
+            }
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        fileWorkers = Executors.newFixedThreadPool(Math.max(2, loops.length), namedThreads("boxer-nio-file"));
+    }
+
+    /**
+     * Named threads thread factory.
+     *
+     * @param prefix the prefix
+     * @return the thread factory
+     */
+    private static ThreadFactory namedThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Start.
+     */
+    void start() {
+        loops[0].execute(() -> {
+            try {
+                serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                ConsoleLog.getInstance().log("Error, couldn't handle new client connection request!\n");
+            }
+        });
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Shutdown.
+     *
+     * @throws IOException the io exception
+     */
+    void shutdown() throws IOException {
+        for (EventLoop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+        fileWorkers.shutdownNow();
+        serverChannel.close();
+    }
+
+    /**
+     * Gets session count.
+     *
+     * @return the session count
+     */
+    int getSessionCount() {
+        return sessionCount.get();
+    }
+
+    /**
+     * Accept connections.
+     */
+    private void acceptConnections() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+
+                // spread users evenly over the selector threads
+                final SocketChannel accepted = channel;
+                final long acceptedAt = manager.getLoginMetrics().accepted();
+                final EventLoop loop = loops[nextLoop++ % loops.length];
+                loop.execute(() -> loop.register(accepted, acceptedAt));
+            }
+        } catch (IOException e) {
+            ConsoleLog.getInstance().log("Error, couldn't handle new client connection request!\n");
+        }
+    }
+
+    /**
+     * Log stats.
+     */
+    private void logStats() {
+        Runtime runtime = Runtime.getRuntime();
+        long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+        int sessions = sessionCount.get();
+        LOGGER.info(String.format("nio engine: %d sessions, %d KB heap used, %d KB heap max, %d loops",
+                sessions, usedHeap / 1024, runtime.maxMemory() / 1024, loops.length));
+    }
+
+    /**
+     * The enum State.
+     */
+    private enum State {
+        /**
+         * Waiting for the username or the magic of a framed connection.
+         */
+        USERNAME,
+        /**
+         * Waiting for the next frame.
+         */
+        FRAME,
+        /**
+         * Receiving the body of a frame.
+         */
+        FRAME_BODY,
+        /**
+         * Waiting for the initial 30 code.
+         */
+        LOGIN_USER_LIST,
+        /**
+         * Waiting for the initial 10 code.
+         */
+        LOGIN_SYNC,
+        /**
+         * Waiting for the next opcode.
+         */
+        IDLE,
+        /**
+         * Waiting for the name of the file to share.
+         */
+        SHARE_FILE,
+        /**
+         * Waiting for the user to share with.
+         */
+        SHARE_USER,
+        /**
+         * Waiting for the number of uploaded files.
+         */
+        UPLOAD_COUNT,
+        /**
+         * Waiting for the length of the next uploaded file.
+         */
+        UPLOAD_LENGTH,
+        /**
+         * Waiting for the name of the next uploaded file.
+         */
+        UPLOAD_NAME,
+        /**
+         * Receiving the content of an uploaded file.
+         */
+        UPLOAD_BODY,
+        /**
+         * Waiting for the name of the file to delete.
+         */
+        DELETE_NAME,
+        /**
+         * Sending a reply which has to complete before reading on.
+         */
+        REPLYING,
+        /**
+         * Connection is going away.
+         */
+        CLOSING
+    }
+
+    /**
+     * The interface Io callback.
+     *
+     * @param <T> the result type
+     */
+    private interface IoCallback<T> {
+        /**
+         * Accept.
+         *
+         * @param result the result
+         * @throws IOException the io exception
+         */
+        void accept(T result) throws IOException;
+    }
+
+    /**
+     * The type Part upload, a body received next to its file and moved over it once complete, so a broken upload
+     * leaves the file as it was.
+     */
+    private static final class PartUpload {
+        /**
+         * The File.
+         */
+        private final File file;
+        /**
+         * The Part file.
+         */
+        private final Path part;
+        /**
+         * The Target the body is written to.
+         */
+        private final RandomAccessFile target;
+
+        /**
+         * Instantiates a new Part upload, sized up front.
+         *
+         * @param file   the file
+         * @param length the length
+         * @throws IOException the io exception
+         */
+        PartUpload(File file, long length) throws IOException {
+            this.file = file;
+            part = FileTransfer.partOf(file);
+            RandomAccessFile opened = null;
+            try {
+                opened = new RandomAccessFile(part.toFile(), "rw");
+                opened.setLength(length);
+            } catch (IOException e) {
+                if (opened != null) {
+                    opened.close();
+                }
+                Files.deleteIfExists(part);
+                throw e;
+            }
+            target = opened;
+        }
+
+        /**
+         * Gets channel.
+         *
+         * @return the channel
+         */
+        FileChannel getChannel() {
+            return target.getChannel();
+        }
+
+        /**
+         * Install, the body is complete.
+         *
+         * @throws IOException the io exception
+         */
+        void install() throws IOException {
+            try {
+                target.close();
+                FileTransfer.install(part, file);
+            } finally {
+                Files.deleteIfExists(part);
+            }
+        }
+
+        /**
+         * Discard, the body broke off.
+         */
+        void discard() {
+            try {
+                target.close();
+                Files.deleteIfExists(part);
+            } catch (IOException e) {
+                LOGGER.info("couldn't remove " + part + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The type Event loop.
+     */
+    private final class EventLoop implements Runnable {
+        /**
+         * The Selector.
+         */
+        private final Selector selector;
+        /**
+         * The Thread.
+         */
+        private final Thread thread;
+        /**
+         * The Tasks.
+         */
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        /**
+         * The Running.
+         */
+        private volatile boolean running = true;
+
+        /**
+         * Instantiates a new Event loop.
+         *
+         * @param index the index
+         * @throws IOException the io exception
+         */
+        EventLoop(int index) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "boxer-nio-loop-" + index);
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Execute task on this loop.
+         *
+         * @param task the task
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Register.
+         *
+         * @param channel    the channel
+         * @param acceptedAt the accept timestamp
+         */
+        void register(SocketChannel channel, long acceptedAt) {
+            try {
+                // replies are small and each one is awaited, don't let them sit in the send buffer
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                NioSession session = new NioSession(channel, this, acceptedAt);
+                session.key = channel.register(selector, SelectionKey.OP_READ, session);
+                sessionCount.incrementAndGet();
+            } catch (IOException e) {
+                ConsoleLog.getInstance().log("Error, couldn't handle new client connection request!\n");
+                try {
+                    channel.close();
+                } catch (IOException ignored) {}
+            }
+        }
+
+        @Override
+        public void run() {
+            long lastStats = System.currentTimeMillis();
+            while (running) {
+                try {
+                    selector.select(STATS_INTERVAL);
+                } catch (IOException e) {
+                    LOGGER.severe("selector failed: " + e.getMessage());
+                    break;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptConnections();
+                    } else {
+                        ((NioSession) key.attachment()).handle(key);
+                    }
+                }
+
+                // only the first loop reports, it owns the server channel
+                long now = System.currentTimeMillis();
+                if (this == loops[0] && now - lastStats >= STATS_INTERVAL) {
+                    lastStats = now;
+                    logStats();
+                }
+            }
+
+            // close what's left on shutdown
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioSession) {
+                    ((NioSession) key.attachment()).close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * The type Nio session.
+     */
+    private final class NioSession {
+        /**
+         * The Channel.
+         */
+        private final SocketChannel channel;
+        /**
+         * The Loop.
+         */
+        private final EventLoop loop;
+        /**
+         * The Accept timestamp.
+         */
+        private final long acceptedAt;
+        /**
+         * The Outbound queue.
+         */
+        private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+        /**
+         * The Bulk queue of file regions and the frames ending them, outbound replies may overtake it.
+         */
+        private final Deque<Object> bulk = new ArrayDeque<>();
+        /**
+         * The Key.
+         */
+        private SelectionKey key;
+        /**
+         * The Inbound buffer, kept in write mode between reads.
+         */
+        private ByteBuffer inbound = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        /**
+         * The State.
+         */
+        private State state = State.USERNAME;
+        /**
+         * The Client of an old connection.
+         */
+        private Client client;
+        /**
+         * The Handler of a framed connection.
+         */
+        private SessionHandler handler;
+        /**
+         * The Frame whose body is being received.
+         */
+        private Frame bodyFrame;
+        /**
+         * The Suspended flag, set while offloaded work is running.
+         */
+        private boolean suspended;
+        /**
+         * The Closed.
+         */
+        private boolean closed;
+        /**
+         * The Events of the user waiting to be sent.
+         */
+        private EventQueue events;
+        /**
+         * The File sender.
+         */
+        private FileSender sender;
+        /**
+         * The Share file.
+         */
+        private String shareFile;
+        /**
+         * The Files left to upload.
+         */
+        private int filesLeft;
+        /**
+         * The Upload length.
+         */
+        private long uploadLength;
+        /**
+         * The Upload position.
+         */
+        private long uploadPosition;
+        /**
+         * The Upload.
+         */
+        private PartUpload upload;
+        /**
+         * The Upload file of an old client, indexed once complete.
+         */
+        private File uploadFile;
+        /**
+         * The Probe read flag, set when a transfer came back empty and a plain read has to tell if the user left.
+         */
+        private boolean probeRead;
+
+        /**
+         * Instantiates a new Nio session.
+         *
+         * @param channel    the channel
+         * @param loop       the loop
+         * @param acceptedAt the accept timestamp
+         */
+        NioSession(SocketChannel channel, EventLoop loop, long acceptedAt) {
+            this.channel = channel;
+            this.loop = loop;
+            this.acceptedAt = acceptedAt;
+        }
+
+        /**
+         * Handle.
+         *
+         * @param key the key
+         */
+        void handle(SelectionKey key) {
+            try {
+                if (key.isReadable()) {
+                    read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    write();
+                }
+            } catch (Exception e) {
+                fail();
+            }
+        }
+
+        /**
+         * Read.
+         *
+         * @throws IOException the io exception
+         */
+        private void read() throws IOException {
+            if ((state == State.UPLOAD_BODY || state == State.FRAME_BODY) && upload != null && inbound.position() == 0 && !probeRead) {
+                receiveBody();
+                return;
+            }
+            probeRead = false;
+
+            if (!inbound.hasRemaining()) {
+                growInbound();
+            }
+            int count = channel.read(inbound);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            process();
+        }
+
+        /**
+         * Grow inbound buffer.
+         *
+         * @throws IOException the io exception
+         */
+        private void growInbound() throws IOException {
+            int maxSize = handler != null ? MAX_FRAME_SIZE : MAX_MESSAGE_SIZE;
+            if (inbound.capacity() >= maxSize) {
+                throw new SocketException("message too long");
+            }
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(maxSize, inbound.capacity() * 4));
+            inbound.flip();
+            bigger.put(inbound);
+            inbound = bigger;
+        }
+
+        /**
+         * Shrink inbound buffer back once a large message was consumed, idle users should stay cheap.
+         */
+        private void shrinkInbound() {
+            if (inbound.capacity() > INITIAL_BUFFER_SIZE && inbound.position() <= INITIAL_BUFFER_SIZE) {
+                ByteBuffer smaller = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+                inbound.flip();
+                smaller.put(inbound);
+                inbound = smaller;
+            }
+        }
+
+        /**
+         * Process buffered input.
+         *
+         * @throws IOException the io exception
+         */
+        private void process() throws IOException {
+            inbound.flip();
+            try {
+                boolean progress = true;
+                while (progress && !suspended && !closed) {
+                    progress = step();
+                }
+            } finally {
+                inbound.compact();
+            }
+            if (state == State.IDLE || state == State.FRAME) {
+                shrinkInbound();
+            }
+        }
+
+        /**
+         * Advance the state machine by one message.
+         *
+         * @return true if a message was consumed
+         * @throws IOException the io exception
+         */
+        private boolean step() throws IOException {
+            switch (state) {
+                case USERNAME:
+                    return onUsername();
+                case FRAME:
+                    return onFrame();
+                case FRAME_BODY:
+                    return onFrameBody();
+                case LOGIN_USER_LIST:
+                    return onLoginUserList();
+                case LOGIN_SYNC:
+                    return onLoginSync();
+                case IDLE:
+                    return onOpcode();
+                case SHARE_FILE:
+                    return onShareFile();
+                case SHARE_USER:
+                    return onShareUser();
+                case UPLOAD_COUNT:
+                    return onUploadCount();
+                case UPLOAD_LENGTH:
+                    return onUploadLength();
+                case UPLOAD_NAME:
+                    return onUploadName();
+                case UPLOAD_BODY:
+                    return onUploadBody();
+                case DELETE_NAME:
+                    return onDeleteName();
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * On username.
+         *
+         * @return the boolean
+         * @throws IOException the io exception
+         */
+        private boolean onUsername() throws IOException {
+            if (inbound.remaining() < 2) {
+                return false;
+            }
+            if ((inbound.getShort(inbound.position()) & 0xFFFF) == Protocol.MAGIC) {
+                // framed connection, the login comes as the first frame
+                inbound.getShort();
+                handler = new SessionHandler(manager, new NioTransport(), acceptedAt, fileWorkers);
+                state = State.FRAME;
+                return true;
+            }
+
+            String userName = readUtf();
+            if (userName == null) {
+                return false;
+            }
+
+            ConsoleLog consoleLog = ConsoleLog.getInstance();
+            client = manager.registerUser(userName, channel.socket());
+            if (client == null) {
+                // send -1 code if username already exists
+                enqueueInt(-1);
+                manager.getLoginMetrics().handshakeCompleted(acceptedAt);
+                state = State.CLOSING;
+                consoleLog.log("Error, couldn't add new user: username already in-use!\n");
+                return false;
+            }
+
+            // its index may need loading, shown by the UI once it is
+            final Client joined = client;
+            fileWorkers.execute(() -> manager.userJoined(joined));
+
+            // send 65 code on successful connection
+            enqueueInt(65);
+            manager.getLoginMetrics().handshakeCompleted(acceptedAt);
+            consoleLog.log("New user " + userName + " connected!\n");
+            state = State.LOGIN_USER_LIST;
+            return true;
+        }
+
+        /**
+         * On frame.
+         *
+         * @return the boolean
+         * @throws IOException the io exception
+         */
+        private boolean onFrame() throws IOException {
+            final Frame frame = Frame.decode(inbound);
+            if (frame == null) {
+                return false;
+            }
+
+            if (frame.hasBody()) {
+                // the handler picks the target, opening and sizing it is disk work
+                final long length = frame.getBodyLength();
+                bodyFrame = frame;
+                uploadLength = length;
+                uploadPosition = 0;
+                state = State.FRAME_BODY;
+                offload(() -> {
+                    File file = handler.bodyTarget(frame);
+                    return file != null ? new PartUpload(file, length) : null;
+                }, target -> upload = target);
+                return false;
+            }
+
+            offload(() -> {
+                handler.onFrame(frame);
+                return frame;
+            }, handled -> {});
+            return false;
+        }
+
+        /**
+         * On frame body.
+         *
+         * @return the boolean
+         * @throws IOException the io exception
+         */
+        private boolean onFrameBody() throws IOException {
+            if (uploadPosition == uploadLength) {
+                final PartUpload received = takeUpload();
+                final Frame frame = bodyFrame;
+                bodyFrame = null;
+                state = State.FRAME;
+                offload(() -> {
+                    if (received != null) {
+                        received.install();
+                    }
+                    handler.onBodyReceived(frame);
+                    return frame;
+                }, handled -> {});
+                return false;
+            }
+            if (upload == null) {
+                // nowhere to store the body, drop it
+                int count = (int) Math.min(inbound.remaining(), uploadLength - uploadPosition);
+                inbound.position(inbound.position() + count);
+                uploadPosition += count;
+                return count > 0 || uploadPosition == uploadLength;
+            }
+            return writeBuffered();
+        }
+
+        /**
+         * On login user list.
+         *
+         * @return the boolean
+         * @throws IOException the io exception
+         */
+        private boolean onLoginUserList() throws IOException {
+            Integer code = readInt();
+            if (code == null) {
+                return false;
+            }
+            if (code != 30) {
+                throw new SocketException();
+            }
+            enqueueUtf(manager.userListPayload());
+            state = State.LOGIN_SYNC;
+            return true;
+        }
+
+        /**
+         * On login sync.
+         *
+         * @return the boolean
+         * @throws IOException the io exception
+         */
+        private boolean onLoginSync() throws IOException {
+            Integer code = readInt();
+            if (code == null) {
+                return false;
+            }
+            if (code != 10) {
+                throw new SocketException();
+            }
+
+            // walking the user directory may take a while
+            state = State.REPLYING;
+            offload(() -> manager.createFilesToSend(ConsoleLog.getInstance(), client), files -> {
+                if (files == null) {
+                    // user already disconnected by the manager
+                    client = null;
+                    close();
+                    return;
+                }
+                startSending(files, true, () -> state = State.IDLE);
+            });
+            return false;
+        }
+
+        /**
+         * On opcode.
+         *
+         * @return the boolean
+         * @throws IOException the io exception
+         */
+        private boolean onOpcode() throws IOException {
+            Integer reply = readInt();
+            if (reply == null) {
+                return false;
+            }
+            LOGGER.info("reply from client: " + reply);
+
+            switch (reply) {
+                case 10:
+                    shareFileAvailable();
+                    return false;
+                case 20:
+                    enqueueInt(25);
+                    state = State.SHARE_FILE;
+                    return true;
+                case 30:
+                    enqueueUtf(manager.userListPayload());
+                    return true;
+                case 40:
+                    enqueueInt(45);
+                    state = State.UPLOAD_COUNT;
+                    return true;
+                case 50:
+                    enqueueInt(55);
+                    state = State.DELETE_NAME;
+                    return true;
+                default:
+                    throw new SocketException();
+            }
+        }
+
+        /**
+         * Share file available.
+         */
+        private void shareFileAvailable() {
+            // the legacy reply holds every share at once, confirmed once it's out
+            final String userName = client.getUsername();
+            offload(() -> manager.shareInbox().take(userName, Integer.MAX_VALUE), batch -> offload(() -> {
+                // looking the files up and confirming an empty batch is disk work
+                File[] files = manager.sharedFilesOf(batch);
+                if (files.length == 0) {
+                    batch.commit();
+                }
+                return files;
+            }, files -> {
+                if (files.length == 0) {
+                    LOGGER.info("sending reply to client...");
+                    enqueueInt(1);
+                    return;
+                }
+
+                state = State.REPLYING;
+                startSending(files, false, () -> {
+                    state = State.IDLE;
+
+                    // the log is forced to disk, not on the selector thread
+                    fileWorkers.execute(() -> {
+                        try {
+                            batch.commit();
+                        } catch (IOException e) {
+                            LOGGER.warning("couldn't confirm shares of " + userName + ": " + e.getMessage());
+                        }
+                    });
+                });
+            }));
+        }
+
+        /**
+         * On share file.
+         *
+         * @return the boolean
+         * @throws IOException the io exception
+         */
+        private boolean onShareFile() throws IOException {
+            shareFile = readUtf();
+            if (shareFile == null) {
+                return false;
+            }
+            state = State.SHARE_USER;
+            return true;
+        }
+
+        /**
+         * On share user.
+         *
+         * @return the boolean
+         * @throws IOException the io exception
+         */
+        private boolean onShareUser() throws IOException {
+            String shareUser = readUtf();
+            if (shareUser == null) {
+                return false;
+            }
+
+            // lookup of the shared file walks the user directory
+            final String fileName = shareFile;
+            final Client sharer = client;
+            fileWorkers.execute(() -> {
+                try {
+                    manager.queueSharedFile(sharer, fileName, shareUser);
+                } catch (IOException e) {
+                    ConsoleLog.getInstance().log("Error, couldn't share file " + fileName + " with user " + shareUser + "!\n");
+                }
+            });
+            shareFile = null;
+            state = State.IDLE;
+            return true;
+        }
+
+        /**
+         * On upload count.
+         *
+         * @return the boolean
+         * @throws IOException the io exception
+         */
+        private boolean onUploadCount() throws IOException {
+            Integer count = readInt();
+            if (count == null) {
+                return false;
+            }
+            filesLeft = count;
+            nextUpload();
+            return true;
+        }
+
+        /**
+         * Next upload.
+         */
+        private void nextUpload() {
+            if (filesLeft > 0) {
+                state = State.UPLOAD_LENGTH;
+                return;
+            }
+
+            ConsoleLog.getInstance().log("Successfully synced files with user " + client.getUsername() + ".\n");
+            state = State.IDLE;
+        }
+
+        /**
+         * On upload length.
+         *
+         * @return the boolean
+         * @throws IOException the io exception
+         */
+        private boolean onUploadLength() throws IOException {
+            if (inbound.remaining() < 8) {
+                return false;
+            }
+            uploadLength = inbound.getLong();
+            state = State.UPLOAD_NAME;
+            return true;
+        }
+
+        /**
+         * On upload name.
+         *
+         * @return the boolean
+         * @throws IOException the io exception
+         */
+        private boolean onUploadName() throws IOException {
+            String fileFullName = readUtf();
+            if (fileFullName == null) {
+                return false;
+            }
+
+            // creating directories and sizing the file up front is disk work
+            final File file = manager.resolveUserFile(client, fileFullName);
+            uploadFile = file;
+            state = State.UPLOAD_BODY;
+            offload(() -> {
+                file.getParentFile().mkdirs();
+                return new PartUpload(file, uploadLength);
+            }, target -> {
+                upload = target;
+                uploadPosition = 0;
+            });
+            return false;
+        }
+
+        /**
+         * On upload body.
+         *
+         * @return the boolean
+         * @throws IOException the io exception
+         */
+        private boolean onUploadBody() throws IOException {
+            if (uploadPosition == uploadLength) {
+                final PartUpload received = takeUpload();
+                final File file = uploadFile;
+                final Client owner = client;
+                uploadFile = null;
+                filesLeft--;
+
+                // in place before the next request, indexed meanwhile
+                offload(() -> {
+                    received.install();
+                    fileWorkers.execute(() -> {
+                        try {
+                            manager.indexOf(owner).update(file);
+                        } catch (IOException e) {
+                            LOGGER.info("couldn't index " + file + ": " + e.getMessage());
+                        }
+                    });
+                    return file;
+                }, installed -> nextUpload());
+                return false;
+            }
+            return writeBuffered();
+        }
+
+        /**
+         * Take upload whose body is complete, to be installed off the loop.
+         *
+         * @return the upload or null if the body was dropped
+         */
+        private PartUpload takeUpload() {
+            PartUpload received = upload;
+            upload = null;
+            return received;
+        }
+
+        /**
+         * Write buffered body bytes to the upload.
+         *
+         * @return the boolean
+         */
+        private boolean writeBuffered() {
+            if (!inbound.hasRemaining()) {
+                // the rest of the body goes from socket to file on the next read event
+                return false;
+            }
+
+            // bytes which came in together with the header are written first
+            int count = (int) Math.min(inbound.remaining(), uploadLength - uploadPosition);
+            ByteBuffer chunk = ByteBuffer.allocate(count);
+            inbound.get(chunk.array());
+            final FileChannel target = upload.getChannel();
+            final long position = uploadPosition;
+            offload(() -> {
+                while (chunk.hasRemaining()) {
+                    target.write(chunk, position + chunk.position());
+                }
+                return count;
+            }, written -> uploadPosition += written);
+            return false;
+        }
+
+        /**
+         * Receive body, moves whatever the socket holds into the upload without a heap copy.
+         */
+        private void receiveBody() {
+            final FileChannel target = upload.getChannel();
+            final long position = uploadPosition;
+            final long remaining = uploadLength - uploadPosition;
+            offload(() -> target.transferFrom(channel, position, remaining), transferred -> {
+                if (transferred == 0) {
+                    // nothing there or end of stream, let a plain read tell
+                    probeRead = true;
+                }
+                uploadPosition += transferred;
+            });
+        }
+
+        /**
+         * On delete name.
+         *
+         * @return the boolean
+         * @throws IOException the io exception
+         */
+        private boolean onDeleteName() throws IOException {
+            String fileName = readUtf();
+            if (fileName == null) {
+                return false;
+            }
+
+            final Client owner = client;
+            fileWorkers.execute(() -> {
+                File file = manager.resolveUserFile(owner, fileName);
+                file.delete();
+                try {
+                    manager.indexOf(owner).update(file);
+                } catch (IOException e) {
+                    LOGGER.info("couldn't index " + file + ": " + e.getMessage());
+                }
+                ConsoleLog.getInstance().log("Successfully synced files with user " + owner.getUsername() + ".\n");
+            });
+            state = State.IDLE;
+            return true;
+        }
+
+        /**
+         * Start sending files, the reply finishes when every file was written out.
+         *
+         * @param files      the files
+         * @param ownFiles   the own files
+         * @param onComplete the on complete
+         * @throws IOException the io exception
+         */
+        private void startSending(File[] files, boolean ownFiles, Runnable onComplete) throws IOException {
+            ByteArrayOutputStream header = new ByteArrayOutputStream(8);
+            DataOutputStream dos = new DataOutputStream(header);
+            dos.writeInt(15);
+            dos.writeInt(files.length);
+            enqueue(ByteBuffer.wrap(header.toByteArray()));
+            sender = new FileSender(files, ownFiles, onComplete);
+        }
+
+        /**
+         * Offload blocking work to the file workers and continue on this loop with its result.
+         *
+         * @param <T>  the result type
+         * @param work the work
+         * @param then the continuation
+         */
+        private <T> void offload(Callable<T> work, IoCallback<T> then) {
+            suspended = true;
+            updateInterest();
+            fileWorkers.execute(() -> {
+                try {
+                    T result = work.call();
+                    loop.execute(() -> {
+                        if (closed) {
+                            if (result instanceof PartUpload) {
+                                // opened for a session that is gone meanwhile
+                                fileWorkers.execute(((PartUpload) result)::discard);
+                            }
+                            return;
+                        }
+                        try {
+                            suspended = false;
+                            then.accept(result);
+                            updateInterest();
+                            process();
+                        } catch (Exception e) {
+                            fail();
+                        }
+                    });
+                } catch (Exception e) {
+                    loop.execute(this::fail);
+                }
+            });
+        }
+
+        /**
+         * Read int.
+         *
+         * @return the int or null if not buffered yet
+         */
+        private Integer readInt() {
+            if (inbound.remaining() < 4) {
+                return null;
+            }
+            return inbound.getInt();
+        }
+
+        /**
+         * Read modified UTF-8 string as written by DataOutputStream.
+         *
+         * @return the string or null if not buffered yet
+         * @throws IOException the io exception
+         */
+        private String readUtf() throws IOException {
+            if (inbound.remaining() < 2) {
+                return null;
+            }
+            int length = inbound.getShort(inbound.position()) & 0xFFFF;
+            if (inbound.remaining() < 2 + length) {
+                return null;
+            }
+            byte[] bytes = new byte[2 + length];
+            inbound.get(bytes);
+            return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+        }
+
+        /**
+         * Enqueue int.
+         *
+         * @param value the value
+         */
+        private void enqueueInt(int value) {
+            ByteBuffer buffer = ByteBuffer.allocate(4);
+            buffer.putInt(value).flip();
+            enqueue(buffer);
+        }
+
+        /**
+         * Enqueue modified UTF-8 string.
+         *
+         * @param value the value
+         * @throws IOException the io exception
+         */
+        private void enqueueUtf(String value) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(value.length() + 2);
+            new DataOutputStream(bytes).writeUTF(value);
+            enqueue(ByteBuffer.wrap(bytes.toByteArray()));
+        }
+
+        /**
+         * Enqueue.
+         *
+         * @param buffer the buffer
+         */
+        private void enqueue(ByteBuffer buffer) {
+            outbound.add(buffer);
+            updateInterest();
+        }
+
+        /**
+         * Enqueue bulk.
+         *
+         * @param item the file region, buffer or future completed once written up to it
+         */
+        private void enqueueBulk(Object item) {
+            bulk.add(item);
+            updateInterest();
+        }
+
+        /**
+         * Write queued replies. Replies go first unless a file body is halfway out, which has to finish before
+         * anything else may be written.
+         *
+         * @throws IOException the io exception
+         */
+        private void write() throws IOException {
+            while (pullEvents() || !bulk.isEmpty()) {
+                boolean written = !bulkStarted() && !outbound.isEmpty() ? writeOutbound() : writeBulk();
+                if (!written) {
+                    // socket buffer full, wait for the next write event
+                    return;
+                }
+            }
+
+            if (sender != null) {
+                sender.pump();
+            } else if (state == State.CLOSING) {
+                close();
+            }
+            updateInterest();
+        }
+
+        /**
+         * Pull waiting events into the outbound queue once the replies before them went out.
+         *
+         * @return true if there is anything outbound
+         */
+        private boolean pullEvents() {
+            if (outbound.isEmpty() && events != null) {
+                for (Frame event = events.poll(); event != null; event = events.poll()) {
+                    outbound.add(event.encode());
+                    if (outbound.size() == MAX_GATHER) {
+                        break;
+                    }
+                }
+            }
+            return !outbound.isEmpty();
+        }
+
+        /**
+         * Write outbound replies.
+         *
+         * @return true if all of them were written
+         * @throws IOException the io exception
+         */
+        private boolean writeOutbound() throws IOException {
+            // small frames queued back to back leave with a single gathering write
+            ByteBuffer[] buffers = new ByteBuffer[Math.min(outbound.size(), MAX_GATHER)];
+            Iterator<ByteBuffer> queued = outbound.iterator();
+            for (int i = 0; i < buffers.length; i++) {
+                buffers[i] = queued.next();
+            }
+            channel.write(buffers);
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+                outbound.poll();
+            }
+            return true;
+        }
+
+        /**
+         * Write next bulk item.
+         *
+         * @return true if it was written completely
+         * @throws IOException the io exception
+         */
+        @SuppressWarnings("unchecked")
+        private boolean writeBulk() throws IOException {
+            Object next = bulk.peek();
+            if (next instanceof CompletableFuture) {
+                // a marker, whoever waits for it continues on its own executor
+                ((CompletableFuture<Void>) bulk.poll()).complete(null);
+                return true;
+            }
+            if (next instanceof FileRegion) {
+                if (!((FileRegion) next).transferTo(channel)) {
+                    return false;
+                }
+            } else {
+                ByteBuffer buffer = (ByteBuffer) next;
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return false;
+                }
+            }
+            bulk.poll();
+            return true;
+        }
+
+        /**
+         * Bulk started boolean.
+         *
+         * @return true if the next bulk item was partly written
+         */
+        private boolean bulkStarted() {
+            Object next = bulk.peek();
+            if (next instanceof FileRegion) {
+                return ((FileRegion) next).isStarted();
+            }
+            return next instanceof ByteBuffer && ((ByteBuffer) next).position() > 0;
+        }
+
+        /**
+         * Update interest.
+         */
+        private void updateInterest() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            int ops = 0;
+            if (!suspended && state != State.REPLYING && state != State.CLOSING) {
+                ops |= SelectionKey.OP_READ;
+            }
+            if (!outbound.isEmpty() || !bulk.isEmpty() || (events != null && events.hasPending())
+                    || state == State.CLOSING || (sender != null && !sender.pending)) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+
+        /**
+         * Fail.
+         */
+        private void fail() {
+            if (closed) {
+                return;
+            }
+            Client current = currentClient();
+            if (current != null && !isDataChannel()) {
+                System.out.println("Error, couldn't establish a connection with user " + current.getUsername() + "!");
+                ConsoleLog.getInstance().log("Error, couldn't establish a connection with user " + current.getUsername() + "!\n");
+            }
+            close();
+        }
+
+        /**
+         * Current client.
+         *
+         * @return the logged in client or null
+         */
+        private Client currentClient() {
+            return handler != null ? handler.getClient() : client;
+        }
+
+        /**
+         * Is data channel boolean.
+         *
+         * @return true if the connection carries file bodies for the session of another one
+         */
+        private boolean isDataChannel() {
+            return handler != null && handler.isDataChannel();
+        }
+
+        /**
+         * Close.
+         */
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            sessionCount.decrementAndGet();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+            if (upload != null) {
+                // the body broke off, the file keeps its old content
+                final PartUpload broken = takeUpload();
+                if (!fileWorkers.isShutdown()) {
+                    fileWorkers.execute(broken::discard);
+                }
+            }
+            try {
+                if (sender != null) {
+                    sender.closeCurrent();
+                }
+                for (Object next : bulk) {
+                    if (next instanceof FileRegion) {
+                        ((FileRegion) next).close();
+                    } else if (next instanceof CompletableFuture) {
+                        ((CompletableFuture<?>) next).completeExceptionally(new ClosedChannelException());
+                    }
+                }
+            } catch (IOException ignored) {}
+            if (handler != null && !fileWorkers.isShutdown()) {
+                // deltas of patches cut off by the close
+                fileWorkers.execute(handler::end);
+            }
+
+            if (isDataChannel()) {
+                // the user only leaves with its control connection
+                handler.detach();
+                return;
+            }
+
+            // disconnect user and refresh file tree off the loop
+            final Client disconnected = currentClient();
+            if (disconnected != null && !fileWorkers.isShutdown()) {
+                fileWorkers.execute(() -> manager.disconnectClient(disconnected));
+            }
+        }
+
+        /**
+         * The type Nio transport, replies of the session handler. Called from the file workers, frames are handed
+         * over to the loop in order.
+         */
+        private final class NioTransport implements SessionTransport {
+            @Override
+            public Socket getSocket() {
+                return channel.socket();
+            }
+
+            @Override
+            public void send(Frame frame) {
+                final ByteBuffer buffer = frame.encode();
+                loop.execute(() -> {
+                    if (!closed) {
+                        enqueue(buffer);
+                    }
+                });
+            }
+
+            @Override
+            public void sendFile(int requestId, String path, File file) {
+                final long length = file.length();
+                final ByteBuffer header = Frame.file(requestId, path, length, file.lastModified()).encode();
+                final FileRegion region = new FileRegion(header, file, length);
+                loop.execute(() -> {
+                    if (!closed) {
+                        enqueueBulk(region);
+                    }
+                });
+            }
+
+            @Override
+            public void sendAfterFiles(Frame frame) {
+                final ByteBuffer buffer = frame.encode();
+                loop.execute(() -> {
+                    if (!closed) {
+                        enqueueBulk(buffer);
+                    }
+                });
+            }
+
+            @Override
+            public void flush() {
+                // every frame is written as soon as the socket takes it
+            }
+
+            @Override
+            public CompletableFuture<Void> whenSent() {
+                // completed by the writer once it gets past the files queued before
+                final CompletableFuture<Void> sent = new CompletableFuture<>();
+                loop.execute(() -> {
+                    if (closed) {
+                        sent.completeExceptionally(new ClosedChannelException());
+                    } else {
+                        enqueueBulk(sent);
+                    }
+                });
+                return sent;
+            }
+
+            @Override
+            public void eventsReady(EventQueue queue) {
+                loop.execute(() -> {
+                    if (!closed) {
+                        events = queue;
+                        updateInterest();
+                    }
+                });
+            }
+
+            @Override
+            public void close() {
+                loop.execute(() -> {
+                    if (!closed) {
+                        state = State.CLOSING;
+                        updateInterest();
+                    }
+                });
+            }
+        }
+
+        /**
+         * The type File region, a file frame and its body. The file is only opened once it's next in line, so a large
+         * sync doesn't hold a descriptor per file.
+         */
+        private final class FileRegion {
+            /**
+             * The Header, the encoded file frame.
+             */
+            private final ByteBuffer header;
+            /**
+             * The File.
+             */
+            private final File file;
+            /**
+             * The Length announced in the frame.
+             */
+            private final long length;
+            /**
+             * The Source.
+             */
+            private FileChannel source;
+            /**
+             * The Position.
+             */
+            private long position;
+
+            /**
+             * Instantiates a new File region.
+             *
+             * @param header the header
+             * @param file   the file
+             * @param length the length
+             */
+            FileRegion(ByteBuffer header, File file, long length) {
+                this.header = header;
+                this.file = file;
+                this.length = length;
+            }
+
+            /**
+             * Is started boolean.
+             *
+             * @return true once the first byte went out
+             */
+            boolean isStarted() {
+                return header.position() > 0;
+            }
+
+            /**
+             * Transfer as much as the socket takes.
+             *
+             * @param target the target
+             * @return true once the whole region was sent
+             * @throws IOException the io exception
+             */
+            boolean transferTo(SocketChannel target) throws IOException {
+                if (header.hasRemaining()) {
+                    target.write(header);
+                    if (header.hasRemaining()) {
+                        return false;
+                    }
+                }
+                if (source == null) {
+                    source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                }
+                while (position < length) {
+                    long count = source.transferTo(position, length - position, target);
+                    if (count == 0) {
+                        if (position >= source.size()) {
+                            throw new EOFException("file " + file.getName() + " shrunk while sending");
+                        }
+                        return false;
+                    }
+                    position += count;
+                }
+                close();
+                return true;
+            }
+
+            /**
+             * Close.
+             *
+             * @throws IOException the io exception
+             */
+            void close() throws IOException {
+                if (source != null) {
+                    source.close();
+                    source = null;
+                }
+            }
+        }
+
+        /**
+         * The type File sender, hands file bodies to the socket with {@code transferTo} so they never pass through
+         * the heap. Only opening the next file is offloaded.
+         */
+        private final class FileSender {
+            /**
+             * The Files.
+             */
+            private final File[] files;
+            /**
+             * The Own files.
+             */
+            private final boolean ownFiles;
+            /**
+             * The On complete.
+             */
+            private final Runnable onComplete;
+            /**
+             * The Index.
+             */
+            private int index;
+            /**
+             * The Current.
+             */
+            private FileChannel current;
+            /**
+             * The Position.
+             */
+            private long position;
+            /**
+             * The Length.
+             */
+            private long length;
+            /**
+             * The Pending flag, set while the next file is being opened.
+             */
+            private boolean pending;
+
+            /**
+             * Instantiates a new File sender.
+             *
+             * @param files      the files
+             * @param ownFiles   the own files
+             * @param onComplete the on complete
+             */
+            FileSender(File[] files, boolean ownFiles, Runnable onComplete) {
+                this.files = files;
+                this.ownFiles = ownFiles;
+                this.onComplete = onComplete;
+            }
+
+            /**
+             * Write as much of the current file as the socket takes, then move on to the next one.
+             *
+             * @throws IOException the io exception
+             */
+            void pump() throws IOException {
+                if (pending) {
+                    return;
+                }
+                while (current != null) {
+                    if (position < length) {
+                        long count = current.transferTo(position, length - position, channel);
+                        if (count == 0) {
+                            if (position >= current.size()) {
+                                throw new EOFException("file shrunk while sending");
+                            }
+                            // socket buffer full, wait for the next write event
+                            return;
+                        }
+                        position += count;
+                    } else {
+                        closeCurrent();
+                        index++;
+                    }
+                }
+                if (index == files.length) {
+                    sender = null;
+                    ConsoleLog.getInstance().log("Successfully synced files with user " + client.getUsername() + ".\n");
+                    onComplete.run();
+                    process();
+                    return;
+                }
+
+                pending = true;
+                fileWorkers.execute(() -> {
+                    try {
+                        ByteBuffer header = openNext();
+                        loop.execute(() -> {
+                            pending = false;
+                            if (!closed) {
+                                enqueue(header);
+                            }
+                        });
+                    } catch (Exception e) {
+                        loop.execute(NioSession.this::fail);
+                    }
+                });
+            }
+
+            /**
+             * Open next file and encode its header.
+             *
+             * @return the header buffer
+             * @throws IOException the io exception
+             */
+            private ByteBuffer openNext() throws IOException {
+                File file = files[index];
+                current = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                position = 0;
+                length = current.size();
+                ByteArrayOutputStream header = new ByteArrayOutputStream(64);
+                DataOutputStream dos = new DataOutputStream(header);
+                dos.writeLong(length);
+
+                // get relative path to file
+                dos.writeUTF(manager.relativeName(client, file, ownFiles));
+                return ByteBuffer.wrap(header.toByteArray());
+            }
+
+            /**
+             * Close current.
+             *
+             * @throws IOException the io exception
+             */
+            void closeCurrent() throws IOException {
+                if (current != null) {
+                    current.close();
+                    current = null;
+                }
+            }
+        }
+    }
+}
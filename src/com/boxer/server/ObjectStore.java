@@ -0,0 +1,326 @@
+package com.boxer.server;
+
+import com.boxer.ConsoleLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * The type Object store.
+ * <p>
+ * Keeps file contents once, keyed by their SHA-256 hash. User directories stay ordinary directories, but their files
+ * are hard links into the store, so everything reading them works as before while identical uploads share one copy
+ * on disk and a share is a link instead of a copy. The key includes the modification time too: links share it and
+ * manifests compare it, so two uploads that differ only in their times keep separate copies.
+ * <p>
+ * Linked files must never be written in place. Uploads are written next to their name and moved over it, which only
+ * drops that name's link, and the object goes on for the other files. The catalog counts the files of each object,
+ * objects it counts none for are removed by {@link #sweep(Map)}. An object is only reused once its content checks
+ * out against the hash. Whether the file system links user files into the store is probed once at start, without
+ * links files are kept as plain copies. A link refused for another reason, like a file linked too many times already,
+ * only leaves that one file a plain copy.
+ */
+class ObjectStore {
+    /**
+     * The constant LOGGER.
+     */
+    private static final Logger LOGGER = Logger.getLogger(ObjectStore.class.getName());
+    /**
+     * The constant MIN_SIZE, smaller files aren't worth a hash and a link.
+     */
+    private static final long MIN_SIZE = 4096;
+    /**
+     * The constant BUFFER_SIZE.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The Root directory of the objects.
+     */
+    private final Path root;
+    /**
+     * The Links flag, cleared if the file system can't link user files into the store.
+     */
+    private volatile boolean links = true;
+
+    /**
+     * Instantiates a new Object store.
+     */
+    ObjectStore() {
+        this(System.getProperty("boxer.server.objects") != null ? Paths.get(System.getProperty("boxer.server.objects"))
+                : ServerCommunicationManager.storeDir("objects"));
+    }
+
+    /**
+     * Instantiates a new Object store.
+     *
+     * @param root the root directory
+     */
+    ObjectStore(Path root) {
+        this.root = root;
+    }
+
+    /**
+     * Probe hard links from the user directories into the store, disabling links if the file system has none or the
+     * store is on another one.
+     *
+     * @param users the directory of the user directories
+     */
+    void probe(Path users) {
+        Path probe = null;
+        Path link = null;
+        try {
+            Files.createDirectories(root);
+            Files.createDirectories(users);
+            probe = Files.createTempFile(users, ".boxer-probe.", ".part");
+            link = root.resolve(probe.getFileName().toString());
+            Files.createLink(link, probe);
+        } catch (UnsupportedOperationException | IOException e) {
+            disableLinks(e);
+        } finally {
+            try {
+                if (link != null) {
+                    Files.deleteIfExists(link);
+                }
+                if (probe != null) {
+                    Files.deleteIfExists(probe);
+                }
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Ingest complete file, linking it to the object with the same content or making it one. The file is left as it
+     * is if that fails.
+     *
+     * @param file the file, its modification time set already
+     * @return the content hash or null if the file wasn't stored
+     */
+    String ingest(File file) {
+        if (!links || !file.isFile() || file.length() < MIN_SIZE) {
+            return null;
+        }
+        try {
+            return link(file);
+        } catch (IOException e) {
+            LOGGER.info("couldn't store " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Link file to its object.
+     *
+     * @param file the file
+     * @return the content hash
+     * @throws IOException the io exception
+     */
+    private String link(File file) throws IOException {
+        long modified = file.lastModified();
+        String hash = hash(file.toPath());
+        Path object = objectOf(hash, modified);
+        if (Files.isRegularFile(object)) {
+            if (Files.isSameFile(object, file.toPath())) {
+                return hash;
+            }
+            if (Files.size(object) == file.length() && hash(object).equals(hash)) {
+                // same content stored already, drop the new copy
+                replaceWithLink(object, file.toPath());
+            } else {
+                // the object was damaged, the new copy takes its place
+                LOGGER.warning("object " + object + " doesn't match its hash, replaced");
+                replaceWithLink(file.toPath(), object);
+            }
+            return hash;
+        }
+        Files.createDirectories(object.getParent());
+        try {
+            Files.createLink(object, file.toPath());
+        } catch (UnsupportedOperationException e) {
+            disableLinks(e);
+        } catch (IOException e) {
+            if (!Files.isRegularFile(object)) {
+                // the file stays a plain copy
+                throw e;
+            }
+            // ingested meanwhile by another upload
+            replaceWithLink(object, file.toPath());
+        }
+        return hash;
+    }
+
+    /**
+     * Share file with a user, linking it into the user directory.
+     *
+     * @param source the file shared
+     * @param target the copy of the user
+     * @param hash   the content hash of the file shared if known, null otherwise
+     * @return true if linked, false if the user holds that file already
+     * @throws IOException the io exception
+     */
+    boolean share(File source, File target, String hash) throws IOException {
+        Path to = target.toPath();
+        if (Files.exists(to) && (Files.isSameFile(source.toPath(), to) || sameContent(source, target, hash))) {
+            return false;
+        }
+        Files.createDirectories(to.getParent());
+        if (links) {
+            try {
+                replaceWithLink(source.toPath(), to);
+                return true;
+            } catch (UnsupportedOperationException e) {
+                disableLinks(e);
+            } catch (IOException e) {
+                // linked too many times or the like, this one is copied
+                LOGGER.info("couldn't link " + source + ", copying it: " + e.getMessage());
+            }
+        }
+        Path part = Files.createTempFile(to.getParent(), "." + target.getName() + ".", ".part");
+        try {
+            Files.copy(source.toPath(), part, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            Files.move(part, to, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(part);
+        }
+        return true;
+    }
+
+    /**
+     * Same content, the target holds what the source does. Equal size and time only make it likely, the hashes tell.
+     *
+     * @param source the source
+     * @param target the target
+     * @param hash   the content hash of the source if known, null otherwise
+     * @return the boolean
+     * @throws IOException the io exception
+     */
+    private static boolean sameContent(File source, File target, String hash) throws IOException {
+        if (target.length() != source.length() || target.lastModified() != source.lastModified()) {
+            return false;
+        }
+        return hash(target.toPath()).equals(hash != null ? hash : hash(source.toPath()));
+    }
+
+    /**
+     * Sweep objects no file refers to anymore.
+     *
+     * @param references the number of files by object name, as the catalog counts them
+     * @return the number of objects removed
+     */
+    int sweep(Map<String, Integer> references) {
+        if (!Files.isDirectory(root)) {
+            return 0;
+        }
+        final int[] removed = {0};
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
+                    // files still linking it keep their content, only the store forgets it
+                    if (!references.containsKey(path.getFileName().toString())) {
+                        Files.delete(path);
+                        removed[0]++;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.info("couldn't sweep object store: " + e.getMessage());
+        }
+        if (removed[0] > 0) {
+            ConsoleLog.getInstance().log("Removed " + removed[0] + " unused files from the object store.\n");
+        }
+        return removed[0];
+    }
+
+    /**
+     * Replace file with a link to another, at once so readers never miss it.
+     *
+     * @param existing the file to link to
+     * @param file     the file replaced
+     * @throws IOException the io exception
+     */
+    private static void replaceWithLink(Path existing, Path file) throws IOException {
+        Path link = file.resolveSibling("." + file.getFileName() + ".link");
+        Files.deleteIfExists(link);
+        Files.createLink(link, existing);
+        try {
+            Files.move(link, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(link);
+        }
+    }
+
+    /**
+     * Disable links, files are kept as they come from now on.
+     *
+     * @param e the cause
+     */
+    private void disableLinks(Exception e) {
+        links = false;
+        ConsoleLog.getInstance().log("Error, the file system doesn't support hard links, files are stored once per user!\n");
+        LOGGER.info("object store disabled: " + e);
+    }
+
+    /**
+     * Object path.
+     *
+     * @param hash     the content hash
+     * @param modified the modification time
+     * @return the path of the object
+     */
+    private Path objectOf(String hash, long modified) {
+        return root.resolve(hash.substring(0, 2)).resolve(nameOf(hash, modified));
+    }
+
+    /**
+     * Name of an object.
+     *
+     * @param hash     the content hash
+     * @param modified the modification time
+     * @return the file name of the object
+     */
+    static String nameOf(String hash, long modified) {
+        return hash + "-" + modified;
+    }
+
+    /**
+     * Hash file content.
+     *
+     * @param file the file
+     * @return the SHA-256 hash in hex
+     * @throws IOException the io exception
+     */
+    private static String hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte value : digest.digest()) {
+            hex.append(String.format("%02x", value));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,160 @@
+package com.boxer.server;
+
+import com.boxer.protocol.PresenceUpdate;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The type Presence log.
+ * <p>
+ * Every join and leave bumps the version and is kept for the last {@link #HISTORY} changes, so a client telling
+ * the version it saw last only gets what changed since. Clients further behind get the whole list instead.
+ */
+class PresenceLog {
+    /**
+     * The constant HISTORY, changes kept for clients catching up.
+     */
+    static final int HISTORY = Integer.getInteger("boxer.server.presenceHistory", 1024);
+
+    /**
+     * The Lock.
+     */
+    private final Lock lock = new ReentrantLock();
+    /**
+     * The Connected users.
+     */
+    private final Set<String> present = new LinkedHashSet<>();
+    /**
+     * The Changes, oldest first.
+     */
+    private final Deque<Change> changes = new ArrayDeque<>();
+    /**
+     * The Version.
+     */
+    private long version;
+
+    /**
+     * Joined.
+     *
+     * @param userName the user name
+     */
+    void joined(String userName) {
+        record(userName, true);
+    }
+
+    /**
+     * Left.
+     *
+     * @param userName the user name
+     */
+    void left(String userName) {
+        record(userName, false);
+    }
+
+    /**
+     * Changes since a version.
+     *
+     * @param seen the version the client saw last, 0 if none
+     * @return the users who joined and left since, or a snapshot if that's no longer known or not shorter
+     */
+    PresenceUpdate since(long seen) {
+        lock.lock();
+        try {
+            long oldest = version - changes.size();
+            if (seen <= 0 || seen < oldest || seen > version) {
+                return snapshot();
+            }
+
+            // only the last change of each user counts
+            Map<String, Boolean> net = new LinkedHashMap<>();
+            for (Change change : changes) {
+                if (change.version > seen) {
+                    net.remove(change.userName);
+                    net.put(change.userName, change.joined);
+                }
+            }
+            if (net.size() > present.size()) {
+                return snapshot();
+            }
+
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            for (Map.Entry<String, Boolean> entry : net.entrySet()) {
+                (entry.getValue() ? joined : left).add(entry.getKey());
+            }
+            return new PresenceUpdate(version, false, joined, left);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record change.
+     *
+     * @param userName the user name
+     * @param joined   true if joined, false if left
+     */
+    private void record(String userName, boolean joined) {
+        lock.lock();
+        try {
+            if (joined ? !present.add(userName) : !present.remove(userName)) {
+                return;
+            }
+            changes.addLast(new Change(++version, userName, joined));
+            if (changes.size() > HISTORY) {
+                changes.removeFirst();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Snapshot, called with the lock held.
+     *
+     * @return the update listing every connected user
+     */
+    private PresenceUpdate snapshot() {
+        return new PresenceUpdate(version, true, new ArrayList<>(present), new ArrayList<>());
+    }
+
+    /**
+     * The type Change.
+     */
+    private static final class Change {
+        /**
+         * The Version.
+         */
+        private final long version;
+        /**
+         * The User name.
+         */
+        private final String userName;
+        /**
+         * The Joined flag, false if left.
+         */
+        private final boolean joined;
+
+        /**
+         * Instantiates a new Change.
+         *
+         * @param version  the version
+         * @param userName the user name
+         * @param joined   the joined flag
+         */
+        Change(long version, String userName, boolean joined) {
+            this.version = version;
+            this.userName = userName;
+            this.joined = joined;
+        }
+    }
+}
@@ -1,21 +1,26 @@
 package com.boxer.server;
 
 import com.boxer.ConsoleLog;
+import com.boxer.FileTransfer;
+import com.boxer.SocketStreams;
+import com.boxer.ThreadManager;
+import com.boxer.protocol.Protocol;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * The type Server communication manager.
@@ -25,29 +30,129 @@ public class ServerCommunicationManager {
      * The constant LOGGER.
      */
     private static final Logger LOGGER = Logger.getLogger(ServerCommunicationManager.class.getName());
-    /**
-     * The constant INSTANCE.
-     */
-    private static final ServerCommunicationManager INSTANCE = new ServerCommunicationManager();
 
     /**
      * The constant PORT_NUMBER.
      */
 // variables
-    static final int PORT_NUMBER = 59090;
+    static final int PORT_NUMBER = Integer.getInteger("boxer.server.port", 59090);
+    /**
+     * The constant ROOT, the storage directory holding a directory per user, the working directory by default.
+     */
+    static final String ROOT = Paths.get(System.getProperty("boxer.server.root", System.getProperty("user.dir")))
+            .toAbsolutePath().normalize().toString();
+    /**
+     * The constant STORE, the directory of what the server keeps for itself, next to ROOT so no user name can reach
+     * it and objects can still be hard linked into the user directories.
+     */
+    static final String STORE = Paths.get(System.getProperty("boxer.server.store", ROOT + ".boxer"))
+            .toAbsolutePath().normalize().toString();
+    /**
+     * The constant BACKLOG, pending connections the OS keeps for the acceptor.
+     */
+    static final int BACKLOG = Integer.getInteger("boxer.server.backlog", 128);
+    /**
+     * The constant HANDSHAKE_THREADS.
+     */
+    private static final int HANDSHAKE_THREADS = Integer.getInteger("boxer.server.handshakeThreads", Runtime.getRuntime().availableProcessors());
+    /**
+     * The constant HANDSHAKE_QUEUE, logins waiting for a handshake worker before new ones get refused.
+     */
+    private static final int HANDSHAKE_QUEUE = Integer.getInteger("boxer.server.handshakeQueue", 1024);
+    /**
+     * The constant EXPECTED_USERS logged in at once, sizes the session registry.
+     */
+    private static final int EXPECTED_USERS = Integer.getInteger("boxer.server.expectedUsers", 1024);
+    /**
+     * The constant METRICS_INTERVAL in seconds.
+     */
+    private static final long METRICS_INTERVAL = 30;
+    /**
+     * The constant SWEEP_INTERVAL in minutes, between removals of unused objects.
+     */
+    private static final long SWEEP_INTERVAL = 60;
+    /**
+     * The constant CATALOG_FLUSH_INTERVAL in seconds, between writes of the catalog to disk.
+     */
+    private static final long CATALOG_FLUSH_INTERVAL = 60;
+    /**
+     * The constant VERIFY_INDEXES, walk user directories at start even when the catalog was closed properly.
+     */
+    private static final boolean VERIFY_INDEXES = Boolean.getBoolean("boxer.server.verifyIndexes");
+    /**
+     * The constant INSTANCE, created once the settings above are read.
+     */
+    private static final ServerCommunicationManager INSTANCE = new ServerCommunicationManager();
 
     /**
      * The Executor.
      */
     private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(1);
+    /**
+     * The Handshake workers.
+     */
+    private final ExecutorService handshakeWorkers = new ThreadPoolExecutor(HANDSHAKE_THREADS, HANDSHAKE_THREADS,
+            0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(HANDSHAKE_QUEUE));
+    /**
+     * The Login metrics.
+     */
+    private final LoginMetrics loginMetrics = new LoginMetrics();
     /**
      * The Server socket.
      */
     private ServerSocket serverSocket = null;
     /**
-     * The Users.
+     * The Engine.
+     */
+    private final Engine engine = Engine.fromProperty(System.getProperty("boxer.server.engine"));
+    /**
+     * The Nio engine.
+     */
+    private NioServerEngine nioEngine = null;
+    /**
+     * The Users logged in.
+     */
+    private final SessionRegistry users = new SessionRegistry(EXPECTED_USERS);
+    /**
+     * The Events for the UI.
+     */
+    private final ServerEventBus events = new ServerEventBus(ServerEventBus.CAPACITY);
+    /**
+     * The Presence log.
+     */
+    private final PresenceLog presence = new PresenceLog();
+    /**
+     * The Object store holding file contents once.
+     */
+    private final ObjectStore objects = new ObjectStore();
+    /**
+     * The File indexes by username, loaded at start for every user directory.
+     */
+    private final Map<String, FileIndex> indexes = new ConcurrentHashMap<>();
+    /**
+     * The Catalog lock, guards opening the catalog.
+     */
+    private final Lock catalogLock = new ReentrantLock();
+    /**
+     * The Metadata catalog of every user file, opened on first use.
+     */
+    private volatile MetadataCatalog catalog;
+    /**
+     * The Inbox lock, guards opening the share inbox.
+     */
+    private final Lock inboxLock = new ReentrantLock();
+    /**
+     * The Share inbox of every user, opened on first use.
      */
-    private final Map<String, Client> users = new HashMap<>();
+    private volatile ShareInbox shareInbox;
+    /**
+     * The Logged in users by data channel token.
+     */
+    private final Map<Long, Client> dataTokens = new ConcurrentHashMap<>();
+    /**
+     * The Token generator.
+     */
+    private final SecureRandom tokenGenerator = new SecureRandom();
 
     /**
      * Instantiates a new Server communication manager.
@@ -71,7 +176,7 @@ public class ServerCommunicationManager {
      * @return the boolean
      */
     public boolean isStarted() {
-        return serverSocket != null;
+        return serverSocket != null || nioEngine != null;
     }
 
     /**
@@ -80,60 +185,118 @@ public class ServerCommunicationManager {
      * @throws IOException the io exception
      */
     public void startServerSocket() throws IOException {
-        serverSocket = new ServerSocket(PORT_NUMBER);
+        if (engine == Engine.NIO) {
+            nioEngine = new NioServerEngine(this, PORT_NUMBER, BACKLOG);
+        } else {
+            // accepted sockets come with a channel, file bodies are sent straight from disk
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            try {
+                serverChannel.bind(new InetSocketAddress(PORT_NUMBER), BACKLOG);
+            } catch (IOException e) {
+                serverChannel.close();
+                throw e;
+            }
+            serverSocket = serverChannel.socket();
+        }
     }
 
     /**
      * Handle client connections.
      */
     public void handleClientConnections() {
-        // handle user connections in new thread
-        executor.scheduleWithFixedDelay(() -> {
-            ConsoleLog consoleLog = ConsoleLog.getInstance();
+        // report login rate regularly
+        executor.scheduleAtFixedRate(loginMetrics::report, METRICS_INTERVAL, METRICS_INTERVAL, TimeUnit.SECONDS);
+
+        // files are only linked into the store if the file system can
+        objects.probe(Paths.get(ROOT));
+
+        // index user directories up front, later changes are written to disk regularly
+        executor.execute(this::loadIndexes);
+
+        // drop contents no file refers to anymore, left by deletes and overwrites, once the indexes are loaded
+        executor.scheduleWithFixedDelay(this::sweepObjects, 0, SWEEP_INTERVAL, TimeUnit.MINUTES);
+        executor.scheduleWithFixedDelay(this::flushCatalog, CATALOG_FLUSH_INTERVAL, CATALOG_FLUSH_INTERVAL, TimeUnit.SECONDS);
+
+        if (nioEngine != null) {
+            // selector threads take care of accepting and serving users
+            nioEngine.start();
+            return;
+        }
+
+        // accept continuously in a dedicated thread, logins are handed over to the handshake workers
+        Thread acceptor = new Thread(this::acceptConnections, "boxer-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Accept connections.
+     */
+    private void acceptConnections() {
+        ConsoleLog consoleLog = ConsoleLog.getInstance();
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
             try {
                 // listen for incoming connections
-                final Socket socket = serverSocket.accept();
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    consoleLog.log("Error, couldn't handle new client connection request!\n");
+                }
+                continue;
+            }
 
+            final long acceptedAt = loginMetrics.accepted();
+            try {
                 // finally add user to the server
-                addUser(socket);
-            } catch (IOException e) {
-                consoleLog.log("Error, couldn't handle new client connection request!\n");
+                handshakeWorkers.execute(() -> addUser(socket, acceptedAt));
+            } catch (RejectedExecutionException e) {
+                consoleLog.log("Error, too many pending logins, connection refused!\n");
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
             }
-        }, 0, 100, TimeUnit.MILLISECONDS);
+        }
     }
 
     /**
      * Add user.
      *
-     * @param socket the socket
+     * @param socket     the socket
+     * @param acceptedAt the accept timestamp
      */
-    private void addUser(Socket socket) {
+    private void addUser(Socket socket, long acceptedAt) {
         ConsoleLog consoleLog = ConsoleLog.getInstance();
-        String userName = null;
+        Client client = null;
         try {
-            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-            DataInputStream dis = new DataInputStream(socket.getInputStream());
+            // replies are small and each one is awaited, don't let them sit in the send buffer
+            socket.setTcpNoDelay(true);
+
+            DataOutputStream dos = new DataOutputStream(SocketStreams.getOutputStream(socket));
+            DataInputStream dis = new DataInputStream(SocketStreams.getInputStream(socket));
+
+            // framed clients open with the magic, old clients with the length of their username
+            int head = dis.readUnsignedShort();
+            if (head == Protocol.MAGIC) {
+                addFramedUser(socket, acceptedAt);
+                return;
+            }
 
             try {
-                userName = dis.readUTF();
-                if (users.containsKey(userName)) {
+                String userName = readUsername(dis, head);
+                client = registerUser(userName, socket);
+                if (client == null) {
                     // send -1 code if username already exists
                     dos.writeInt(-1);
+                    loginMetrics.handshakeCompleted(acceptedAt);
                     throw new MainController.UserNameExists();
                 } else {
-                    // add new user to database
-                    File userDir = new File(System.getProperty("user.dir") + "/" + userName);
-                    if (!userDir.exists()) {
-                        userDir.mkdir();
-                    }
-                    Client client = new Client(userName, userDir, new ArrayList<>(), socket);
-                    users.put(userName, client);
-
-                    // refresh user file tree
-                    displayFileTree();
+                    // shown by the UI with its next frame
+                    userJoined(client);
 
                     // send 65 code on successful connection
                     dos.writeInt(65);
+                    loginMetrics.handshakeCompleted(acceptedAt);
                     consoleLog.log("New user " + userName + " connected!\n");
                 }
             } catch (MainController.UserNameExists e) {
@@ -142,42 +305,47 @@ public class ServerCommunicationManager {
                 return;
             }
 
-            Client client = users.get(userName);
-
             // send userlist
             if (dis.readInt() == 30) {
                 sendUserList(client);
             } else {
                 throw new SocketException();
             }
-            File[] files = createFilesToSend(consoleLog, client);
-            if (files == null) return;
-
-            // ...and user directory
-            if (dis.readInt() == 10) {
-                System.out.println("sending files...");
-                sendFiles(client, files, true);
-            } else {
-                throw new SocketException();
-            }
         } catch (Exception e) {
             System.out.println("Error, couldn't establish a connection with user!");
             consoleLog.log("Error, couldn't establish a connection with user!\n");
 
             // disconnect redundant client
-            disconnectClient(users.get(userName));
+            if (client != null) {
+                disconnectClient(client);
+            } else {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+            }
 
             consoleLog.log("User not added!\n");
+            return;
         }
 
-        // delegate user jobs to separate threads
-        ExecutorService userJob = Executors.newFixedThreadPool(1);
-        users.get(userName).setUserJob(userJob);
-        final Client userClient = users.get(userName);
+        // delegate user jobs to separate threads, the initial sync included so big directories don't hold up other logins
+        ExecutorService userJob = ThreadManager.newSessionExecutor();
+        client.setUserJob(userJob);
+        final Client userClient = client;
         userJob.submit(() -> {
             try {
-                DataInputStream dis = new DataInputStream(socket.getInputStream());
-                DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                File[] files = createFilesToSend(consoleLog, userClient);
+                if (files == null) return;
+
+                // ...and user directory
+                DataInputStream dis = new DataInputStream(SocketStreams.getInputStream(socket));
+                if (dis.readInt() == 10) {
+                    System.out.println("sending files...");
+                    sendFiles(userClient, files, true);
+                } else {
+                    throw new SocketException();
+                }
+
                 while (socket.isConnected()) {
                     int reply;
                     LOGGER.info("waiting for client...");
@@ -216,14 +384,245 @@ public class ServerCommunicationManager {
     }
 
     /**
-     * Display file tree.
+     * Read username of an old client whose length was read already.
+     *
+     * @param dis    the input stream
+     * @param length the length of the modified UTF-8 username
+     * @return the username
+     * @throws IOException the io exception
+     */
+    private String readUsername(DataInputStream dis, int length) throws IOException {
+        byte[] utf = new byte[2 + length];
+        utf[0] = (byte) (length >>> 8);
+        utf[1] = (byte) length;
+        dis.readFully(utf, 2, length);
+        return new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+    }
+
+    /**
+     * Add user speaking the framed protocol, the magic was read already.
+     *
+     * @param socket     the socket
+     * @param acceptedAt the accept timestamp
+     */
+    private void addFramedUser(Socket socket, long acceptedAt) {
+        ConsoleLog consoleLog = ConsoleLog.getInstance();
+
+        // one thread reads and answers requests, the other one runs syncs meanwhile
+        ExecutorService userJob = ThreadManager.newExecutor(2);
+        StreamTransport transport = null;
+        SessionHandler handler = null;
+        try {
+            transport = new StreamTransport(socket, userJob);
+            handler = new SessionHandler(this, transport, acceptedAt, userJob);
+
+            // login is the first frame
+            transport.dispatch(handler);
+        } catch (Exception e) {
+            System.out.println("Error, couldn't establish a connection with user!");
+            consoleLog.log("Error, couldn't establish a connection with user!\n");
+
+            // disconnect redundant client
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+            userJob.shutdown();
+            if (handler != null && handler.getClient() != null && !handler.isDataChannel()) {
+                disconnectClient(handler.getClient());
+            }
+
+            consoleLog.log("User not added!\n");
+            return;
+        }
+
+        final Client client = handler.getClient();
+        if (client == null) {
+            // login refused, the connection is closed already
+            userJob.shutdown();
+            return;
+        }
+
+        final StreamTransport userTransport = transport;
+        final SessionHandler userHandler = handler;
+        if (handler.isDataChannel()) {
+            // the session goes on without it, the user only leaves with its control connection
+            userJob.submit(() -> {
+                try {
+                    userTransport.serve(userHandler);
+                } catch (Exception e) {
+                    LOGGER.info("data connection of user " + client.getUsername() + " closed: " + e.getMessage());
+                } finally {
+                    userTransport.close();
+                    userHandler.detach();
+                    userHandler.end();
+                    userJob.shutdown();
+                }
+            });
+            return;
+        }
+
+        // serve the user from a thread of its own
+        client.setUserJob(userJob);
+        userJob.submit(() -> {
+            try {
+                userTransport.serve(userHandler);
+                userHandler.end();
+            } catch (Exception e) {
+                System.out.println("Error, couldn't establish a connection with user " + client.getUsername() + "!");
+                consoleLog.log("Error, couldn't establish a connection with user " + client.getUsername() + "!\n");
+
+                // disconnect redundant client, ending the session first as disconnecting waits for this job
+                userTransport.close();
+                userHandler.end();
+                disconnectClient(client);
+            }
+        });
+    }
+
+    /**
+     * Gets login metrics.
+     *
+     * @return the login metrics
+     */
+    LoginMetrics getLoginMetrics() {
+        return loginMetrics;
+    }
+
+    /**
+     * Register user.
+     *
+     * @param userName the user name
+     * @param socket   the socket
+     * @return the client or null if username is already in use
+     */
+    Client registerUser(String userName, Socket socket) {
+        if (!isValidUserName(userName)) {
+            LOGGER.info("refused user name " + userName);
+            return null;
+        }
+        if (users.get(userName) != null) {
+            return null;
+        }
+
+        // add new user to database
+        File userDir = new File(ROOT, userName);
+        if (!userDir.exists()) {
+            userDir.mkdir();
+        }
+
+        // the name is taken in one step, of two logins racing for it one gets the error
+        Client client = new Client(userName, userDir, socket);
+        if (!users.reserve(client)) {
+            return null;
+        }
+        presence.joined(userName);
+
+        // tell the others
+        pushToAll(Protocol.EVENT_USER_JOINED, userName, client);
+        return client;
+    }
+
+    /**
+     * Issue data token, data connections presenting it are attached to the session of the client.
+     *
+     * @param client the client
+     * @return the token
+     */
+    long issueDataToken(Client client) {
+        long token;
+        do {
+            token = tokenGenerator.nextLong();
+        } while (token == 0 || dataTokens.putIfAbsent(token, client) != null);
+        client.setDataToken(token);
+        return token;
+    }
+
+    /**
+     * Attach data channel to the session holding the token.
+     *
+     * @param token   the token
+     * @param channel the channel
+     * @return the client or null if the token is unknown
+     */
+    Client attachDataChannel(long token, SessionTransport channel) {
+        Client client = dataTokens.get(token);
+        if (client != null) {
+            client.addDataChannel(channel);
+
+            // the user may have left meanwhile
+            if (!dataTokens.containsKey(token)) {
+                client.removeDataChannel(channel);
+                return null;
+            }
+        }
+        return client;
+    }
+
+    /**
+     * Push event to every user but one.
+     *
+     * @param kind     the event kind
+     * @param userName the user the event is about
+     * @param except   the user not to notify
+     */
+    private void pushToAll(int kind, String userName, Client except) {
+        for (Client user : users.snapshot().getClients()) {
+            if (!user.equals(except)) {
+                push(user, kind, userName);
+            }
+        }
+    }
+
+    /**
+     * Push event to a user, if it listens for them.
+     *
+     * @param client   the client
+     * @param kind     the event kind
+     * @param userName the user the event is about
+     */
+    private void push(Client client, int kind, String userName) {
+        SessionTransport channel = client.getPushChannel();
+        if (channel == null) {
+            return;
+        }
+
+        // queued for the session's own writer, a user who doesn't read only holds up itself
+        if (client.getEvents().offer(kind, userName)) {
+            channel.eventsReady(client.getEvents());
+        }
+    }
+
+    /**
+     * User joined, its file index is loaded before the UI hears of it.
+     *
+     * @param client the client
      */
-    private void displayFileTree() {
-        List<String> userList = new ArrayList<>(users.keySet());
-        List<File> files = userList.stream()
-                .map(user -> users.get(user).getUserDir())
-                .collect(Collectors.toList());
-        ServerUserInterfaceManager.getInstance().displayFileTree(userList, files);
+    void userJoined(Client client) {
+        try {
+            indexOf(client);
+        } catch (IOException e) {
+            LOGGER.info("couldn't index files of user " + client.getUsername() + ": " + e.getMessage());
+        }
+        events.publish(ServerEventBus.Kind.USER_JOINED, client.getUsername(), null);
+    }
+
+    /**
+     * Gets events.
+     *
+     * @return the events for the UI
+     */
+    ServerEventBus getEvents() {
+        return events;
+    }
+
+    /**
+     * Loaded index of a user, never loading it.
+     *
+     * @param userName the user name
+     * @return the file index or null if it isn't loaded
+     */
+    FileIndex loadedIndexOf(String userName) {
+        return indexes.get(userName);
     }
 
     /**
@@ -233,15 +632,10 @@ public class ServerCommunicationManager {
      * @param client     the client
      * @return the file [ ]
      */
-    private File[] createFilesToSend(ConsoleLog consoleLog, Client client) {
-        // create list for files
-        List<File> fileList = new ArrayList<>();
-
+    File[] createFilesToSend(ConsoleLog consoleLog, Client client) {
+        List<File> fileList;
         try {
-            // add files to list recursively
-            Files.walk(client.getUserDir().toPath())
-                    .filter(path -> !Files.isDirectory(path))
-                    .forEach(path -> fileList.add(path.toFile()));
+            fileList = listUserFiles(client);
         } catch (IOException e) {
             System.out.println("Error, couldn't get user files!");
             consoleLog.log("Error, couldn't get user files!\n");
@@ -258,6 +652,175 @@ public class ServerCommunicationManager {
         return files;
     }
 
+    /**
+     * List user files.
+     *
+     * @param client the client
+     * @return the files in the user directory and below
+     * @throws IOException the io exception
+     */
+    List<File> listUserFiles(Client client) throws IOException {
+        return indexOf(client).files();
+    }
+
+    /**
+     * Index of the files of a user.
+     *
+     * @param client the client
+     * @return the file index
+     * @throws IOException the io exception
+     */
+    FileIndex indexOf(Client client) throws IOException {
+        return indexOf(client.getUsername(), client.getUserDir());
+    }
+
+    /**
+     * Index of the files of a user, loaded on first use.
+     *
+     * @param userName the user name
+     * @param userDir  the user dir
+     * @return the file index
+     * @throws IOException the io exception
+     */
+    private FileIndex indexOf(String userName, File userDir) throws IOException {
+        return indexOf(userName, userDir, null);
+    }
+
+    /**
+     * Index of the files of a user, loaded on first use.
+     *
+     * @param userName the user name
+     * @param userDir  the user dir
+     * @param known    the paths of every user in the catalog, null to look up those of this user
+     * @return the file index
+     * @throws IOException the io exception
+     */
+    private FileIndex indexOf(String userName, File userDir, Map<Integer, List<String>> known) throws IOException {
+        FileIndex index = indexes.get(userName);
+        if (index == null) {
+            MetadataCatalog catalog = catalog();
+            int user = catalog.userId(userName);
+            List<String> paths = (known != null ? known : catalog.paths(user)).getOrDefault(user, new ArrayList<>());
+
+            // the disk is only read when the catalog may not know it all
+            boolean reconcile = VERIFY_INDEXES || !catalog.wasClean() || paths.isEmpty();
+
+            // loaded outside of the map, two loads racing just build the same index
+            FileIndex loaded = FileIndex.load(userDir.toPath(), catalog, user, paths, reconcile);
+            loaded.setListener(dir -> events.publish(ServerEventBus.Kind.DIR_CHANGED, userName, dir));
+            index = indexes.putIfAbsent(userName, loaded);
+            if (index == null) {
+                index = loaded;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Catalog, opened on first use.
+     *
+     * @return the catalog
+     * @throws IOException the io exception
+     */
+    private MetadataCatalog catalog() throws IOException {
+        catalogLock.lock();
+        try {
+            if (catalog == null) {
+                catalog = MetadataCatalog.open();
+            }
+            return catalog;
+        } finally {
+            catalogLock.unlock();
+        }
+    }
+
+    /**
+     * Share inbox, opened on first use.
+     *
+     * @return the share inbox
+     * @throws IOException the io exception
+     */
+    ShareInbox shareInbox() throws IOException {
+        inboxLock.lock();
+        try {
+            if (shareInbox == null) {
+                shareInbox = ShareInbox.open();
+            }
+            return shareInbox;
+        } finally {
+            inboxLock.unlock();
+        }
+    }
+
+    /**
+     * Shared files of a batch, leaving out those deleted since they were shared.
+     *
+     * @param batch the batch
+     * @return the files
+     */
+    File[] sharedFilesOf(ShareInbox.Batch batch) {
+        List<File> files = new ArrayList<>();
+        for (ShareInbox.Share share : batch.getShares()) {
+            Path file = Protocol.resolveWirePath(Paths.get(ROOT), share.getPath());
+            if (file != null && Files.isRegularFile(file)) {
+                files.add(file.toFile());
+            }
+        }
+        return files.toArray(new File[0]);
+    }
+
+    /**
+     * Sweep objects no file of the catalog refers to.
+     *
+     * @return the number of objects removed
+     */
+    int sweepObjects() {
+        try {
+            return objects.sweep(catalog().references());
+        } catch (IOException e) {
+            LOGGER.warning("couldn't open the catalog: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Load indexes of every user directory.
+     */
+    private void loadIndexes() {
+        File[] userDirs = new File(ROOT).listFiles(file -> file.isDirectory() && !file.getName().startsWith("."));
+        if (userDirs == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        Map<Integer, List<String>> known;
+        try {
+            // one pass over the catalog for everyone
+            known = catalog().paths();
+        } catch (IOException e) {
+            LOGGER.warning("couldn't open the catalog: " + e.getMessage());
+            return;
+        }
+        for (File userDir : userDirs) {
+            try {
+                indexOf(userDir.getName(), userDir, known);
+            } catch (IOException e) {
+                LOGGER.info("couldn't index " + userDir + ": " + e.getMessage());
+            }
+        }
+        LOGGER.info("indexed " + userDirs.length + " user directories in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+
+    /**
+     * Flush catalog to disk.
+     */
+    private void flushCatalog() {
+        MetadataCatalog catalog = this.catalog;
+        if (catalog != null) {
+            catalog.flush();
+        }
+    }
+
     /**
      * Delete file.
      *
@@ -269,18 +832,16 @@ public class ServerCommunicationManager {
         Socket socket = client.getSocket();
 
         try {
-            BufferedInputStream bis = new BufferedInputStream(socket.getInputStream());
+            BufferedInputStream bis = new BufferedInputStream(SocketStreams.getInputStream(socket));
             DataInputStream dis = new DataInputStream(bis);
-            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            DataOutputStream dos = new DataOutputStream(SocketStreams.getOutputStream(socket));
             dos.writeInt(55);
             String fileName = dis.readUTF();
-            File file = new File(client.getUserDir().getAbsolutePath() + "/" + fileName);
+            File file = resolveUserFile(client, fileName);
             file.delete();
+            indexOf(client).update(file);
 
             consoleLog.log("Successfully synced files with user " + userName + ".\n");
-
-            // refresh file tree
-            displayFileTree();
         } catch (SocketException e) {
             consoleLog.log("Error, couldn't establish a connection with user " + userName + "!\n");
 
@@ -305,8 +866,8 @@ public class ServerCommunicationManager {
         Socket socket = client.getSocket();
 
         try {
-            DataInputStream dis = new DataInputStream(socket.getInputStream());
-            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            DataInputStream dis = new DataInputStream(SocketStreams.getInputStream(socket));
+            DataOutputStream dos = new DataOutputStream(SocketStreams.getOutputStream(socket));
 
             dos.writeInt(45);
 
@@ -315,23 +876,13 @@ public class ServerCommunicationManager {
             for (int i = 0; i < filesCount; i++) {
                 long length = dis.readLong();
                 String fileFullName = dis.readUTF();
-                files[i] = new File(client.getUserDir() + File.separator + fileFullName);
+                files[i] = resolveUserFile(client, fileFullName);
                 files[i].getParentFile().mkdirs();
-                FileOutputStream fos = new FileOutputStream(files[i]);
-                byte[] buffer = new byte[8192];
-                int count;
-                long total = 0;
-                while (total < length && (count = dis.read(buffer, 0, length - total > buffer.length ? buffer.length : (int) (length - total))) > 0) {
-                    fos.write(buffer, 0, count);
-                    total += count;
-                }
-                fos.flush();
+                FileTransfer.receiveFile(files[i], length, dis, socket);
+                indexOf(client).update(files[i]);
             }
 
             consoleLog.log("Successfully synced files with user " + userName + ".\n");
-
-            // display file tree
-            displayFileTree();
         } catch (SocketException e) {
             consoleLog.log("Error, couldn't establish a connection with user " + userName + "!\n");
 
@@ -345,6 +896,53 @@ public class ServerCommunicationManager {
         }
     }
 
+    /**
+     * Resolve user file.
+     *
+     * @param client   the client
+     * @param fileName the file name relative to user dir
+     * @return the file
+     */
+    File resolveUserFile(Client client, String fileName) {
+        return new File(client.getUserDir() + File.separator + fileName);
+    }
+
+    /**
+     * User list payload string.
+     *
+     * @return the comma-joined list of connected users
+     */
+    String userListPayload() {
+        return users.snapshot().payload();
+    }
+
+    /**
+     * Gets presence.
+     *
+     * @return the presence log
+     */
+    PresenceLog getPresence() {
+        return presence;
+    }
+
+    /**
+     * Gets objects.
+     *
+     * @return the object store
+     */
+    ObjectStore getObjects() {
+        return objects;
+    }
+
+    /**
+     * Gets user names.
+     *
+     * @return the names of connected users
+     */
+    List<String> getUserNames() {
+        return users.snapshot().getUserNames();
+    }
+
     /**
      * Send user list.
      *
@@ -355,11 +953,10 @@ public class ServerCommunicationManager {
         String userName = client.getUsername();
 
         try {
-            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            DataOutputStream dos = new DataOutputStream(SocketStreams.getOutputStream(socket));
 
             // send userlist to socket
-            String usersToSend = String.join(",", users.keySet());
-            dos.writeUTF(usersToSend);
+            dos.writeUTF(userListPayload());
         } catch (IOException e) {
             System.out.println("Error, couldn't establish a connection with user " + userName + "!");
             ConsoleLog.getInstance().log("Error, couldn't establish a connection with user " + userName + "!\n");
@@ -377,51 +974,132 @@ public class ServerCommunicationManager {
      */
     private void shareFile(Client client) throws Exception {
         Socket socket = client.getSocket();
-        DataInputStream dis = new DataInputStream(socket.getInputStream());
-        DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+        DataInputStream dis = new DataInputStream(SocketStreams.getInputStream(socket));
+        DataOutputStream dos = new DataOutputStream(SocketStreams.getOutputStream(socket));
 
         dos.writeInt(25);
 
         String shareFile = dis.readUTF();
         String shareUser = dis.readUTF();
+        queueSharedFile(client, shareFile, shareUser);
+    }
+
+    /**
+     * Queue shared file.
+     *
+     * @param client    the client
+     * @param shareFile the share file
+     * @param shareUser the share user
+     * @return true if the file was queued for the user
+     * @throws IOException the io exception
+     */
+    boolean queueSharedFile(Client client, String shareFile, String shareUser) throws IOException {
+        // users logged out get it with their next login
+        File shareUserDir = userDirOf(shareUser);
+        if (shareUserDir == null) {
+            ConsoleLog.getInstance().log("Error, user " + client.getUsername() + " would like to share file: " + shareFile + " with user " + shareUser + " but user doesn't exist!\n");
+            return false;
+        }
+
+        File file;
+        try {
+            file = getFile(client, shareFile);
+        } catch (FileNotFoundException e) {
+            System.out.println("Error, user " + client.getUsername() + " would like to share file: " + shareFile + " with user " + shareUser + " but file doesn't exists on the server!");
+            ConsoleLog.getInstance().log("Error, user " + client.getUsername() + " would like to share file: " + shareFile + " with user " + shareUser + " but file doesn't exists on the server!\n");
+            return false;
+        }
+
+        // link it into the directory of the user, no bytes are copied
+        String sharedPath = Protocol.toWirePath(Paths.get(ROOT), file.toPath());
+        File target = new File(shareUserDir + File.separator + sharedPath);
+        try {
+            FileIndex.Entry shared = indexOf(client).get(Protocol.toWirePath(client.getUserDir().toPath(), file.toPath()));
+            String hash = shared != null ? shared.getHash() : null;
+            if (!objects.share(file, target, hash)) {
+                ConsoleLog.getInstance().log("User " + shareUser + " already has file: " + shareFile + " shared by user " + client.getUsername() + ".\n");
+                return true;
+            }
+            indexOf(shareUser, shareUserDir).update(target, hash);
+        } catch (IOException e) {
+            // nothing is queued for a file the user didn't get
+            LOGGER.info("couldn't share file " + file + ": " + e.getMessage());
+            ConsoleLog.getInstance().log("Error, user " + client.getUsername() + " would like to share file: " + shareFile + " with user " + shareUser + " but it couldn't be copied!\n");
+            return false;
+        }
+
+        // queued without waiting, the inbox writes it to disk on its own thread
+        shareInbox().offer(shareUser, client.getUsername(), sharedPath);
+
+        // the recipient fetches it right away instead of on its next poll
         Client clientToShare = users.get(shareUser);
+        if (clientToShare != null) {
+            push(clientToShare, Protocol.EVENT_FILES_SHARED, client.getUsername());
+        }
+        return true;
+    }
 
-        synchronized (clientToShare.getSocket()) {
-            File file;
+    /**
+     * User dir of a user who logged in before.
+     *
+     * @param userName the user name
+     * @return the user dir or null if there is no such user
+     */
+    private File userDirOf(String userName) {
+        if (!isValidUserName(userName)) {
+            return null;
+        }
+        File userDir = new File(ROOT, userName);
+        return userDir.isDirectory() ? userDir : null;
+    }
+
+    /**
+     * Is valid user name, one that names a directory right below ROOT.
+     *
+     * @param userName the user name
+     * @return the boolean
+     */
+    static boolean isValidUserName(String userName) {
+        return userName != null && !userName.trim().isEmpty() && !userName.startsWith(".")
+                && !userName.contains("/") && !userName.contains("\\") && userName.indexOf('\0') < 0;
+    }
+
+    /**
+     * Store dir, a directory of STORE. What older versions kept in ROOT is moved over the first time.
+     *
+     * @param name the name of the directory
+     * @return the store dir
+     */
+    static Path storeDir(String name) {
+        Path dir = Paths.get(STORE, name);
+        Path old = Paths.get(ROOT, "." + name);
+        if (Files.isDirectory(old) && !Files.exists(dir)) {
             try {
-                file = getFile(client, shareFile);
-                clientToShare.getSharedFiles().add(file);
-            } catch (FileNotFoundException e) {
-                System.out.println("Error, user " + client.getUsername() + " would like to share file: " + shareFile + " with user " + shareUser + " but file doesn't exists on the server!");
-                ConsoleLog.getInstance().log("Error, user " + client.getUsername() + " would like to share file: " + shareFile + " with user " + shareUser + " but file doesn't exists on the server!\n");
+                Files.createDirectories(dir.getParent());
+                Files.move(old, dir);
+                LOGGER.info("moved " + old + " to " + dir);
+            } catch (IOException e) {
+                // another file system, keep using it where it is
+                LOGGER.warning("couldn't move " + old + " to " + dir + ": " + e.getMessage());
+                return old;
             }
         }
+        return dir;
     }
 
     /**
      * Gets file.
      *
      * @param client   the client
-     * @param fileName the file name
+     * @param fileName the file path or just its name
      * @return the file
      * @throws IOException the io exception
      */
-    private File getFile(Client client, String fileName) throws IOException {
-        File file;
-
-        Optional<Path> filePath;
-        try (Stream<Path> logFiles = Files.walk(client.getUserDir().toPath())) {
-            filePath = logFiles
-                    .filter(path -> path.getFileName().toString().equals(fileName))
-                    .findFirst();
-        }
-
-        if (filePath.isPresent()) {
-            file = filePath.get().toFile();
-        } else {
+    File getFile(Client client, String fileName) throws IOException {
+        File file = indexOf(client).find(fileName);
+        if (file == null) {
             throw new FileNotFoundException();
         }
-
         return file;
     }
 
@@ -432,18 +1110,19 @@ public class ServerCommunicationManager {
      * @throws Exception the exception
      */
     private void shareFileAvailable(Client client) throws Exception {
-        DataOutputStream dos = new DataOutputStream(client.getSocket().getOutputStream());
-
-        if (!client.getSharedFiles().isEmpty()) {
-            List<File> fileList = client.getSharedFiles();
-            File[] files = new File[fileList.size()];
-            fileList.toArray(files);
-
-            sendFiles(client, files, false);
-
-            // clear list of shared files
-            client.getSharedFiles().clear();
+        DataOutputStream dos = new DataOutputStream(SocketStreams.getOutputStream(client.getSocket()));
+
+        // the legacy reply holds every share at once, those shared meanwhile go with the next poll
+        ShareInbox.Batch batch = shareInbox().take(client.getUsername(), Integer.MAX_VALUE);
+        File[] files = sharedFilesOf(batch);
+        if (files.length > 0) {
+            if (sendFiles(client, files, false)) {
+                batch.commit();
+            } else {
+                batch.release();
+            }
         } else {
+            batch.commit();
             LOGGER.info("sending reply to client...");
             dos.writeInt(1);
         }
@@ -455,14 +1134,15 @@ public class ServerCommunicationManager {
      * @param client   the client
      * @param files    the files
      * @param ownFiles the own files
+     * @return true if every file was sent
      */
-    private void sendFiles(Client client, File[] files, boolean ownFiles) {
+    private boolean sendFiles(Client client, File[] files, boolean ownFiles) {
         ConsoleLog consoleLog = ConsoleLog.getInstance();
         Socket socket = client.getSocket();
         String userName = client.getUsername();
 
         try {
-            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+            DataOutputStream dos = new DataOutputStream(SocketStreams.getOutputStream(socket));
 
             dos.writeInt(15);
 
@@ -473,27 +1153,12 @@ public class ServerCommunicationManager {
                 dos.writeLong(length);
 
                 // get relative path to file
-                String fullName = f.getAbsolutePath()
-                        .replace(System.getProperty("user.dir"), "");
-
-                if (ownFiles){
-                    String clientNamePath = "\\\\" + client.getUsername();
-                    fullName = fullName.replaceFirst(clientNamePath, "");
-                }
-
-                dos.writeUTF(fullName);
-                FileInputStream fis = new FileInputStream(f);
-                byte[] buffer = new byte[8192];
-                int count;
-                long total = 0;
-                while (total < length && (count = fis.read(buffer, 0, length - total > buffer.length ? buffer.length : (int) (length - total))) > 0) {
-                    dos.write(buffer, 0, count);
-                    total += count;
-                }
-                dos.flush();
+                dos.writeUTF(relativeName(client, f, ownFiles));
+                FileTransfer.sendFile(f, length, dos, socket);
             }
 
             consoleLog.log("Successfully synced files with user " + userName + ".\n");
+            return true;
         } catch (SocketException e) {
             consoleLog.log("Error, couldn't establish a connection with user " + userName + "!\n");
 
@@ -505,6 +1170,26 @@ public class ServerCommunicationManager {
             // disconnect redundant client and send updated list to users
             disconnectClient(client);
         }
+        return false;
+    }
+
+    /**
+     * Relative name string.
+     *
+     * @param client   the client
+     * @param file     the file
+     * @param ownFiles the own files
+     * @return the path of the file as seen by the client
+     */
+    String relativeName(Client client, File file, boolean ownFiles) {
+        String fullName = file.getAbsolutePath()
+                .replace(ROOT, "");
+
+        if (ownFiles){
+            String clientNamePath = "\\\\" + client.getUsername();
+            fullName = fullName.replaceFirst(clientNamePath, "");
+        }
+        return fullName;
     }
 
     /**
@@ -517,12 +1202,31 @@ public class ServerCommunicationManager {
         // shutdown any running threads
         try {
             executor.shutdown();
+            handshakeWorkers.shutdown();
             executor.awaitTermination(5, TimeUnit.SECONDS);
+            handshakeWorkers.awaitTermination(5, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
             System.err.println("Application has not been properly shut down!");
         } finally {
             // cancel any unfinished tasks
             executor.shutdownNow();
+            handshakeWorkers.shutdownNow();
+        }
+
+        // closed properly, the next start trusts it
+        try {
+            if (catalog != null) {
+                catalog.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warning("couldn't close the catalog: " + e.getMessage());
+        }
+        try {
+            if (shareInbox != null) {
+                shareInbox.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warning("couldn't close the share inbox: " + e.getMessage());
         }
     }
 
@@ -536,7 +1240,11 @@ public class ServerCommunicationManager {
 
         try {
             // disconnect server
-            serverSocket.close();
+            if (nioEngine != null) {
+                nioEngine.shutdown();
+            } else {
+                serverSocket.close();
+            }
         } catch (Exception e) {
             consoleLog.log("Error, couldn't disconnect!\n");
         }
@@ -549,7 +1257,7 @@ public class ServerCommunicationManager {
      *
      * @param client the client
      */
-    private void disconnectClient(Client client) {
+    void disconnectClient(Client client) {
         ConsoleLog consoleLog = ConsoleLog.getInstance();
 
         // get username
@@ -558,33 +1266,72 @@ public class ServerCommunicationManager {
         consoleLog.log("Disconnecting user " + user + "...\n");
         System.out.println("Disconnecting user " + user + "...");
 
-        // shutdown any running user jobs
-        ExecutorService userJob = client.getUserJob();
-        try {
-            userJob.shutdown();
-            userJob.awaitTermination(5, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            System.err.println("Application has not been properly shut down!");
-        } finally {
-            // cancel any unfinished tasks
-            userJob.shutdownNow();
+        // events and data connections go with the session
+        client.setPushChannel(null);
+        dataTokens.remove(client.getDataToken());
+        client.closeDataChannels();
+
+        // shares handed out but never confirmed go out again with the next login
+        ShareInbox shareInbox = this.shareInbox;
+        if (shareInbox != null) {
+            shareInbox.rewind(user);
         }
 
         try {
-            // disconnect client
-            users.remove(client.getUsername());
+            // disconnect client first, the others hear of it without waiting for its jobs
+            if (users.remove(client)) {
+                presence.left(user);
+                pushToAll(Protocol.EVENT_USER_LEFT, user, client);
+
+                // the UI catches up with its next frame
+                events.publish(ServerEventBus.Kind.USER_LEFT, user, null);
+            }
         } catch (Exception e) {
             consoleLog.log("Error, couldn't disconnect!\n");
         }
 
+        // shutdown any running user jobs, selector sessions don't have any
+        ExecutorService userJob = client.getUserJob();
+        if (userJob != null) {
+            try {
+                userJob.shutdown();
+                userJob.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                System.err.println("Application has not been properly shut down!");
+            } finally {
+                // cancel any unfinished tasks
+                userJob.shutdownNow();
+            }
+        }
+
         System.out.println("User " + user + " disconnected.");
         consoleLog.log("User " + user + " disconnected.\n");
+    }
 
-        try {
-            // update file tree
-            displayFileTree();
-        } catch (Exception e) {
-            consoleLog.log("Error, couldn't update file tree!\n");
+    /**
+     * The enum Engine.
+     */
+    public enum Engine {
+        /**
+         * Thread per user engine.
+         */
+        BLOCKING,
+        /**
+         * Selector based event loop engine.
+         */
+        NIO;
+
+        /**
+         * From property engine.
+         *
+         * @param value the property value
+         * @return the engine, blocking when not set
+         */
+        static Engine fromProperty(String value) {
+            if (value == null || value.isEmpty()) {
+                return BLOCKING;
+            }
+            return valueOf(value.trim().toUpperCase());
         }
     }
-}
+}
\ No newline at end of file
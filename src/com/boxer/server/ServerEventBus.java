@@ -0,0 +1,231 @@
+package com.boxer.server;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The type Server event bus.
+ * <p>
+ * Carries what the UI shows from the threads serving users to the one thread showing it. Events go into a ring of
+ * slots allocated up front, claimed without locks, so publishing never waits and allocates nothing. A full ring drops
+ * the event and marks the bus overflowed, the consumer then rebuilds everything instead of applying events. The
+ * consumer is woken once per burst and takes everything published until it runs. Without a consumer, as on a server
+ * without a window, events are dropped right away.
+ */
+class ServerEventBus {
+    /**
+     * The constant CAPACITY of the ring, rounded up to a power of two.
+     */
+    static final int CAPACITY = Integer.getInteger("boxer.server.uiEvents", 4096);
+
+    /**
+     * The Slots.
+     */
+    private final Slot[] slots;
+    /**
+     * The Mask of a position to its slot.
+     */
+    private final int mask;
+    /**
+     * The Next position to claim by a publisher.
+     */
+    private final AtomicLong tail = new AtomicLong();
+    /**
+     * The Next position to take by the consumer, only used by it.
+     */
+    private long head;
+    /**
+     * The Overflowed flag, set when an event was dropped.
+     */
+    private final AtomicBoolean overflowed = new AtomicBoolean();
+    /**
+     * The Scheduled flag, set from the wake up of the consumer until it finds nothing to take.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    /**
+     * The Wake up of the consumer, null while there is none.
+     */
+    private volatile Runnable consumer;
+
+    /**
+     * Instantiates a new Server event bus.
+     *
+     * @param capacity the capacity
+     */
+    ServerEventBus(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Subscribe the consumer.
+     *
+     * @param wakeUp called on any thread when events wait, the consumer then takes them on its own thread
+     */
+    void subscribe(Runnable wakeUp) {
+        consumer = wakeUp;
+
+        // what happened before is unknown to it
+        overflowed.set(true);
+        wake();
+    }
+
+    /**
+     * Publish event.
+     *
+     * @param kind the kind
+     * @param user the user
+     * @param path the directory path with '/' separators, null if the event isn't about one
+     */
+    void publish(Kind kind, String user, String path) {
+        if (consumer == null) {
+            return;
+        }
+        long position = tail.get();
+        Slot slot;
+        while (true) {
+            slot = slots[(int) position & mask];
+            long lag = slot.sequence - position;
+            if (lag == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (lag < 0) {
+                // the consumer is behind, it rebuilds instead
+                overflowed.set(true);
+                wake();
+                return;
+            } else {
+                // claimed by another publisher meanwhile
+                position = tail.get();
+            }
+        }
+        slot.kind = kind;
+        slot.user = user;
+        slot.path = path;
+        slot.sequence = position + 1;
+        wake();
+    }
+
+    /**
+     * Take every event published so far, on the consumer thread.
+     *
+     * @param handler the handler of the events
+     * @return false if events were dropped since the last call, the handler only got those after
+     */
+    boolean drain(Handler handler) {
+        boolean complete = !overflowed.getAndSet(false);
+        while (true) {
+            Slot slot = slots[(int) head & mask];
+            if (slot.sequence != head + 1) {
+                // empty, or the next one is still being written
+                return complete;
+            }
+            Kind kind = slot.kind;
+            String user = slot.user;
+            String path = slot.path;
+            slot.user = null;
+            slot.path = null;
+            slot.sequence = head + slots.length;
+            head++;
+            handler.on(kind, user, path);
+        }
+    }
+
+    /**
+     * Idle, the consumer found nothing this time. Events published meanwhile wake it again.
+     *
+     * @return true if events came in after all, the consumer should go on
+     */
+    boolean idle() {
+        scheduled.set(false);
+        return hasEvents() && scheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Has events.
+     *
+     * @return the boolean
+     */
+    private boolean hasEvents() {
+        return overflowed.get() || slots[(int) head & mask].sequence == head + 1;
+    }
+
+    /**
+     * Wake the consumer unless it is awake already.
+     */
+    private void wake() {
+        Runnable wakeUp = consumer;
+        if (wakeUp != null && scheduled.compareAndSet(false, true)) {
+            wakeUp.run();
+        }
+    }
+
+    /**
+     * The enum Kind of event.
+     */
+    enum Kind {
+        /**
+         * A user logged in, its file index is loaded.
+         */
+        USER_JOINED,
+        /**
+         * A user logged out.
+         */
+        USER_LEFT,
+        /**
+         * The listing of a directory of a user changed, by a transfer, a delete or a share.
+         */
+        DIR_CHANGED
+    }
+
+    /**
+     * The interface Handler of events.
+     */
+    interface Handler {
+        /**
+         * On event.
+         *
+         * @param kind the kind
+         * @param user the user
+         * @param path the directory path, null if the event isn't about one
+         */
+        void on(Kind kind, String user, String path);
+    }
+
+    /**
+     * The type Slot of the ring.
+     */
+    private static final class Slot {
+        /**
+         * The Sequence: its position while free, the position after it once written.
+         */
+        private volatile long sequence;
+        /**
+         * The Kind.
+         */
+        private Kind kind;
+        /**
+         * The User.
+         */
+        private String user;
+        /**
+         * The Path.
+         */
+        private String path;
+
+        /**
+         * Instantiates a new Slot.
+         *
+         * @param sequence the sequence
+         */
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+}
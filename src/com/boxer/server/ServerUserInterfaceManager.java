@@ -1,12 +1,21 @@
 package com.boxer.server;
 
 import com.boxer.ThreadManager;
+import javafx.animation.AnimationTimer;
 
-import java.io.File;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * The type Server user interface manager.
+ * <p>
+ * Takes the events of the server once per frame, while there are any, and applies them together: the user list and
+ * file tree are rebuilt at most once for any number of logins and logouts, and every changed directory is listed again
+ * once.
  */
 public class ServerUserInterfaceManager {
     /**
@@ -18,6 +27,35 @@ public class ServerUserInterfaceManager {
      * The Main controller.
      */
     private MainController mainController;
+    /**
+     * The Events of the server.
+     */
+    private final ServerEventBus events = ServerCommunicationManager.getInstance().getEvents();
+    /**
+     * The Frames, running while events come.
+     */
+    private final AnimationTimer frames = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            onFrame();
+        }
+    };
+    /**
+     * The Start of the frames, made once for every wake up.
+     */
+    private final Runnable startFrames = frames::start;
+    /**
+     * The Changed directories by user and path, of the current frame.
+     */
+    private final Set<Map.Entry<String, String>> changedDirs = new LinkedHashSet<>();
+    /**
+     * The Users changed flag, of the current frame.
+     */
+    private boolean usersChanged;
+    /**
+     * The Events seen flag, of the current frame.
+     */
+    private boolean eventsSeen;
 
     /**
      * Instantiates a new Server user interface manager.
@@ -41,18 +79,63 @@ public class ServerUserInterfaceManager {
      */
     public void register(MainController controller){
         this.mainController = controller;
+        events.subscribe(() -> ThreadManager.runOnUiThread(startFrames));
     }
 
     /**
-     * Display file tree.
-     *
-     * @param users the users
-     * @param files the files
+     * On frame, apply the events published since the last one.
      */
-    public void displayFileTree(final List<String> users, final List<File> files) {
-        ThreadManager.runOnUiThread(() -> {
+    private void onFrame() {
+        eventsSeen = false;
+        usersChanged = false;
+        boolean complete = events.drain(this::onEvent);
+        if (complete && !eventsSeen) {
+            // quiet, sleep until the next event
+            if (!events.idle()) {
+                frames.stop();
+            }
+            return;
+        }
+
+        ServerCommunicationManager manager = ServerCommunicationManager.getInstance();
+        if (usersChanged || !complete) {
+            List<String> users = new ArrayList<>();
+            List<FileIndex> indexes = new ArrayList<>();
+            for (String user : manager.getUserNames()) {
+                FileIndex index = manager.loadedIndexOf(user);
+                if (index != null) {
+                    users.add(user);
+                    indexes.add(index);
+                }
+            }
             mainController.updateUsersList(users);
-            mainController.displayFileTree(users, files);
-        });
+            if (complete) {
+                mainController.displayFileTree(users, indexes);
+            } else {
+                // events were dropped, nothing shown can be trusted
+                mainController.rebuildFileTree(users, indexes);
+                changedDirs.clear();
+            }
+        }
+        for (Map.Entry<String, String> dir : changedDirs) {
+            mainController.refreshFileTree(dir.getKey(), dir.getValue());
+        }
+        changedDirs.clear();
+    }
+
+    /**
+     * On event.
+     *
+     * @param kind the kind
+     * @param user the user
+     * @param path the directory path
+     */
+    private void onEvent(ServerEventBus.Kind kind, String user, String path) {
+        eventsSeen = true;
+        if (kind == ServerEventBus.Kind.DIR_CHANGED) {
+            changedDirs.add(new AbstractMap.SimpleImmutableEntry<>(user, path));
+        } else {
+            usersChanged = true;
+        }
     }
 }
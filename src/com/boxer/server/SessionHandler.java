@@ -0,0 +1,780 @@
+package com.boxer.server;
+
+import com.boxer.ConsoleLog;
+import com.boxer.protocol.*;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * The type Session handler.
+ * <p>
+ * Serves the framed protocol of one connection. Engines only move frames and file bodies, both hand every frame
+ * to this class one at a time from a thread that may block on the disk, so the protocol lives in one place.
+ * <p>
+ * Requests are answered as they come, except syncs, signatures and patches which run on the bulk executor, so a user
+ * list or a share requested behind a large sync doesn't wait for it.
+ * <p>
+ * A connection opening with an attach frame serves the session of the user holding the token instead of logging in,
+ * clients send their syncs and uploads over it.
+ */
+class SessionHandler {
+    /**
+     * The Manager.
+     */
+    private final ServerCommunicationManager manager;
+    /**
+     * The Transport.
+     */
+    private final SessionTransport transport;
+    /**
+     * The Accept timestamp.
+     */
+    private final long acceptedAt;
+    /**
+     * The Bulk work executor, runs syncs.
+     */
+    private final Executor bulkWork;
+    /**
+     * The Uploads in progress by request id.
+     */
+    private final Map<Integer, Upload> uploads = new HashMap<>();
+    /**
+     * The Deltas of patches in progress by request id, deleted at the latest when the session ends.
+     */
+    private final Map<Integer, File> patches = new ConcurrentHashMap<>();
+    /**
+     * The Client, set once logged in.
+     */
+    private volatile Client client;
+    /**
+     * The Negotiated capabilities.
+     */
+    private int capabilities;
+    /**
+     * The Manifest of the user directory, built again from its index whenever a sync asks for its root.
+     */
+    private Manifest.Node manifest;
+    /**
+     * The Data channel flag, set once attached to the session of another connection.
+     */
+    private volatile boolean dataChannel;
+    /**
+     * The Ended flag, set once the connection is gone.
+     */
+    private volatile boolean ended;
+
+    /**
+     * Instantiates a new Session handler.
+     *
+     * @param manager    the manager
+     * @param transport  the transport
+     * @param acceptedAt the accept timestamp
+     * @param bulkWork   the bulk work executor
+     */
+    SessionHandler(ServerCommunicationManager manager, SessionTransport transport, long acceptedAt, Executor bulkWork) {
+        this.manager = manager;
+        this.transport = transport;
+        this.acceptedAt = acceptedAt;
+        this.bulkWork = bulkWork;
+    }
+
+    /**
+     * Gets client.
+     *
+     * @return the client or null if not logged in
+     */
+    Client getClient() {
+        return client;
+    }
+
+    /**
+     * Gets capabilities.
+     *
+     * @return the negotiated capabilities
+     */
+    int getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * Is data channel boolean.
+     *
+     * @return true if attached to the session of another connection, closing it leaves the user connected
+     */
+    boolean isDataChannel() {
+        return dataChannel;
+    }
+
+    /**
+     * Detach data channel from its session, once its connection is closed.
+     */
+    void detach() {
+        Client attached = client;
+        if (dataChannel && attached != null) {
+            attached.removeDataChannel(transport);
+        }
+    }
+
+    /**
+     * End session once its connection is closed, deleting the deltas of patches that never got applied.
+     */
+    void end() {
+        ended = true;
+        for (Integer requestId : patches.keySet()) {
+            File delta = patches.remove(requestId);
+            if (delta != null) {
+                delta.delete();
+            }
+        }
+    }
+
+    /**
+     * On frame without body.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    void onFrame(Frame frame) throws IOException {
+        FrameType type = frame.getType();
+        if (client == null) {
+            if (type == FrameType.HELLO) {
+                hello(frame);
+            } else if (type == FrameType.ATTACH) {
+                attach(frame);
+            } else {
+                throw new ProtocolException("expected login, got " + frame);
+            }
+            return;
+        }
+        if (type == null) {
+            // newer client, tell it this server doesn't know the request
+            reply(error(frame.getRequestId(), "unsupported request " + frame));
+            return;
+        }
+
+        switch (type) {
+            case LIST_USERS:
+                sendUserList(frame);
+                break;
+            case PRESENCE:
+                sendPresence(frame);
+                break;
+            case SYNC:
+                sync(frame);
+                break;
+            case MANIFEST:
+                sendManifest(frame);
+                break;
+            case FILES:
+                startUpload(frame);
+                break;
+            case SIGNATURE:
+                sendSignature(frame);
+                break;
+            case SHARE:
+                share(frame);
+                break;
+            case DELETE:
+                delete(frame);
+                break;
+            default:
+                reply(error(frame.getRequestId(), "unexpected " + frame));
+        }
+    }
+
+    /**
+     * Body target of a frame with body.
+     *
+     * @param frame the frame
+     * @return the file to store the body in or null to drop the body
+     * @throws IOException the io exception
+     */
+    File bodyTarget(Frame frame) throws IOException {
+        if (client != null && frame.getType() == FrameType.PATCH) {
+            // the delta waits aside until it's applied
+            File delta = File.createTempFile("boxer-", ".delta");
+            patches.put(frame.getRequestId(), delta);
+            if (ended) {
+                // closed meanwhile, nothing is left to delete it
+                end();
+                return null;
+            }
+            return delta;
+        }
+        Upload upload = uploads.get(frame.getRequestId());
+        if (client == null || frame.getType() != FrameType.FILE || upload == null) {
+            return null;
+        }
+
+        PayloadReader payload = frame.payload();
+        payload.readLong();
+        String path = payload.readString();
+        File file = resolve(path);
+        if (file == null) {
+            ConsoleLog.getInstance().log("Error, user " + client.getUsername() + " tried to upload outside of its directory: " + path + "!\n");
+            upload.rejected++;
+            return null;
+        }
+        // written aside and moved over it, so files linked to its object keep their content
+        file.getParentFile().mkdirs();
+        return file;
+    }
+
+    /**
+     * On body received, called after the body went to {@link #bodyTarget(Frame)}.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    void onBodyReceived(Frame frame) throws IOException {
+        if (client == null) {
+            throw new ProtocolException("expected login, got " + frame);
+        }
+        if (frame.getType() == FrameType.PATCH) {
+            patch(frame);
+            return;
+        }
+        Upload upload = uploads.get(frame.getRequestId());
+        if (frame.getType() != FrameType.FILE || upload == null) {
+            reply(error(frame.getRequestId(), "unexpected " + frame));
+            return;
+        }
+        store(frame);
+        if (--upload.left == 0) {
+            finishUpload(frame.getRequestId());
+        }
+    }
+
+    /**
+     * Store received file, keeping the modification time the sender announced so the manifests of both sides match.
+     *
+     * @param frame the file frame
+     * @throws IOException the io exception
+     */
+    private void store(Frame frame) throws IOException {
+        PayloadReader payload = frame.payload();
+        payload.readLong();
+        File file = resolve(payload.readString());
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        if (payload.hasRemaining()) {
+            file.setLastModified(payload.readLong());
+        }
+        manager.indexOf(client).update(file, manager.getObjects().ingest(file));
+    }
+
+    /**
+     * Hello.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    private void hello(Frame frame) throws IOException {
+        ConsoleLog consoleLog = ConsoleLog.getInstance();
+        PayloadReader payload = frame.payload();
+        int version = payload.readShort();
+        int offered = payload.readInt();
+        String userName = payload.readString();
+
+        int status = Protocol.STATUS_OK;
+        Client registered = null;
+        if (version < 1) {
+            status = Protocol.STATUS_UNSUPPORTED_VERSION;
+        } else if (!ServerCommunicationManager.isValidUserName(userName)) {
+            status = Protocol.STATUS_INVALID_USERNAME;
+        } else {
+            registered = manager.registerUser(userName, transport.getSocket());
+            if (registered == null) {
+                status = Protocol.STATUS_USERNAME_IN_USE;
+            }
+        }
+
+        capabilities = Protocol.negotiate(offered);
+        PayloadWriter ack = new PayloadWriter()
+                .writeShort(Math.min(version, Protocol.VERSION))
+                .writeInt(capabilities)
+                .writeByte(status);
+        if (registered != null) {
+            if (Protocol.has(capabilities, Protocol.CAP_DATA_CHANNEL)) {
+                ack.writeLong(manager.issueDataToken(registered));
+            }
+            if (Protocol.has(capabilities, Protocol.CAP_PUSH)) {
+                registered.setPushChannel(transport);
+            }
+
+            // shown by the UI with its next frame
+            manager.userJoined(registered);
+        }
+        reply(new Frame(FrameType.HELLO_ACK, frame.getRequestId(), ack));
+        manager.getLoginMetrics().handshakeCompleted(acceptedAt);
+
+        if (registered == null) {
+            String reason = status == Protocol.STATUS_USERNAME_IN_USE
+                    ? new MainController.UserNameExists().getLocalizedMessage()
+                    : status == Protocol.STATUS_INVALID_USERNAME
+                    ? "invalid username " + userName
+                    : "unsupported protocol version " + version;
+            System.out.println("Error, couldn't add new user: " + reason + "!");
+            consoleLog.log("Error, couldn't add new user: " + reason + "!\n");
+            transport.close();
+            return;
+        }
+        client = registered;
+        consoleLog.log("New user " + userName + " connected!\n");
+    }
+
+    /**
+     * Attach to the session holding the token.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    private void attach(Frame frame) throws IOException {
+        Client attached = manager.attachDataChannel(frame.payload().readLong(), transport);
+        if (attached == null) {
+            reply(error(frame.getRequestId(), "unknown session"));
+            transport.close();
+            return;
+        }
+        dataChannel = true;
+        client = attached;
+        reply(new Frame(FrameType.OK, frame.getRequestId()));
+    }
+
+    /**
+     * Send user list.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    private void sendUserList(Frame frame) throws IOException {
+        List<String> userList = manager.getUserNames();
+        PayloadWriter payload = new PayloadWriter().writeInt(userList.size());
+        for (String user : userList) {
+            payload.writeString(user);
+        }
+        reply(new Frame(FrameType.USER_LIST, frame.getRequestId(), payload));
+    }
+
+    /**
+     * Send presence changes since the version the user saw last.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    private void sendPresence(Frame frame) throws IOException {
+        PresenceUpdate update = manager.getPresence().since(frame.payload().readLong());
+        for (Frame chunk : update.toFrames(frame.getRequestId())) {
+            transport.send(chunk);
+        }
+        transport.flush();
+    }
+
+    /**
+     * Sync, the files go out from the bulk executor.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    private void sync(Frame frame) throws IOException {
+        PayloadReader payload = frame.payload();
+        final int scope = payload.readByte();
+        final int requestId = frame.getRequestId();
+        if (scope != Protocol.SYNC_OWN && scope != Protocol.SYNC_SHARED && scope != Protocol.SYNC_PATHS) {
+            reply(error(requestId, "unknown sync scope " + scope));
+            return;
+        }
+
+        final List<File> requested = new ArrayList<>();
+        if (scope == Protocol.SYNC_PATHS) {
+            int count = payload.readInt();
+            for (int i = 0; i < count; i++) {
+                // paths leading outside of the user directory are left out
+                File file = resolve(payload.readString());
+                if (file != null) {
+                    requested.add(file);
+                }
+            }
+        }
+
+        final Client user = client;
+        if (scope == Protocol.SYNC_SHARED) {
+            user.queueShareSync(() -> sendShares(user, requestId), bulkWork);
+            return;
+        }
+        bulkWork.execute(() -> {
+            try {
+                sendFiles(user, scope, requested, requestId);
+            } catch (IOException e) {
+                ConsoleLog.getInstance().log("Error, couldn't sync files with user " + user.getUsername() + "!\n");
+
+                // drop the connection, the engine disconnects the user
+                transport.close();
+            }
+        });
+    }
+
+    /**
+     * Send files of a sync, ended by an OK frame.
+     *
+     * @param user      the user
+     * @param scope     the scope
+     * @param requested the files requested by path
+     * @param requestId the request id
+     * @throws IOException the io exception
+     */
+    private void sendFiles(Client user, int scope, List<File> requested, int requestId) throws IOException {
+        List<File> files = scope == Protocol.SYNC_OWN ? manager.listUserFiles(user) : requested;
+        Path base = user.getUserDir().toPath();
+        int sent = 0;
+        for (File file : files) {
+            // deleted since it was listed
+            if (!file.isFile()) {
+                continue;
+            }
+            transport.sendFile(requestId, Protocol.toWirePath(base, file.toPath()), file);
+            sent++;
+        }
+        transport.sendAfterFiles(new Frame(FrameType.OK, requestId));
+        transport.flush();
+
+        if (scope == Protocol.SYNC_OWN || sent > 0) {
+            ConsoleLog.getInstance().log("Successfully synced files with user " + user.getUsername() + ".\n");
+        }
+    }
+
+    /**
+     * Send files shared with the user, a batch of the inbox at a time, ended by an OK frame. Each batch leaves the
+     * inbox once the socket took the last of its files, not when they were queued, and the sync is only done then.
+     *
+     * @param user      the user
+     * @param requestId the request id
+     * @return completes once every batch taken was committed or released
+     */
+    private CompletableFuture<Void> sendShares(Client user, int requestId) {
+        final List<ShareInbox.Batch> batches = new ArrayList<>();
+        CompletableFuture<Void> committed = CompletableFuture.completedFuture(null);
+        int sent = 0;
+        try {
+            ShareInbox inbox = manager.shareInbox();
+            Path base = Paths.get(ServerCommunicationManager.ROOT);
+            ShareInbox.Batch batch;
+            while (!(batch = inbox.take(user.getUsername(), ShareInbox.BATCH)).isEmpty()) {
+                batches.add(batch);
+                File[] files = manager.sharedFilesOf(batch);
+                for (File file : files) {
+                    transport.sendFile(requestId, Protocol.toWirePath(base, file.toPath()), file);
+                }
+                sent += files.length;
+
+                // in order, a batch is committed after the ones before it
+                final ShareInbox.Batch taken = batch;
+                CompletableFuture<Void> batchSent = transport.whenSent();
+                committed = committed.thenCompose(ignored -> batchSent).thenRunAsync(() -> commit(taken), bulkWork);
+            }
+            transport.sendAfterFiles(new Frame(FrameType.OK, requestId));
+            transport.flush();
+        } catch (IOException e) {
+            committed = new CompletableFuture<>();
+            committed.completeExceptionally(e);
+        }
+
+        final int count = sent;
+        return committed.handle((ignored, e) -> {
+            if (e != null) {
+                // whatever wasn't committed goes out with the next sync
+                for (ShareInbox.Batch taken : batches) {
+                    taken.release();
+                }
+                ConsoleLog.getInstance().log("Error, couldn't sync files with user " + user.getUsername() + "!\n");
+
+                // drop the connection, the engine disconnects the user
+                transport.close();
+            } else if (count > 0) {
+                ConsoleLog.getInstance().log("Successfully synced files with user " + user.getUsername() + ".\n");
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Commit batch of shares that went out.
+     *
+     * @param batch the batch
+     */
+    private static void commit(ShareInbox.Batch batch) {
+        try {
+            batch.commit();
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Send manifest listing of a directory of the user.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    private void sendManifest(Frame frame) throws IOException {
+        String path = frame.payload().readString();
+        if (manifest == null || path.isEmpty()) {
+            // a sync starts at the root, the directory may have changed since the last one
+            manifest = manager.indexOf(client).manifest();
+        }
+        reply(new Frame(FrameType.MANIFEST_LISTING, frame.getRequestId(),
+                Manifest.writeListing(new PayloadWriter(), manifest.find(path))));
+    }
+
+    /**
+     * Send signature of a file, computed on the bulk executor.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    private void sendSignature(Frame frame) throws IOException {
+        final File file = resolve(frame.payload().readString());
+        final int requestId = frame.getRequestId();
+        bulkWork.execute(() -> {
+            try {
+                if (file == null || !file.isFile()) {
+                    reply(error(requestId, "no such file"));
+                    return;
+                }
+                long modified = file.lastModified();
+                Delta.Signature signature = Delta.Signature.compute(file);
+                reply(new Frame(FrameType.BLOCK_SIGNATURES, requestId,
+                        signature.write(new PayloadWriter().writeLong(modified))));
+            } catch (IOException e) {
+                ConsoleLog.getInstance().log("Error, couldn't read file " + file.getName() + " of user " + client.getUsername() + "!\n");
+                transport.close();
+            }
+        });
+    }
+
+    /**
+     * Patch, the file is rebuilt on the bulk executor.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    private void patch(Frame frame) throws IOException {
+        final File delta = patches.remove(frame.getRequestId());
+        final int requestId = frame.getRequestId();
+        PayloadReader payload = frame.payload();
+        payload.readLong();
+        final File file = resolve(payload.readString());
+        final long modified = payload.readLong();
+        final long baseLength = payload.readLong();
+        final long baseModified = payload.readLong();
+        final int blockSize = payload.readInt();
+        final byte[] hash = payload.readBytes();
+        if (delta == null || file == null || blockSize <= 0) {
+            if (delta != null) {
+                delta.delete();
+            }
+            reply(error(requestId, "invalid patch"));
+            return;
+        }
+
+        final Client user = client;
+        bulkWork.execute(() -> {
+            try {
+                if (!file.isFile() || file.length() != baseLength || file.lastModified() != baseModified) {
+                    // changed since the signature was sent, the client sends it whole
+                    reply(error(requestId, "file changed meanwhile"));
+                } else if (patchFile(file, delta, blockSize, hash, modified)) {
+                    manager.indexOf(user).update(file, manager.getObjects().ingest(file));
+                    reply(new Frame(FrameType.OK, requestId));
+                    ConsoleLog.getInstance().log("Successfully patched file " + file.getName() + " of user " + user.getUsername() + ".\n");
+                } else {
+                    reply(error(requestId, "patched file doesn't match"));
+                }
+            } catch (IOException e) {
+                ConsoleLog.getInstance().log("Error, couldn't patch file " + file.getName() + " of user " + user.getUsername() + "!\n");
+                try {
+                    reply(error(requestId, "couldn't patch file"));
+                } catch (IOException ignored) {
+                    transport.close();
+                }
+            } finally {
+                delta.delete();
+            }
+        });
+    }
+
+    /**
+     * Patch file, rebuilt next to it and swapped in at once so readers never see it half written.
+     *
+     * @param file      the file
+     * @param delta     the delta
+     * @param blockSize the block size
+     * @param hash      the expected SHA-256 hash
+     * @param modified  the modification time to keep
+     * @return true if patched, false if the result didn't match the hash
+     * @throws IOException the io exception
+     */
+    private static boolean patchFile(File file, File delta, int blockSize, byte[] hash, long modified) throws IOException {
+        Path part = Files.createTempFile(file.getParentFile().toPath(), "." + file.getName() + ".", ".part");
+        try {
+            byte[] result;
+            try (InputStream in = new FileInputStream(delta);
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(part))) {
+                result = Delta.patch(file, blockSize, in, out);
+            }
+            if (!MessageDigest.isEqual(result, hash)) {
+                return false;
+            }
+            part.toFile().setLastModified(modified);
+            Files.move(part, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } finally {
+            Files.deleteIfExists(part);
+        }
+    }
+
+    /**
+     * Start upload.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    private void startUpload(Frame frame) throws IOException {
+        int count = frame.payload().readInt();
+        if (uploads.containsKey(frame.getRequestId())) {
+            throw new ProtocolException("upload " + frame + " started twice");
+        }
+        if (count <= 0) {
+            reply(new Frame(FrameType.OK, frame.getRequestId()));
+            return;
+        }
+        uploads.put(frame.getRequestId(), new Upload(count));
+    }
+
+    /**
+     * Finish upload.
+     *
+     * @param requestId the request id
+     * @throws IOException the io exception
+     */
+    private void finishUpload(int requestId) throws IOException {
+        Upload upload = uploads.remove(requestId);
+        if (upload.rejected > 0) {
+            reply(error(requestId, upload.rejected + " files rejected"));
+        } else {
+            reply(new Frame(FrameType.OK, requestId));
+        }
+        ConsoleLog.getInstance().log("Successfully synced files with user " + client.getUsername() + ".\n");
+    }
+
+    /**
+     * Share.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    private void share(Frame frame) throws IOException {
+        PayloadReader payload = frame.payload();
+        String shareFile = payload.readString();
+        String shareUser = payload.readString();
+        if (manager.queueSharedFile(client, shareFile, shareUser)) {
+            reply(new Frame(FrameType.OK, frame.getRequestId()));
+        } else {
+            reply(error(frame.getRequestId(), "couldn't share file " + shareFile + " with user " + shareUser));
+        }
+    }
+
+    /**
+     * Delete.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    private void delete(Frame frame) throws IOException {
+        String path = frame.payload().readString();
+        File file = resolve(path);
+        if (file == null) {
+            reply(error(frame.getRequestId(), "invalid path " + path));
+            return;
+        }
+        file.delete();
+        manager.indexOf(client).update(file);
+        reply(new Frame(FrameType.OK, frame.getRequestId()));
+        ConsoleLog.getInstance().log("Successfully synced files with user " + client.getUsername() + ".\n");
+    }
+
+    /**
+     * Reply with a single frame.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    private void reply(Frame frame) throws IOException {
+        transport.send(frame);
+        transport.flush();
+    }
+
+    /**
+     * Error frame.
+     *
+     * @param requestId the request id
+     * @param message   the message
+     * @return the frame
+     */
+    private static Frame error(int requestId, String message) {
+        return new Frame(FrameType.ERROR, requestId, new PayloadWriter().writeString(message));
+    }
+
+    /**
+     * Resolve path sent by the user inside its directory.
+     *
+     * @param path the path with '/' separators
+     * @return the file or null if the path leads outside of the user directory
+     */
+    private File resolve(String path) {
+        Path target = Protocol.resolveWirePath(client.getUserDir().toPath(), path);
+        return target != null ? target.toFile() : null;
+    }
+
+    /**
+     * The type Upload, a batch of files announced by a FILES frame.
+     */
+    private static final class Upload {
+        /**
+         * The Files left.
+         */
+        private int left;
+        /**
+         * The Rejected files.
+         */
+        private int rejected;
+
+        /**
+         * Instantiates a new Upload.
+         *
+         * @param count the count
+         */
+        Upload(int count) {
+            this.left = count;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.boxer.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The type Session registry.
+ * <p>
+ * The users logged in, by username. Lookups never lock; logins and logouts only lock the bin of their own name, so
+ * they don't wait on each other across users. A username is reserved in one step, two logins racing for it can't both
+ * win. Whoever needs everyone, for the user list, events or the file tree, gets an immutable snapshot that is built
+ * once per change and shared by every reader until the next one.
+ */
+class SessionRegistry {
+    /**
+     * The Sessions by username.
+     */
+    private final ConcurrentMap<String, Client> sessions;
+    /**
+     * The Version, bumped by every login and logout.
+     */
+    private final AtomicLong version = new AtomicLong();
+    /**
+     * The Snapshot taken last, possibly of an older version.
+     */
+    private volatile Snapshot snapshot = new Snapshot(0, Collections.emptyList());
+
+    /**
+     * Instantiates a new Session registry.
+     *
+     * @param expected the number of sessions expected, sizes the table up front
+     */
+    SessionRegistry(int expected) {
+        this.sessions = new ConcurrentHashMap<>(expected);
+    }
+
+    /**
+     * Get session of a user.
+     *
+     * @param userName the user name
+     * @return the client or null if the user isn't logged in
+     */
+    Client get(String userName) {
+        return sessions.get(userName);
+    }
+
+    /**
+     * Reserve username for a client.
+     *
+     * @param client the client
+     * @return false if the username is in use already
+     */
+    boolean reserve(Client client) {
+        if (sessions.putIfAbsent(client.getUsername(), client) != null) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Remove session, if it's still the one registered for its username.
+     *
+     * @param client the client
+     * @return true if it was removed
+     */
+    boolean remove(Client client) {
+        // by identity, clients equal by username and a session refused for it must not drop the one logged in
+        boolean[] removed = {false};
+        sessions.computeIfPresent(client.getUsername(), (userName, registered) -> {
+            if (registered != client) {
+                return registered;
+            }
+            removed[0] = true;
+            return null;
+        });
+        if (!removed[0]) {
+            return false;
+        }
+        version.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Size.
+     *
+     * @return the number of sessions
+     */
+    int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Snapshot of every session, taken again only if something changed since the last one.
+     *
+     * @return the snapshot
+     */
+    Snapshot snapshot() {
+        Snapshot current = snapshot;
+        long now = version.get();
+        if (current.version == now) {
+            return current;
+        }
+
+        // read after the version, a change meanwhile only makes the next call take another one
+        Snapshot taken = new Snapshot(now, new ArrayList<>(sessions.values()));
+        if (taken.version > snapshot.version) {
+            snapshot = taken;
+        }
+        return taken;
+    }
+
+    /**
+     * The type Snapshot of the sessions.
+     */
+    static final class Snapshot {
+        /**
+         * The Version.
+         */
+        private final long version;
+        /**
+         * The Clients.
+         */
+        private final List<Client> clients;
+        /**
+         * The User names.
+         */
+        private final List<String> userNames;
+        /**
+         * The User list payload, built on first use.
+         */
+        private volatile String payload;
+
+        /**
+         * Instantiates a new Snapshot.
+         *
+         * @param version the version
+         * @param clients the clients
+         */
+        private Snapshot(long version, List<Client> clients) {
+            this.version = version;
+            this.clients = Collections.unmodifiableList(clients);
+            List<String> userNames = new ArrayList<>(clients.size());
+            for (Client client : clients) {
+                userNames.add(client.getUsername());
+            }
+            this.userNames = Collections.unmodifiableList(userNames);
+        }
+
+        /**
+         * Gets clients.
+         *
+         * @return the clients
+         */
+        List<Client> getClients() {
+            return clients;
+        }
+
+        /**
+         * Gets user names.
+         *
+         * @return the user names
+         */
+        List<String> getUserNames() {
+            return userNames;
+        }
+
+        /**
+         * Payload of the user list.
+         *
+         * @return the comma-joined user names
+         */
+        String payload() {
+            String joined = payload;
+            if (joined == null) {
+                // racing readers just join the same names
+                joined = String.join(",", userNames);
+                payload = joined;
+            }
+            return joined;
+        }
+    }
+}
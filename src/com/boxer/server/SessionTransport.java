@@ -0,0 +1,73 @@
+package com.boxer.server;
+
+import com.boxer.protocol.Frame;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The interface Session transport, the part of an engine a {@link SessionHandler} replies through.
+ */
+interface SessionTransport {
+    /**
+     * Gets socket.
+     *
+     * @return the socket
+     */
+    Socket getSocket();
+
+    /**
+     * Send frame, it may be held back until the next {@link #flush()}.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    void send(Frame frame) throws IOException;
+
+    /**
+     * Send frame after every file body queued so far, ends a batch of files. Frames sent with
+     * {@link #send(Frame)} may overtake queued file bodies.
+     *
+     * @param frame the frame
+     * @throws IOException the io exception
+     */
+    void sendAfterFiles(Frame frame) throws IOException;
+
+    /**
+     * Send file frame followed by the file body.
+     *
+     * @param requestId the request id
+     * @param path      the path announced to the user
+     * @param file      the file
+     * @throws IOException the io exception
+     */
+    void sendFile(int requestId, String path, File file) throws IOException;
+
+    /**
+     * Flush frames held back.
+     *
+     * @throws IOException the io exception
+     */
+    void flush() throws IOException;
+
+    /**
+     * When sent, everything queued so far went out to the socket, file bodies included.
+     *
+     * @return completes once it went out, fails if the connection broke first
+     */
+    CompletableFuture<Void> whenSent();
+
+    /**
+     * Events ready, the writer sends what is waiting in the queue once it gets to it. Never blocks.
+     *
+     * @param events the event queue of the user
+     */
+    void eventsReady(EventQueue events);
+
+    /**
+     * Close connection once everything sent so far went out.
+     */
+    void close();
+}
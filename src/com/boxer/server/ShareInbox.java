@@ -0,0 +1,647 @@
+package com.boxer.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * The type Share inbox.
+ * <p>
+ * Files shared with each user, waiting until the user syncs them, whether the user is logged in or not. A share goes
+ * into a lock free queue of the recipient and the sharer moves on; one writer thread appends the queued shares to the
+ * recipient's log on disk and forces them out, many at a time. A sync takes them in batches from the log, and only a
+ * batch confirmed sent moves the read position on, so shares survive restarts and connections lost halfway. A log read
+ * to its end is emptied again. The file itself is linked into the recipient's directory when it's shared, so a share
+ * lost to a crash before the writer got to it still comes with the recipient's own files.
+ */
+class ShareInbox implements Closeable {
+    /**
+     * The constant LOGGER.
+     */
+    private static final Logger LOGGER = Logger.getLogger(ShareInbox.class.getName());
+    /**
+     * The constant BATCH, shares taken at a time by a sync.
+     */
+    static final int BATCH = Integer.getInteger("boxer.server.shareBatch", 256);
+    /**
+     * The constant MAGIC starting a log.
+     */
+    private static final int MAGIC = 0x42585348;
+    /**
+     * The constant FORMAT of a log.
+     */
+    private static final int FORMAT = 1;
+    /**
+     * The constant HEADER size: magic, format and the read position.
+     */
+    private static final int HEADER = 16;
+    /**
+     * The constant CONSUMED offset in the header.
+     */
+    private static final int CONSUMED = 8;
+    /**
+     * The constant RECORD_HEAD size: length and checksum of the record.
+     */
+    private static final int RECORD_HEAD = 8;
+    /**
+     * The constant SUFFIX of a log file.
+     */
+    private static final String SUFFIX = ".inbox";
+
+    /**
+     * The Directory of the logs.
+     */
+    private final Path dir;
+    /**
+     * The Inboxes by recipient.
+     */
+    private final Map<String, Inbox> inboxes = new ConcurrentHashMap<>();
+    /**
+     * The Inboxes with shares waiting for the writer.
+     */
+    private final Queue<Inbox> ready = new ConcurrentLinkedQueue<>();
+    /**
+     * The Writer thread.
+     */
+    private final Thread writer;
+    /**
+     * The Closed flag.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Instantiates a new Share inbox and starts its writer.
+     *
+     * @param dir the directory of the logs
+     * @throws IOException the io exception
+     */
+    ShareInbox(Path dir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.writer = new Thread(this::writeLoop, "boxer-share-inbox");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Open share inbox in the directory set by boxer.server.inbox, inbox of the server store by default.
+     *
+     * @return the share inbox
+     * @throws IOException the io exception
+     */
+    static ShareInbox open() throws IOException {
+        String dir = System.getProperty("boxer.server.inbox");
+        return new ShareInbox(dir != null ? Paths.get(dir) : ServerCommunicationManager.storeDir("inbox"));
+    }
+
+    /**
+     * Offer share to a recipient, never waits for the disk or another thread.
+     *
+     * @param recipient the recipient
+     * @param sharer    the user sharing
+     * @param path      the path of the file below the working directory, with '/' separators
+     */
+    void offer(String recipient, String sharer, String path) {
+        Inbox inbox = inboxOf(recipient);
+        inbox.queue.offer(new Share(sharer, path, System.currentTimeMillis()));
+
+        // one wake up for any number of shares until the writer gets to them
+        if (inbox.scheduled.compareAndSet(false, true)) {
+            ready.offer(inbox);
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Take the next batch of shares of a recipient, written out first if the writer didn't get to them yet.
+     *
+     * @param recipient the recipient
+     * @param max       the most shares to take
+     * @return the batch, empty if nothing waits
+     * @throws IOException the io exception
+     */
+    Batch take(String recipient, int max) throws IOException {
+        Inbox inbox = inboxOf(recipient);
+        inbox.lock.lock();
+        try {
+            inbox.write();
+            return inbox.read(max);
+        } finally {
+            inbox.lock.unlock();
+        }
+    }
+
+    /**
+     * Rewind inbox of a recipient, so shares taken but never confirmed go out with the next sync.
+     *
+     * @param recipient the recipient
+     */
+    void rewind(String recipient) {
+        Inbox inbox = inboxes.get(recipient);
+        if (inbox == null) {
+            return;
+        }
+        inbox.lock.lock();
+        try {
+            inbox.taken = inbox.consumed;
+        } finally {
+            inbox.lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // whatever came after the writer stopped
+        for (Inbox inbox : inboxes.values()) {
+            inbox.lock.lock();
+            try {
+                inbox.write();
+            } finally {
+                inbox.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Inbox of a recipient, created on first use.
+     *
+     * @param recipient the recipient
+     * @return the inbox
+     */
+    private Inbox inboxOf(String recipient) {
+        Inbox inbox = inboxes.get(recipient);
+        return inbox != null ? inbox : inboxes.computeIfAbsent(recipient, user -> new Inbox(dir.resolve(user + SUFFIX)));
+    }
+
+    /**
+     * Write loop of the writer thread.
+     */
+    private void writeLoop() {
+        while (!closed) {
+            Inbox inbox = ready.poll();
+            if (inbox == null) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            // shares offered from now on need another round
+            inbox.scheduled.set(false);
+            inbox.lock.lock();
+            try {
+                inbox.write();
+            } catch (IOException e) {
+                // left in the queue, the next share or sync tries again
+                LOGGER.warning("couldn't write shares to " + inbox.log + ": " + e.getMessage());
+            } finally {
+                inbox.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The type Share.
+     */
+    static final class Share {
+        /**
+         * The Sharer.
+         */
+        private final String sharer;
+        /**
+         * The Path below the working directory.
+         */
+        private final String path;
+        /**
+         * The Time shared, in milliseconds.
+         */
+        private final long time;
+
+        /**
+         * Instantiates a new Share.
+         *
+         * @param sharer the sharer
+         * @param path   the path
+         * @param time   the time
+         */
+        Share(String sharer, String path, long time) {
+            this.sharer = sharer;
+            this.path = path;
+            this.time = time;
+        }
+
+        /**
+         * Gets sharer.
+         *
+         * @return the sharer
+         */
+        String getSharer() {
+            return sharer;
+        }
+
+        /**
+         * Gets path.
+         *
+         * @return the path below the working directory, with '/' separators
+         */
+        String getPath() {
+            return path;
+        }
+
+        /**
+         * Gets time.
+         *
+         * @return the time shared, in milliseconds
+         */
+        long getTime() {
+            return time;
+        }
+    }
+
+    /**
+     * The type Batch of shares taken together.
+     */
+    static final class Batch {
+        /**
+         * The Inbox.
+         */
+        private final Inbox inbox;
+        /**
+         * The Shares.
+         */
+        private final List<Share> shares;
+        /**
+         * The Log position after the last share.
+         */
+        private final long end;
+
+        /**
+         * Instantiates a new Batch.
+         *
+         * @param inbox  the inbox
+         * @param shares the shares
+         * @param end    the end
+         */
+        private Batch(Inbox inbox, List<Share> shares, long end) {
+            this.inbox = inbox;
+            this.shares = shares;
+            this.end = end;
+        }
+
+        /**
+         * Gets shares.
+         *
+         * @return the shares
+         */
+        List<Share> getShares() {
+            return shares;
+        }
+
+        /**
+         * Is empty.
+         *
+         * @return the boolean
+         */
+        boolean isEmpty() {
+            return shares.isEmpty();
+        }
+
+        /**
+         * Commit batch, its shares were sent and are gone from the inbox.
+         *
+         * @throws IOException the io exception
+         */
+        void commit() throws IOException {
+            if (shares.isEmpty()) {
+                return;
+            }
+            inbox.lock.lock();
+            try {
+                inbox.commit(end);
+            } finally {
+                inbox.lock.unlock();
+            }
+        }
+
+        /**
+         * Release batch, its shares weren't sent and go out with the next take.
+         */
+        void release() {
+            inbox.lock.lock();
+            try {
+                inbox.taken = inbox.consumed;
+            } finally {
+                inbox.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The type Inbox of one recipient. The queue is filled by any thread, everything else is guarded by the lock.
+     */
+    private static final class Inbox {
+        /**
+         * The Log file.
+         */
+        private final Path log;
+        /**
+         * The Recipient.
+         */
+        private final String recipient;
+        /**
+         * The Shares not written yet.
+         */
+        private final Queue<Share> queue = new ConcurrentLinkedQueue<>();
+        /**
+         * The Scheduled flag, set while the inbox waits for the writer.
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        /**
+         * The Lock.
+         */
+        private final Lock lock = new ReentrantLock();
+        /**
+         * The Loaded flag.
+         */
+        private boolean loaded;
+        /**
+         * The End of the valid records.
+         */
+        private long end = HEADER;
+        /**
+         * The Read position confirmed, as in the header.
+         */
+        private long consumed = HEADER;
+        /**
+         * The Read position handed out.
+         */
+        private long taken = HEADER;
+
+        /**
+         * Instantiates a new Inbox.
+         *
+         * @param log the log file
+         */
+        Inbox(Path log) {
+            this.log = log;
+            String name = log.getFileName().toString();
+            this.recipient = name.substring(0, name.length() - SUFFIX.length());
+        }
+
+        /**
+         * Load positions from the log, dropping a record cut off by a crash.
+         *
+         * @throws IOException the io exception
+         */
+        private void load() throws IOException {
+            if (loaded) {
+                return;
+            }
+            if (Files.exists(log)) {
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    ByteBuffer head = ByteBuffer.allocate(HEADER);
+                    readFully(channel, head, 0);
+                    if (head.position() < HEADER) {
+                        // created by a crash before its header was written, nothing in it
+                        channel.truncate(0);
+                        loaded = true;
+                        return;
+                    }
+                    if (head.getInt(0) != MAGIC || head.getInt(4) != FORMAT) {
+                        throw new IOException(log + " is not a share log of this version");
+                    }
+                    long valid = HEADER;
+                    ByteBuffer recordHead = ByteBuffer.allocate(RECORD_HEAD);
+                    while (true) {
+                        recordHead.clear();
+                        readFully(channel, recordHead, valid);
+                        if (recordHead.position() < RECORD_HEAD) {
+                            break;
+                        }
+                        int length = recordHead.getInt(0);
+                        if (length <= 0 || valid + RECORD_HEAD + length > channel.size()
+                                || decode(channel, valid, length) == null) {
+                            break;
+                        }
+                        valid += RECORD_HEAD + length;
+                    }
+                    if (valid < channel.size()) {
+                        LOGGER.warning("dropping " + (channel.size() - valid) + " broken bytes at the end of " + log);
+                        channel.truncate(valid);
+                    }
+                    end = valid;
+                    consumed = Math.max(HEADER, Math.min(head.getLong(CONSUMED), end));
+                    taken = consumed;
+                }
+            }
+            loaded = true;
+        }
+
+        /**
+         * Write queued shares to the log and force them out.
+         *
+         * @throws IOException the io exception
+         */
+        private void write() throws IOException {
+            if (queue.isEmpty()) {
+                return;
+            }
+            load();
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            List<Share> written = new ArrayList<>();
+            Share share;
+            while ((share = queue.poll()) != null) {
+                records.write(encode(share));
+                written.add(share);
+            }
+            try (FileChannel channel = FileChannel.open(log, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                if (end == HEADER) {
+                    writeHeader(channel, HEADER);
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+                long at = end;
+                while (buffer.hasRemaining()) {
+                    at += channel.write(buffer, at);
+                }
+                channel.force(false);
+                end = at;
+            } catch (IOException e) {
+                // back in the queue ahead of those offered meanwhile
+                List<Share> later = new ArrayList<>();
+                while ((share = queue.poll()) != null) {
+                    later.add(share);
+                }
+                queue.addAll(written);
+                queue.addAll(later);
+                throw e;
+            }
+        }
+
+        /**
+         * Read shares from the position handed out so far.
+         *
+         * @param max the most shares to read
+         * @return the batch
+         * @throws IOException the io exception
+         */
+        private Batch read(int max) throws IOException {
+            load();
+            List<Share> shares = new ArrayList<>();
+            long at = taken;
+            if (at < end) {
+                try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+                    ByteBuffer recordHead = ByteBuffer.allocate(RECORD_HEAD);
+                    while (at < end && shares.size() < max) {
+                        recordHead.clear();
+                        readFully(channel, recordHead, at);
+                        int length = recordHead.getInt(0);
+                        Share share = decode(channel, at, length);
+                        if (share == null) {
+                            throw new IOException("broken share record at " + at + " of " + log);
+                        }
+                        shares.add(share);
+                        at += RECORD_HEAD + length;
+                    }
+                }
+            }
+            taken = at;
+            return new Batch(this, shares.isEmpty() ? Collections.emptyList() : shares, at);
+        }
+
+        /**
+         * Commit read position, emptying the log once everything in it was read.
+         *
+         * @param position the position
+         * @throws IOException the io exception
+         */
+        private void commit(long position) throws IOException {
+            if (position <= consumed) {
+                return;
+            }
+            consumed = position;
+            taken = Math.max(taken, consumed);
+            try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+                if (consumed == end) {
+                    // truncated first, a crash in between leaves a position past the end that load clamps
+                    channel.truncate(HEADER);
+                    end = HEADER;
+                    consumed = HEADER;
+                    taken = HEADER;
+                }
+                writeHeader(channel, consumed);
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Encode share as a record: length, checksum and the share.
+     *
+     * @param share the share
+     * @return the record
+     * @throws IOException the io exception
+     */
+    private static byte[] encode(Share share) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeUTF(share.sharer);
+        out.writeUTF(share.path);
+        out.writeLong(share.time);
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record, RECORD_HEAD, record.length - RECORD_HEAD);
+        ByteBuffer.wrap(record).putInt(record.length - RECORD_HEAD).putInt((int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * Decode record.
+     *
+     * @param channel  the channel
+     * @param position the position of the record
+     * @param length   the length after its head
+     * @return the share, null if the record is broken
+     * @throws IOException the io exception
+     */
+    private static Share decode(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEAD + length);
+        readFully(channel, record, position);
+        if (record.position() < record.capacity()) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEAD, length);
+        if (record.getInt(4) != (int) crc.getValue()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.array(), RECORD_HEAD, length));
+            return new Share(in.readUTF(), in.readUTF(), in.readLong());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read from a position until the buffer is full or the file ends.
+     *
+     * @param channel  the channel
+     * @param buffer   the buffer
+     * @param position the position
+     * @throws IOException the io exception
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write header.
+     *
+     * @param channel  the channel
+     * @param consumed the read position confirmed
+     * @throws IOException the io exception
+     */
+    private static void writeHeader(FileChannel channel, long consumed) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(FORMAT).putLong(consumed);
+        head.flip();
+        long at = 0;
+        while (head.hasRemaining()) {
+            at += channel.write(head, at);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.boxer.server;
+
+import com.boxer.SocketStreams;
+import com.boxer.protocol.Frame;
+import com.boxer.protocol.FrameReader;
+import com.boxer.protocol.FrameWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+/**
+ * The type Stream transport, serves a framed session from a thread of its own.
+ */
+class StreamTransport implements SessionTransport {
+    /**
+     * The constant LOGGER.
+     */
+    private static final Logger LOGGER = Logger.getLogger(StreamTransport.class.getName());
+
+    /**
+     * The Socket.
+     */
+    private final Socket socket;
+    /**
+     * The Reader.
+     */
+    private final FrameReader reader;
+    /**
+     * The Writer.
+     */
+    private final FrameWriter writer;
+    /**
+     * The Event writer, a thread of the session so a stalled socket holds up nobody else.
+     */
+    private final Executor eventWriter;
+
+    /**
+     * Instantiates a new Stream transport.
+     *
+     * @param socket      the socket
+     * @param eventWriter the executor of the session sending its events
+     * @throws IOException the io exception
+     */
+    StreamTransport(Socket socket, Executor eventWriter) throws IOException {
+        this.socket = socket;
+        this.eventWriter = eventWriter;
+        reader = new FrameReader(SocketStreams.getInputStream(socket), socket);
+        writer = new FrameWriter(SocketStreams.getOutputStream(socket), socket);
+    }
+
+    /**
+     * Read next frame and hand it to the handler, its body included.
+     *
+     * @param handler the handler
+     * @throws IOException the io exception
+     */
+    void dispatch(SessionHandler handler) throws IOException {
+        Frame frame = reader.readFrame();
+        if (!frame.hasBody()) {
+            handler.onFrame(frame);
+            return;
+        }
+
+        File target = handler.bodyTarget(frame);
+        if (target != null) {
+            reader.readBody(target, frame.getBodyLength());
+        } else {
+            reader.skipBody(frame.getBodyLength());
+        }
+        handler.onBodyReceived(frame);
+    }
+
+    /**
+     * Serve frames until the connection goes away.
+     *
+     * @param handler the handler
+     * @throws IOException the io exception
+     */
+    void serve(SessionHandler handler) throws IOException {
+        while (!socket.isClosed()) {
+            dispatch(handler);
+        }
+    }
+
+    @Override
+    public Socket getSocket() {
+        return socket;
+    }
+
+    @Override
+    public void send(Frame frame) throws IOException {
+        writer.write(frame);
+    }
+
+    @Override
+    public void sendAfterFiles(Frame frame) throws IOException {
+        // file bodies are written out before sendFile returns
+        writer.write(frame);
+    }
+
+    @Override
+    public void sendFile(int requestId, String path, File file) throws IOException {
+        writer.writeFile(requestId, path, file);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public CompletableFuture<Void> whenSent() {
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        try {
+            // writes block until the socket takes them, flushed it all went out
+            writer.flush();
+            sent.complete(null);
+        } catch (IOException e) {
+            sent.completeExceptionally(e);
+        }
+        return sent;
+    }
+
+    @Override
+    public void eventsReady(EventQueue events) {
+        try {
+            eventWriter.execute(() -> {
+                try {
+                    for (Frame event = events.poll(); event != null; event = events.poll()) {
+                        writer.write(event);
+                    }
+                    writer.flush();
+                } catch (IOException e) {
+                    // the session notices the broken connection itself
+                    LOGGER.info("couldn't send events: " + e.getMessage());
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // the session is over
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            writer.flush();
+        } catch (IOException ignored) {}
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,32 @@
+package com.boxer;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The type Thread manager test, the thread model read from its property.
+ */
+public class ThreadManagerTest {
+    /**
+     * Values are read in any case and any locale, unknown ones fall back to platform threads.
+     */
+    @Test
+    public void fromProperty() {
+        assertEquals(ThreadManager.ThreadModel.PLATFORM, ThreadManager.ThreadModel.fromProperty(null));
+        assertEquals(ThreadManager.ThreadModel.PLATFORM, ThreadManager.ThreadModel.fromProperty(""));
+        assertEquals(ThreadManager.ThreadModel.VIRTUAL, ThreadManager.ThreadModel.fromProperty(" Virtual "));
+        assertEquals(ThreadManager.ThreadModel.PLATFORM, ThreadManager.ThreadModel.fromProperty("green"));
+
+        Locale locale = Locale.getDefault();
+        try {
+            // a dotless capital I in Turkish
+            Locale.setDefault(new Locale("tr", "TR"));
+            assertEquals(ThreadManager.ThreadModel.VIRTUAL, ThreadManager.ThreadModel.fromProperty("virtual"));
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+}
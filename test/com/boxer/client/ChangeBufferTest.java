@@ -0,0 +1,242 @@
+package com.boxer.client;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The type Change buffer test, watcher events merged per path and held back until the path stopped changing.
+ */
+public class ChangeBufferTest {
+    /**
+     * The constant QUIET_MILLIS of the buffers tested.
+     */
+    private static final long QUIET_MILLIS = 50;
+
+    /**
+     * The Folder.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The Buffer.
+     */
+    private ChangeBuffer buffer;
+    /**
+     * The Directory watched.
+     */
+    private Path dir;
+
+    /**
+     * Create buffer.
+     */
+    @Before
+    public void create() {
+        buffer = new ChangeBuffer(QUIET_MILLIS);
+        dir = folder.getRoot().toPath();
+    }
+
+    /**
+     * Two changes of a path make one.
+     */
+    @Test
+    public void merge() {
+        assertEquals(ChangeBuffer.Kind.CREATED, ChangeBuffer.merge(ChangeBuffer.Kind.CREATED, ChangeBuffer.Kind.MODIFIED));
+        assertNull(ChangeBuffer.merge(ChangeBuffer.Kind.CREATED, ChangeBuffer.Kind.DELETED));
+        assertEquals(ChangeBuffer.Kind.MODIFIED, ChangeBuffer.merge(ChangeBuffer.Kind.MODIFIED, ChangeBuffer.Kind.MODIFIED));
+        assertEquals(ChangeBuffer.Kind.DELETED, ChangeBuffer.merge(ChangeBuffer.Kind.MODIFIED, ChangeBuffer.Kind.DELETED));
+        assertEquals(ChangeBuffer.Kind.MODIFIED, ChangeBuffer.merge(ChangeBuffer.Kind.DELETED, ChangeBuffer.Kind.CREATED));
+    }
+
+    /**
+     * A file created and written leaves once as created, after the quiet window.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void createdOnce() throws Exception {
+        assertEquals(-1, buffer.nextDue());
+        Path file = write("a.txt", "1");
+        buffer.record(file, ChangeBuffer.Kind.CREATED);
+        for (int i = 0; i < 5; i++) {
+            Files.write(file, "2".getBytes("UTF-8"), StandardOpenOption.APPEND);
+            buffer.record(file, ChangeBuffer.Kind.MODIFIED);
+        }
+        assertTrue("not ready inside the quiet window", buffer.drain().isEmpty());
+        assertTrue(buffer.nextDue() > 0);
+
+        ChangeBuffer.Batch batch = next();
+        assertEquals(1, batch.size());
+        assertEquals(Collections.singletonList(file), batch.getCreated());
+        assertEquals(-1, buffer.nextDue());
+    }
+
+    /**
+     * A file created and gone again never leaves, one gone after a change leaves as deleted.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void deleted() throws Exception {
+        Path file = write("a.txt", "1");
+        buffer.record(file, ChangeBuffer.Kind.CREATED);
+        Files.delete(file);
+        buffer.record(file, ChangeBuffer.Kind.DELETED);
+        assertEquals(-1, buffer.nextDue());
+
+        Path kept = write("b.txt", "1");
+        buffer.record(kept, ChangeBuffer.Kind.MODIFIED);
+        Files.delete(kept);
+        buffer.record(kept, ChangeBuffer.Kind.DELETED);
+        assertEquals(Collections.singletonList(kept), next().getDeleted());
+    }
+
+    /**
+     * A file gone before the quiet window ended without an event of its own is dropped if new, deleted otherwise.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void goneWithoutEvent() throws Exception {
+        Path created = write("new.txt", "1");
+        Path modified = write("old.txt", "1");
+        buffer.record(created, ChangeBuffer.Kind.CREATED);
+        buffer.record(modified, ChangeBuffer.Kind.MODIFIED);
+        Files.delete(created);
+        Files.delete(modified);
+
+        ChangeBuffer.Batch batch = next();
+        assertEquals(1, batch.size());
+        assertEquals(Collections.singletonList(modified), batch.getDeleted());
+    }
+
+    /**
+     * A file deleted and created again leaves as modified.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void replaced() throws Exception {
+        Path file = write("a.txt", "1");
+        buffer.record(file, ChangeBuffer.Kind.DELETED);
+        write("a.txt", "new");
+        buffer.record(file, ChangeBuffer.Kind.CREATED);
+        assertEquals(Collections.singletonList(file), next().getModified());
+    }
+
+    /**
+     * A file still being written without events is held back until it stops changing.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void heldWhileWritten() throws Exception {
+        Path file = write("big.bin", "");
+        buffer.record(file, ChangeBuffer.Kind.CREATED);
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(QUIET_MILLIS + 10);
+            Files.write(file, new byte[1000], StandardOpenOption.APPEND);
+            assertTrue("left while written", buffer.drain().isEmpty());
+        }
+
+        assertEquals(Collections.singletonList(file), next().getCreated());
+        assertEquals(4000, Files.size(file));
+    }
+
+    /**
+     * A directory copied in is held back until its contents stop changing.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void heldWhileFilled() throws Exception {
+        Path copy = Files.createDirectory(dir.resolve("copy"));
+        buffer.record(copy, ChangeBuffer.Kind.CREATED);
+        for (int i = 0; i < 4; i++) {
+            Thread.sleep(QUIET_MILLIS + 10);
+            Files.write(copy.resolve("f" + i), new byte[10]);
+            assertTrue("left while filled", buffer.drain().isEmpty());
+        }
+
+        assertEquals(Collections.singletonList(copy), next().getCreated());
+    }
+
+    /**
+     * A path that can't be read is held back for the longest wait, then left out instead of sent.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void unreadable() throws Exception {
+        // below a file, reading it fails with something else than not found
+        Path file = write("a.txt", "1").resolve("b.txt");
+        long start = System.nanoTime();
+        buffer.record(file, ChangeBuffer.Kind.MODIFIED);
+        Thread.sleep(QUIET_MILLIS + 10);
+        assertTrue("left unread", buffer.drain().isEmpty());
+        assertTrue("waits a window", buffer.nextDue() > QUIET_MILLIS / 2);
+
+        assertTrue(next().isEmpty());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(QUIET_MILLIS * ChangeBuffer.MAX_WAIT_WINDOWS));
+        assertEquals(-1, buffer.nextDue());
+    }
+
+    /**
+     * Many events over many files leave together.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void bulk() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            Path file = write("bulk" + i, "x");
+            buffer.record(file, ChangeBuffer.Kind.CREATED);
+            buffer.record(file, ChangeBuffer.Kind.MODIFIED);
+        }
+        assertEquals(1000, next().getCreated().size());
+        assertEquals(-1, buffer.nextDue());
+    }
+
+    /**
+     * Next batch, waiting for it as the sync agent does.
+     *
+     * @return the batch
+     * @throws InterruptedException the interrupted exception
+     */
+    private ChangeBuffer.Batch next() throws InterruptedException {
+        long due;
+        while ((due = buffer.nextDue()) >= 0) {
+            Thread.sleep(due);
+            ChangeBuffer.Batch batch = buffer.drain();
+            if (!batch.isEmpty()) {
+                return batch;
+            }
+        }
+        return buffer.drain();
+    }
+
+    /**
+     * Write file.
+     *
+     * @param name    the name
+     * @param content the content
+     * @return the file
+     * @throws IOException the io exception
+     */
+    private Path write(String name, String content) throws IOException {
+        return Files.write(dir.resolve(name), content.getBytes("UTF-8"));
+    }
+}
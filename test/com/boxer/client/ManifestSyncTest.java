@@ -0,0 +1,304 @@
+package com.boxer.client;
+
+import com.boxer.protocol.Frame;
+import com.boxer.protocol.FrameReader;
+import com.boxer.protocol.FrameType;
+import com.boxer.protocol.FrameWriter;
+import com.boxer.protocol.Manifest;
+import com.boxer.protocol.PayloadWriter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The type Manifest sync test, which side of a file changed since the last sync decides where it goes. The server
+ * answers listings from a tree built by the test, the state of the last sync is stubbed.
+ */
+public class ManifestSyncTest {
+    /**
+     * The constant SYNCED time of the last sync, in whole seconds as the manifest keeps it.
+     */
+    private static final long SYNCED = 1600000000000L;
+
+    /**
+     * The Folder.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The Local dir.
+     */
+    private Path dir;
+    /**
+     * The Entries of the last sync by path.
+     */
+    private final Map<String, LocalState.Entry> entries = new HashMap<>();
+    /**
+     * The Tree on the server.
+     */
+    private volatile Manifest.Node remote = new Manifest.Builder().build();
+    /**
+     * The Server end.
+     */
+    private Socket server;
+    /**
+     * The Connection.
+     */
+    private ServerConnection connection;
+
+    /**
+     * Connect to a server answering listings.
+     *
+     * @throws IOException the io exception
+     */
+    @Before
+    public void connect() throws IOException {
+        dir = folder.getRoot().toPath();
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Socket client = new Socket(listener.getInetAddress(), listener.getLocalPort());
+            server = listener.accept();
+            connection = new ServerConnection(client);
+        }
+        Thread answering = new Thread(this::answer, "manifest-server");
+        answering.setDaemon(true);
+        answering.start();
+    }
+
+    /**
+     * Close both ends.
+     *
+     * @throws IOException the io exception
+     */
+    @After
+    public void close() throws IOException {
+        connection.close();
+        server.close();
+    }
+
+    /**
+     * A file deleted while logged out is deleted on the server, one never synced is fetched.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void deletedOffline() throws IOException {
+        remote = new Manifest.Builder().add("a.txt", 1, SYNCED).add("d/b.txt", 1, SYNCED).build();
+        synced("a.txt", 1, SYNCED);
+
+        ManifestSync sync = compare();
+        assertEquals(Collections.singletonList("a.txt"), sync.getToDelete());
+        assertEquals(Collections.singletonList("d/b.txt"), sync.getToFetch());
+        assertNothingElse(sync, sync.getToDelete(), sync.getToFetch());
+    }
+
+    /**
+     * A file edited while logged out is sent, one changed only on the server is fetched.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void editedOffline() throws IOException {
+        remote = new Manifest.Builder().add("a.txt", 1, SYNCED).add("d/b.txt", 2, SYNCED + 10000).build();
+        local("a.txt", "22", SYNCED + 10000);
+        synced("a.txt", 1, SYNCED);
+        local("d/b.txt", "1", SYNCED);
+        synced("d/b.txt", 1, SYNCED);
+
+        ManifestSync sync = compare();
+        assertEquals(Collections.singletonList("a.txt"), sync.getToModify());
+        assertEquals(Collections.singletonList("d/b.txt"), sync.getToFetch());
+        assertNothingElse(sync, sync.getToModify(), sync.getToFetch());
+    }
+
+    /**
+     * A file only touched while logged out isn't sent, its time is put back.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void touchOnly() throws IOException {
+        remote = new Manifest.Builder().add("a.txt", 1, SYNCED).build();
+        Path file = local("a.txt", "1", SYNCED + 10000);
+        entries.put("a.txt", new LocalState.Entry(1, SYNCED, Manifest.toSeconds(SYNCED), LocalState.hashOf(file.toFile())));
+
+        ManifestSync sync = compare();
+        assertNothingElse(sync);
+        assertEquals(SYNCED, file.toFile().lastModified());
+    }
+
+    /**
+     * A file changed on both sides, or never synced, goes whichever way its newer copy does.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void bothChanged() throws IOException {
+        remote = new Manifest.Builder()
+                .add("local-newer.txt", 3, SYNCED + 10000)
+                .add("server-newer.txt", 3, SYNCED + 20000)
+                .add("never-synced.txt", 3, SYNCED)
+                .build();
+        local("local-newer.txt", "22", SYNCED + 20000);
+        synced("local-newer.txt", 1, SYNCED);
+        local("server-newer.txt", "22", SYNCED + 10000);
+        synced("server-newer.txt", 1, SYNCED);
+        local("never-synced.txt", "22", SYNCED + 10000);
+
+        ManifestSync sync = compare();
+        assertEquals(Arrays.asList("local-newer.txt", "never-synced.txt"), sorted(sync.getToModify()));
+        assertEquals(Collections.singletonList("server-newer.txt"), sync.getToFetch());
+        assertNothingElse(sync, sync.getToModify(), sync.getToFetch());
+    }
+
+    /**
+     * An empty server lost its files, the client sends them all back instead of removing its own.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void emptyServer() throws IOException {
+        local("a.txt", "1", SYNCED);
+        synced("a.txt", 1, SYNCED);
+        local("d/b.txt", "1", SYNCED);
+        synced("d/b.txt", 1, SYNCED);
+
+        ManifestSync sync = compare();
+        assertEquals(Arrays.asList("a.txt", "d/b.txt"), sorted(sync.getToUpload()));
+        assertNothingElse(sync, sync.getToUpload());
+    }
+
+    /**
+     * Files synced and untouched since that the server no longer has were deleted there, new ones are sent.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void deletedOnServer() throws IOException {
+        remote = new Manifest.Builder().add("kept.txt", 1, SYNCED).build();
+        local("kept.txt", "1", SYNCED);
+        synced("kept.txt", 1, SYNCED);
+        local("a.txt", "1", SYNCED);
+        synced("a.txt", 1, SYNCED);
+        local("d/b.txt", "1", SYNCED);
+        synced("d/b.txt", 1, SYNCED);
+        local("new.txt", "1", SYNCED);
+
+        ManifestSync sync = compare();
+        assertEquals(Arrays.asList("a.txt", "d/b.txt"), sorted(sync.getToRemove()));
+        assertEquals(Collections.singletonList("new.txt"), sync.getToUpload());
+        assertNothingElse(sync, sync.getToRemove(), sync.getToUpload());
+    }
+
+    /**
+     * Compare the local dir with the server.
+     *
+     * @return the sync
+     * @throws IOException the io exception
+     */
+    private ManifestSync compare() throws IOException {
+        LocalState state = new LocalState(null, "", dir) {
+            @Override
+            Entry get(String path) {
+                return entries.get(path);
+            }
+        };
+        ManifestSync sync = new ManifestSync(connection, dir, state);
+        sync.compare();
+        return sync;
+    }
+
+    /**
+     * Answer listings from the tree on the server until the connection closes.
+     */
+    private void answer() {
+        try {
+            FrameReader reader = new FrameReader(server.getInputStream(), server);
+            FrameWriter writer = new FrameWriter(server.getOutputStream(), server);
+            while (true) {
+                Frame frame = reader.readFrame();
+                if (frame.getType() == FrameType.MANIFEST) {
+                    Manifest.Node listed = remote.find(frame.payload().readString());
+                    writer.send(new Frame(FrameType.MANIFEST_LISTING, frame.getRequestId(),
+                            Manifest.writeListing(new PayloadWriter(), listed)));
+                }
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Write local file.
+     *
+     * @param path     the path with '/' separators
+     * @param content  the content
+     * @param modified the modification time in milliseconds
+     * @return the file
+     * @throws IOException the io exception
+     */
+    private Path local(String path, String content, long modified) throws IOException {
+        Path file = dir.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes("UTF-8"));
+        file.toFile().setLastModified(modified);
+        return file;
+    }
+
+    /**
+     * Record file as synced, without its content.
+     *
+     * @param path     the path with '/' separators
+     * @param size     the size
+     * @param modified the modification time in milliseconds
+     */
+    private void synced(String path, long size, long modified) {
+        entries.put(path, new LocalState.Entry(size, modified, Manifest.toSeconds(modified), null));
+    }
+
+    /**
+     * Assert every list of the sync but the given ones is empty.
+     *
+     * @param sync     the sync
+     * @param expected the lists checked already
+     */
+    @SafeVarargs
+    private static void assertNothingElse(ManifestSync sync, List<String>... expected) {
+        List<List<String>> checked = Arrays.asList(expected);
+        for (List<String> list : Arrays.asList(sync.getToFetch(), sync.getToUpload(), sync.getToModify(),
+                sync.getToDelete(), sync.getToRemove())) {
+            if (checked.stream().noneMatch(found -> found == list)) {
+                assertTrue("unexpected " + list, list.isEmpty());
+            }
+        }
+    }
+
+    /**
+     * Sorted copy of paths.
+     *
+     * @param paths the paths
+     * @return the sorted paths
+     */
+    private static List<String> sorted(List<String> paths) {
+        String[] copy = paths.toArray(new String[0]);
+        Arrays.sort(copy);
+        return Arrays.asList(copy);
+    }
+}
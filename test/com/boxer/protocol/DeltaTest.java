@@ -0,0 +1,208 @@
+package com.boxer.protocol;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The type Delta test, files diffed against a signature of the old copy and patched back together.
+ */
+public class DeltaTest {
+    /**
+     * The Folder.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Random edits come out of the patch as they went in.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void randomEdits() throws Exception {
+        Random random = new Random(42);
+        for (int round = 0; round < 30; round++) {
+            byte[] old = new byte[random.nextInt(300000)];
+            random.nextBytes(old);
+            if (round % 5 == 0) {
+                // every block alike
+                Arrays.fill(old, (byte) 0);
+            }
+            byte[] edited = old;
+            for (int edit = random.nextInt(5); edit > 0; edit--) {
+                edited = edit(edited, random);
+            }
+            assertArrayEquals("round " + round, edited, roundTrip(old, edited).toByteArray());
+        }
+    }
+
+    /**
+     * An unchanged file is sent as copies only.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void unchanged() throws Exception {
+        byte[] content = new byte[1 << 20];
+        new Random(1).nextBytes(content);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        File file = file("same", content);
+        Delta.diff(file, Delta.Signature.compute(file), delta);
+        assertTrue("delta of " + delta.size() + " bytes", delta.size() < 64);
+    }
+
+    /**
+     * Empty files on either side.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void empty() throws Exception {
+        byte[] content = "something".getBytes("UTF-8");
+        assertEquals(0, roundTrip(content, new byte[0]).size());
+        assertArrayEquals(content, roundTrip(new byte[0], content).toByteArray());
+    }
+
+    /**
+     * Signatures come through a payload as they were.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void signatureRoundTrip() throws Exception {
+        byte[] content = new byte[100000];
+        new Random(2).nextBytes(content);
+        Delta.Signature signature = Delta.Signature.compute(file("basis", content));
+        Frame frame = new Frame(FrameType.BLOCK_SIGNATURES, 1, signature.write(new PayloadWriter()));
+        Delta.Signature read = Delta.Signature.read(Frame.decode(frame.encode()).payload());
+
+        assertEquals(content.length, read.getLength());
+        assertEquals(Delta.blockSize(content.length), read.getBlockSize());
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        File changed = file("changed", edit(content, new Random(3)));
+        Delta.diff(changed, signature, sent);
+        Delta.diff(changed, read, received);
+        assertArrayEquals(sent.toByteArray(), received.toByteArray());
+    }
+
+    /**
+     * A signature whose block count doesn't fit its length is refused.
+     */
+    @Test
+    public void invalidSignature() {
+        PayloadWriter payload = new PayloadWriter().writeLong(10000).writeInt(2048).writeInt(1).writeInt(0).writeLong(0);
+        try {
+            Delta.Signature.read(new Frame(FrameType.BLOCK_SIGNATURES, 1, payload).payload());
+            fail("read a broken signature");
+        } catch (ProtocolException expected) {
+            // refused
+        }
+    }
+
+    /**
+     * Block sizes keep signatures within a frame.
+     */
+    @Test
+    public void blockSize() {
+        for (long length : new long[] {0, 1, 2048, 1L << 20, 1L << 30, 1L << 40}) {
+            int size = Delta.blockSize(length);
+            assertTrue(size >= 2048);
+            assertTrue(length / size < Delta.MAX_BLOCKS);
+        }
+    }
+
+    /**
+     * Diff new content against old and patch the old copy with it, both ends agreeing on the hash.
+     *
+     * @param old    the old content
+     * @param edited the new content
+     * @return the patched content
+     * @throws Exception the exception
+     */
+    private ByteArrayOutputStream roundTrip(byte[] old, byte[] edited) throws Exception {
+        File basis = file("old", old);
+        File source = file("new", edited);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        byte[] sent = Delta.diff(source, Delta.Signature.compute(basis), delta);
+        ByteArrayOutputStream patched = new ByteArrayOutputStream();
+        byte[] received = Delta.patch(basis, Delta.blockSize(old.length), new ByteArrayInputStream(delta.toByteArray()),
+                patched);
+
+        assertArrayEquals(sha256(edited), sent);
+        assertArrayEquals(sent, received);
+        Files.delete(basis.toPath());
+        Files.delete(source.toPath());
+        return patched;
+    }
+
+    /**
+     * Insert, delete or replace a random run of bytes.
+     *
+     * @param content the content
+     * @param random  the random
+     * @return the edited content
+     */
+    private static byte[] edit(byte[] content, Random random) {
+        int at = content.length == 0 ? 0 : random.nextInt(content.length);
+        byte[] run = new byte[random.nextInt(5000)];
+        random.nextBytes(run);
+        ByteArrayOutputStream edited = new ByteArrayOutputStream();
+        edited.write(content, 0, at);
+        int kept = Math.min(content.length - at, run.length);
+        switch (random.nextInt(3)) {
+            case 0:
+                edited.write(run, 0, run.length);
+                edited.write(content, at, content.length - at);
+                break;
+            case 1:
+                edited.write(content, at + kept, content.length - at - kept);
+                break;
+            default:
+                edited.write(run, 0, kept);
+                edited.write(content, at + kept, content.length - at - kept);
+        }
+        return edited.toByteArray();
+    }
+
+    /**
+     * File with content.
+     *
+     * @param name    the name
+     * @param content the content
+     * @return the file
+     * @throws IOException the io exception
+     */
+    private File file(String name, byte[] content) throws IOException {
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    /**
+     * SHA-256 of content.
+     *
+     * @param content the content
+     * @return the hash
+     * @throws NoSuchAlgorithmException if there is no SHA-256
+     */
+    private static byte[] sha256(byte[] content) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("SHA-256").digest(content);
+    }
+}
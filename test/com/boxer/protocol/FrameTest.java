@@ -0,0 +1,303 @@
+package com.boxer.protocol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * The type Frame test, frames through {@link Frame#encode()} and {@link Frame#decode(ByteBuffer)} and through a writer
+ * and reader on both ends of a socket.
+ */
+public class FrameTest {
+    /**
+     * The Folder.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The Sending end.
+     */
+    private Socket out;
+    /**
+     * The Receiving end.
+     */
+    private Socket in;
+    /**
+     * The Writer.
+     */
+    private FrameWriter writer;
+    /**
+     * The Reader.
+     */
+    private FrameReader reader;
+    /**
+     * The Sender writing while the test reads, bodies don't fit the socket buffers.
+     */
+    private CompletableFuture<Void> sender = CompletableFuture.completedFuture(null);
+
+    /**
+     * Connect both ends.
+     *
+     * @throws IOException the io exception
+     */
+    @Before
+    public void connect() throws IOException {
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            out = new Socket(server.getInetAddress(), server.getLocalPort());
+            in = server.accept();
+        }
+        writer = new FrameWriter(out.getOutputStream(), out);
+        reader = new FrameReader(in.getInputStream(), in);
+    }
+
+    /**
+     * Close both ends once the sender is done.
+     *
+     * @throws Exception if the sender failed
+     */
+    @After
+    public void close() throws Exception {
+        sender.get(5, TimeUnit.SECONDS);
+        out.close();
+        in.close();
+    }
+
+    /**
+     * Encoded frames decode to the same frame.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void encodeDecode() throws IOException {
+        Frame frame = new Frame(FrameType.EVENT, 42, new PayloadWriter()
+                .writeByte(Protocol.EVENT_USER_JOINED)
+                .writeShort(7)
+                .writeInt(-1)
+                .writeLong(Long.MIN_VALUE)
+                .writeBytes(new byte[] {1, 2, 3})
+                .writeString("ünï/路径"));
+        Frame decoded = Frame.decode(frame.encode());
+
+        assertNotNull(decoded);
+        assertEquals(FrameType.EVENT, decoded.getType());
+        assertEquals(42, decoded.getRequestId());
+        assertFalse(decoded.hasBody());
+        PayloadReader payload = decoded.payload();
+        assertEquals(Protocol.EVENT_USER_JOINED, payload.readByte());
+        assertEquals(7, payload.readShort());
+        assertEquals(-1, payload.readInt());
+        assertEquals(Long.MIN_VALUE, payload.readLong());
+        assertArrayEquals(new byte[] {1, 2, 3}, payload.readBytes());
+        assertEquals("ünï/路径", payload.readString());
+        assertFalse(payload.hasRemaining());
+    }
+
+    /**
+     * A frame not received completely decodes to nothing and leaves the buffer as it was.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void decodePartial() throws IOException {
+        ByteBuffer encoded = new Frame(FrameType.MANIFEST, 1, new PayloadWriter().writeString("dir")).encode();
+        for (int length = 0; length < encoded.remaining(); length++) {
+            ByteBuffer partial = ByteBuffer.wrap(encoded.array(), 0, length);
+            assertNull(Frame.decode(partial));
+            assertEquals(0, partial.position());
+        }
+    }
+
+    /**
+     * A payload length out of range is refused.
+     */
+    @Test
+    public void decodeInvalidLength() {
+        ByteBuffer header = ByteBuffer.allocate(Protocol.HEADER_SIZE);
+        header.put((byte) FrameType.OK.getCode()).put((byte) 0).putInt(1).putInt(Protocol.MAX_PAYLOAD + 1).flip();
+        try {
+            Frame.decode(header);
+            fail("decoded a frame too large");
+        } catch (ProtocolException expected) {
+            // refused
+        }
+    }
+
+    /**
+     * A file frame carries length, path and modification time and is followed by the body.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void fileRoundTrip() throws IOException {
+        File source = file("source", 300000);
+        source.setLastModified(1600000000000L);
+        send(() -> {
+            writer.write(new Frame(FrameType.OK, 1));
+            writer.writeFile(2, "dir/source", source);
+            writer.send(new Frame(FrameType.OK, 3));
+        });
+
+        assertEquals(FrameType.OK, reader.readFrame().getType());
+        Frame frame = reader.readFrame();
+        assertEquals(FrameType.FILE, frame.getType());
+        assertTrue(frame.hasBody());
+        assertEquals(source.length(), frame.getBodyLength());
+        PayloadReader payload = frame.payload();
+        assertEquals(source.length(), payload.readLong());
+        assertEquals("dir/source", payload.readString());
+        assertEquals(1600000000000L, payload.readLong());
+
+        File target = new File(folder.getRoot(), "target");
+        reader.readBody(target, frame.getBodyLength());
+        assertArrayEquals(Files.readAllBytes(source.toPath()), Files.readAllBytes(target.toPath()));
+        assertEquals(3, reader.readFrame().getRequestId());
+        assertEquals(2, folder.getRoot().list().length);
+    }
+
+    /**
+     * Skipped bodies leave the reader at the next frame, whether skipped at once or in parts.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void skipBody() throws IOException {
+        File source = file("source", 100000);
+        send(() -> {
+            writer.writeFile(1, "a", source);
+            writer.writeFile(2, "b", source);
+            writer.send(new Frame(FrameType.OK, 3));
+        });
+
+        Frame first = reader.readFrame();
+        reader.skipBody(first.getBodyLength());
+        Frame second = reader.readFrame();
+        assertEquals(2, second.getRequestId());
+        reader.skipBody(1000);
+        reader.skipRestOfBody();
+        assertEquals(3, reader.readFrame().getRequestId());
+    }
+
+    /**
+     * A body refused before any of it was read is skipped as a whole.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void skipRestOfRefusedBody() throws IOException {
+        File source = file("source", 50000);
+        send(() -> {
+            writer.writeFile(1, "a", source);
+            writer.send(new Frame(FrameType.OK, 2));
+        });
+
+        Frame frame = reader.readFrame();
+        try {
+            reader.readBody(new File(folder.getRoot(), "missing/target"), frame.getBodyLength());
+            fail("wrote into a missing directory");
+        } catch (IOException expected) {
+            reader.skipRestOfBody();
+        }
+        assertEquals(2, reader.readFrame().getRequestId());
+    }
+
+    /**
+     * A body cut off halfway leaves the reader lost, and nothing behind.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void bodyCutOff() throws IOException {
+        File target = file("target", 10);
+        Frame announced = Frame.file(1, "a", 100000, 0);
+        writer.write(announced);
+        writer.flush();
+        OutputStream raw = out.getOutputStream();
+        raw.write(new byte[5000]);
+        raw.flush();
+        out.shutdownOutput();
+
+        Frame frame = reader.readFrame();
+        try {
+            reader.readBody(target, frame.getBodyLength());
+            fail("read a body cut off");
+        } catch (EOFException expected) {
+            // the old content stays
+        }
+        assertEquals(10, target.length());
+        assertEquals(1, folder.getRoot().list().length);
+        try {
+            reader.skipRestOfBody();
+            fail("skipped a body read partly");
+        } catch (ProtocolException expected) {
+            // the connection has to go
+        }
+    }
+
+    /**
+     * Send frames from another thread.
+     *
+     * @param frames the frames to write
+     */
+    private void send(Frames frames) {
+        sender = CompletableFuture.runAsync(() -> {
+            try {
+                frames.write();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+    /**
+     * File of random content.
+     *
+     * @param name   the name
+     * @param length the length
+     * @return the file
+     * @throws IOException the io exception
+     */
+    private File file(String name, int length) throws IOException {
+        byte[] content = new byte[length];
+        new Random(length).nextBytes(content);
+        File file = folder.newFile(name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    /**
+     * The interface Frames written by the sender.
+     */
+    private interface Frames {
+        /**
+         * Write.
+         *
+         * @throws IOException the io exception
+         */
+        void write() throws IOException;
+    }
+}
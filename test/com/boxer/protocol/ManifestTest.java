@@ -0,0 +1,179 @@
+package com.boxer.protocol;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The type Manifest test, hash trees of directories and their listings on the wire.
+ */
+public class ManifestTest {
+    /**
+     * The Folder.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Equal trees hash alike wherever they are.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void equalTrees() throws IOException {
+        Path left = tree("left");
+        Path right = tree("right");
+        Manifest.Node a = Manifest.scan(left);
+        Manifest.Node b = Manifest.scan(right);
+
+        assertEquals("", a.getName());
+        assertTrue(a.sameAs(b));
+        assertEquals(Arrays.asList("a.txt", "d/b.txt", "d/e/c.txt"), a.files(""));
+        assertEquals(Collections.singletonList("d/e/c.txt"), a.find("d/e").files("d/e"));
+        assertNull(a.find("d/missing"));
+    }
+
+    /**
+     * A change shows in the hashes up to the root and nowhere else.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void changeShowsUpToRoot() throws IOException {
+        Path left = tree("left");
+        Path right = tree("right");
+        Files.write(right.resolve("d/e/c.txt"), "longer content".getBytes("UTF-8"));
+        Manifest.Node a = Manifest.scan(left);
+        Manifest.Node b = Manifest.scan(right);
+
+        assertFalse(a.sameAs(b));
+        assertFalse(a.find("d").sameAs(b.find("d")));
+        assertFalse(a.find("d/e").sameAs(b.find("d/e")));
+        assertTrue(a.find("a.txt").sameAs(b.find("a.txt")));
+
+        // modification times count in seconds
+        Path file = right.resolve("a.txt");
+        file.toFile().setLastModified(1600000000000L);
+        Manifest.Node before = Manifest.scan(right);
+        file.toFile().setLastModified(1600000000999L);
+        assertTrue(before.sameAs(Manifest.scan(right)));
+        file.toFile().setLastModified(1600000001000L);
+        assertFalse(before.sameAs(Manifest.scan(right)));
+    }
+
+    /**
+     * Listings carry a directory with its hash, its files and the hashes of its directories.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void listingRoundTrip() throws IOException {
+        Manifest.Node root = Manifest.scan(tree("tree"));
+        Frame frame = new Frame(FrameType.MANIFEST_LISTING, 1, Manifest.writeListing(new PayloadWriter(), root));
+        Manifest.Node read = Manifest.readListing(Frame.decode(frame.encode()).payload(), "");
+
+        assertTrue(read.sameAs(root));
+        assertEquals(2, read.getChildren().size());
+        assertTrue(read.getChild("a.txt").sameAs(root.getChild("a.txt")));
+        Manifest.Node dir = read.getChild("d");
+        assertTrue(dir.isDirectory());
+        assertArrayEquals(root.getChild("d").getHash(), dir.getHash());
+        assertTrue(dir.getChildren().isEmpty());
+    }
+
+    /**
+     * A missing directory is listed as an empty one.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void missingListing() throws IOException {
+        Manifest.Node empty = Manifest.scan(folder.newFolder("empty").toPath());
+        Frame frame = new Frame(FrameType.MANIFEST_LISTING, 1, Manifest.writeListing(new PayloadWriter(), null));
+        Manifest.Node read = Manifest.readListing(frame.payload(), "gone");
+
+        assertTrue(read.sameAs(empty));
+        assertTrue(read.getChildren().isEmpty());
+    }
+
+    /**
+     * A tree built from a list of files hashes like the scan of the same files.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void builtLikeScanned() throws IOException {
+        Manifest.Builder builder = new Manifest.Builder();
+        for (String file : new String[] {"d/e/c.txt", "a.txt", "d/b.txt"}) {
+            builder.add(file, file.length(), 1500000000000L);
+        }
+        Manifest.Node built = builder.build();
+
+        assertTrue(built.sameAs(Manifest.scan(tree("tree"))));
+        assertEquals(Arrays.asList("a.txt", "d/b.txt", "d/e/c.txt"), built.files(""));
+    }
+
+    /**
+     * Part and link files of writes in progress and directories without files are left out.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void temporaryLeftOut() throws IOException {
+        Path root = tree("tree");
+        Manifest.Node before = Manifest.scan(root);
+        Files.createDirectories(root.resolve("empty/below"));
+        Files.createDirectories(root.resolve("d/e/.tmp"));
+        Files.write(root.resolve("d/.b.txt.1234.part"), new byte[3]);
+        Files.write(root.resolve("d/.b.txt.link"), new byte[3]);
+        Files.write(root.resolve("d/e/.tmp/.c.txt.9.part"), new byte[0]);
+        assertTrue(before.sameAs(Manifest.scan(root)));
+        assertTrue(before.sameAs(new Manifest.Builder()
+                .add("a.txt", 5, 1500000000000L).add("d/b.txt", 7, 1500000000000L)
+                .add("d/e/c.txt", 9, 1500000000000L).add("d/.b.txt.1234.part", 3, 0).build()));
+
+        assertTrue(Manifest.isTemporary(".b.txt.1234.part"));
+        assertTrue(Manifest.isTemporary(".b.link"));
+        assertFalse(Manifest.isTemporary(".b.part"));
+        assertFalse(Manifest.isTemporary("b.txt.1234.part"));
+        assertFalse(Manifest.isTemporary(".link"));
+    }
+
+    /**
+     * Times before the epoch round down.
+     */
+    @Test
+    public void toSeconds() {
+        assertEquals(1, Manifest.toSeconds(1999));
+        assertEquals(-1, Manifest.toSeconds(-1));
+    }
+
+    /**
+     * Tree of three files, with fixed times.
+     *
+     * @param name the name
+     * @return the tree
+     * @throws IOException the io exception
+     */
+    private Path tree(String name) throws IOException {
+        Path root = folder.newFolder(name).toPath();
+        Files.createDirectories(root.resolve("d/e"));
+        for (String file : new String[] {"a.txt", "d/b.txt", "d/e/c.txt"}) {
+            Path path = Files.write(root.resolve(file), file.getBytes("UTF-8"));
+            path.toFile().setLastModified(1500000000000L);
+        }
+        return root;
+    }
+}
@@ -0,0 +1,101 @@
+package com.boxer.server;
+
+import com.boxer.protocol.Frame;
+import com.boxer.protocol.FrameType;
+import com.boxer.protocol.PayloadReader;
+import com.boxer.protocol.Protocol;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The type Event queue test, events waiting for one user coalesced and bounded without blocking.
+ */
+public class EventQueueTest {
+    /**
+     * The writer is told once until it found the queue empty.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void wakeOnce() throws IOException {
+        EventQueue events = new EventQueue(8);
+        assertTrue(events.offer(Protocol.EVENT_USER_JOINED, "alice"));
+        assertFalse(events.offer(Protocol.EVENT_USER_JOINED, "bob"));
+
+        Frame event = events.poll();
+        assertEquals(FrameType.EVENT, event.getType());
+        assertEquals(Protocol.PUSH_REQUEST_ID, event.getRequestId());
+        PayloadReader payload = event.payload();
+        assertEquals(Protocol.EVENT_USER_JOINED, payload.readByte());
+        assertEquals("alice", payload.readString());
+        assertFalse(events.offer(Protocol.EVENT_USER_LEFT, "carol"));
+        assertEquals(Arrays.asList("1:bob", "2:carol"), drain(events));
+
+        assertFalse(events.hasPending());
+        assertTrue(events.offer(Protocol.EVENT_USER_LEFT, "carol"));
+    }
+
+    /**
+     * An event already waiting isn't queued twice.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void coalesce() throws IOException {
+        EventQueue events = new EventQueue(8);
+        for (int i = 0; i < 100; i++) {
+            events.offer(Protocol.EVENT_FILES_SHARED, "alice");
+        }
+        events.offer(Protocol.EVENT_USER_LEFT, "alice");
+        events.offer(Protocol.EVENT_FILES_SHARED, "alice");
+        assertEquals(Arrays.asList(Protocol.EVENT_FILES_SHARED + ":alice", "2:alice"), drain(events));
+    }
+
+    /**
+     * A full queue drops the oldest of a kind waiting more than once, and keeps one event of every kind.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void bounded() throws IOException {
+        EventQueue events = new EventQueue(4);
+        for (int i = 0; i < 10; i++) {
+            events.offer(Protocol.EVENT_USER_JOINED, "u" + i);
+        }
+        assertEquals(Arrays.asList("1:u0", "1:u1", "1:u2", "1:u3"), drain(events));
+
+        for (int i = 0; i < 4; i++) {
+            events.offer(Protocol.EVENT_USER_JOINED, "u" + i);
+        }
+        events.offer(Protocol.EVENT_USER_LEFT, "u0");
+        events.offer(Protocol.EVENT_FILES_SHARED, "u1");
+        events.offer(Protocol.EVENT_USER_LEFT, "u2");
+        assertEquals(Arrays.asList("1:u2", "1:u3", "2:u0", Protocol.EVENT_FILES_SHARED + ":u1"), drain(events));
+    }
+
+    /**
+     * Drain queue.
+     *
+     * @param events the events
+     * @return the events as kind and user
+     * @throws IOException the io exception
+     */
+    private static List<String> drain(EventQueue events) throws IOException {
+        List<String> drained = new ArrayList<>();
+        for (Frame event = events.poll(); event != null; event = events.poll()) {
+            PayloadReader payload = event.payload();
+            drained.add(payload.readByte() + ":" + payload.readString());
+        }
+        assertNull(events.poll());
+        return drained;
+    }
+}
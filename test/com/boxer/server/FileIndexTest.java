@@ -0,0 +1,217 @@
+package com.boxer.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The type File index test, listings of nested directories, removed subtrees and the directories the listener hears
+ * of.
+ */
+public class FileIndexTest {
+    /**
+     * The constant USER id in the catalog.
+     */
+    private static final int USER = 0;
+
+    /**
+     * The Folder.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The User dir.
+     */
+    private Path userDir;
+    /**
+     * The Catalog.
+     */
+    private MetadataCatalog catalog;
+
+    /**
+     * Open catalog.
+     *
+     * @throws IOException the io exception
+     */
+    @Before
+    public void open() throws IOException {
+        userDir = folder.newFolder("alice").toPath();
+        catalog = MetadataCatalog.open(folder.newFolder("catalog").toPath());
+    }
+
+    /**
+     * Close catalog.
+     *
+     * @throws IOException the io exception
+     */
+    @After
+    public void close() throws IOException {
+        catalog.close();
+    }
+
+    /**
+     * A listing holds the files of its directory and each directory below once, names sorting right around the
+     * directory's are neither skipped nor taken for it.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void nestedListings() throws IOException {
+        // '-' and '.' sort before '/', '0' right after it
+        for (String path : Arrays.asList("a.txt", "d/b.txt", "d/e/c.txt", "d/e/f/g.txt", "d/e/f/h.txt", "d-x.txt",
+                "d.txt", "d0.txt")) {
+            write(path);
+        }
+        FileIndex index = load();
+
+        assertEquals(listing("a.txt", false, "d", true, "d-x.txt", false, "d.txt", false, "d0.txt", false),
+                index.list(""));
+        assertEquals(listing("b.txt", false, "e", true), index.list("d"));
+        assertEquals(listing("c.txt", false, "f", true), index.list("d/e"));
+        assertEquals(listing("g.txt", false, "h.txt", false), index.list("d/e/f"));
+        assertTrue(index.list("x").isEmpty());
+        assertTrue("a file lists nothing", index.list("a.txt").isEmpty());
+    }
+
+    /**
+     * A directory gone from disk takes everything below it out of the index and the catalog, and nothing else.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void removeSubtree() throws IOException {
+        for (String path : Arrays.asList("d/b.txt", "d/e/c.txt", "d/e/f/g.txt", "d-x.txt", "d0.txt", "e/g.txt")) {
+            write(path);
+        }
+        FileIndex index = load();
+
+        delete(userDir.resolve("d"));
+        index.update(userDir.resolve("d").toFile());
+
+        assertEquals(listing("d-x.txt", false, "d0.txt", false, "e", true), index.list(""));
+        assertTrue(index.list("d").isEmpty());
+        for (String path : Arrays.asList("d/b.txt", "d/e/c.txt", "d/e/f/g.txt")) {
+            assertNull(path, index.get(path));
+            assertNull(path, catalog.get(USER, path));
+        }
+        assertNotNull(index.get("d0.txt"));
+        assertEquals(userDir.resolve("e/g.txt").toFile(), index.find("g.txt"));
+        assertNull(index.find("c.txt"));
+        assertEquals(new HashSet<>(Arrays.asList("d-x.txt", "d0.txt", "e/g.txt")),
+                new HashSet<>(catalog.paths(USER).get(USER)));
+    }
+
+    /**
+     * Each change reports the one directory whose listing changed, the parent of the shallowest directory appearing or
+     * disappearing with it.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void changedDirectories() throws IOException {
+        FileIndex index = load();
+        List<String> changed = new ArrayList<>();
+        index.setListener(changed::add);
+
+        // a and a/b appear with the file
+        index.update(write("a/b/c.txt"));
+        assertEquals(Collections.singletonList(""), changed);
+        index.update(write("a/b/d.txt"));
+        index.update(write("a/x.txt"));
+        assertEquals(Arrays.asList("", "a/b", "a"), changed);
+
+        // written again, no listing changes
+        index.update(write("a/x.txt"));
+        // never indexed and not there
+        index.update(userDir.resolve("a/none.txt").toFile());
+        assertEquals(3, changed.size());
+
+        changed.clear();
+        Files.delete(userDir.resolve("a/b/c.txt"));
+        index.update(userDir.resolve("a/b/c.txt").toFile());
+        // a/b disappears with its last file
+        Files.delete(userDir.resolve("a/b/d.txt"));
+        index.update(userDir.resolve("a/b/d.txt").toFile());
+        assertEquals(Arrays.asList("a/b", "a"), changed);
+
+        changed.clear();
+        delete(userDir.resolve("a"));
+        index.update(userDir.resolve("a").toFile());
+        assertEquals(Collections.singletonList(""), changed);
+        assertTrue(index.list("").isEmpty());
+    }
+
+    /**
+     * Load index, walking the user directory.
+     *
+     * @return the index
+     * @throws IOException the io exception
+     */
+    private FileIndex load() throws IOException {
+        return FileIndex.load(userDir, catalog, USER, Collections.emptyList(), true);
+    }
+
+    /**
+     * Write file of the user.
+     *
+     * @param path the path with '/' separators
+     * @return the file
+     * @throws IOException the io exception
+     */
+    private File write(String path) throws IOException {
+        Path file = userDir.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, path.getBytes("UTF-8"));
+        return file.toFile();
+    }
+
+    /**
+     * Delete file or directory with everything below it.
+     *
+     * @param path the path
+     * @throws IOException the io exception
+     */
+    private static void delete(Path path) throws IOException {
+        try (Stream<Path> walk = Files.walk(path)) {
+            for (Path below : (Iterable<Path>) walk.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(below);
+            }
+        }
+    }
+
+    /**
+     * Listing as {@link FileIndex#list(String)} returns it.
+     *
+     * @param namesAndDirs the names, each followed by true for directories
+     * @return the listing
+     */
+    private static Map<String, Boolean> listing(Object... namesAndDirs) {
+        Map<String, Boolean> listing = new LinkedHashMap<>();
+        for (int i = 0; i < namesAndDirs.length; i += 2) {
+            listing.put((String) namesAndDirs[i], (Boolean) namesAndDirs[i + 1]);
+        }
+        return listing;
+    }
+}
@@ -0,0 +1,330 @@
+package com.boxer.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The type Metadata catalog test, the table checked against a map through growth and deletes, and reopened after a
+ * clean close and after a crash.
+ */
+public class MetadataCatalogTest {
+    static {
+        // a tiny first table, so it grows and wraps around right away
+        System.setProperty("boxer.server.catalogSlots", "4");
+        // and paths of removed files are dropped early
+        System.setProperty("boxer.server.catalogDeadBytes", "1024");
+    }
+
+    /**
+     * The constant SLOT size in the table file.
+     */
+    private static final int SLOT = 80;
+    /**
+     * The constant PATH offset in a slot.
+     */
+    private static final int PATH = 32;
+    /**
+     * The constant HEAP_END offset in the header.
+     */
+    private static final int HEAP_END = 16;
+
+    /**
+     * The Folder.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Random puts and removes leave the same files as a map, through rehashes and backward shift deletes.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void matchesModel() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        Map<String, Long> model = new HashMap<>();
+        try (MetadataCatalog catalog = MetadataCatalog.open(dir)) {
+            assertFalse(catalog.wasClean());
+            Random random = new Random(7);
+            for (int i = 0; i < 50000; i++) {
+                int user = random.nextInt(2);
+                String path = "d" + random.nextInt(20) + "/f" + random.nextInt(200);
+                if (random.nextInt(3) == 0) {
+                    assertEquals(user + ":" + path, model.remove(user + ":" + path) != null, catalog.remove(user, path));
+                } else {
+                    long size = random.nextInt(100);
+                    catalog.put(user, path, size, 1000 + size, null);
+                    model.put(user + ":" + path, size);
+                }
+            }
+
+            assertEquals(model.size(), catalog.size());
+            assertTrue("grew to hold them", Files.size(dir.resolve("catalog.table")) >= model.size() * SLOT * 5 / 3);
+            for (int user = 0; user < 2; user++) {
+                for (int d = 0; d < 20; d++) {
+                    for (int f = 0; f < 200; f++) {
+                        String path = "d" + d + "/f" + f;
+                        Long size = model.get(user + ":" + path);
+                        FileIndex.Entry entry = catalog.get(user, path);
+                        if (size == null) {
+                            assertNull(path, entry);
+                        } else {
+                            assertEquals(path, (long) size, entry.getSize());
+                            assertEquals(path, 1000 + size, entry.getModified());
+                        }
+                    }
+                }
+            }
+            int listed = 0;
+            for (List<String> paths : catalog.paths().values()) {
+                listed += paths.size();
+            }
+            assertEquals(model.size(), listed);
+            assertEquals(Collections.singleton(1), catalog.paths(1).keySet());
+        }
+    }
+
+    /**
+     * Removing every file empties the table, whatever order they went in.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void removeAll() throws IOException {
+        try (MetadataCatalog catalog = MetadataCatalog.open(folder.getRoot().toPath())) {
+            for (int i = 0; i < 1000; i++) {
+                catalog.put(0, "f" + i, i, i, null);
+            }
+            for (int i = 999; i >= 0; i -= 2) {
+                assertTrue(catalog.remove(0, "f" + i));
+            }
+            for (int i = 0; i < 1000; i += 2) {
+                assertNotNull("f" + i, catalog.get(0, "f" + i));
+                assertTrue(catalog.remove(0, "f" + i));
+            }
+            assertEquals(0, catalog.size());
+            assertFalse(catalog.remove(0, "f0"));
+            assertTrue(catalog.paths().isEmpty());
+        }
+    }
+
+    /**
+     * Files coming and going keep the path heap about the size of the paths in use.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void heapCompacted() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        String prefix = "some/rather/long/directory/name/";
+        try (MetadataCatalog catalog = MetadataCatalog.open(dir)) {
+            for (int round = 0; round < 50; round++) {
+                for (int i = 0; i < 100; i++) {
+                    catalog.put(0, prefix + round + "-" + i, i, i, null);
+                    if (round > 0) {
+                        assertTrue(catalog.remove(0, prefix + (round - 1) + "-" + i));
+                    }
+                }
+            }
+            assertEquals(100, catalog.size());
+        }
+
+        long live = 100 * (prefix + "49-00").length();
+        try (RandomAccessFile head = new RandomAccessFile(dir.resolve("catalog.head").toFile(), "r")) {
+            head.seek(HEAP_END);
+            long end = head.readLong();
+            assertTrue("heap of " + end + " bytes", end <= 2 * live + 1024 + prefix.length() + 8);
+        }
+        try (MetadataCatalog catalog = MetadataCatalog.open(dir)) {
+            for (int i = 0; i < 100; i++) {
+                assertEquals(i, catalog.get(0, prefix + "49-" + i).getSize());
+                assertNull(catalog.get(0, prefix + "48-" + i));
+            }
+        }
+    }
+
+    /**
+     * Versions count changes, and a hash is kept as long as size and time are.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void versionsAndHashes() throws IOException {
+        String hash = hex(1);
+        try (MetadataCatalog catalog = MetadataCatalog.open(folder.getRoot().toPath())) {
+            catalog.put(0, "v", 10, 100, null);
+            assertEquals(1, catalog.get(0, "v").getVersion());
+            assertNull(catalog.get(0, "v").getHash());
+            catalog.put(0, "v", 10, 100, hash);
+            assertEquals(2, catalog.get(0, "v").getVersion());
+            catalog.put(0, "v", 10, 100, null);
+            assertEquals(2, catalog.get(0, "v").getVersion());
+            assertEquals(hash, catalog.get(0, "v").getHash());
+            assertEquals(Collections.singletonMap(ObjectStore.nameOf(hash, 100), 1), catalog.references());
+            catalog.put(0, "v", 11, 100, null);
+            assertEquals(3, catalog.get(0, "v").getVersion());
+            assertNull(catalog.get(0, "v").getHash());
+            assertTrue(catalog.references().isEmpty());
+        }
+    }
+
+    /**
+     * A catalog closed properly is trusted as it is.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void cleanReopen() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (MetadataCatalog catalog = MetadataCatalog.open(dir)) {
+            assertEquals(0, catalog.userId("alice"));
+            assertEquals(1, catalog.userId("bob"));
+            fill(catalog, 100);
+            catalog.put(1, "ünï/路径", 1, 2, null);
+        }
+
+        try (MetadataCatalog catalog = MetadataCatalog.open(dir)) {
+            assertTrue(catalog.wasClean());
+            assertEquals(101, catalog.size());
+            assertEquals(1, catalog.userId("bob"));
+            assertEquals(2, catalog.userId("carol"));
+            assertEquals(42, catalog.get(0, "f42").getSize());
+            assertNotNull(catalog.get(1, "ünï/路径"));
+            assertNull(catalog.get(0, "ünï/路径"));
+        }
+    }
+
+    /**
+     * A catalog left open by a crash is rebuilt from the slots that make sense.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void uncleanReopen() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        MetadataCatalog catalog = MetadataCatalog.open(dir);
+        catalog.userId("alice");
+        fill(catalog, 100);
+        Path crashed = crash(catalog, dir);
+
+        catalog = MetadataCatalog.open(crashed);
+        assertFalse(catalog.wasClean());
+        assertEquals(100, catalog.size());
+        assertEquals(7, catalog.get(0, "f7").getSize());
+        assertEquals(0, catalog.userId("alice"));
+        catalog.put(0, "last", 1, 1, null);
+        crashed = crash(catalog, crashed);
+
+        // a slot pointing past the paths, as if its path never made it to disk
+        try (RandomAccessFile table = new RandomAccessFile(crashed.resolve("catalog.table").toFile(), "rw")) {
+            for (long slot = 0; slot < table.length() / SLOT; slot++) {
+                table.seek(slot * SLOT);
+                if (table.readLong() != 0) {
+                    table.seek(slot * SLOT + PATH);
+                    table.writeLong(1L << 40);
+                    break;
+                }
+            }
+        }
+
+        try (MetadataCatalog rebuilt = MetadataCatalog.open(crashed)) {
+            assertFalse(rebuilt.wasClean());
+            assertEquals(100, rebuilt.size());
+            List<String> paths = rebuilt.paths(0).get(0);
+            assertEquals(100, paths.size());
+            for (String path : paths) {
+                assertNotNull(path, rebuilt.get(0, path));
+            }
+        }
+    }
+
+    /**
+     * A user name cut off by a crash is dropped and the next one takes its id.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void tornUserName() throws IOException {
+        Path dir = folder.getRoot().toPath();
+        try (MetadataCatalog catalog = MetadataCatalog.open(dir)) {
+            catalog.userId("alice");
+            catalog.userId("bob");
+        }
+        try (RandomAccessFile users = new RandomAccessFile(dir.resolve("catalog.users").toFile(), "rw")) {
+            users.setLength(users.length() - 2);
+        }
+
+        try (MetadataCatalog catalog = MetadataCatalog.open(dir)) {
+            assertEquals(0, catalog.userId("alice"));
+            assertEquals(1, catalog.userId("dave"));
+            assertEquals(2, catalog.userId("bob"));
+        }
+        try (MetadataCatalog catalog = MetadataCatalog.open(dir)) {
+            assertEquals(Arrays.asList(0, 1, 2),
+                    Arrays.asList(catalog.userId("alice"), catalog.userId("dave"), catalog.userId("bob")));
+        }
+    }
+
+    /**
+     * Crash catalog: what it wrote so far is copied aside, as the disk would hold it, before it's closed.
+     *
+     * @param catalog the catalog
+     * @param dir     the directory of its files
+     * @return the directory holding the copy
+     * @throws IOException the io exception
+     */
+    private Path crash(MetadataCatalog catalog, Path dir) throws IOException {
+        catalog.flush();
+        Path copy = folder.newFolder().toPath();
+        for (String name : new String[] {"catalog.head", "catalog.table", "catalog.paths", "catalog.users"}) {
+            Files.copy(dir.resolve(name), copy.resolve(name));
+        }
+        catalog.close();
+        return copy;
+    }
+
+    /**
+     * Fill catalog with files of alice.
+     *
+     * @param catalog the catalog
+     * @param count   the count
+     * @throws IOException the io exception
+     */
+    private static void fill(MetadataCatalog catalog, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            catalog.put(0, "f" + i, i, 1600000000000L + i, i % 2 == 0 ? hex(i) : null);
+        }
+    }
+
+    /**
+     * Hex of a made up hash.
+     *
+     * @param seed the seed
+     * @return the hash in hex
+     */
+    private static String hex(int seed) {
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            hex.append(String.format("%08x", seed * 31 + i));
+        }
+        return hex.toString();
+    }
+}
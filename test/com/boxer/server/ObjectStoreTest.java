@@ -0,0 +1,241 @@
+package com.boxer.server;
+
+import com.boxer.ConsoleLog;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The type Object store test, uploads sharing their content through links, shares and the sweep of unused objects.
+ */
+public class ObjectStoreTest {
+    /**
+     * The constant MODIFIED time of the files.
+     */
+    private static final long MODIFIED = 1600000000000L;
+
+    /**
+     * The Folder.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The Directory of the objects.
+     */
+    private Path root;
+    /**
+     * The Directory of the user directories.
+     */
+    private Path users;
+    /**
+     * The Store.
+     */
+    private ObjectStore store;
+
+    /**
+     * Log to the logger, as the headless server does.
+     */
+    @BeforeClass
+    public static void log() {
+        ConsoleLog.initialize(Logger.getLogger(ObjectStoreTest.class.getName()));
+    }
+
+    /**
+     * Create store.
+     *
+     * @throws IOException the io exception
+     */
+    @Before
+    public void create() throws IOException {
+        root = folder.getRoot().toPath().resolve("objects");
+        users = folder.newFolder("users").toPath();
+        store = new ObjectStore(root);
+        store.probe(users);
+    }
+
+    /**
+     * The probe leaves nothing behind.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void probe() throws IOException {
+        assertTrue(objects().isEmpty());
+        try (Stream<Path> files = Files.list(users)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    /**
+     * Identical uploads end up as one file, small ones are left alone.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void identicalUploadsShareOneFile() throws IOException {
+        byte[] content = content(1);
+        File first = write("alice/a.bin", content);
+        File second = write("bob/d/b.bin", content);
+
+        String hash = store.ingest(first);
+        assertNotNull(hash);
+        assertEquals(hash, store.ingest(second));
+        assertEquals(hash, store.ingest(second));
+        assertTrue(Files.isSameFile(first.toPath(), second.toPath()));
+        assertEquals(Collections.singletonList(ObjectStore.nameOf(hash, MODIFIED)), names(objects()));
+        assertArrayEquals(content, Files.readAllBytes(second.toPath()));
+        assertEquals(MODIFIED, second.lastModified());
+
+        assertNull(store.ingest(write("alice/small.txt", new byte[100])));
+        assertEquals(1, objects().size());
+    }
+
+    /**
+     * An object whose content no longer matches its name is replaced by the next copy.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void damagedObjectReplaced() throws IOException {
+        byte[] content = content(2);
+        String hash = store.ingest(write("alice/a.bin", content));
+        Path object = objects().get(0);
+
+        // damaged in place of the object only, the file of alice keeps its content
+        Files.delete(object);
+        Files.write(object, content(3));
+        File copy = write("bob/b.bin", content);
+        assertEquals(hash, store.ingest(copy));
+
+        assertTrue(Files.isSameFile(object, copy.toPath()));
+        assertArrayEquals(content, Files.readAllBytes(object));
+        assertArrayEquals(content, Files.readAllBytes(users.resolve("alice/a.bin")));
+    }
+
+    /**
+     * Sharing links the file into the directory of the user, unless the user holds that content already.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void shareOnlyNewContent() throws IOException {
+        byte[] content = content(4);
+        File source = write("alice/a.bin", content);
+        String hash = store.ingest(source);
+
+        File target = users.resolve("bob/alice/a.bin").toFile();
+        assertTrue(store.share(source, target, hash));
+        assertTrue(Files.isSameFile(source.toPath(), target.toPath()));
+        assertFalse(store.share(source, target, hash));
+
+        // a copy of its own with the same content and time
+        File copy = write("carol/alice/a.bin", content);
+        assertFalse(store.share(source, copy, hash));
+        assertFalse(Files.isSameFile(source.toPath(), copy.toPath()));
+
+        // changed content is shared again
+        File changed = write("dave/alice/a.bin", content(5));
+        assertTrue(store.share(source, changed, null));
+        assertArrayEquals(content, Files.readAllBytes(changed.toPath()));
+    }
+
+    /**
+     * The sweep removes objects no file refers to, the files themselves keep their content.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void sweepUnreferenced() throws IOException {
+        byte[] kept = content(6);
+        byte[] dropped = content(7);
+        File keptFile = write("alice/kept.bin", kept);
+        File droppedFile = write("alice/dropped.bin", dropped);
+        String keptHash = store.ingest(keptFile);
+        store.ingest(droppedFile);
+        assertEquals(2, objects().size());
+
+        assertEquals(1, store.sweep(Collections.singletonMap(ObjectStore.nameOf(keptHash, MODIFIED), 1)));
+        assertEquals(Collections.singletonList(ObjectStore.nameOf(keptHash, MODIFIED)), names(objects()));
+        assertArrayEquals(kept, Files.readAllBytes(keptFile.toPath()));
+        assertArrayEquals(dropped, Files.readAllBytes(droppedFile.toPath()));
+
+        assertEquals(1, store.sweep(Collections.emptyMap()));
+        assertTrue(objects().isEmpty());
+        assertArrayEquals(kept, Files.readAllBytes(keptFile.toPath()));
+    }
+
+    /**
+     * Write file of a user.
+     *
+     * @param path    the path below the user directories
+     * @param content the content
+     * @return the file
+     * @throws IOException the io exception
+     */
+    private File write(String path, byte[] content) throws IOException {
+        Path file = users.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content);
+        file.toFile().setLastModified(MODIFIED);
+        return file.toFile();
+    }
+
+    /**
+     * Objects in the store.
+     *
+     * @return the object files
+     * @throws IOException the io exception
+     */
+    private List<Path> objects() throws IOException {
+        if (!Files.isDirectory(root)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Names of files.
+     *
+     * @param files the files
+     * @return the names
+     */
+    private static List<String> names(List<Path> files) {
+        return files.stream().map(file -> file.getFileName().toString()).collect(Collectors.toList());
+    }
+
+    /**
+     * Content of a file bigger than the smallest one stored.
+     *
+     * @param seed the seed
+     * @return the content
+     */
+    private static byte[] content(int seed) {
+        byte[] content = new byte[10000];
+        new Random(seed).nextBytes(content);
+        return content;
+    }
+}
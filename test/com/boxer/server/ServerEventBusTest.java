@@ -0,0 +1,139 @@
+package com.boxer.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The type Server event bus test, events taken in order, one wake up per burst, and a rebuild once the ring overflowed.
+ */
+public class ServerEventBusTest {
+    /**
+     * Events come in the order published, and what came before the consumer counts as missed.
+     */
+    @Test
+    public void drainInOrder() {
+        ServerEventBus bus = new ServerEventBus(16);
+        bus.publish(ServerEventBus.Kind.USER_JOINED, "before", null);
+        AtomicInteger wakes = new AtomicInteger();
+        bus.subscribe(wakes::incrementAndGet);
+        assertEquals(1, wakes.get());
+
+        bus.publish(ServerEventBus.Kind.USER_JOINED, "alice", null);
+        bus.publish(ServerEventBus.Kind.DIR_CHANGED, "alice", "d/e");
+        bus.publish(ServerEventBus.Kind.USER_LEFT, "bob", null);
+        List<String> events = new ArrayList<>();
+        assertFalse("told to rebuild", bus.drain((kind, user, path) -> events.add(kind + ":" + user + ":" + path)));
+        assertEquals(Arrays.asList("USER_JOINED:alice:null", "DIR_CHANGED:alice:d/e", "USER_LEFT:bob:null"), events);
+
+        events.clear();
+        assertTrue(bus.drain((kind, user, path) -> events.add(user)));
+        assertTrue(events.isEmpty());
+        assertEquals(1, wakes.get());
+    }
+
+    /**
+     * A burst wakes the consumer once, and once idle the next event wakes it again.
+     */
+    @Test
+    public void wakeOncePerBurst() {
+        ServerEventBus bus = new ServerEventBus(64);
+        AtomicInteger wakes = new AtomicInteger();
+        bus.subscribe(wakes::incrementAndGet);
+        bus.drain((kind, user, path) -> { });
+        assertFalse(bus.idle());
+
+        for (int i = 0; i < 10; i++) {
+            bus.publish(ServerEventBus.Kind.DIR_CHANGED, "alice", "d" + i);
+        }
+        assertEquals(2, wakes.get());
+        assertTrue(bus.drain((kind, user, path) -> { }));
+
+        // published between the last drain and going idle, the consumer goes on instead of being woken
+        bus.publish(ServerEventBus.Kind.USER_LEFT, "alice", null);
+        assertEquals(2, wakes.get());
+        assertTrue(bus.idle());
+        List<String> events = new ArrayList<>();
+        assertTrue(bus.drain((kind, user, path) -> events.add(kind.name())));
+        assertEquals(Collections.singletonList("USER_LEFT"), events);
+        assertFalse(bus.idle());
+
+        bus.publish(ServerEventBus.Kind.USER_JOINED, "bob", null);
+        assertEquals(3, wakes.get());
+    }
+
+    /**
+     * Events beyond the ring are dropped and the consumer told to rebuild.
+     */
+    @Test
+    public void overflow() {
+        ServerEventBus bus = new ServerEventBus(4);
+        bus.subscribe(() -> { });
+        bus.drain((kind, user, path) -> { });
+
+        for (int i = 0; i < 10; i++) {
+            bus.publish(ServerEventBus.Kind.DIR_CHANGED, "alice", "d" + i);
+        }
+        List<String> events = new ArrayList<>();
+        assertFalse(bus.drain((kind, user, path) -> events.add(path)));
+        assertEquals(Arrays.asList("d0", "d1", "d2", "d3"), events);
+
+        bus.publish(ServerEventBus.Kind.DIR_CHANGED, "alice", "d10");
+        events.clear();
+        assertTrue(bus.drain((kind, user, path) -> events.add(path)));
+        assertEquals(Collections.singletonList("d10"), events);
+    }
+
+    /**
+     * Publishers racing each other lose nothing and keep their own order.
+     *
+     * @throws InterruptedException the interrupted exception
+     */
+    @Test
+    public void concurrentPublishers() throws InterruptedException {
+        int publishers = 8;
+        int each = 2000;
+        ServerEventBus bus = new ServerEventBus(publishers * each);
+        bus.subscribe(() -> { });
+        bus.drain((kind, user, path) -> { });
+
+        Thread[] threads = new Thread[publishers];
+        for (int t = 0; t < publishers; t++) {
+            String user = "p" + t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < each; i++) {
+                    bus.publish(ServerEventBus.Kind.DIR_CHANGED, user, String.valueOf(i));
+                }
+            });
+            threads[t].start();
+        }
+        Map<String, Integer> last = new HashMap<>();
+        int[] taken = {0};
+        boolean[] ordered = {true};
+        ServerEventBus.Handler handler = (kind, user, path) -> {
+            Integer previous = last.put(user, Integer.valueOf(path));
+            ordered[0] &= previous == null || previous < Integer.parseInt(path);
+            taken[0]++;
+        };
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                assertTrue(bus.drain(handler));
+            }
+            thread.join();
+        }
+        assertTrue(bus.drain(handler));
+
+        assertEquals(publishers * each, taken[0]);
+        assertTrue(ordered[0]);
+    }
+}
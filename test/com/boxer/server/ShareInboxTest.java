@@ -0,0 +1,212 @@
+package com.boxer.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The type Share inbox test, shares taken in batches, confirmed or handed out again, and logs left behind by a crash.
+ */
+public class ShareInboxTest {
+    /**
+     * The Folder.
+     */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The Directory of the logs.
+     */
+    private Path dir;
+    /**
+     * The Inbox.
+     */
+    private ShareInbox inbox;
+
+    /**
+     * Open inbox.
+     *
+     * @throws IOException the io exception
+     */
+    @Before
+    public void open() throws IOException {
+        dir = folder.getRoot().toPath().resolve("inbox");
+        inbox = new ShareInbox(dir);
+    }
+
+    /**
+     * Close inbox.
+     *
+     * @throws IOException the io exception
+     */
+    @After
+    public void close() throws IOException {
+        inbox.close();
+    }
+
+    /**
+     * Shares come in the order offered, a batch at a time, and a committed log is emptied.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void takeAndCommit() throws IOException {
+        offer("bob", 10);
+
+        ShareInbox.Batch first = inbox.take("bob", 4);
+        assertEquals(Arrays.asList("s/0", "s/1", "s/2", "s/3"), paths(first));
+        assertEquals("alice", first.getShares().get(0).getSharer());
+        ShareInbox.Batch second = inbox.take("bob", 100);
+        assertEquals(6, second.getShares().size());
+        assertTrue("taken shares aren't handed out twice", inbox.take("bob", 100).isEmpty());
+
+        first.commit();
+        second.commit();
+        assertEquals(16, Files.size(log("bob")));
+        assertTrue(inbox.take("bob", 100).isEmpty());
+        assertTrue(inbox.take("nobody", 100).isEmpty());
+    }
+
+    /**
+     * Shares of a released batch come again, those committed before it don't.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void release() throws IOException {
+        offer("bob", 10);
+
+        inbox.take("bob", 3).commit();
+        ShareInbox.Batch lost = inbox.take("bob", 3);
+        inbox.take("bob", 3);
+        lost.release();
+        assertEquals(Arrays.asList("s/3", "s/4", "s/5", "s/6"), paths(inbox.take("bob", 4)));
+
+        inbox.rewind("bob");
+        assertEquals(7, inbox.take("bob", 100).getShares().size());
+    }
+
+    /**
+     * Shares not committed survive a restart, committed ones don't come back.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void reopen() throws IOException {
+        offer("bob", 10);
+        inbox.take("bob", 4).commit();
+        inbox.take("bob", 4);
+        inbox.offer("carol", "alice", "late");
+        inbox.close();
+
+        inbox = new ShareInbox(dir);
+        assertEquals(Arrays.asList("s/4", "s/5", "s/6", "s/7", "s/8", "s/9"), paths(inbox.take("bob", 100)));
+        assertEquals(Arrays.asList("late"), paths(inbox.take("carol", 100)));
+    }
+
+    /**
+     * A record cut off by a crash is dropped, the ones before it are kept, and the log takes new shares after them.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void tornRecord() throws IOException {
+        offer("bob", 3);
+        inbox.close();
+        try (OutputStream out = Files.newOutputStream(log("bob"), StandardOpenOption.APPEND)) {
+            out.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+        }
+
+        inbox = new ShareInbox(dir);
+        inbox.offer("bob", "carol", "after");
+        assertEquals(Arrays.asList("s/0", "s/1", "s/2", "after"), paths(inbox.take("bob", 100)));
+    }
+
+    /**
+     * A record whose checksum doesn't match is dropped with everything after it.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void brokenChecksum() throws IOException {
+        offer("bob", 3);
+        inbox.close();
+        try (RandomAccessFile log = new RandomAccessFile(log("bob").toFile(), "rw")) {
+            // the last byte of the time shared of the last record
+            log.seek(log.length() - 1);
+            int last = log.read();
+            log.seek(log.length() - 1);
+            log.write(last ^ 1);
+        }
+
+        inbox = new ShareInbox(dir);
+        assertEquals(Arrays.asList("s/0", "s/1"), paths(inbox.take("bob", 100)));
+    }
+
+    /**
+     * A log holding nothing but part of its header is started over.
+     *
+     * @throws IOException the io exception
+     */
+    @Test
+    public void tornHeader() throws IOException {
+        inbox.close();
+        Files.write(log("bob"), new byte[] {0x42, 0x58});
+
+        inbox = new ShareInbox(dir);
+        assertTrue(inbox.take("bob", 100).isEmpty());
+        offer("bob", 2);
+        assertEquals(2, inbox.take("bob", 100).getShares().size());
+    }
+
+    /**
+     * Offer numbered shares from alice.
+     *
+     * @param recipient the recipient
+     * @param count     the count
+     */
+    private void offer(String recipient, int count) {
+        for (int i = 0; i < count; i++) {
+            inbox.offer(recipient, "alice", "s/" + i);
+        }
+    }
+
+    /**
+     * Paths of a batch.
+     *
+     * @param batch the batch
+     * @return the paths
+     */
+    private static List<String> paths(ShareInbox.Batch batch) {
+        List<String> paths = new ArrayList<>();
+        for (ShareInbox.Share share : batch.getShares()) {
+            paths.add(share.getPath());
+        }
+        return paths;
+    }
+
+    /**
+     * Log of a recipient.
+     *
+     * @param recipient the recipient
+     * @return the log file
+     */
+    private Path log(String recipient) {
+        return dir.resolve(recipient + ".inbox");
+    }
+}